@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// compares the RandomAccessFile and memory mapped capped database implementations, this calls
+// agent internals directly so it is run without -javaagent, e.g.
+// java -jar target/benchmarks.jar CappedDatabaseBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+public class CappedDatabaseBenchmark {
+
+    @Param({"false", "true"})
+    public boolean memoryMapped;
+
+    private File tempFile;
+    private CappedDatabase cappedDatabase;
+    private Profile profile;
+    private long cappedId;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tempFile = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        // no scheduled executor, so fsyncs are only performed when they fall behind, same as they
+        // would under heavy write load
+        cappedDatabase = new CappedDatabase(tempFile, 100 * 1024, null, Ticker.systemTicker(),
+                memoryMapped);
+        profile = createProfile();
+        cappedId = cappedDatabase.writeMessage(profile, "profile");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cappedDatabase.close();
+        tempFile.delete();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        return cappedDatabase.writeMessage(profile, "profile");
+    }
+
+    @Benchmark
+    public Profile read() throws IOException {
+        return cappedDatabase.readMessage(cappedId, Profile.parser());
+    }
+
+    // roughly the size and shape of a main thread profile from a trace with a few hundred samples
+    private static Profile createProfile() {
+        Random random = new Random(0);
+        Profile.Builder builder = Profile.newBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.addPackageName("org.example.package" + i);
+            builder.addClassName("Class" + i);
+            builder.addMethodName("method" + i);
+            builder.addFileName("Class" + i + ".java");
+        }
+        for (int i = 0; i < 2000; i++) {
+            builder.addNode(Profile.ProfileNode.newBuilder()
+                    .setDepth(i % 50)
+                    .setPackageNameIndex(random.nextInt(200))
+                    .setClassNameIndex(random.nextInt(200))
+                    .setMethodNameIndex(random.nextInt(200))
+                    .setFileNameIndex(random.nextInt(200))
+                    .setLineNumber(random.nextInt(1000))
+                    .setSampleCount(1 + random.nextInt(100)));
+        }
+        return builder.build();
+    }
+}
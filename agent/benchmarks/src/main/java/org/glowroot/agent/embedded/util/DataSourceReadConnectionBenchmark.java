@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+
+// measures insert latency on the single shared connection while a UI query with slow result set
+// processing runs concurrently, with and without the read connection pool, this calls agent
+// internals directly so it is run without -javaagent, e.g.
+// java -jar target/benchmarks.jar DataSourceReadConnectionBenchmark
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+@Fork(1)
+public class DataSourceReadConnectionBenchmark {
+
+    private static final int ROW_COUNT = 20000;
+
+    @Param({"0", "2"})
+    public int readConnections;
+
+    private File dbFile;
+    private DataSource dataSource;
+    private String payload;
+    private long id;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dbFile = File.createTempFile("glowroot-benchmark-", ".h2.db");
+        dbFile.delete();
+        dataSource = new DataSource(dbFile, readConnections);
+        dataSource.execute("create table read_table (id bigint, payload varchar)");
+        dataSource.execute("create table write_table (id bigint, payload varchar)");
+        payload = new String(new char[200]).replace('\0', 'x');
+        for (int i = 0; i < ROW_COUNT; i++) {
+            dataSource.update("insert into read_table (id, payload) values (?, ?)", (long) i,
+                    payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        dataSource.close();
+        dbFile.delete();
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public int insert() throws SQLException {
+        return dataSource.update("insert into write_table (id, payload) values (?, ?)", id++,
+                payload);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public List<Long> query() throws SQLException {
+        return dataSource.query(new SlowRowQuery());
+    }
+
+    private static class SlowRowQuery implements JdbcRowQuery<Long> {
+
+        @Override
+        public String getSql() {
+            return "select id, payload from read_table";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) {}
+
+        // stand-in for per row processing such as merging histograms or profiles
+        @Override
+        public Long mapRow(ResultSet resultSet) throws Exception {
+            long value = resultSet.getLong(1);
+            String payload = resultSet.getString(2);
+            for (int i = 0; i < 200; i++) {
+                value = value * 31 + payload.hashCode() + i;
+            }
+            return value;
+        }
+    }
+}
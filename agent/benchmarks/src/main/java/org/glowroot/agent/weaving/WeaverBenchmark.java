@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.common.config.ImmutableInstrumentationConfig;
+import org.glowroot.common.config.InstrumentationConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.InstrumentationConfig.CaptureKind;
+
+import static org.mockito.Mockito.mock;
+
+// measures classes/sec through Weaver.weave() for classes that do not match any advice (which is
+// the vast majority of classes loaded), with a varying number of advisors (e.g. plugins plus
+// instrumentation config), this calls agent internals directly so it is run without -javaagent,
+// e.g. java -jar target/benchmarks.jar WeaverBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+public class WeaverBenchmark {
+
+    @Param({"10", "500"})
+    public int advisorCount;
+
+    private Weaver weaver;
+    private List<String> classNames;
+    private List<byte[]> classBytes;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        List<InstrumentationConfig> configs = Lists.newArrayList();
+        for (int i = 0; i < advisorCount; i++) {
+            ImmutableInstrumentationConfig.Builder config = ImmutableInstrumentationConfig
+                    .builder()
+                    .methodName("execute")
+                    .addMethodParameterTypes("..")
+                    .captureKind(CaptureKind.TIMER)
+                    .timerName("t" + i);
+            // mix of exact class names and wildcard class names, similar to typical plugin and
+            // instrumentation config pointcuts
+            if (i % 2 == 0) {
+                config.className("org.example.app.Service" + i);
+            } else {
+                config.className("org.example.app" + i + ".*");
+            }
+            configs.add(config.build());
+        }
+        Supplier<List<Advice>> advisors = Suppliers.<List<Advice>>ofInstance(ImmutableList
+                .copyOf(AdviceGenerator.createAdvisors(configs, null, false, false).keySet()));
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), null);
+        weaver = new Weaver(advisors, ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(),
+                analyzedWorld, mock(TransactionRegistry.class), Ticker.systemTicker(),
+                new TimerNameCache(), mock(ConfigService.class));
+        classNames = Lists.newArrayList();
+        classBytes = Lists.newArrayList();
+        File guavaJar = new File(ImmutableList.class.getProtectionDomain().getCodeSource()
+                .getLocation().getPath());
+        JarFile jarFile = new JarFile(guavaJar);
+        try {
+            Enumeration<JarEntry> e = jarFile.entries();
+            while (e.hasMoreElements()) {
+                JarEntry jarEntry = e.nextElement();
+                String name = jarEntry.getName();
+                if (name.startsWith("com/google/common/collect/") && name.endsWith(".class")) {
+                    classNames.add(name.substring(0, name.length() - ".class".length()));
+                    classBytes.add(ByteStreams.toByteArray(jarFile.getInputStream(jarEntry)));
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    @Benchmark
+    public byte /*@Nullable*/ [] weave() {
+        int i = index++ % classNames.size();
+        return weaver.weave(classBytes.get(i), classNames.get(i), null, null,
+                WeaverBenchmark.class.getClassLoader());
+    }
+}
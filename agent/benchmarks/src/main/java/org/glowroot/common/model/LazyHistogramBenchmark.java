@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// measures recording durations, encoding the histogram (as done by the agent for each aggregate)
+// and reading percentiles back from the encoded histogram (as done by the UI and central), for
+// both the raw value form (up to 1024 values) and the HdrHistogram form, this is run without
+// -javaagent, e.g. java -jar target/benchmarks.jar LazyHistogramBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+public class LazyHistogramBenchmark {
+
+    @Param({"100", "10000"})
+    public int valueCount;
+
+    private long[] values;
+    private Aggregate.Histogram encodedHistogram;
+    private final ScratchBuffer scratchBuffer = new ScratchBuffer();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(0);
+        values = new long[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            // log-normal-ish distribution of nanosecond durations between 1 ms and 10 seconds
+            values[i] = (long) (1000000 * Math.pow(10, 4 * random.nextDouble()));
+        }
+        encodedHistogram = recordValues().toProto(scratchBuffer);
+    }
+
+    @Benchmark
+    public Aggregate.Histogram recordAndEncode() {
+        return recordValues().toProto(scratchBuffer);
+    }
+
+    @Benchmark
+    public long decodeAndReadPercentiles() {
+        LazyHistogram histogram = new LazyHistogram(encodedHistogram);
+        return histogram.getValueAtPercentile(50) + histogram.getValueAtPercentile(95)
+                + histogram.getValueAtPercentile(99);
+    }
+
+    private LazyHistogram recordValues() {
+        LazyHistogram histogram = new LazyHistogram();
+        for (long value : values) {
+            histogram.add(value);
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// measures merging 10k stack trace samples (as done by the agent while collecting a profile) and
+// merging 10k sample profiles (as done by the UI and central when rolling up profiles), this is
+// run without -javaagent, e.g. java -jar target/benchmarks.jar MutableProfileBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+public class MutableProfileBenchmark {
+
+    private static final int SAMPLE_COUNT = 10000;
+
+    private List<List<StackTraceElement>> stackTraces;
+    private Profile profile;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        stackTraces = createStackTraces();
+        MutableProfile mutableProfile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            mutableProfile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        profile = mutableProfile.toProto();
+    }
+
+    @Benchmark
+    public MutableProfile mergeStackTraces() {
+        MutableProfile mutableProfile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            mutableProfile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        return mutableProfile;
+    }
+
+    @Benchmark
+    public MutableProfile mergeProfiles() {
+        MutableProfile mutableProfile = new MutableProfile();
+        for (int i = 0; i < 10; i++) {
+            mutableProfile.merge(profile);
+        }
+        return mutableProfile;
+    }
+
+    @Benchmark
+    public String truncateAndWriteFlameGraph() throws IOException {
+        MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(profile);
+        mutableProfile.truncateBranches(0.1);
+        return mutableProfile.toFlameGraphJson();
+    }
+
+    // deep stacks sharing common prefixes (e.g. servlet container and framework frames), with
+    // branching towards the leaves, similar to a typical web application profile
+    private static List<List<StackTraceElement>> createStackTraces() {
+        Random random = new Random(0);
+        List<StackTraceElement> commonFrames = Lists.newArrayList();
+        for (int i = 0; i < 40; i++) {
+            commonFrames.add(new StackTraceElement("org.example.framework.Class" + i, "method" + i,
+                    "Class" + i + ".java", 100 + i));
+        }
+        List<List<StackTraceElement>> stackTraces = Lists.newArrayList();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            List<StackTraceElement> stackTrace = Lists.newArrayList();
+            int branchDepth = 5 + random.nextInt(30);
+            for (int j = 0; j < branchDepth; j++) {
+                int k = random.nextInt(4);
+                stackTrace.add(new StackTraceElement("org.example.app" + j + ".Class" + k,
+                        "method" + k, "Class" + k + ".java", j * 10 + k));
+            }
+            // stack trace elements are leaf first
+            stackTrace.addAll(Lists.reverse(commonFrames));
+            stackTraces.add(stackTrace);
+        }
+        return stackTraces;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// compares merging many stored histograms (as done by the UI for percentile charts) using the
+// full precision HdrHistogram vs using the sketch, e.g. 720 histograms is 30 days of 1 hour
+// rollups, this is run without -javaagent, e.g. java -jar target/benchmarks.jar
+// QuantileSketchBenchmark, and also reports the serialized size of each histogram (as the
+// encodedBytes secondary result)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+public class QuantileSketchBenchmark {
+
+    private static final int VALUES_PER_HISTOGRAM = 10000;
+
+    @Param({"30", "720"})
+    public int histogramCount;
+
+    private Aggregate.Histogram[] encodedHistograms;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(0);
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        encodedHistograms = new Aggregate.Histogram[histogramCount];
+        for (int i = 0; i < histogramCount; i++) {
+            encodedHistograms[i] = createEncodedHistogram(random, scratchBuffer);
+        }
+    }
+
+    @Benchmark
+    public long mergeLazyHistograms(EncodedSize encodedSize) {
+        encodedSize.encodedBytes = encodedHistograms[0].getEncodedBytes().size();
+        LazyHistogram mergedHistogram = new LazyHistogram();
+        for (Aggregate.Histogram encodedHistogram : encodedHistograms) {
+            mergedHistogram.merge(encodedHistogram);
+        }
+        return mergedHistogram.getValueAtPercentile(95);
+    }
+
+    @Benchmark
+    public long mergeQuantileSketches(EncodedSize encodedSize) {
+        encodedSize.encodedBytes = encodedHistograms[0].getSketch().size();
+        QuantileSketch mergedSketch = new QuantileSketch();
+        for (Aggregate.Histogram encodedHistogram : encodedHistograms) {
+            mergedSketch.merge(encodedHistogram);
+        }
+        return mergedSketch.getValueAtPercentile(95);
+    }
+
+    private static Aggregate.Histogram createEncodedHistogram(Random random,
+            ScratchBuffer scratchBuffer) {
+        LazyHistogram histogram = new LazyHistogram();
+        for (int i = 0; i < VALUES_PER_HISTOGRAM; i++) {
+            // log-normal-ish distribution of nanosecond durations between 1 ms and 10 seconds
+            histogram.add((long) (1000000 * Math.pow(10, 4 * random.nextDouble())));
+        }
+        return histogram.toProtoWithSketch(scratchBuffer);
+    }
+
+    // the value is assigned (not accumulated), so it is reported as-is at the end of each iteration
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class EncodedSize {
+        public int encodedBytes;
+    }
+}
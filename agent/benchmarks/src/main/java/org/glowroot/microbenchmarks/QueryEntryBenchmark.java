@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.QueryEntryWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures ThreadContextImpl.startQueryEntry(), including the per-transaction query data lookup
+// (QueryDataMap), with a small and a large number of distinct query texts per transaction
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class QueryEntryBenchmark extends TransactionWorthy {
+
+    @Param({"1", "100"})
+    private int distinctQueryCount;
+
+    private QueryEntryWorthy queryEntryWorthy;
+
+    private String[] queryTexts;
+
+    @Setup
+    public void setup() {
+        queryEntryWorthy = new QueryEntryWorthy();
+        queryTexts = new String[distinctQueryCount];
+        for (int i = 0; i < distinctQueryCount; i++) {
+            queryTexts[i] = "select * from employee where id = ? and query = " + i;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            queryEntryWorthy.doSomethingQueryEntryWorthy(queryTexts[i % distinctQueryCount]);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TimerWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// run with "-prof gc" to see bytes allocated per transaction (gc.alloc.rate.norm), and compare
+// with and without "-jvmArgsAppend -Dglowroot.internal.timer.pooling=true"
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TimerBenchmark extends TransactionWorthy {
+
+    @Param
+    private PointcutType pointcutType;
+
+    private TimerWorthy timerWorthy;
+
+    @Setup
+    public void setup() {
+        timerWorthy = new TimerWorthy();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        switch (pointcutType) {
+            case API:
+                for (int i = 0; i < 10; i++) {
+                    timerWorthy.doSomethingTimerWorthy();
+                    timerWorthy.doSomethingTimerWorthyB();
+                }
+                break;
+            case CONFIG:
+                for (int i = 0; i < 10; i++) {
+                    timerWorthy.doSomethingTimerWorthy2();
+                    timerWorthy.doSomethingTimerWorthy2B();
+                }
+                break;
+        }
+    }
+}
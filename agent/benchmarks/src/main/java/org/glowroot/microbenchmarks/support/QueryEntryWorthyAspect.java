@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.ThreadContext;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.weaving.BindParameter;
+import org.glowroot.agent.plugin.api.weaving.BindThrowable;
+import org.glowroot.agent.plugin.api.weaving.BindTraveler;
+import org.glowroot.agent.plugin.api.weaving.OnAfter;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.OnThrow;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+public class QueryEntryWorthyAspect {
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.QueryEntryWorthy",
+            methodName = "doSomethingQueryEntryWorthy",
+            methodParameterTypes = {"java.lang.String"}, timerName = "query entry worthy")
+    public static class QueryEntryWorthyAdvice {
+
+        private static final TimerName timerName = Agent.getTimerName(QueryEntryWorthyAdvice.class);
+
+        @OnBefore
+        public static QueryEntry onBefore(ThreadContext context,
+                @BindParameter String queryText) {
+            return context.startQueryEntry("SQL", queryText,
+                    QueryMessageSupplier.create("query entry worthy: "), timerName);
+        }
+
+        @OnThrow
+        public static void onThrow(@BindThrowable Throwable t,
+                @BindTraveler QueryEntry queryEntry) {
+            queryEntry.endWithError(t);
+        }
+
+        @OnAfter
+        public static void onReturn(@BindTraveler QueryEntry queryEntry) {
+            queryEntry.end();
+        }
+    }
+}
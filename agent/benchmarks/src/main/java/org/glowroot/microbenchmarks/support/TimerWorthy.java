@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright 2014-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,4 +24,9 @@ public class TimerWorthy {
     public void doSomethingTimerWorthy2() {}
 
     public void doSomethingTimerWorthy2B() {}
+
+    public void doSomethingTimerWorthyOuter() {
+        doSomethingTimerWorthy();
+        doSomethingTimerWorthyB();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,7 +26,7 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 
 public class TimerWorthyAspect {
 
-    @Pointcut(className = "org.glowroot.microbenchmarks.core.support.TimerWorthy",
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.TimerWorthy",
             methodName = "doSomethingTimerWorthy", methodParameterTypes = {},
             timerName = "timer worthy")
     public static class TimerWorthyAdvice {
@@ -44,7 +44,7 @@ public class TimerWorthyAspect {
         }
     }
 
-    @Pointcut(className = "org.glowroot.microbenchmarks.core.support.TimerWorthy",
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.TimerWorthy",
             methodName = "doSomethingTimerWorthyB", methodParameterTypes = {},
             timerName = "timer worthy B")
     public static class TimerWorthyAdviceB {
@@ -61,4 +61,23 @@ public class TimerWorthyAspect {
             timer.stop();
         }
     }
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.TimerWorthy",
+            methodName = "doSomethingTimerWorthyOuter", methodParameterTypes = {},
+            timerName = "timer worthy outer")
+    public static class TimerWorthyOuterAdvice {
+
+        private static final TimerName timerName =
+                Agent.getTimerName(TimerWorthyOuterAdvice.class);
+
+        @OnBefore
+        public static Timer onBefore(ThreadContext context) {
+            return context.startTimer(timerName);
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler Timer timer) {
+            timer.stop();
+        }
+    }
 }
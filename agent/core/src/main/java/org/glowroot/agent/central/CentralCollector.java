@@ -15,13 +15,17 @@
  */
 package org.glowroot.agent.central;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -36,11 +40,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralSpool.Record;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.PropertiesFiles;
 import org.glowroot.common.util.Version;
@@ -73,6 +79,7 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class CentralCollector implements Collector {
 
@@ -89,6 +96,9 @@ public class CentralCollector implements Collector {
         SKIP_DELAY = Integer.getInteger("glowroot.internal.rollup.0.intervalMillis", 60000) < 10000;
     }
 
+    private static final byte SPOOL_AGGREGATES = 1;
+    private static final byte SPOOL_TRACE = 2;
+
     private final String agentId;
     private final String collectorAddress;
     private final ConfigService configService;
@@ -99,14 +109,23 @@ public class CentralCollector implements Collector {
     private final CentralConnection centralConnection;
     private final CollectorServiceStub collectorServiceStub;
     private final DownstreamServiceObserver downstreamServiceObserver;
+    private final AtomicBoolean inConnectionFailure;
+
+    // spool is only used when glowroot.collector.spool.maxSizeMb is set
+    private final @Nullable CentralSpool spool;
+    private final @Nullable ScheduledExecutorService spoolReplayExecutor;
+    private final int spoolReplayDelayMillis;
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    private final TraceMultiplexStream traceMultiplexStream;
+
     private volatile @MonotonicNonNull Environment environment;
     private volatile int nextAggregateDelayMillis;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
-            @Nullable String collectorAuthority, List<File> confDirs, boolean configReadOnly,
+            @Nullable String collectorAuthority, List<File> confDirs, File tmpDir,
+            boolean configReadOnly,
             LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
             LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater,
             ConfigService configService) throws Exception {
@@ -131,7 +150,7 @@ public class CentralCollector implements Collector {
 
         startupLogger.info("agent id: {}", agentId);
 
-        AtomicBoolean inConnectionFailure = new AtomicBoolean();
+        inConnectionFailure = new AtomicBoolean();
         centralConnection = new CentralConnection(collectorAddress, collectorAuthority, confDirs,
                 inConnectionFailure);
         collectorServiceStub = CollectorServiceGrpc.newStub(centralConnection.getChannel())
@@ -139,6 +158,30 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, configReadOnly, liveJvmService, liveWeavingService,
                 liveTraceRepository, agentId, inConnectionFailure, sharedQueryTextLimiter);
+        traceMultiplexStream = new TraceMultiplexStream(collectorServiceStub, agentId,
+                sharedQueryTextLimiter, new TraceMultiplexStream.Fallback() {
+                    @Override
+                    public void collectTrace(TraceReader traceReader) throws Exception {
+                        // fall back to per-trace call for traces that were sent on the stream but
+                        // were not acknowledged as stored
+                        centralConnection.blockingCallWithAFewRetries(
+                                new CollectTraceGrpcCall(traceReader));
+                    }
+                });
+
+        int spoolMaxSizeMb = getIntProperty(properties, "glowroot.collector.spool.maxSizeMb", 0);
+        int spoolReplayRatePerSecond =
+                getIntProperty(properties, "glowroot.collector.spool.replayRatePerSecond", 10);
+        spool = spoolMaxSizeMb > 0 ? createSpool(new File(tmpDir, "central-spool"),
+                spoolMaxSizeMb * 1024L * 1024) : null;
+        if (spool != null) {
+            spoolReplayExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadFactories.create("Glowroot-Central-Spool-Replay"));
+            spoolReplayExecutor.scheduleWithFixedDelay(new ReplaySpool(), 1, 1, SECONDS);
+        } else {
+            spoolReplayExecutor = null;
+        }
+        spoolReplayDelayMillis = 1000 / Math.max(spoolReplayRatePerSecond, 1);
     }
 
     @Override
@@ -199,6 +242,10 @@ public class CentralCollector implements Collector {
     // collecting even when no aggregates since collection triggers transaction-based alerts
     @Override
     public void collectAggregates(AggregateReader aggregateReader) throws InterruptedException {
+        if (spool != null && isSpooling(spool)) {
+            spoolAggregates(spool, aggregateReader);
+            return;
+        }
         if (!SKIP_DELAY) {
             MILLISECONDS.sleep(nextAggregateDelayMillis);
         }
@@ -244,7 +291,10 @@ public class CentralCollector implements Collector {
             // do not retry partial transactions since they are live and reading from the trace
             // reader will not be idempotent, so could lead to confusing results
             centralConnection.blockingCallOnce(new CollectTraceGrpcCall(traceReader));
-        } else {
+        } else if (spool != null && isSpooling(spool)) {
+            spoolTrace(spool, traceReader);
+        } else if (inConnectionFailure.get() || !traceMultiplexStream.collectTrace(traceReader)) {
+            // fall back to per-trace call
             centralConnection.blockingCallWithAFewRetries(new CollectTraceGrpcCall(traceReader));
         }
     }
@@ -273,15 +323,112 @@ public class CentralCollector implements Collector {
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
+        if (spoolReplayExecutor != null) {
+            spoolReplayExecutor.shutdownNow();
+        }
         downstreamServiceObserver.close();
+        traceMultiplexStream.close();
         centralConnection.close();
     }
 
     @OnlyUsedByTests
     public void awaitClose() throws InterruptedException {
+        if (spoolReplayExecutor != null
+                && !spoolReplayExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         centralConnection.awaitClose();
     }
 
+    // while there is spooled data, new data is appended to the spool as well (instead of being
+    // sent directly), so that it is sent after the spooled data, and does not compete with the
+    // replay for the connection to the central collector
+    private boolean isSpooling(CentralSpool spool) {
+        return inConnectionFailure.get() || !spool.isEmpty();
+    }
+
+    private void spoolAggregates(CentralSpool spool, AggregateReader aggregateReader) {
+        CollectingStreamObserver<AggregateStreamMessage> requestObserver =
+                new CollectingStreamObserver<AggregateStreamMessage>();
+        requestObserver.onNext(createAggregateStreamHeader(aggregateReader));
+        try {
+            // full texts are always spooled since it is unknown when the spool will be replayed
+            aggregateReader.accept(new AggregateVisitorImpl(requestObserver, null));
+            spool.append(SPOOL_AGGREGATES, requestObserver.messages);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private void spoolTrace(CentralSpool spool, TraceReader traceReader) {
+        CollectingStreamObserver<TraceStreamMessage> requestObserver =
+                new CollectingStreamObserver<TraceStreamMessage>();
+        requestObserver.onNext(createTraceStreamHeader(traceReader));
+        // full texts are always spooled since it is unknown when the spool will be replayed
+        TraceVisitorImpl traceVisitor = new TraceVisitorImpl(requestObserver, null);
+        try {
+            traceReader.accept(traceVisitor);
+            requestObserver.onNext(createTraceStreamCounts(traceVisitor));
+            spool.append(SPOOL_TRACE, requestObserver.messages);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private AggregateStreamMessage createAggregateStreamHeader(AggregateReader aggregateReader) {
+        return AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId(agentId)
+                        .setCaptureTime(aggregateReader.captureTime())
+                        .setPostV09(true))
+                .build();
+    }
+
+    private TraceStreamMessage createTraceStreamHeader(TraceReader traceReader) {
+        return TraceStreamMessage.newBuilder()
+                .setStreamHeader(TraceStreamHeader.newBuilder()
+                        .setAgentId(agentId)
+                        .setTraceId(traceReader.traceId())
+                        .setUpdate(traceReader.update())
+                        .setPostV09(true))
+                .build();
+    }
+
+    private static TraceStreamMessage createTraceStreamCounts(TraceVisitorImpl traceVisitor) {
+        return TraceStreamMessage.newBuilder()
+                .setStreamCounts(TraceStreamCounts.newBuilder()
+                        .setEntryCount(traceVisitor.entryCount)
+                        .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount))
+                .build();
+    }
+
+    private static @Nullable CentralSpool createSpool(File dir, long maxBytes) {
+        try {
+            return new CentralSpool(dir, maxBytes);
+        } catch (IOException e) {
+            startupLogger.warn("could not create central collector spool, spooling will be"
+                    + " disabled: {}", e.getMessage());
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static int getIntProperty(Map<String, String> properties, String name,
+            int defaultValue) {
+        String value = properties.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            startupLogger.warn("invalid {} value: {}", name.substring("glowroot.".length()),
+                    value);
+            logger.debug(e.getMessage(), e);
+            return defaultValue;
+        }
+    }
+
     @VisibleForTesting
     static String escapeHostname(String hostname) {
         hostname = hostname.replace("\\", "\\\\");
@@ -393,16 +540,11 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
             final StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
-            requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime())
-                            .setPostV09(true))
-                    .build());
+            requestObserver.onNext(createAggregateStreamHeader(aggregateReader));
             // need to clear in case this is a retry
             fullTextSha1s.clear();
             try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
+                aggregateReader.accept(new AggregateVisitorImpl(requestObserver, fullTextSha1s));
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
@@ -420,48 +562,66 @@ public class CentralCollector implements Collector {
             }
         }
 
-        private class AggregateVisitorImpl implements AggregateVisitor {
+        @Override
+        void doWithFailure() {
+            if (spool != null) {
+                spoolAggregates(spool, aggregateReader);
+            }
+        }
+    }
+
+    private class AggregateVisitorImpl implements AggregateVisitor {
 
-            private final StreamObserver<AggregateStreamMessage> requestObserver;
+        private final StreamObserver<AggregateStreamMessage> requestObserver;
+        // null when spooling
+        private final @Nullable List<String> fullTextSha1s;
 
-            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
-                this.requestObserver = requestObserver;
-            }
+        private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver,
+                @Nullable List<String> fullTextSha1s) {
+            this.requestObserver = requestObserver;
+            this.fullTextSha1s = fullTextSha1s;
+        }
 
-            @Override
-            public void visitOverallAggregate(String transactionType,
-                    List<String> sharedQueryTexts, Aggregate overallAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
-                            .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s);
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(aggregateSharedQueryText)
-                            .build());
-                }
+        @Override
+        public void visitOverallAggregate(String transactionType,
+                List<String> sharedQueryTexts, Aggregate overallAggregate) {
+            for (String sharedQueryText : sharedQueryTexts) {
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setOverallAggregate(OverallAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setAggregate(overallAggregate))
+                        .setSharedQueryText(buildSharedQueryText(sharedQueryText))
                         .build());
             }
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setOverallAggregate(OverallAggregate.newBuilder()
+                            .setTransactionType(transactionType)
+                            .setAggregate(overallAggregate))
+                    .build());
+        }
 
-            @Override
-            public void visitTransactionAggregate(String transactionType,
-                    String transactionName, List<String> sharedQueryTexts,
-                    Aggregate transactionAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(sharedQueryTextLimiter
-                                    .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
-                            .build());
-                }
+        @Override
+        public void visitTransactionAggregate(String transactionType,
+                String transactionName, List<String> sharedQueryTexts,
+                Aggregate transactionAggregate) {
+            for (String sharedQueryText : sharedQueryTexts) {
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setTransactionAggregate(TransactionAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setTransactionName(transactionName)
-                                .setAggregate(transactionAggregate))
+                        .setSharedQueryText(buildSharedQueryText(sharedQueryText))
                         .build());
             }
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setTransactionAggregate(TransactionAggregate.newBuilder()
+                            .setTransactionType(transactionType)
+                            .setTransactionName(transactionName)
+                            .setAggregate(transactionAggregate))
+                    .build());
+        }
+
+        private Aggregate.SharedQueryText buildSharedQueryText(String sharedQueryText) {
+            if (fullTextSha1s == null) {
+                return Aggregate.SharedQueryText.newBuilder()
+                        .setFullText(sharedQueryText)
+                        .build();
+            }
+            return sharedQueryTextLimiter.buildAggregateSharedQueryText(sharedQueryText,
+                    fullTextSha1s);
         }
     }
 
@@ -479,13 +639,7 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<EmptyMessage> responseObserver) {
             StreamObserver<TraceStreamMessage> requestObserver =
                     collectorServiceStub.collectTraceStream(responseObserver);
-            requestObserver.onNext(TraceStreamMessage.newBuilder()
-                    .setStreamHeader(TraceStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setTraceId(traceReader.traceId())
-                            .setUpdate(traceReader.update())
-                            .setPostV09(true))
-                    .build());
+            requestObserver.onNext(createTraceStreamHeader(traceReader));
             // need to clear in case this is a retry
             fullTextSha1s.clear();
             TraceVisitorImpl traceVisitor = new TraceVisitorImpl(requestObserver, fullTextSha1s);
@@ -496,11 +650,7 @@ public class CentralCollector implements Collector {
                 requestObserver.onError(t);
                 return;
             }
-            requestObserver.onNext(TraceStreamMessage.newBuilder()
-                    .setStreamCounts(TraceStreamCounts.newBuilder()
-                            .setEntryCount(traceVisitor.entryCount)
-                            .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount))
-                    .build());
+            requestObserver.onNext(createTraceStreamCounts(traceVisitor));
             requestObserver.onCompleted();
         }
 
@@ -510,18 +660,31 @@ public class CentralCollector implements Collector {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
         }
+
+        @Override
+        void doWithFailure() {
+            // partial traces are not spooled, see comment in collectTrace()
+            if (spool != null && !traceReader.partial()) {
+                spoolTrace(spool, traceReader);
+            }
+        }
     }
 
+    // timer names and entry locations are not string table encoded on the per-trace stream (only on
+    // the multiplexed stream, see TraceMultiplexStream), since this is also the fallback for older
+    // central collector versions which do not support the multiplexed stream, and which would not
+    // be able to decode the string tables either
     private class TraceVisitorImpl implements TraceVisitor {
 
         private final StreamObserver<TraceStreamMessage> requestObserver;
-        private final List<String> fullTextSha1s;
+        // null when spooling
+        private final @Nullable List<String> fullTextSha1s;
 
         private int entryCount;
         private int sharedQueryTextCount;
 
         private TraceVisitorImpl(StreamObserver<TraceStreamMessage> requestObserver,
-                List<String> fullTextSha1s) {
+                @Nullable List<String> fullTextSha1s) {
             this.requestObserver = requestObserver;
             this.fullTextSha1s = fullTextSha1s;
         }
@@ -545,8 +708,15 @@ public class CentralCollector implements Collector {
         @Override
         public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
             for (String sharedQueryText : sharedQueryTexts) {
-                Trace.SharedQueryText traceSharedQueryText = sharedQueryTextLimiter
-                        .buildTraceSharedQueryText(sharedQueryText, fullTextSha1s);
+                Trace.SharedQueryText traceSharedQueryText;
+                if (fullTextSha1s == null) {
+                    traceSharedQueryText = Trace.SharedQueryText.newBuilder()
+                            .setFullText(sharedQueryText)
+                            .build();
+                } else {
+                    traceSharedQueryText = sharedQueryTextLimiter
+                            .buildTraceSharedQueryText(sharedQueryText, fullTextSha1s);
+                }
                 requestObserver.onNext(TraceStreamMessage.newBuilder()
                         .setSharedQueryText(traceSharedQueryText)
                         .build());
@@ -575,4 +745,124 @@ public class CentralCollector implements Collector {
                     .build());
         }
     }
+
+    private class ReplaySpool implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                runInternal();
+            } catch (InterruptedException e) {
+                // shutdownNow() was called
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+
+        private void runInternal() throws Exception {
+            CentralSpool spool = checkNotNull(CentralCollector.this.spool);
+            // environment is only set once the init call has succeeded
+            while (environment != null && !inConnectionFailure.get()) {
+                Record record = spool.peek();
+                if (record == null) {
+                    return;
+                }
+                ReplayGrpcCall<?> call;
+                if (record.recordType() == SPOOL_AGGREGATES) {
+                    call = new ReplayAggregatesGrpcCall(record.payload());
+                } else {
+                    call = new ReplayTraceGrpcCall(record.payload());
+                }
+                centralConnection.blockingCallWithAFewRetries(call);
+                if (!call.sent) {
+                    // try again later
+                    return;
+                }
+                spool.remove(record);
+                MILLISECONDS.sleep(spoolReplayDelayMillis);
+            }
+        }
+    }
+
+    private abstract static class ReplayGrpcCall<T extends /*@NonNull*/ Object>
+            extends GrpcCall<T> {
+
+        private volatile boolean sent;
+
+        @Override
+        void doWithResponse(T response) {
+            sent = true;
+        }
+    }
+
+    private class ReplayAggregatesGrpcCall extends ReplayGrpcCall<AggregateResponseMessage> {
+
+        private final byte[] payload;
+
+        private ReplayAggregatesGrpcCall(byte[] payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+            StreamObserver<AggregateStreamMessage> requestObserver =
+                    collectorServiceStub.collectAggregateStream(responseObserver);
+            InputStream in = new ByteArrayInputStream(payload);
+            try {
+                AggregateStreamMessage message;
+                while ((message = AggregateStreamMessage.parseDelimitedFrom(in)) != null) {
+                    requestObserver.onNext(message);
+                }
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return;
+            }
+            requestObserver.onCompleted();
+        }
+    }
+
+    private class ReplayTraceGrpcCall extends ReplayGrpcCall<EmptyMessage> {
+
+        private final byte[] payload;
+
+        private ReplayTraceGrpcCall(byte[] payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        void call(StreamObserver<EmptyMessage> responseObserver) {
+            StreamObserver<TraceStreamMessage> requestObserver =
+                    collectorServiceStub.collectTraceStream(responseObserver);
+            InputStream in = new ByteArrayInputStream(payload);
+            try {
+                TraceStreamMessage message;
+                while ((message = TraceStreamMessage.parseDelimitedFrom(in)) != null) {
+                    requestObserver.onNext(message);
+                }
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return;
+            }
+            requestObserver.onCompleted();
+        }
+    }
+
+    private static class CollectingStreamObserver<T> implements StreamObserver<T> {
+
+        private final List<T> messages = Lists.newArrayList();
+
+        @Override
+        public void onNext(T value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
 }
@@ -166,12 +166,18 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.doWithFailure();
             return;
         }
         RetryingStreamObserver<T> responseObserver =
                 new RetryingStreamObserver<T>(call, maxTotalMillis, maxTotalMillis, false);
         call.call(responseObserver);
         responseObserver.waitForFinish();
+        if (!responseObserver.completed && !closed) {
+            // called from the calling thread (as opposed to from onError), so that the call can
+            // do blocking work with the same data that it was trying to send
+            call.doWithFailure();
+        }
     }
 
     <T extends /*@NonNull*/ Object> void asyncCallOnce(GrpcCall<T> call) {
@@ -301,6 +307,9 @@ class CentralConnection {
     abstract static class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called by blockingCallWithAFewRetries() when the call was not sent, either because of
+        // connection failure or because the retries were exhausted
+        void doWithFailure() {}
     }
 
     class RetryingStreamObserver<T extends /*@NonNull*/ Object> implements StreamObserver<T> {
@@ -312,6 +321,7 @@ class CentralConnection {
         private final Stopwatch stopwatch = Stopwatch.createStarted();
 
         private volatile long nextDelayMillis = 2000;
+        private volatile boolean completed;
 
         private final CountDownLatch latch = new CountDownLatch(1);
 
@@ -342,6 +352,7 @@ class CentralConnection {
                 inMaybeInitFailure = false;
                 initCallSucceeded = true;
             }
+            completed = true;
             latch.countDown();
         }
 
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.protobuf.MessageLite;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// bounded on-disk spool of stream messages that could not be sent to the central collector
+//
+// records are appended to segment files, and are replayed (and removed) in the order they were
+// appended, when the spool is over its max size the oldest segment is dropped
+//
+// the read position is not persisted, so records in the oldest segment may be replayed a second
+// time after a JVM restart, which is ok since aggregate and trace writes to the central collector
+// are idempotent
+class CentralSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    // record header is 4 byte length + 1 byte record type
+    private static final int RECORD_HEADER_BYTES = 5;
+
+    private final File dir;
+    private final long maxBytes;
+    private final long maxSegmentBytes;
+
+    // oldest first
+    private final List<Segment> segments = Lists.newArrayList();
+
+    private long nextSegmentNum;
+    private long totalBytes;
+
+    // position in the oldest segment
+    private long readPosition;
+
+    private boolean loggedDropWarning;
+
+    CentralSpool(File dir, long maxBytes) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        // dropping a segment drops at most 1/8 of the spool
+        maxSegmentBytes = Math.max(maxBytes / 8, 1);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            // segment file names are zero padded so that they sort in order
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_PREFIX)) {
+                    continue;
+                }
+                long segmentNum;
+                try {
+                    segmentNum = Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    logger.debug(e.getMessage(), e);
+                    continue;
+                }
+                // never append to segments from a prior JVM, since they may end with a partially
+                // written record
+                segments.add(new Segment(file, file.length(), false));
+                totalBytes += file.length();
+                nextSegmentNum = Math.max(nextSegmentNum, segmentNum + 1);
+            }
+        }
+    }
+
+    synchronized void append(byte recordType, List<? extends MessageLite> messages)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(0);
+        out.writeByte(recordType);
+        for (MessageLite message : messages) {
+            message.writeDelimitedTo(out);
+        }
+        byte[] record = baos.toByteArray();
+        int payloadLength = record.length - RECORD_HEADER_BYTES;
+        record[0] = (byte) (payloadLength >>> 24);
+        record[1] = (byte) (payloadLength >>> 16);
+        record[2] = (byte) (payloadLength >>> 8);
+        record[3] = (byte) payloadLength;
+        if (record.length > maxBytes) {
+            logger.warn("dropping record of size {} bytes which is larger than the max spool size"
+                    + " of {} bytes", record.length, maxBytes);
+            return;
+        }
+        while (totalBytes + record.length > maxBytes && !segments.isEmpty()) {
+            if (!loggedDropWarning) {
+                logger.warn("central collector spool is full, dropping oldest spooled data (this"
+                        + " warning will be logged only once)");
+                loggedDropWarning = true;
+            }
+            removeOldestSegment();
+        }
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || !segment.appendable
+                || segment.length + record.length > maxSegmentBytes) {
+            segment = new Segment(new File(dir,
+                    SEGMENT_PREFIX + Strings.padStart(Long.toString(nextSegmentNum++), 19, '0')),
+                    0, true);
+            segments.add(segment);
+        }
+        FileOutputStream fileOut = new FileOutputStream(segment.file, true);
+        try {
+            fileOut.write(record);
+        } finally {
+            fileOut.close();
+        }
+        segment.length += record.length;
+        totalBytes += record.length;
+    }
+
+    // returns the oldest record without removing it, or null if the spool is empty
+    synchronized @Nullable Record peek() throws IOException {
+        while (!segments.isEmpty()) {
+            Segment segment = segments.get(0);
+            Record record = readRecord(segment, readPosition);
+            if (record != null) {
+                return record;
+            }
+            // end of segment (or truncated record from crash while appending)
+            removeOldestSegment();
+        }
+        return null;
+    }
+
+    // removes the record that was returned by the last call to peek()
+    synchronized void remove(Record record) throws IOException {
+        if (segments.isEmpty() || segments.get(0) != record.segment) {
+            // segment was dropped in the meantime since the spool was full
+            return;
+        }
+        readPosition += RECORD_HEADER_BYTES + record.payload().length;
+        if (readPosition >= segments.get(0).length) {
+            removeOldestSegment();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void removeOldestSegment() throws IOException {
+        Segment segment = segments.remove(0);
+        totalBytes -= segment.length;
+        readPosition = 0;
+        if (!segment.file.delete() && segment.file.exists()) {
+            throw new IOException("Could not delete file: " + segment.file.getAbsolutePath());
+        }
+    }
+
+    private static @Nullable Record readRecord(Segment segment, long position)
+            throws IOException {
+        long length = segment.length;
+        if (position + RECORD_HEADER_BYTES > length) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(segment.file, "r");
+        try {
+            in.seek(position);
+            int payloadLength = in.readInt();
+            byte recordType = in.readByte();
+            if (payloadLength < 0
+                    || position + RECORD_HEADER_BYTES + payloadLength > length) {
+                return null;
+            }
+            byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+            return new Record(segment, recordType, payload);
+        } finally {
+            in.close();
+        }
+    }
+
+    static class Record {
+
+        private final Segment segment;
+        private final byte recordType;
+        private final byte[] payload;
+
+        private Record(Segment segment, byte recordType, byte[] payload) {
+            this.segment = segment;
+            this.recordType = recordType;
+            this.payload = payload;
+        }
+
+        byte recordType() {
+            return recordType;
+        }
+
+        // sequence of length delimited messages
+        byte[] payload() {
+            return payload;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final boolean appendable;
+        private long length;
+
+        private Segment(File file, long length, boolean appendable) {
+            this.file = file;
+            this.length = length;
+            this.appendable = appendable;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.collector.Collector.TraceVisitor;
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.model.TraceStringTables.LocationEncoder;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage.TraceEnd;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage.TraceMultiplexStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage.TraceStart;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.Queries;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// sends traces back-to-back over a single long-lived collectTraceMultiplexStream call, instead of
+// opening a new collectTraceStream call per trace, with shared query texts, timer names and
+// location stack trace elements only sent once per stream
+//
+// the caller does not wait for each trace to be acknowledged by the central collector, instead up
+// to MAX_IN_FLIGHT_TRACES traces can be waiting to be acknowledged, and any trace that is not
+// acknowledged as stored is passed (on a separate thread) to the fallback, which uses the
+// (retrying) per-trace call
+//
+// sending is also gated on the stream being ready (see ClientCallStreamObserver.isReady()), so
+// that traces are not buffered without bound in grpc when the central collector (or the network)
+// cannot keep up
+class TraceMultiplexStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceMultiplexStream.class);
+
+    // the stream is periodically re-opened so that agents re-balance across a central collector
+    // cluster, and so that the stream's tables do not grow without bound
+    private static final long MAX_STREAM_AGE_MILLIS = MINUTES.toMillis(15);
+    private static final int MAX_TABLE_SIZE = 10000;
+
+    private static final int MAX_IN_FLIGHT_TRACES = 100;
+
+    // max time to wait for the window or for the stream to be ready, before falling back to the
+    // per-trace call
+    private static final long WAIT_TIMEOUT_MILLIS = SECONDS.toMillis(60);
+
+    private final CollectorServiceStub collectorServiceStub;
+    private final String agentId;
+    private final SharedQueryTextLimiter sharedQueryTextLimiter;
+    private final Fallback fallback;
+    private final ExecutorService fallbackExecutor;
+
+    // permits are released when the trace is acknowledged (or fails)
+    private final Semaphore inFlightWindow = new Semaphore(MAX_IN_FLIGHT_TRACES);
+
+    private @Nullable Stream stream;
+
+    // older central collector versions do not support the multiplexed trace stream
+    private volatile boolean unsupported;
+
+    TraceMultiplexStream(CollectorServiceStub collectorServiceStub, String agentId,
+            SharedQueryTextLimiter sharedQueryTextLimiter, Fallback fallback) {
+        this(collectorServiceStub, agentId, sharedQueryTextLimiter, fallback,
+                Executors.newSingleThreadExecutor(
+                        ThreadFactories.create("Glowroot-Trace-Multiplex-Fallback")));
+    }
+
+    @VisibleForTesting
+    TraceMultiplexStream(CollectorServiceStub collectorServiceStub, String agentId,
+            SharedQueryTextLimiter sharedQueryTextLimiter, Fallback fallback,
+            ExecutorService fallbackExecutor) {
+        this.collectorServiceStub = collectorServiceStub;
+        this.agentId = agentId;
+        this.sharedQueryTextLimiter = sharedQueryTextLimiter;
+        this.fallback = fallback;
+        this.fallbackExecutor = fallbackExecutor;
+    }
+
+    // returns false if the trace was not sent (e.g. the central collector does not support the
+    // multiplexed trace stream, or the stream failed), in which case the caller should fall back to
+    // the per-trace call
+    //
+    // returns true once the trace has been sent, without waiting for it to be acknowledged, if it
+    // then fails to be stored it is passed to the fallback
+    boolean collectTrace(TraceReader traceReader) throws InterruptedException {
+        if (unsupported) {
+            return false;
+        }
+        if (!inFlightWindow.tryAcquire(WAIT_TIMEOUT_MILLIS, MILLISECONDS)) {
+            logger.debug("timed out waiting for traces to be acknowledged");
+            cancelCurrentStream();
+            return false;
+        }
+        boolean sent = false;
+        try {
+            sent = collectTraceInternal(traceReader);
+        } finally {
+            if (!sent) {
+                inFlightWindow.release();
+            }
+        }
+        return sent;
+    }
+
+    synchronized void close() {
+        if (stream != null && !stream.terminated) {
+            stream.requestObserver.onCompleted();
+        }
+        stream = null;
+        fallbackExecutor.shutdown();
+    }
+
+    private boolean collectTraceInternal(TraceReader traceReader) throws InterruptedException {
+        Stream stream = getOrCreateStream();
+        if (stream == null) {
+            return false;
+        }
+        // waiting outside of the lock (this is only called by a single thread)
+        if (!stream.awaitReady()) {
+            logger.debug("timed out waiting for the stream to be ready");
+            cancelCurrentStream();
+            return false;
+        }
+        String traceId = traceReader.traceId();
+        List<String> fullTextSha1s = Lists.newArrayList();
+        synchronized (this) {
+            PendingAck pendingAck = new PendingAck(traceReader, fullTextSha1s);
+            if (!stream.addPendingAck(traceId, pendingAck)) {
+                return false;
+            }
+            stream.sendTraceStart(traceReader);
+            TraceVisitorImpl traceVisitor = new TraceVisitorImpl(stream, fullTextSha1s);
+            try {
+                traceReader.accept(traceVisitor);
+            } catch (TableFullException e) {
+                logger.debug(e.getMessage(), e);
+                // the central collector has received part of the trace, so the stream cannot be
+                // used for subsequent traces (and the next trace will open a new stream)
+                cancel(stream, traceId);
+                return false;
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                // the central collector has received part of the trace, so the stream cannot be
+                // used for subsequent traces
+                cancel(stream, traceId);
+                return false;
+            }
+            stream.sendTraceEnd(traceVisitor);
+        }
+        return true;
+    }
+
+    private synchronized @Nullable Stream getOrCreateStream() {
+        if (unsupported) {
+            return null;
+        }
+        Stream stream = this.stream;
+        if (stream != null && stream.isFull()) {
+            // traces that are still waiting to be acknowledged are acknowledged before the
+            // central collector completes the stream
+            stream.requestObserver.onCompleted();
+            stream = null;
+        }
+        if (stream == null || stream.terminated) {
+            stream = new Stream();
+            this.stream = stream;
+        }
+        return stream;
+    }
+
+    private synchronized void cancelCurrentStream() {
+        if (stream != null) {
+            cancel(stream, null);
+        }
+    }
+
+    // this also fails any other traces on the stream that are still waiting to be acknowledged,
+    // which are then passed to the fallback
+    //
+    // the trace with the given trace id (if any) is not passed to the fallback, since the caller
+    // falls back to the per-trace call for it directly
+    private void cancel(Stream stream, @Nullable String traceId) {
+        if (traceId != null) {
+            stream.pendingAcks.remove(traceId);
+        }
+        if (!stream.terminated) {
+            stream.requestObserver.onError(Status.CANCELLED.asRuntimeException());
+            // the response observer is not necessarily notified of client-side cancellation
+            stream.terminate();
+        }
+        if (this.stream == stream) {
+            this.stream = null;
+        }
+    }
+
+    private static Trace.Timer encodeTimer(Trace.Timer timer, Stream stream) {
+        Trace.Timer.Builder builder = timer.toBuilder()
+                .clearName()
+                .setNameIndex(stream.getTimerNameIndex(timer.getName()))
+                .clearChildTimer();
+        for (Trace.Timer childTimer : timer.getChildTimerList()) {
+            builder.addChildTimer(encodeTimer(childTimer, stream));
+        }
+        return builder.build();
+    }
+
+    private class Stream implements
+            ClientResponseObserver<TraceMultiplexStreamMessage, TraceMultiplexResponseMessage> {
+
+        private final ClientCallStreamObserver<TraceMultiplexStreamMessage> requestObserver;
+        private final long startTimeMillis = System.currentTimeMillis();
+
+        private final Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+        private final Map<String, Integer> timerNameIndexes = Maps.newHashMap();
+        private final LocationEncoder locationEncoder = new LocationEncoder();
+
+        // keyed by trace id
+        private final ConcurrentMap<String, PendingAck> pendingAcks = Maps.newConcurrentMap();
+
+        private final Object readyLock = new Object();
+
+        private volatile boolean terminated;
+
+        private Stream() {
+            StreamObserver<TraceMultiplexStreamMessage> requestObserver =
+                    collectorServiceStub.collectTraceMultiplexStream(this);
+            // the request observer returned for client streaming calls is always a
+            // ClientCallStreamObserver
+            this.requestObserver =
+                    (ClientCallStreamObserver<TraceMultiplexStreamMessage>) requestObserver;
+            requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                    .setStreamHeader(TraceMultiplexStreamHeader.newBuilder()
+                            .setAgentId(agentId))
+                    .build());
+        }
+
+        @Override
+        public void beforeStart(
+                ClientCallStreamObserver<TraceMultiplexStreamMessage> requestStream) {
+            requestStream.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (readyLock) {
+                        readyLock.notifyAll();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onNext(TraceMultiplexResponseMessage value) {
+            PendingAck pendingAck = pendingAcks.remove(value.getTraceId());
+            if (pendingAck != null) {
+                pendingAck.complete(!value.getFailed());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (t instanceof StatusRuntimeException && ((StatusRuntimeException) t).getStatus()
+                    .getCode() == Status.Code.UNIMPLEMENTED) {
+                logger.debug("central collector does not support the multiplexed trace stream,"
+                        + " falling back to per-trace calls");
+                unsupported = true;
+            } else {
+                logger.debug(t.getMessage(), t);
+            }
+            terminate();
+        }
+
+        @Override
+        public void onCompleted() {
+            terminate();
+        }
+
+        private boolean isFull() {
+            return System.currentTimeMillis() - startTimeMillis > MAX_STREAM_AGE_MILLIS
+                    || sharedQueryTextIndexes.size() >= MAX_TABLE_SIZE
+                    || timerNameIndexes.size() >= MAX_TABLE_SIZE
+                    || locationEncoder.getSharedLocationStackTraceElements()
+                            .size() >= MAX_TABLE_SIZE;
+        }
+
+        // returns false if the stream has already terminated
+        private boolean addPendingAck(String traceId, PendingAck pendingAck) {
+            pendingAcks.put(traceId, pendingAck);
+            // checked after adding, see terminate()
+            if (terminated) {
+                pendingAcks.remove(traceId);
+                return false;
+            }
+            return true;
+        }
+
+        // returns false if the stream terminated or did not become ready in time
+        private boolean awaitReady() throws InterruptedException {
+            long remainingNanos = MILLISECONDS.toNanos(WAIT_TIMEOUT_MILLIS);
+            long deadline = System.nanoTime() + remainingNanos;
+            synchronized (readyLock) {
+                while (!requestObserver.isReady() && !terminated) {
+                    if (remainingNanos <= 0) {
+                        return false;
+                    }
+                    NANOSECONDS.timedWait(readyLock, remainingNanos);
+                    remainingNanos = deadline - System.nanoTime();
+                }
+            }
+            return !terminated;
+        }
+
+        private void sendTraceStart(TraceReader traceReader) {
+            requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                    .setTraceStart(TraceStart.newBuilder()
+                            .setTraceId(traceReader.traceId())
+                            .setUpdate(traceReader.update()))
+                    .build());
+        }
+
+        private void sendTraceEnd(TraceVisitorImpl traceVisitor) {
+            requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                    .setTraceEnd(TraceEnd.newBuilder()
+                            .addAllSharedQueryTextIndex(traceVisitor.sharedQueryTextIndexes)
+                            .setEntryCount(traceVisitor.entryCount))
+                    .build());
+        }
+
+        private int getSharedQueryTextIndex(String sharedQueryText, List<String> fullTextSha1s) {
+            Integer index = sharedQueryTextIndexes.get(sharedQueryText);
+            if (index == null) {
+                checkTableSize(sharedQueryTextIndexes.size());
+                index = sharedQueryTextIndexes.size();
+                sharedQueryTextIndexes.put(sharedQueryText, index);
+                requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                        .setSharedQueryText(sharedQueryTextLimiter
+                                .buildTraceSharedQueryText(sharedQueryText, fullTextSha1s))
+                        .build());
+            }
+            return index;
+        }
+
+        private int getTimerNameIndex(String timerName) {
+            Integer index = timerNameIndexes.get(timerName);
+            if (index == null) {
+                checkTableSize(timerNameIndexes.size());
+                index = timerNameIndexes.size();
+                timerNameIndexes.put(timerName, index);
+                requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                        .setTimerName(timerName)
+                        .build());
+            }
+            return index;
+        }
+
+        private Trace.Entry encodeLocation(Trace.Entry entry) {
+            List<Proto.StackTraceElement> sharedLocationStackTraceElements =
+                    locationEncoder.getSharedLocationStackTraceElements();
+            int priorSize = sharedLocationStackTraceElements.size();
+            Trace.Entry encodedEntry = locationEncoder.encode(entry);
+            // a single entry can add multiple elements, so this is checked before sending them
+            checkTableSize(sharedLocationStackTraceElements.size() - 1);
+            for (int i = priorSize; i < sharedLocationStackTraceElements.size(); i++) {
+                requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                        .setSharedLocationStackTraceElement(sharedLocationStackTraceElements.get(i))
+                        .build());
+            }
+            return encodedEntry;
+        }
+
+        private void terminate() {
+            terminated = true;
+            synchronized (readyLock) {
+                readyLock.notifyAll();
+            }
+            // any pending ack added concurrently with this will see terminated (and remove itself)
+            for (String traceId : pendingAcks.keySet()) {
+                // removed first, so that this does not race with onNext() completing the same ack
+                PendingAck pendingAck = pendingAcks.remove(traceId);
+                if (pendingAck != null) {
+                    pendingAck.complete(false);
+                }
+            }
+        }
+    }
+
+    private static void checkTableSize(int size) {
+        if (size >= MAX_TABLE_SIZE) {
+            throw new TableFullException();
+        }
+    }
+
+    interface Fallback {
+        void collectTrace(TraceReader traceReader) throws Exception;
+    }
+
+    private class PendingAck {
+
+        private final TraceReader traceReader;
+        private final List<String> fullTextSha1s;
+
+        private PendingAck(TraceReader traceReader, List<String> fullTextSha1s) {
+            this.traceReader = traceReader;
+            this.fullTextSha1s = fullTextSha1s;
+        }
+
+        // called at most once, since the pending ack is removed from the stream's pending acks
+        // before this is called
+        private void complete(boolean stored) {
+            inFlightWindow.release();
+            if (stored) {
+                for (String fullTextSha1 : fullTextSha1s) {
+                    sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+                }
+                return;
+            }
+            // the trace failed to be stored (e.g. RESOURCE_EXHAUSTED), or the stream terminated
+            try {
+                fallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fallback.collectTrace(traceReader);
+                        } catch (Throwable t) {
+                            logger.error(t.getMessage(), t);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static class TableFullException extends RuntimeException {
+
+        private TableFullException() {
+            super("stream table is full, falling back to per-trace call");
+        }
+    }
+
+    private static class TraceVisitorImpl implements TraceVisitor {
+
+        private final Stream stream;
+        private final List<String> fullTextSha1s;
+
+        private final List<Integer> sharedQueryTextIndexes = Lists.newArrayList();
+        private int entryCount;
+
+        private TraceVisitorImpl(Stream stream, List<String> fullTextSha1s) {
+            this.stream = stream;
+            this.fullTextSha1s = fullTextSha1s;
+        }
+
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            Trace.Entry encodedEntry = stream.encodeLocation(entry);
+            stream.requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                    .setEntry(encodedEntry)
+                    .build());
+            entryCount++;
+        }
+
+        @Override
+        public void visitQueries(List<Aggregate.Query> queries) {
+            stream.requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                    .setQueries(Queries.newBuilder()
+                            .addAllQuery(queries))
+                    .build());
+        }
+
+        @Override
+        public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
+            for (String sharedQueryText : sharedQueryTexts) {
+                sharedQueryTextIndexes
+                        .add(stream.getSharedQueryTextIndex(sharedQueryText, fullTextSha1s));
+            }
+        }
+
+        @Override
+        public void visitMainThreadProfile(Profile profile) {
+            stream.requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                    .setMainThreadProfile(profile)
+                    .build());
+        }
+
+        @Override
+        public void visitAuxThreadProfile(Profile profile) {
+            stream.requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                    .setAuxThreadProfile(profile)
+                    .build());
+        }
+
+        @Override
+        public void visitHeader(Trace.Header header) {
+            Trace.Header.Builder builder = header.toBuilder();
+            if (header.hasMainThreadRootTimer()) {
+                builder.setMainThreadRootTimer(
+                        encodeTimer(header.getMainThreadRootTimer(), stream));
+            }
+            if (header.hasAuxThreadRootTimer()) {
+                builder.setAuxThreadRootTimer(encodeTimer(header.getAuxThreadRootTimer(), stream));
+            }
+            builder.clearAsyncTimer();
+            for (Trace.Timer asyncTimer : header.getAsyncTimerList()) {
+                builder.addAsyncTimer(encodeTimer(asyncTimer, stream));
+            }
+            stream.requestObserver.onNext(TraceMultiplexStreamMessage.newBuilder()
+                    .setHeader(builder)
+                    .build());
+        }
+    }
+}
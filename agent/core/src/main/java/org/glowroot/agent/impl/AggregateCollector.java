@@ -144,6 +144,54 @@ class AggregateCollector {
         }
     }
 
+    // used to combine the partial aggregates when aggregation is sharded across multiple threads
+    void mergeDataFrom(AggregateCollector collector) {
+        synchronized (collector.lock) {
+            synchronized (lock) {
+                totalDurationNanos += collector.totalDurationNanos;
+                transactionCount += collector.transactionCount;
+                errorCount += collector.errorCount;
+                if (collector.asyncTransactions) {
+                    asyncTransactions = true;
+                }
+                mainThreadStats.mergeThreadStats(collector.mainThreadStats);
+                mainThreadRootTimers.mergeRootTimers(collector.mainThreadRootTimers);
+                if (collector.auxThreadRootTimer != null) {
+                    if (auxThreadRootTimer == null) {
+                        auxThreadRootTimer = MutableAggregateTimer.createAuxThreadRootTimer();
+                    }
+                    auxThreadRootTimer.addDataFrom(collector.auxThreadRootTimer);
+                    if (auxThreadStats == null) {
+                        auxThreadStats = new ThreadStatsCollectorImpl();
+                    }
+                    // aux thread stats is non-null when aux thread root timer is non-null
+                    auxThreadStats.mergeThreadStats(checkNotNull(collector.auxThreadStats));
+                }
+                if (collector.asyncTimers != null) {
+                    if (asyncTimers == null) {
+                        asyncTimers = new RootTimerCollectorImpl();
+                    }
+                    asyncTimers.mergeRootTimers(collector.asyncTimers);
+                }
+                durationNanosHistogram.merge(collector.durationNanosHistogram);
+                collector.queries.mergeQueriesInto(queries);
+                collector.serviceCalls.mergeServiceCallsInto(serviceCalls);
+                if (collector.mainThreadProfile != null) {
+                    if (mainThreadProfile == null) {
+                        mainThreadProfile = new MutableProfile();
+                    }
+                    mainThreadProfile.merge(collector.mainThreadProfile);
+                }
+                if (collector.auxThreadProfile != null) {
+                    if (auxThreadProfile == null) {
+                        auxThreadProfile = new MutableProfile();
+                    }
+                    auxThreadProfile.merge(collector.auxThreadProfile);
+                }
+            }
+        }
+    }
+
     Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
             ScratchBuffer scratchBuffer) {
         synchronized (lock) {
@@ -310,6 +358,25 @@ class AggregateCollector {
             rootMutableTimers.add(rootTimer);
         }
 
+        private void mergeRootTimers(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                MutableAggregateTimer matchingRootTimer = null;
+                for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                        matchingRootTimer = rootTimer;
+                        break;
+                    }
+                }
+                if (matchingRootTimer == null) {
+                    matchingRootTimer = new MutableAggregateTimer(toBeMergedRootTimer.getName(),
+                            toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(matchingRootTimer);
+                }
+                matchingRootTimer.addDataFrom(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -338,6 +405,16 @@ class AggregateCollector {
                     threadStats.getAllocatedBytes());
         }
 
+        private void mergeThreadStats(ThreadStatsCollectorImpl collector) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+        }
+
         public Aggregate.ThreadStats toProto() {
             return Aggregate.ThreadStats.newBuilder()
                     .setTotalCpuNanos(totalCpuNanos)
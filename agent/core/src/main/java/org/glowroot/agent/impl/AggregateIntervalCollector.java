@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,13 +15,18 @@
  */
 package org.glowroot.agent.impl;
 
+import java.math.RoundingMode;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.math.IntMath;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.collector.Collector;
@@ -47,23 +52,57 @@ public class AggregateIntervalCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
+    private static final long LIVE_MERGE_MAX_AGE_MILLIS = 1000;
+    private static final int MAX_RECENTLY_MERGED = 100;
+
     private final long captureTime;
     private final int maxTransactionAggregates;
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
     private final Clock clock;
 
-    private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
+    // when aggregation is sharded across multiple threads, each shard is only written to by a
+    // single thread, and the shards are merged when flushing (and when reading live data)
+    private final List<ConcurrentMap<String, IntervalTypeCollector>> shards;
+
+    // only used when aggregation is sharded across multiple threads, counted down by each
+    // aggregation thread once it has added all of its transactions for this interval
+    private final CountDownLatch pendingShards;
+
+    // only used when aggregation is sharded across multiple threads, live reads (e.g. from the ui
+    // auto refresh) re-use a recently merged aggregate instead of re-merging all of the shards on
+    // every read, keyed by transaction type and transaction name
+    private final ConcurrentMap<String, MergedAggregateCollector> recentMerges =
             Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
             Clock clock) {
+        this(currentTime, aggregateIntervalMillis, maxTransactionAggregates, maxQueryAggregates,
+                maxServiceCallAggregates, 1, clock);
+    }
+
+    AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
+            int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
+            int shardCount, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
-        this.maxTransactionAggregates = maxTransactionAggregates;
+        // the transaction aggregate limit is enforced per shard
+        this.maxTransactionAggregates =
+                IntMath.divide(maxTransactionAggregates, shardCount, RoundingMode.CEILING);
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.clock = clock;
+        List<ConcurrentMap<String, IntervalTypeCollector>> shards = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(Maps.<String, IntervalTypeCollector>newConcurrentMap());
+        }
+        this.shards = ImmutableList.copyOf(shards);
+        pendingShards = new CountDownLatch(shardCount == 1 ? 0 : shardCount);
+    }
+
+    static int getShardIndex(String transactionType, String transactionName, int shardCount) {
+        int hash = 31 * transactionType.hashCode() + transactionName.hashCode();
+        return (hash & Integer.MAX_VALUE) % shardCount;
     }
 
     public long getCaptureTime() {
@@ -71,54 +110,65 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transaction.getTransactionType());
+        String transactionType = transaction.getTransactionType();
+        ConcurrentMap<String, IntervalTypeCollector> typeCollectors = shards.size() == 1
+                ? shards.get(0)
+                : shards.get(getShardIndex(transactionType, transaction.getTransactionName(),
+                        shards.size()));
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             // don't need to worry about race condition here because add() is only called from a
-            // single thread (TransactionProcessorLoop)
+            // single thread per shard (TransactionProcessorLoop or AggregateShardLoop)
             typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transaction.getTransactionType(), typeCollector);
+            typeCollectors.put(transactionType, typeCollector);
         }
         typeCollector.add(transaction);
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector != null) {
+                typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+            }
         }
-        typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
     }
 
     public void mergeTransactionNameSummariesInto(TransactionNameSummaryCollector collector,
             String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
-        }
-        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                .values()) {
-            aggregateCollector.mergeTransactionNameSummariesInto(collector);
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                continue;
+            }
+            for (AggregateCollector aggregateCollector : typeCollector
+                    .transactionAggregateCollectors.values()) {
+                aggregateCollector.mergeTransactionNameSummariesInto(collector);
+            }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector != null) {
+                typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+            }
         }
-        typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
     }
 
     public void mergeTransactionNameErrorSummariesInto(
             TransactionNameErrorSummaryCollector collector, String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
-        }
-        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                .values()) {
-            aggregateCollector.mergeTransactionNameErrorSummariesInto(collector);
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                continue;
+            }
+            for (AggregateCollector aggregateCollector : typeCollector
+                    .transactionAggregateCollectors.values()) {
+                aggregateCollector.mergeTransactionNameErrorSummariesInto(collector);
+            }
         }
     }
 
@@ -156,10 +206,12 @@ public class AggregateIntervalCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-            String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-            if (fullQueryText != null) {
-                return fullQueryText;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                if (fullQueryText != null) {
+                    return fullQueryText;
+                }
             }
         }
         return null;
@@ -208,20 +260,103 @@ public class AggregateIntervalCollector {
     // TODO report checker framework issue that occurs without this suppression
     @SuppressWarnings("return.type.incompatible")
     Set<String> getTransactionTypes() {
-        return typeCollectors.keySet();
+        if (shards.size() == 1) {
+            return shards.get(0).keySet();
+        }
+        Set<String> transactionTypes = Sets.newHashSet();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            transactionTypes.addAll(typeCollectors.keySet());
+        }
+        return transactionTypes;
+    }
+
+    // called by each aggregation thread once it has added all of its transactions for this
+    // interval (only used when aggregation is sharded across multiple threads)
+    void markShardCompleted() {
+        pendingShards.countDown();
     }
 
     void flush(Collector collector) throws Exception {
+        pendingShards.await();
         collector.collectAggregates(new AggregateReaderImpl(captureTime));
     }
 
     void clear() {
-        typeCollectors.clear();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            typeCollectors.clear();
+        }
+        recentMerges.clear();
     }
 
     // can be called without lock
     private @Nullable AggregateCollector getAggregateCollector(String transactionType,
             @Nullable String transactionName) {
+        if (shards.size() == 1) {
+            return getAggregateCollector(shards.get(0), transactionType, transactionName);
+        }
+        String key = transactionName == null ? transactionType
+                : transactionType + '\u0000' + transactionName;
+        long currentTimeMillis = clock.currentTimeMillis();
+        MergedAggregateCollector recentlyMerged = recentMerges.get(key);
+        if (recentlyMerged != null
+                && currentTimeMillis - recentlyMerged.mergeTime < LIVE_MERGE_MAX_AGE_MILLIS) {
+            return recentlyMerged.aggregateCollector;
+        }
+        AggregateCollector mergedAggregateCollector =
+                mergeAggregateCollectors(transactionType, transactionName);
+        if (mergedAggregateCollector != null) {
+            if (recentMerges.size() >= MAX_RECENTLY_MERGED) {
+                // bound the memory held by this cache
+                recentMerges.clear();
+            }
+            recentMerges.put(key,
+                    new MergedAggregateCollector(mergedAggregateCollector, currentTimeMillis));
+        }
+        return mergedAggregateCollector;
+    }
+
+    private @Nullable AggregateCollector mergeAggregateCollectors(String transactionType,
+            @Nullable String transactionName) {
+        // the overall aggregate (and the limit exceeded bucket) can be spread across shards
+        AggregateCollector mergedAggregateCollector = null;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            AggregateCollector aggregateCollector =
+                    getAggregateCollector(typeCollectors, transactionType, transactionName);
+            if (aggregateCollector == null) {
+                continue;
+            }
+            if (mergedAggregateCollector == null) {
+                mergedAggregateCollector = new AggregateCollector(transactionName,
+                        maxQueryAggregates, maxServiceCallAggregates);
+            }
+            mergedAggregateCollector.mergeDataFrom(aggregateCollector);
+        }
+        return mergedAggregateCollector;
+    }
+
+    // the merged type collectors are only used for flushing (after all shards have completed)
+    private Map<String, IntervalTypeCollector> getMergedTypeCollectors() {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        Map<String, IntervalTypeCollector> mergedTypeCollectors = Maps.newHashMap();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            for (Map.Entry<String, IntervalTypeCollector> entry : typeCollectors.entrySet()) {
+                IntervalTypeCollector mergedTypeCollector =
+                        mergedTypeCollectors.get(entry.getKey());
+                if (mergedTypeCollector == null) {
+                    mergedTypeCollector = new IntervalTypeCollector();
+                    mergedTypeCollectors.put(entry.getKey(), mergedTypeCollector);
+                }
+                mergedTypeCollector.mergeDataFrom(entry.getValue());
+            }
+        }
+        return mergedTypeCollectors;
+    }
+
+    private static @Nullable AggregateCollector getAggregateCollector(
+            Map<String, IntervalTypeCollector> typeCollectors, String transactionType,
+            @Nullable String transactionName) {
         IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
         if (intervalTypeCollector == null) {
             return null;
@@ -277,6 +412,21 @@ public class AggregateIntervalCollector {
             aggregateCollector.mergeDataFrom(transaction);
         }
 
+        // transaction aggregate limit is not applied here since it was already applied per shard
+        private void mergeDataFrom(IntervalTypeCollector typeCollector) {
+            overallAggregateCollector.mergeDataFrom(typeCollector.overallAggregateCollector);
+            for (Map.Entry<String, AggregateCollector> entry : typeCollector
+                    .transactionAggregateCollectors.entrySet()) {
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(entry.getKey());
+                if (transactionAggregateCollector == null) {
+                    transactionAggregateCollector =
+                            createTransactionAggregateCollector(entry.getKey());
+                }
+                transactionAggregateCollector.mergeDataFrom(entry.getValue());
+            }
+        }
+
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
             String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
             if (fullQueryText != null) {
@@ -292,6 +442,17 @@ public class AggregateIntervalCollector {
         }
     }
 
+    private static class MergedAggregateCollector {
+
+        private final AggregateCollector aggregateCollector;
+        private final long mergeTime;
+
+        private MergedAggregateCollector(AggregateCollector aggregateCollector, long mergeTime) {
+            this.aggregateCollector = aggregateCollector;
+            this.mergeTime = mergeTime;
+        }
+    }
+
     private class AggregateReaderImpl implements AggregateReader {
 
         private final long captureTime;
@@ -310,7 +471,8 @@ public class AggregateIntervalCollector {
             SharedQueryTextCollectionImpl sharedQueryTextCollector =
                     new SharedQueryTextCollectionImpl();
             ScratchBuffer scratchBuffer = new ScratchBuffer();
-            for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+            for (Map.Entry<String, IntervalTypeCollector> e : getMergedTypeCollectors()
+                    .entrySet()) {
                 String transactionType = e.getKey();
                 IntervalTypeCollector intervalTypeCollector = e.getValue();
                 Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Arrays;
+
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.model.TimerNameImpl;
@@ -49,6 +51,12 @@ class NestedTimerMap {
         return null;
     }
 
+    // retains the current capacity so that recycled timers do not need to re-grow their maps
+    void clear() {
+        Arrays.fill(table, null);
+        size = 0;
+    }
+
     // IMPORTANT put assumes get was already called and key is not present in this map
     void put(TimerNameImpl key, TimerImpl value) {
         if (size++ > threshold) {
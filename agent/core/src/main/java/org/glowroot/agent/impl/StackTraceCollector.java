@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,6 +20,7 @@ import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -33,10 +34,17 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-public class StackTraceCollector {
+public class StackTraceCollector implements StackTraceCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // capturing stack traces requires a safepoint whose duration grows with the number of threads
+    // being captured, so at high thread counts this can be used to bound the number of threads
+    // captured per profiling interval, rotating across transactions so that each transaction is
+    // still profiled (just less often), 0 means no limit
+    private static final int MAX_THREADS_PER_INTERVAL =
+            Integer.getInteger("glowroot.internal.profiling.maxThreadsPerInterval", 0);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -44,6 +52,15 @@ public class StackTraceCollector {
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
+    // these are only written by the processing thread
+    private volatile long samplingTimeNanos;
+    private volatile long lastSamplingTimeNanos;
+    private volatile long sampledThreadCount;
+
+    public static boolean isMaxThreadsPerIntervalEnabled() {
+        return MAX_THREADS_PER_INTERVAL > 0;
+    }
+
     public StackTraceCollector(TransactionRegistry transactionRegistry,
             final ConfigService configService, Random random) {
         this.transactionRegistry = transactionRegistry;
@@ -71,6 +88,21 @@ public class StackTraceCollector {
         });
     }
 
+    @Override
+    public long getSamplingTimeNanos() {
+        return samplingTimeNanos;
+    }
+
+    @Override
+    public long getLastSamplingTimeNanos() {
+        return lastSamplingTimeNanos;
+    }
+
+    @Override
+    public long getSampledThreadCount() {
+        return sampledThreadCount;
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         runnable.closed = true;
@@ -100,8 +132,74 @@ public class StackTraceCollector {
         }
     }
 
+    // selects at most maxThreadContexts active thread contexts per interval (main thread contexts
+    // count against the limit too), each interval resumes from the thread context after the last
+    // one selected in the prior interval, which can be in the middle of a transaction's aux thread
+    // contexts, so that the aux threads of a busy transaction are rotated through as well
+    @VisibleForTesting
+    static class RotatingThreadContextSelector {
+
+        private final int maxThreadContexts;
+
+        private int nextTransactionIndex;
+        // position within the transaction's thread contexts (main thread context first, if active)
+        private int nextThreadContextIndex;
+
+        RotatingThreadContextSelector(int maxThreadContexts) {
+            this.maxThreadContexts = maxThreadContexts;
+        }
+
+        List<ThreadContextImpl> select(List<Transaction> transactions) {
+            int transactionCount = transactions.size();
+            List<ThreadContextImpl> selected = Lists.newArrayList();
+            if (transactionCount == 0) {
+                return selected;
+            }
+            if (nextTransactionIndex >= transactionCount) {
+                nextTransactionIndex = 0;
+                nextThreadContextIndex = 0;
+            }
+            int startTransactionIndex = nextTransactionIndex;
+            int startThreadContextIndex = nextThreadContextIndex;
+            // the extra iteration wraps around to the start of the first transaction, to pick up
+            // the thread contexts that were skipped when resuming in the middle of it
+            for (int i = 0; i <= transactionCount; i++) {
+                int transactionIndex = (startTransactionIndex + i) % transactionCount;
+                List<ThreadContextImpl> threadContexts =
+                        getActiveThreadContexts(transactions.get(transactionIndex));
+                int from = i == 0 ? startThreadContextIndex : 0;
+                int to = i == transactionCount
+                        ? Math.min(startThreadContextIndex, threadContexts.size())
+                        : threadContexts.size();
+                for (int j = from; j < to; j++) {
+                    selected.add(threadContexts.get(j));
+                    if (selected.size() == maxThreadContexts) {
+                        nextTransactionIndex = transactionIndex;
+                        nextThreadContextIndex = j + 1;
+                        return selected;
+                    }
+                }
+            }
+            return selected;
+        }
+
+        private static List<ThreadContextImpl> getActiveThreadContexts(Transaction transaction) {
+            List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+            ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+            if (mainThreadContext.isActive()) {
+                threadContexts.add(mainThreadContext);
+            }
+            threadContexts.addAll(transaction.getActiveAuxThreadContexts());
+            return threadContexts;
+        }
+    }
+
     private class InternalRunnable implements Runnable {
 
+        private final @Nullable RotatingThreadContextSelector selector =
+                MAX_THREADS_PER_INTERVAL > 0
+                        ? new RotatingThreadContextSelector(MAX_THREADS_PER_INTERVAL) : null;
+
         private volatile int currIntervalMillis;
         private volatile boolean closed;
 
@@ -144,22 +242,31 @@ public class StackTraceCollector {
         }
 
         private void runInternal() {
+            long startTick = System.nanoTime();
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
                 return;
             }
-            List<ThreadContextImpl> activeThreadContexts =
-                    Lists.newArrayListWithCapacity(2 * transactions.size());
-            for (int i = 0; i < transactions.size(); i++) {
-                Transaction transaction = transactions.get(i);
-                ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
-                if (mainThreadContext.isActive()) {
-                    activeThreadContexts.add(mainThreadContext);
+            List<ThreadContextImpl> activeThreadContexts;
+            if (selector == null) {
+                activeThreadContexts = Lists.newArrayListWithCapacity(2 * transactions.size());
+                for (int i = 0; i < transactions.size(); i++) {
+                    Transaction transaction = transactions.get(i);
+                    ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+                    if (mainThreadContext.isActive()) {
+                        activeThreadContexts.add(mainThreadContext);
+                    }
+                    activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
                 }
-                activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+            } else {
+                activeThreadContexts = selector.select(transactions);
             }
             captureStackTraces(activeThreadContexts);
+            long samplingNanos = System.nanoTime() - startTick;
+            lastSamplingTimeNanos = samplingNanos;
+            samplingTimeNanos += samplingNanos;
+            sampledThreadCount += activeThreadContexts.size();
         }
     }
 }
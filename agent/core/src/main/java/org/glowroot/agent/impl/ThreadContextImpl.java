@@ -86,6 +86,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private final @Nullable TraceEntryImpl parentThreadContextPriorEntry;
 
     private final TimerImpl rootTimer;
+    // only non-null for main thread (and only when timer pooling is enabled)
+    private final @Nullable TimerImplPool timerPool;
     // only accessed by the thread context's thread
     private @Nullable TimerImpl currentTimer;
 
@@ -148,6 +150,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             int rootSuppressionKeyId) {
         this.transaction = transaction;
         this.parentTraceEntry = parentTraceEntry;
+        timerPool = parentTraceEntry == null ? TimerImplPool.getForCurrentThread() : null;
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
@@ -188,6 +191,18 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return rootTimer;
     }
 
+    @Nullable
+    TimerImplPool getTimerPool() {
+        return timerPool;
+    }
+
+    // only called after the transaction has been aggregated, see TransactionProcessor
+    void recycleTimers() {
+        if (timerPool != null) {
+            timerPool.recycle(rootTimer);
+        }
+    }
+
     ThreadStats getThreadStats() {
         if (threadStatsComponent == null) {
             return ThreadStats.NA;
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -59,9 +59,13 @@ public class TimerImpl implements Timer, TransactionTimer {
 
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TimerImpl parent;
-    private final TimerNameImpl timerName;
+    // these are only non-final so that timers can be recycled (see TimerImplPool)
+    //
+    // they are always written before the timer is published to other threads, either through the
+    // volatile headChild of its parent, or through the final rootTimer of its thread context
+    private ThreadContextImpl threadContext;
+    private @Nullable TimerImpl parent;
+    private TimerNameImpl timerName;
 
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
     private long totalNanos;
@@ -78,11 +82,35 @@ public class TimerImpl implements Timer, TransactionTimer {
 
     // separate linked list for safe iterating by other threads (e.g. partial trace capture and
     // active trace viewer)
-    private @MonotonicNonNull TimerImpl headChild;
-    private final @Nullable TimerImpl nextSibling;
+    //
+    // headChild is volatile so that a (possibly recycled) nested timer is safely published to
+    // other threads, it is only written when a new nested timer is created, which is not on the
+    // steady state timer path
+    private volatile @Nullable TimerImpl headChild;
+    private @Nullable TimerImpl nextSibling;
+
+    // only used while in TimerImplPool
+    @Nullable
+    TimerImpl nextFree;
 
     static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName) {
-        return new TimerImpl(threadContext, null, null, timerName);
+        return create(threadContext, null, null, timerName);
+    }
+
+    private static TimerImpl create(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+        TimerImplPool timerPool = threadContext.getTimerPool();
+        if (timerPool != null) {
+            TimerImpl timer = timerPool.take();
+            if (timer != null) {
+                timer.threadContext = threadContext;
+                timer.parent = parent;
+                timer.nextSibling = nextSibling;
+                timer.timerName = timerName;
+                return timer;
+            }
+        }
+        return new TimerImpl(threadContext, parent, nextSibling, timerName);
     }
 
     private TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
@@ -96,6 +124,10 @@ public class TimerImpl implements Timer, TransactionTimer {
     // safe to be called from another thread when transaction is still active transaction
     @JsonIgnore
     Trace.Timer toProto() {
+        return toProto(timerName);
+    }
+
+    private Trace.Timer toProto(TimerNameImpl timerName) {
         Trace.Timer.Builder builder = Trace.Timer.newBuilder();
         builder.setName(timerName.name());
         builder.setExtended(timerName.extended());
@@ -105,11 +137,17 @@ public class TimerImpl implements Timer, TransactionTimer {
         builder.setCount(snapshot.count());
         builder.setActive(snapshot.active());
 
-        if (headChild != null) {
+        TimerImpl curr = headChild;
+        if (curr != null) {
             List<Trace.Timer> nestedTimers = Lists.newArrayList();
-            TimerImpl curr = headChild;
             while (curr != null) {
-                nestedTimers.add(curr.toProto());
+                // timer name is only null if the timer was recycled while being read, which
+                // Transaction.recycleTimers() guards against, but better safe than NPE
+                @Nullable
+                TimerNameImpl currTimerName = curr.timerName;
+                if (currTimerName != null) {
+                    nestedTimers.add(curr.toProto(currTimerName));
+                }
                 curr = curr.nextSibling;
             }
             builder.addAllChildTimer(nestedTimers);
@@ -244,6 +282,36 @@ public class TimerImpl implements Timer, TransactionTimer {
         return currentTimer.startNestedTimer(extendedTimer);
     }
 
+    @Nullable
+    TimerImpl getHeadChild() {
+        return headChild;
+    }
+
+    @Nullable
+    TimerImpl getNextSibling() {
+        return nextSibling;
+    }
+
+    // only called by TimerImplPool, after the timer tree is no longer referenced
+    //
+    // the thread context and timer name are cleared so that the pooled timer does not keep the
+    // completed transaction reachable, they are always set again before the timer is re-used
+    @SuppressWarnings("nullness:assignment.type.incompatible")
+    void reset() {
+        threadContext = null;
+        timerName = null;
+        parent = null;
+        nextSibling = null;
+        headChild = null;
+        totalNanos = 0;
+        count = 0;
+        startTick = 0;
+        selfNestingLevel = 0;
+        if (nestedTimers != null) {
+            nestedTimers.clear();
+        }
+    }
+
     void start(long startTick) {
         this.startTick = startTick;
         selfNestingLevel++;
@@ -266,9 +334,10 @@ public class TimerImpl implements Timer, TransactionTimer {
             nestedTimer.start(nestedTimerStartTick);
             return nestedTimer;
         }
-        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
+        nestedTimer = create(threadContext, this, headChild, timerNameImpl);
         nestedTimer.start(nestedTimerStartTick);
         nestedTimers.put(timerNameImpl, nestedTimer);
+        // the volatile write publishes the fields of the nested timer written above
         headChild = nestedTimer;
         return nestedTimer;
     }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// per-thread free list of timers, so that the steady state timer path does not allocate
+//
+// timers are only taken from the free list by the thread that owns it (the transaction thread),
+// and whole timer trees are returned to it by the aggregate processing thread(s) once the
+// transaction has fully completed and been aggregated (and only if the transaction was not captured
+// as a trace, since traces are built from the timer tree asynchronously, and only if no other
+// thread, e.g. the active trace viewer, is reading the timer tree at that time)
+//
+// timers are never returned for async transactions, since async trace entries can outlive the main
+// thread context
+class TimerImplPool {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.internal.timer.pooling");
+
+    // larger trees are left for garbage collection, to bound the memory retained by each thread
+    private static final int MAX_RECYCLED_TREE_SIZE = 1000;
+
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private static final ThreadLocal<TimerImplPool> pools = new ThreadLocal<TimerImplPool>() {
+        @Override
+        protected TimerImplPool initialValue() {
+            return new TimerImplPool();
+        }
+    };
+
+    // only accessed by the owning thread
+    private @Nullable TimerImpl free;
+
+    // linked via TimerImpl.nextFree, pushed by the aggregate processing thread(s) and taken in bulk
+    // by the owning thread when its local free list runs out
+    private final AtomicReference</*@Nullable*/ TimerImpl> returned =
+            new AtomicReference</*@Nullable*/ TimerImpl>();
+
+    @VisibleForTesting
+    TimerImplPool() {}
+
+    // returns null when timer pooling is not enabled
+    static @Nullable TimerImplPool getForCurrentThread() {
+        return ENABLED ? pools.get() : null;
+    }
+
+    // only called by the owning thread
+    @Nullable
+    TimerImpl take() {
+        TimerImpl timer = free;
+        if (timer == null) {
+            timer = returned.getAndSet(null);
+            if (timer == null) {
+                return null;
+            }
+        }
+        free = timer.nextFree;
+        timer.nextFree = null;
+        return timer;
+    }
+
+    // called by the aggregate processing thread(s) once the timer tree is no longer referenced
+    void recycle(TimerImpl rootTimer) {
+        RecycledChain chain = new RecycledChain();
+        chain.add(rootTimer);
+        TimerImpl head = chain.head;
+        TimerImpl tail = chain.tail;
+        if (head == null || tail == null) {
+            return;
+        }
+        while (true) {
+            TimerImpl currentReturned = returned.get();
+            tail.nextFree = currentReturned;
+            if (returned.compareAndSet(currentReturned, head)) {
+                return;
+            }
+        }
+    }
+
+    private static class RecycledChain {
+
+        private @Nullable TimerImpl head;
+        private @Nullable TimerImpl tail;
+        private int size;
+
+        private void add(TimerImpl timer) {
+            // children need to be captured before the timer is reset
+            TimerImpl child = timer.getHeadChild();
+            while (child != null) {
+                TimerImpl nextSibling = child.getNextSibling();
+                add(child);
+                child = nextSibling;
+            }
+            if (size++ >= MAX_RECYCLED_TREE_SIZE) {
+                return;
+            }
+            timer.reset();
+            timer.nextFree = head;
+            if (tail == null) {
+                tail = timer;
+            }
+            head = timer;
+        }
+    }
+}
@@ -158,10 +158,11 @@ public class TraceCollector {
         }
     }
 
-    void collectTrace(Transaction transaction) {
+    // returns true if the transaction was queued to be stored as a trace
+    boolean collectTrace(Transaction transaction) {
         boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
-            return;
+            return false;
         }
         // don't need to worry about race condition since only ever called from a single thread
         if (transaction.isPartiallyStored()
@@ -169,12 +170,12 @@ public class TraceCollector {
             backPressureLogger.warn("not storing a completed (and once partial) trace because of an"
                     + " excessive backlog of {} completed (and once partial) traces already waiting"
                     + " to be stored", PENDING_LIMIT);
-            return;
+            return false;
         } else if (!transaction.isPartiallyStored()
                 && normalCompletePendingCount.get() >= PENDING_LIMIT) {
             backPressureLogger.warn("not storing a completed trace because of an excessive backlog"
                     + " of {} completed traces already waiting to be stored", PENDING_LIMIT);
-            return;
+            return false;
         }
         PendingTrace pendingTransaction = ImmutablePendingTrace.builder()
                 .transaction(transaction)
@@ -185,7 +186,9 @@ public class TraceCollector {
             // this should never happen
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
                     + " traces already waiting to be stored", PENDING_LIMIT * 3);
+            return false;
         }
+        return true;
     }
 
     public void storePartialTrace(Transaction transaction) {
@@ -202,6 +202,10 @@ public class Transaction {
 
     private @Nullable SelfRemovableEntry transactionEntry;
 
+    // number of other threads currently reading the main thread timer tree, or -1 once the timer
+    // tree has been recycled (see TimerImplPool)
+    private final AtomicInteger mainThreadTimerReaders = new AtomicInteger();
+
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull RootTimerCollectorImpl alreadyMergedAuxThreadTimers;
     @GuardedBy("mainThreadContext")
@@ -689,6 +693,38 @@ public class Transaction {
         checkNotNull(transactionEntry).remove();
     }
 
+    // called by other threads (e.g. the active trace viewer) before reading the main thread timer
+    // tree, returns false if the timer tree has already been recycled
+    public boolean acquireMainThreadTimers() {
+        while (true) {
+            int readers = mainThreadTimerReaders.get();
+            if (readers == -1) {
+                return false;
+            }
+            if (mainThreadTimerReaders.compareAndSet(readers, readers + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void releaseMainThreadTimers() {
+        mainThreadTimerReaders.decrementAndGet();
+    }
+
+    // only called after the transaction has been aggregated, and only if it was not captured as a
+    // trace (see TransactionProcessor)
+    void recycleTimers() {
+        // async trace entries can outlive the main thread context, and partially stored traces are
+        // built from the timer tree
+        if (async || partiallyStored || !isFullyCompleted()) {
+            return;
+        }
+        // if another thread is still reading the timer tree, it is left for garbage collection
+        if (mainThreadTimerReaders.compareAndSet(0, -1)) {
+            mainThreadContext.recycleTimers();
+        }
+    }
+
     @Nullable
     ThreadContextImpl startAuxThreadContext(@Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
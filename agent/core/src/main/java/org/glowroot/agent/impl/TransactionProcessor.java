@@ -17,11 +17,13 @@ package org.glowroot.agent.impl;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -51,6 +53,11 @@ public class TransactionProcessor {
     // back pressure on writing captured data to disk/network
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // when greater than 1, aggregation is sharded (by transaction type and name) across this
+    // number of threads, and the shards are merged when flushing
+    private static final int AGGREGATE_PROCESSING_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.internal.aggregate.processingThreads", 1));
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
 
     // need to guarantee these are processed in order (at least when running embedded collector
@@ -60,6 +67,9 @@ public class TransactionProcessor {
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    private final @Nullable ExecutorService shardProcessingExecutor;
+    // one queue per aggregation shard (empty when aggregation is not sharded)
+    private final List<BlockingQueue<PendingAdd>> shardQueues;
     private final Collector collector;
     private final TraceCollector traceCollector;
     private final ConfigService configService;
@@ -67,14 +77,16 @@ public class TransactionProcessor {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    @GuardedBy("queueLock")
-    private PendingTransaction tail = head;
-    @GuardedBy("queueLock")
-    private int queueLength;
-    private final Object queueLock = new Object();
+    // the transaction queue is a lock free multi-producer single-consumer linked queue (producers
+    // swap in the new tail and then link it to the prior tail), head is only accessed by the
+    // processing thread and always points to a "stub" node whose transaction has been processed
+    private PendingTransaction head = new PendingTransaction(null);
+    private final AtomicReference<PendingTransaction> tail =
+            new AtomicReference<PendingTransaction>(head);
+    private final AtomicInteger queueLength = new AtomicInteger();
+
+    private volatile @Nullable Thread processingThread;
+    private volatile boolean processingThreadWaiting;
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionProcessor.class);
@@ -92,11 +104,23 @@ public class TransactionProcessor {
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        if (AGGREGATE_PROCESSING_THREADS == 1) {
+            shardProcessingExecutor = null;
+            shardQueues = ImmutableList.of();
+        } else {
+            shardProcessingExecutor = Executors.newFixedThreadPool(AGGREGATE_PROCESSING_THREADS,
+                    ThreadFactories.create("Glowroot-Aggregate-Shard-Processing"));
+            List<BlockingQueue<PendingAdd>> shardQueues = Lists.newArrayList();
+            for (int i = 0; i < AGGREGATE_PROCESSING_THREADS; i++) {
+                // bounded so that back pressure propagates to the transaction queue
+                BlockingQueue<PendingAdd> shardQueue =
+                        new ArrayBlockingQueue<PendingAdd>(TRANSACTION_PENDING_LIMIT);
+                shardQueues.add(shardQueue);
+                shardProcessingExecutor.execute(new AggregateShardLoop(shardQueue));
+            }
+            this.shardQueues = ImmutableList.copyOf(shardQueues);
+        }
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
         processingExecutor.execute(new TransactionProcessorLoop());
         flushingExecutor.execute(new AggregateFlushingLoop());
     }
@@ -131,27 +155,36 @@ public class TransactionProcessor {
     }
 
     void processOnCompletion(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        boolean exceededLimit = false;
-        synchronized (queueLock) {
-            if (queueLength < TRANSACTION_PENDING_LIMIT) {
-                newTail.captureTime = clock.currentTimeMillis();
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            } else {
-                exceededLimit = true;
-            }
-        }
-        if (exceededLimit) {
+        if (queueLength.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+            queueLength.decrementAndGet();
             backPressureLogger.warn("not capturing a transaction because of an excessive backlog of"
                     + " {} transactions already waiting to be captured", TRANSACTION_PENDING_LIMIT);
             transaction.setCaptureTime(clock.currentTimeMillis());
             transaction.removeFromActiveTransactions();
+            return;
         }
+        PendingTransaction newTail = new PendingTransaction(transaction);
+        PendingTransaction priorTail = tail.getAndSet(newTail);
+        // captureTime must be read after swapping in the new tail (and before linking it, which
+        // publishes it to the processing thread) so that the queue reader can assume if the queue
+        // is empty and captureTime indicates time to flush, then no new traces will come in with
+        // prior captureTime (see maybeEndOfInterval() below)
+        newTail.captureTime = clock.currentTimeMillis();
+        priorTail.next = newTail;
+        if (processingThreadWaiting) {
+            Thread processingThread = this.processingThread;
+            if (processingThread != null) {
+                LockSupport.unpark(processingThread);
+            }
+        }
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(),
+                AGGREGATE_PROCESSING_THREADS, clock);
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
@@ -173,10 +206,21 @@ public class TransactionProcessor {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        Thread processingThread = this.processingThread;
+        if (processingThread != null) {
+            LockSupport.unpark(processingThread);
+        }
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (shardProcessingExecutor != null) {
+            // shutdownNow() is needed here to send interrupt to shard processing threads
+            shardProcessingExecutor.shutdownNow();
+            if (!shardProcessingExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         // shutdownNow() is needed here to send interrupt to flushing thread
         flushingExecutor.shutdownNow();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
@@ -186,8 +230,13 @@ public class TransactionProcessor {
 
     private class TransactionProcessorLoop implements Runnable {
 
+        // producers can swap in new tails in a different order from reading their capture times,
+        // so capture times are kept monotonic here to preserve the interval boundary guarantee
+        private long lastCaptureTime;
+
         @Override
         public void run() {
+            processingThread = Thread.currentThread();
             while (!closed) {
                 try {
                     processOne();
@@ -201,11 +250,16 @@ public class TransactionProcessor {
         private void processOne() throws InterruptedException {
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+                if (tail.get() != head) {
+                    // a producer has swapped in a new tail but has not linked it yet
+                    Thread.yield();
+                    return;
+                }
+                long currentTime = clock.currentTimeMillis();
+                if (currentTime > activeIntervalCollector.getCaptureTime()) {
                     maybeEndOfInterval();
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    MILLISECONDS.sleep(1);
+                    waitForTransaction(currentTime);
                 }
                 return;
             }
@@ -213,60 +267,82 @@ public class TransactionProcessor {
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
             Transaction transaction = checkNotNull(pendingTransaction.transaction);
-            transaction.setCaptureTime(pendingTransaction.captureTime);
+            long captureTime = Math.max(pendingTransaction.captureTime, lastCaptureTime);
+            lastCaptureTime = captureTime;
+            transaction.setCaptureTime(captureTime);
 
             // send to the trace collector before removing from transaction registry so that the
             // trace collector can cover the gap (via TraceCollector.getPendingTransactions())
             // between removing the transaction from the registry and storing it
-            traceCollector.collectTrace(transaction);
+            boolean traceCollected = traceCollector.collectTrace(transaction);
 
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
+            // remove head (the processed node becomes the new stub node)
+            pendingTransaction.transaction = null;
+            head = pendingTransaction;
+            queueLength.decrementAndGet();
+
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
+                flushAndResetActiveIntervalCollector(captureTime);
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
+            // timers can only be recycled if the trace collector is not holding on to them
+            boolean recycleTimers = TimerImplPool.ENABLED && !traceCollected;
+            if (shardQueues.isEmpty()) {
+                activeIntervalCollector.add(transaction);
+                if (recycleTimers) {
+                    transaction.recycleTimers();
+                }
+            } else {
+                int shardIndex = AggregateIntervalCollector.getShardIndex(
+                        transaction.getTransactionType(), transaction.getTransactionName(),
+                        shardQueues.size());
+                shardQueues.get(shardIndex).put(
+                        new PendingAdd(activeIntervalCollector, transaction, recycleTimers));
             }
-            activeIntervalCollector.add(transaction);
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+        private void maybeEndOfInterval() throws InterruptedException {
+            // current time must be read before checking that the queue is empty
+            long currentTime = clock.currentTimeMillis();
+            if (tail.get() != head) {
+                // something just crept into the queue, possibly still something from active
+                // interval, it will get picked up right away and if it is in next interval it
+                // will force active aggregate to be flushed anyways
+                return;
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
+            if (currentTime > activeIntervalCollector.getCaptureTime()) {
+                // safe to flush, no other pending transactions can enter queue with prior time
+                // (since producers read their capture time after swapping in the new tail)
+                lastCaptureTime = Math.max(currentTime, lastCaptureTime);
                 flushAndResetActiveIntervalCollector(currentTime);
             }
         }
 
-        private void flushAndResetActiveIntervalCollector(long currentTime) {
+        private void waitForTransaction(long currentTime) {
+            processingThreadWaiting = true;
+            // re-check after publishing the waiting flag so that a concurrent enqueue cannot be
+            // missed (in which case the producer will see the waiting flag and unpark)
+            if (tail.get() == head && !closed) {
+                // wake up no later than the end of the active interval in order to flush it
+                long waitMillis = activeIntervalCollector.getCaptureTime() - currentTime + 1;
+                LockSupport.parkNanos(TransactionProcessor.this,
+                        MILLISECONDS.toNanos(waitMillis));
+            }
+            processingThreadWaiting = false;
+        }
+
+        private void flushAndResetActiveIntervalCollector(long currentTime)
+                throws InterruptedException {
             flushActiveIntervalCollector();
-            activeIntervalCollector =
-                    new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
-                            configService.getAdvancedConfig().maxTransactionAggregates(),
-                            configService.getAdvancedConfig().maxQueryAggregates(),
-                            configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+            activeIntervalCollector = createIntervalCollector(currentTime);
         }
 
-        private void flushActiveIntervalCollector() {
+        private void flushActiveIntervalCollector() throws InterruptedException {
+            // the flushing thread waits for each shard to reach this marker before flushing
+            for (BlockingQueue<PendingAdd> shardQueue : shardQueues) {
+                shardQueue.put(new PendingAdd(activeIntervalCollector, null, false));
+            }
             boolean accepted;
             synchronized (pendingIntervalCollectors) {
                 accepted = pendingIntervalCollectors.offer(activeIntervalCollector);
@@ -282,6 +358,39 @@ public class TransactionProcessor {
         }
     }
 
+    private class AggregateShardLoop implements Runnable {
+
+        private final BlockingQueue<PendingAdd> shardQueue;
+
+        private AggregateShardLoop(BlockingQueue<PendingAdd> shardQueue) {
+            this.shardQueue = shardQueue;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    PendingAdd pendingAdd = shardQueue.take();
+                    Transaction transaction = pendingAdd.transaction;
+                    if (transaction == null) {
+                        pendingAdd.intervalCollector.markShardCompleted();
+                    } else {
+                        pendingAdd.intervalCollector.add(transaction);
+                        if (pendingAdd.recycleTimers) {
+                            transaction.recycleTimers();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // probably shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                } catch (Throwable e) {
+                    // log and continue processing
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
     private class AggregateFlushingLoop implements Runnable {
         @Override
         public void run() {
@@ -307,10 +416,25 @@ public class TransactionProcessor {
         }
     }
 
+    private static class PendingAdd {
+
+        private final AggregateIntervalCollector intervalCollector;
+        private final @Nullable Transaction transaction; // null marks end of interval for shard
+        private final boolean recycleTimers;
+
+        private PendingAdd(AggregateIntervalCollector intervalCollector,
+                @Nullable Transaction transaction, boolean recycleTimers) {
+            this.intervalCollector = intervalCollector;
+            this.transaction = transaction;
+            this.recycleTimers = recycleTimers;
+        }
+    }
+
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        private @Nullable Transaction transaction; // only null for head
+        // captureTime is published to the processing thread via the volatile write to next
+        private long captureTime;
         private volatile @Nullable PendingTransaction next;
 
         private PendingTransaction(@Nullable Transaction transaction) {
@@ -72,6 +72,7 @@ import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
+import org.glowroot.agent.weaving.WovenClassCache;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.ScheduledRunnable;
@@ -155,9 +156,13 @@ public class AgentModule {
                         adviceCache.getMixinTypes(), preloadSomeSuperTypesCache);
         TimerNameCache timerNameCache = new TimerNameCache();
 
+        WovenClassCache wovenClassCache = null;
+        if (Boolean.getBoolean("glowroot.internal.weaving.persistentCache")) {
+            wovenClassCache = new WovenClassCache(new File(tmpDir, "woven-class-cache"));
+        }
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
-                timerNameCache, configService);
+                timerNameCache, configService, wovenClassCache);
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -282,7 +287,11 @@ public class AgentModule {
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
+        lazyPlatformMBeanServer.lazyRegisterMBean(gaugeCollector,
+                GaugeCollector.GAUGE_COLLECTOR_MBEAN_OBJECT_NAME);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceCollector,
+                "org.glowroot:type=StackTraceCollector");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, traceCollector, configService, ticker);
@@ -25,17 +25,25 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.Attribute;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
@@ -49,6 +57,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.StackTraceCollector;
 import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.agent.util.LazyPlatformMBeanServer.InitListener;
@@ -57,6 +66,7 @@ import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.agent.weaving.Java9;
 import org.glowroot.common.config.GaugeConfig;
 import org.glowroot.common.config.GaugeConfig.MBeanAttribute;
+import org.glowroot.common.config.ImmutableGaugeConfig;
 import org.glowroot.common.config.ImmutableMBeanAttribute;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.ScheduledRunnable;
@@ -65,13 +75,24 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class GaugeCollector extends ScheduledRunnable {
+class GaugeCollector extends ScheduledRunnable implements GaugeCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
     // back pressure on writing captured data to disk/network
     private static final int PENDING_LIMIT = 60;
 
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    static final String GAUGE_COLLECTOR_MBEAN_OBJECT_NAME =
+            "org.glowroot:type=GaugeCollector";
+
+    // internal gauges are collected in addition to the configured gauges, but are not part of the
+    // (persisted) gauge configuration, since they depend on system properties that can change
+    // between jvm restarts
+    private static final ImmutableList<GaugeConfig> INTERNAL_GAUGE_CONFIGS =
+            getInternalGaugeConfigs();
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
@@ -99,6 +120,26 @@ class GaugeCollector extends ScheduledRunnable {
     // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
     private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
 
+    // expansions of object name patterns, which are re-queried only after an mbean has been
+    // registered or unregistered (or when notifications are not available from all mbean
+    // servers), since wildcard gauges can match hundreds of mbeans (e.g. app server thread pools
+    // and data sources)
+    private final Map<ObjectName, MatchingObjectNames> matchingObjectNamesCache =
+            Maps.newConcurrentMap();
+    private final Set<MBeanServer> listeningMBeanServers = Sets.newIdentityHashSet();
+    private final Set<MBeanServer> nonListeningMBeanServers = Sets.newIdentityHashSet();
+    private final AtomicLong mbeanRegistrationCount = new AtomicLong();
+    private final NotificationListener mbeanRegistrationListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            if (notification instanceof MBeanServerNotification) {
+                mbeanRegistrationCount.getAndIncrement();
+            }
+        }
+    };
+
+    private volatile long collectionDurationNanos;
+
     private volatile boolean closed;
 
     GaugeCollector(ConfigService configService, Collector collector,
@@ -138,21 +179,46 @@ class GaugeCollector extends ScheduledRunnable {
 
     @Override
     protected void runInternal() throws Exception {
+        long startTick = ticker.read();
         final List<GaugeValue> gaugeValues = Lists.newArrayList();
         if (priorRawCounterValues == null) {
             // wait to now to initialize priorGaugeValues inside of the dedicated thread
             priorRawCounterValues = Maps.newHashMap();
         }
         List<MBeanServer> mbeanServers = lazyPlatformMBeanServer.findAllMBeanServers();
-        for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
+        List<GaugeConfig> gaugeConfigs = configService.getGaugeConfigs();
+        for (GaugeConfig gaugeConfig : gaugeConfigs) {
             gaugeValues.addAll(collectGaugeValues(gaugeConfig, mbeanServers));
         }
+        for (GaugeConfig gaugeConfig : INTERNAL_GAUGE_CONFIGS) {
+            // the same mbean may also have been configured as a regular gauge
+            if (!isConfigured(gaugeConfig.mbeanObjectName(), gaugeConfigs)) {
+                gaugeValues.addAll(collectGaugeValues(gaugeConfig, mbeanServers));
+            }
+        }
+        collectionDurationNanos = ticker.read() - startTick;
+        if (!isConfigured(GAUGE_COLLECTOR_MBEAN_OBJECT_NAME, gaugeConfigs)) {
+            // internal gauge, recorded directly since it is already known here (under the same
+            // gauge name as if the CollectionDurationMillis mbean attribute was configured)
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setGaugeName(
+                            GAUGE_COLLECTOR_MBEAN_OBJECT_NAME + ":CollectionDurationMillis")
+                    .setCaptureTime(clock.currentTimeMillis())
+                    .setValue(collectionDurationNanos / NANOSECONDS_PER_MILLISECOND)
+                    .setWeight(1)
+                    .build());
+        }
         if (!pending.offer(gaugeValues)) {
             backPressureLogger.warn("not storing a gauge collection because of an excessive backlog"
                     + " of {} gauge collections already waiting to be stored", PENDING_LIMIT);
         }
     }
 
+    @Override
+    public double getCollectionDurationMillis() {
+        return collectionDurationNanos / NANOSECONDS_PER_MILLISECOND;
+    }
+
     void scheduleWithFixedDelay(long period, TimeUnit unit) {
         scheduleWithFixedDelay(collectionExecutor, 0, period, unit);
     }
@@ -163,6 +229,8 @@ class GaugeCollector extends ScheduledRunnable {
         if (!collectionExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        // the collection thread has terminated, so it is safe to access listeningMBeanServers here
+        removeMBeanRegistrationListeners();
         // shutdownNow() is needed here to send interrupt to flushing thread
         flushingExecutor.shutdownNow();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
@@ -187,8 +255,7 @@ class GaugeCollector extends ScheduledRunnable {
             return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName,
                     mbeanServers);
         }
-        Set<ObjectName> matchingObjectNames =
-                lazyPlatformMBeanServer.queryNames(objectName, null, mbeanServers);
+        Set<ObjectName> matchingObjectNames = getMatchingObjectNames(objectName, mbeanServers);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
@@ -212,6 +279,11 @@ class GaugeCollector extends ScheduledRunnable {
             List<MBeanServer> mbeanServers) throws Exception {
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         long captureTime = clock.currentTimeMillis();
+        Map<String, /*@Nullable*/ Object> attributeValues =
+                getAttributeValues(objectName, mbeanAttributes, mbeanObjectName, mbeanServers);
+        if (attributeValues == null) {
+            return gaugeValues;
+        }
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
             String mbeanAttributeName = mbeanAttribute.name();
             Object attributeValue;
@@ -219,7 +291,7 @@ class GaugeCollector extends ScheduledRunnable {
                 if (mbeanAttributeName.contains(".")) {
                     String[] path = mbeanAttributeName.split("\\.");
                     attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, path[0], mbeanServers);
+                            getAttributeValue(objectName, path[0], attributeValues, mbeanServers);
                     CompositeData compositeData = (CompositeData) attributeValue;
                     if (compositeData == null) {
                         // this is valid, e.g. attribute LastGcInfo on mbean
@@ -229,8 +301,8 @@ class GaugeCollector extends ScheduledRunnable {
                     }
                     attributeValue = compositeData.get(path[1]);
                 } else {
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName,
-                            mbeanAttributeName, mbeanServers);
+                    attributeValue = getAttributeValue(objectName, mbeanAttributeName,
+                            attributeValues, mbeanServers);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -303,6 +375,132 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    private Set<ObjectName> getMatchingObjectNames(ObjectName objectName,
+            List<MBeanServer> mbeanServers) throws Exception {
+        boolean cacheable = addMBeanRegistrationListeners(mbeanServers);
+        // read the registration count before querying so that a registration that occurs during
+        // the query will cause a re-query next time
+        long currMBeanRegistrationCount = mbeanRegistrationCount.get();
+        if (cacheable) {
+            MatchingObjectNames cached = matchingObjectNamesCache.get(objectName);
+            if (cached != null && cached.mbeanRegistrationCount() == currMBeanRegistrationCount) {
+                return cached.objectNames();
+            }
+        }
+        Set<ObjectName> matchingObjectNames =
+                lazyPlatformMBeanServer.queryNames(objectName, null, mbeanServers);
+        if (cacheable) {
+            matchingObjectNamesCache.put(objectName, ImmutableMatchingObjectNames
+                    .of(ImmutableSet.copyOf(matchingObjectNames), currMBeanRegistrationCount));
+        }
+        return matchingObjectNames;
+    }
+
+    // returns false if registration notifications are not available from all of the mbean servers
+    private boolean addMBeanRegistrationListeners(List<MBeanServer> mbeanServers) {
+        boolean cacheable = true;
+        for (MBeanServer mbeanServer : mbeanServers) {
+            if (listeningMBeanServers.contains(mbeanServer)) {
+                continue;
+            }
+            if (nonListeningMBeanServers.contains(mbeanServer)) {
+                cacheable = false;
+                continue;
+            }
+            try {
+                mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                        mbeanRegistrationListener, null, null);
+                listeningMBeanServers.add(mbeanServer);
+                // mbeans may have been registered on this mbean server since it was last queried
+                mbeanRegistrationCount.getAndIncrement();
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+                nonListeningMBeanServers.add(mbeanServer);
+                cacheable = false;
+            }
+        }
+        return cacheable;
+    }
+
+    private void removeMBeanRegistrationListeners() {
+        for (MBeanServer mbeanServer : listeningMBeanServers) {
+            try {
+                mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                        mbeanRegistrationListener);
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        listeningMBeanServers.clear();
+    }
+
+    // reads all of the attributes using a single call, attributes that could not be read are not
+    // included in the returned map, and are then read individually (see getAttributeValue()) so
+    // that the reason can be logged
+    //
+    // returns null if the mbean was not found
+    private @Nullable Map<String, /*@Nullable*/ Object> getAttributeValues(ObjectName objectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName,
+            List<MBeanServer> mbeanServers) {
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String mbeanAttributeName = mbeanAttribute.name();
+            int index = mbeanAttributeName.indexOf('.');
+            attributeNames.add(
+                    index == -1 ? mbeanAttributeName : mbeanAttributeName.substring(0, index));
+        }
+        List<Attribute> attributes;
+        try {
+            attributes = lazyPlatformMBeanServer.getAttributes(objectName,
+                    attributeNames.toArray(new String[attributeNames.size()]), mbeanServers);
+        } catch (InstanceNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+            return null;
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return ImmutableMap.of();
+        }
+        // using HashMap since attribute values can be null
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        for (Attribute attribute : attributes) {
+            attributeValues.put(attribute.getName(), attribute.getValue());
+        }
+        return attributeValues;
+    }
+
+    private @Nullable Object getAttributeValue(ObjectName objectName, String attributeName,
+            Map<String, /*@Nullable*/ Object> attributeValues, List<MBeanServer> mbeanServers)
+            throws Exception {
+        if (attributeValues.containsKey(attributeName)) {
+            return attributeValues.get(attributeName);
+        }
+        return lazyPlatformMBeanServer.getAttribute(objectName, attributeName, mbeanServers);
+    }
+
+    private static boolean isConfigured(String mbeanObjectName, List<GaugeConfig> gaugeConfigs) {
+        for (GaugeConfig gaugeConfig : gaugeConfigs) {
+            if (gaugeConfig.mbeanObjectName().equals(mbeanObjectName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ImmutableList<GaugeConfig> getInternalGaugeConfigs() {
+        List<GaugeConfig> internalGaugeConfigs = Lists.newArrayList();
+        if (StackTraceCollector.isMaxThreadsPerIntervalEnabled()) {
+            // when the number of threads captured per profiling interval is capped, track the
+            // number of threads captured and the sampling cost
+            internalGaugeConfigs.add(ImmutableGaugeConfig.builder()
+                    .mbeanObjectName("org.glowroot:type=StackTraceCollector")
+                    .addMbeanAttributes(ImmutableMBeanAttribute.of("SampledThreadCount", true))
+                    .addMbeanAttributes(ImmutableMBeanAttribute.of("SamplingTimeNanos", true))
+                    .build());
+        }
+        return ImmutableList.copyOf(internalGaugeConfigs);
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
@@ -359,6 +557,13 @@ class GaugeCollector extends ScheduledRunnable {
         long captureTick();
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface MatchingObjectNames {
+        ImmutableSet<ObjectName> objectNames();
+        long mbeanRegistrationCount();
+    }
+
     private class GaugeFlushingLoop implements Runnable {
         @Override
         public void run() {
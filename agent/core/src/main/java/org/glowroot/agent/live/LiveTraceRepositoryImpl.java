@@ -72,7 +72,16 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 traceCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
-                return createTraceHeader(transaction);
+                if (!transaction.acquireMainThreadTimers()) {
+                    // the transaction has completed (without being captured as a trace) and its
+                    // timers have already been recycled
+                    return null;
+                }
+                try {
+                    return createTraceHeader(transaction);
+                } finally {
+                    transaction.releaseMainThreadTimers();
+                }
             }
         }
         return null;
@@ -137,9 +146,18 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 traceCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
+                if (!transaction.acquireMainThreadTimers()) {
+                    // the transaction has completed (without being captured as a trace) and its
+                    // timers have already been recycled
+                    return null;
+                }
                 CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
-                TraceReader traceReader = createTraceReader(transaction);
-                traceReader.accept(traceVisitor);
+                try {
+                    TraceReader traceReader = createTraceReader(transaction);
+                    traceReader.accept(traceVisitor);
+                } finally {
+                    transaction.releaseMainThreadTimers();
+                }
                 Trace.Builder builder = Trace.newBuilder()
                         .setId(traceId)
                         .setUpdate(transaction.isPartiallyStored());
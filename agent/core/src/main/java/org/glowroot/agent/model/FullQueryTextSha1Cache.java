@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// the same (long) query text instances are passed around from interval to interval and from trace
+// to trace (they are the keys of the query collectors, and are also what ends up in the shared
+// query text collections), so caching the sha1 by instance avoids re-hashing the same text every
+// time it is aggregated, sent to the central collector, or looked up by sha1
+//
+// weak keys means that the cache uses identity comparison and does not retain the query texts
+// themselves, so a query text that is equal but not identical is simply hashed again
+public class FullQueryTextSha1Cache {
+
+    private static final LoadingCache<String, String> sha1s = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(10000)
+            .build(new CacheLoader<String, String>() {
+                @Override
+                public String load(String fullText) {
+                    return Hashing.sha1().hashString(fullText, UTF_8).toString();
+                }
+            });
+
+    private FullQueryTextSha1Cache() {}
+
+    public static String getSha1(String fullText) {
+        return sha1s.getUnchecked(fullText);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// index over the class level pointcut attributes of a list of advisors, so that for any given
+// class only the advisors that can possibly match need to be checked (instead of checking every
+// advisor against every class)
+//
+// each advice is indexed by exactly one necessary condition for matching, picked in this order:
+// exact class name, literal class name prefix (before the first *), class annotation, super type
+// restriction, and if none of these are available then the advice is checked against every class
+//
+// the candidates returned by the index still need to be checked using the full class match
+class AdviceIndex {
+
+    private final List<Advice> advisors;
+
+    private final Map<String, List<Integer>> classNames = Maps.newHashMap();
+    private final TrieNode classNamePrefixes = new TrieNode();
+    private final Map<String, List<Integer>> classAnnotations = Maps.newHashMap();
+    private final Map<String, List<Integer>> superTypeRestrictions = Maps.newHashMap();
+
+    AdviceIndex(List<Advice> advisors) {
+        this.advisors = advisors;
+        for (int i = 0; i < advisors.size(); i++) {
+            index(advisors.get(i), i);
+        }
+    }
+
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    // returns candidates in the same order as the original advisors list, since advice ordering
+    // matters when weaving
+    List<Advice> getCandidates(String className, List<String> classAnnotations,
+            Collection<String> superClassNames) {
+        BitSet candidates = new BitSet(advisors.size());
+        addAll(candidates, classNames.get(className));
+        TrieNode node = classNamePrefixes;
+        addAll(candidates, node.adviceIndexes);
+        for (int i = 0; i < className.length(); i++) {
+            node = node.children.get(className.charAt(i));
+            if (node == null) {
+                break;
+            }
+            addAll(candidates, node.adviceIndexes);
+        }
+        if (!this.classAnnotations.isEmpty()) {
+            for (String classAnnotation : classAnnotations) {
+                // same conversion as AdviceMatcher.isAnnotationMatch()
+                String annotation = classAnnotation.replace('/', '.').substring(1,
+                        classAnnotation.length() - 1);
+                addAll(candidates, this.classAnnotations.get(annotation));
+            }
+        }
+        if (!superTypeRestrictions.isEmpty()) {
+            for (String superClassName : superClassNames) {
+                addAll(candidates, superTypeRestrictions.get(superClassName));
+            }
+        }
+        List<Advice> advisors = Lists.newArrayList();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            advisors.add(this.advisors.get(i));
+        }
+        return advisors;
+    }
+
+    private void index(Advice advice, int adviceIndex) {
+        String className = advice.pointcut().className();
+        if (!className.isEmpty() && !isFullRegex(className)) {
+            if (advice.pointcutClassNamePattern() == null) {
+                put(classNames, className, adviceIndex);
+            } else {
+                for (String part : className.split("\\|")) {
+                    int index = part.indexOf('*');
+                    classNamePrefixes.put(index == -1 ? part : part.substring(0, index),
+                            adviceIndex);
+                }
+            }
+            return;
+        }
+        String classAnnotation = advice.pointcut().classAnnotation();
+        if (!classAnnotation.isEmpty() && advice.pointcutClassAnnotationPattern() == null) {
+            put(classAnnotations, classAnnotation, adviceIndex);
+            return;
+        }
+        String superTypeRestriction = advice.pointcut().superTypeRestriction();
+        if (!superTypeRestriction.isEmpty()
+                && advice.pointcutSuperTypeRestrictionPattern() == null) {
+            put(superTypeRestrictions, superTypeRestriction, adviceIndex);
+            return;
+        }
+        // the root node of the prefix trie is checked for every class
+        classNamePrefixes.put("", adviceIndex);
+    }
+
+    private static boolean isFullRegex(String maybePattern) {
+        // see MaybePatterns.buildPattern()
+        return maybePattern.startsWith("/") && maybePattern.endsWith("/");
+    }
+
+    private static void put(Map<String, List<Integer>> map, String key, int adviceIndex) {
+        List<Integer> adviceIndexes = map.get(key);
+        if (adviceIndexes == null) {
+            adviceIndexes = Lists.newArrayList();
+            map.put(key, adviceIndexes);
+        }
+        adviceIndexes.add(adviceIndex);
+    }
+
+    private static void addAll(BitSet candidates, @Nullable List<Integer> adviceIndexes) {
+        if (adviceIndexes == null) {
+            return;
+        }
+        for (int i = 0; i < adviceIndexes.size(); i++) {
+            candidates.set(adviceIndexes.get(i));
+        }
+    }
+
+    private static class TrieNode {
+
+        private final Map<Character, TrieNode> children = Maps.newHashMap();
+        private final List<Integer> adviceIndexes = Lists.newArrayList();
+
+        private void put(String prefix, int adviceIndex) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                char c = prefix.charAt(i);
+                TrieNode child = node.children.get(c);
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.adviceIndexes.add(adviceIndex);
+        }
+    }
+}
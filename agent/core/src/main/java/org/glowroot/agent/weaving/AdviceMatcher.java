@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -39,9 +39,10 @@ abstract class AdviceMatcher {
 
     static ImmutableList<AdviceMatcher> getAdviceMatchers(String className,
             List<String> classAnnotations, Collection<String> superClassNames,
-            List<Advice> advisors) {
+            AdviceIndex adviceIndex) {
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        for (Advice advice : adviceIndex.getCandidates(className, classAnnotations,
+                superClassNames)) {
             if (isClassMatch(className, classAnnotations, superClassNames, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
@@ -93,6 +93,9 @@ public class AnalyzedWorld {
     // only null for tests
     private final @Nullable PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
 
+    // index over the configured advisors, which only change when instrumentation config is updated
+    private volatile @Nullable AdviceIndex adviceIndex;
+
     public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes,
             @Nullable PreloadSomeSuperTypesCache preloadSomeSuperTypesCache) {
@@ -128,6 +131,21 @@ public class AnalyzedWorld {
         }
     }
 
+    // the index for the configured advisors is built once per advisors list and shared by all
+    // classes, while the rare per-class list that includes @Instrumentation annotation advisors
+    // gets its own (non-retained) index
+    AdviceIndex getAdviceIndex(List<Advice> advisors) {
+        AdviceIndex adviceIndex = this.adviceIndex;
+        if (adviceIndex != null && adviceIndex.advisors() == advisors) {
+            return adviceIndex;
+        }
+        adviceIndex = new AdviceIndex(advisors);
+        if (advisors == this.advisors.get()) {
+            this.adviceIndex = adviceIndex;
+        }
+        return adviceIndex;
+    }
+
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
         loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
@@ -293,8 +311,9 @@ public class AnalyzedWorld {
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         // passing noLongerNeedToWeaveMainMethods=true since not really weaving bytecode here
-        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, this, null, bytes, null, true);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(),
+                getAdviceIndex(advisors), shimTypes, mixinTypes, loader, this, null, bytes, null,
+                true);
         classAnalyzer.analyzeMethods();
         return classAnalyzer.getAnalyzedClass();
     }
@@ -340,7 +359,7 @@ public class AnalyzedWorld {
         }
         // the class loaded by Class.forName() above was not previously loaded which means
         // weaving was bypassed since ClassFileTransformer.transform() is not re-entrant
-        analyzedClass = createAnalyzedClassPlanC(clazz, advisors.get());
+        analyzedClass = createAnalyzedClassPlanC(clazz, getAdviceIndex(advisors.get()));
         if (analyzedClass.isInterface()) {
             // FIXME log warning if any default methods have advice
             return analyzedClass;
@@ -425,7 +444,8 @@ public class AnalyzedWorld {
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
-    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors) {
+    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz,
+            AdviceIndex adviceIndex) {
         ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder();
         classBuilder.modifiers(clazz.getModifiers());
         classBuilder.name(clazz.getName());
@@ -449,7 +469,7 @@ public class AnalyzedWorld {
         // TODO document limitations of superClassNames only containing first level super classes
         // (e.g. doesn't include super class's super class)
         List<AdviceMatcher> adviceMatchers = AdviceMatcher.getAdviceMatchers(clazz.getName(),
-                classAnnotations, superClassNames, advisors);
+                classAnnotations, superClassNames, adviceIndex);
         Map<Method, List<Advice>> bridgeTargetAdvisors = Maps.newHashMap();
         for (Method method : clazz.getDeclaredMethods()) {
             if (!method.isBridge()) {
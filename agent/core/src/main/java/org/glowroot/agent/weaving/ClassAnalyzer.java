@@ -93,7 +93,7 @@ class ClassAnalyzer {
     // this is used to propagate bridge method advice to its target
     private @MonotonicNonNull Map<ThinMethod, List<Advice>> bridgeTargetAdvisors;
 
-    ClassAnalyzer(ThinClass thinClass, List<Advice> advisors, List<ShimType> shimTypes,
+    ClassAnalyzer(ThinClass thinClass, AdviceIndex adviceIndex, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld,
             @Nullable CodeSource codeSource, byte[] classBytes,
             @Nullable Class<?> classBeingRedefined, boolean noLongerNeedToWeaveMainMethods) {
@@ -198,7 +198,7 @@ class ClassAnalyzer {
         }
         this.superClassNames = ImmutableSet.copyOf(superClassNames);
         adviceMatchers = AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(),
-                superClassNames, advisors);
+                superClassNames, adviceIndex);
         if (intf) {
             shortCircuitBeforeAnalyzeMethods = false;
         } else {
@@ -273,6 +273,10 @@ class ClassAnalyzer {
         return analyzedClassBuilder.build();
     }
 
+    ImmutableList<AnalyzedClass> getSuperAnalyzedClasses() {
+        return superAnalyzedClasses;
+    }
+
     boolean isClassLoader() {
         return isClassLoader;
     }
@@ -226,10 +226,24 @@ public class PreInitializeWeavingClasses {
         types.add("com.google.common.collect.TreeTraverser");
         types.add("com.google.common.collect.UnmodifiableIterator");
         types.add("com.google.common.collect.UnmodifiableListIterator");
+        types.add("com.google.common.hash.AbstractByteHasher");
+        types.add("com.google.common.hash.AbstractHasher");
+        types.add("com.google.common.hash.AbstractStreamingHashFunction");
+        types.add("com.google.common.hash.HashCode");
+        types.add("com.google.common.hash.HashCode$BytesHashCode");
+        types.add("com.google.common.hash.HashFunction");
+        types.add("com.google.common.hash.Hasher");
+        types.add("com.google.common.hash.Hashing");
+        types.add("com.google.common.hash.Hashing$Sha1Holder");
+        types.add("com.google.common.hash.MessageDigestHashFunction");
+        types.add("com.google.common.hash.MessageDigestHashFunction$1");
+        types.add("com.google.common.hash.MessageDigestHashFunction$MessageDigestHasher");
+        types.add("com.google.common.hash.PrimitiveSink");
         types.add("com.google.common.io.ByteSink");
         types.add("com.google.common.io.ByteSource");
         types.add("com.google.common.io.ByteStreams");
         types.add("com.google.common.io.ByteStreams$1");
+        types.add("com.google.common.io.ByteStreams$FastByteArrayOutputStream");
         types.add("com.google.common.io.Closeables");
         types.add("com.google.common.io.Closer");
         types.add("com.google.common.io.Closer$LoggingSuppressor");
@@ -239,6 +253,7 @@ public class PreInitializeWeavingClasses {
         types.add("com.google.common.io.Files$1");
         types.add("com.google.common.io.Files$2");
         types.add("com.google.common.io.Files$FileByteSink");
+        types.add("com.google.common.io.Files$FileByteSource");
         types.add("com.google.common.io.FileWriteMode");
         types.add("com.google.common.io.LineProcessor");
         types.add("com.google.common.io.Resources");
@@ -258,6 +273,9 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.impl.PreloadSomeSuperTypesCache$CacheValue");
         types.add("org.glowroot.agent.impl.ThreadContextImpl");
         types.add("org.glowroot.agent.impl.TimerImpl");
+        types.add("org.glowroot.agent.impl.TimerImplPool");
+        types.add("org.glowroot.agent.impl.TimerImplPool$1");
+        types.add("org.glowroot.agent.impl.TimerImplPool$RecycledChain");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
         types.add("org.glowroot.agent.model.TimerNameImpl");
         types.add("org.glowroot.agent.model.TransactionTimer");
@@ -312,6 +330,9 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AdviceAdapter");
         types.add("org.glowroot.agent.weaving.AdviceBuilder");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$AdviceConstructionException");
+        types.add("org.glowroot.agent.weaving.AdviceIndex");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$1");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$TrieNode");
         types.add("org.glowroot.agent.weaving.AdviceMatcher");
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
@@ -416,6 +437,10 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$MethodMetaGroup");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor$CatchHandler");
+        types.add("org.glowroot.agent.weaving.WovenClassCache");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$1");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$AdvisorsFingerprint");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$CachedClass");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig$Builder");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig$InitShim");
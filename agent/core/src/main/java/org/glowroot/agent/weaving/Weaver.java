@@ -57,8 +57,10 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
+import org.glowroot.agent.weaving.WovenClassCache.CachedClass;
 import org.glowroot.common.util.ScheduledRunnable.TerminateSubsequentExecutionsException;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.objectweb.asm.Opcodes.ASM7;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
@@ -88,6 +90,8 @@ public class Weaver {
     private final Ticker ticker;
     private final TimerName timerName;
 
+    private final @Nullable WovenClassCache wovenClassCache;
+
     private volatile boolean weavingTimerEnabled;
 
     private volatile boolean noLongerNeedToWeaveMainMethods;
@@ -100,7 +104,15 @@ public class Weaver {
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            ConfigService configService) {
+        this(advisors, shimTypes, mixinTypes, analyzedWorld, transactionRegistry, ticker,
+                timerNameCache, configService, null);
+    }
+
+    public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
+            TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
+            final ConfigService configService, @Nullable WovenClassCache wovenClassCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
@@ -114,6 +126,7 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        this.wovenClassCache = wovenClassCache;
     }
 
     public void setNoLongerNeedToWeaveMainMethods() {
@@ -178,7 +191,8 @@ public class Weaver {
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
             @Nullable ClassLoader loader) {
-        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> configuredAdvisors = this.advisors.get();
+        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(configuredAdvisors,
                 classBytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
@@ -210,8 +224,9 @@ public class Weaver {
             cr.accept(new JSRInlinerClassVisitor(cv), parsingOptions);
             maybeProcessedBytes = cw.toByteArray();
         }
-        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, analyzedWorld, codeSource, classBytes, classBeingRedefined,
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(),
+                analyzedWorld.getAdviceIndex(advisors), shimTypes, mixinTypes, loader,
+                analyzedWorld, codeSource, classBytes, classBeingRedefined,
                 noLongerNeedToWeaveMainMethods);
         try {
             classAnalyzer.analyzeMethods();
@@ -226,6 +241,21 @@ public class Weaver {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
             return maybeProcessedBytes;
         }
+        String cacheKey = null;
+        if (wovenClassCache != null && classBeingRedefined == null
+                && advisors == configuredAdvisors && !className.equals(DEBUG_CLASS_NAME)) {
+            cacheKey = wovenClassCache.getKey(className, classBytes, advisors, shimTypes,
+                    mixinTypes, noLongerNeedToWeaveMainMethods,
+                    classAnalyzer.getSuperAnalyzedClasses());
+            CachedClass cachedClass = wovenClassCache.get(cacheKey);
+            if (cachedClass != null
+                    && defineUsedAdviceClasses(cachedClass.usedAdviceTypes(), advisors, loader)) {
+                // the analyzed class still needs to be registered (this is normally done at the
+                // end of weaving) so that sub classes loaded later are analyzed against it
+                analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+                return cachedClass.bytes();
+            }
+        }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
         List<MixinType> reweavableMatchedMixinTypes =
                 classAnalyzer.getMatchedReweavableMixinTypes();
@@ -309,9 +339,49 @@ public class Weaver {
                 return null;
             }
         }
+        if (cacheKey != null && !classAnalyzer.getAnalyzedClass().hasReweavableAdvice()) {
+            List<String> usedAdviceTypes = Lists.newArrayList();
+            for (Advice usedAdvice : cv.getUsedAdvisors()) {
+                usedAdviceTypes.add(usedAdvice.adviceType().getInternalName());
+            }
+            checkNotNull(wovenClassCache).put(cacheKey, transformedBytes, usedAdviceTypes);
+        }
         return transformedBytes;
     }
 
+    // returns false if any of the used advice types are no longer present
+    private static boolean defineUsedAdviceClasses(List<String> usedAdviceTypes,
+            List<Advice> advisors, @Nullable ClassLoader loader) {
+        for (String usedAdviceType : usedAdviceTypes) {
+            Advice usedAdvice = null;
+            for (Advice advice : advisors) {
+                // used advisors are the non-bootstrap loader advisors when loader is not null
+                Advice nonBootstrapLoaderAdvice = advice.nonBootstrapLoaderAdvice();
+                if (loader != null && nonBootstrapLoaderAdvice != null) {
+                    advice = nonBootstrapLoaderAdvice;
+                }
+                if (advice.adviceType().getInternalName().equals(usedAdviceType)) {
+                    usedAdvice = advice;
+                    break;
+                }
+            }
+            if (usedAdvice == null) {
+                return false;
+            }
+            LazyDefinedClass nonBootstrapLoaderAdviceClass =
+                    usedAdvice.nonBootstrapLoaderAdviceClass();
+            if (loader != null && nonBootstrapLoaderAdviceClass != null) {
+                try {
+                    ClassLoaders.defineClassIfNotExists(nonBootstrapLoaderAdviceClass, loader);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     private void checkForDeadlockedActiveWeaving(List<Long> activeWeavingThreadIds) {
         ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
         long[] deadlockedThreadIds = threadBean.findDeadlockedThreads();
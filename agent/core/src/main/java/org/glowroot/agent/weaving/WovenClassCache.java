@@ -0,0 +1,280 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.StandardSystemProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+// persistent cache of woven class bytes, so that on subsequent JVM startups classes whose bytes
+// (and whose super types) have not changed do not need to be woven again (they are still analyzed,
+// since the analyzed class needs to be registered in AnalyzedWorld for weaving their sub classes)
+//
+// the cache key includes the class bytes, the analyzed super type hierarchy, and the active
+// advisors, shim types and mixin types (as well as the glowroot agent jar and java version), so
+// any change to these results in a cache miss
+//
+// only positive results are cached (classes that required weaving), and classes with reweavable
+// advice are not cached since they need to be tracked in AnalyzedWorld for reweaving
+public class WovenClassCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WovenClassCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    // entries that have not been (re-)written in this long are removed on startup
+    private static final long EXPIRATION_MILLIS = DAYS.toMillis(30);
+
+    private final File dir;
+    private final String environmentFingerprint;
+
+    // file names of existing entries, to avoid hitting the file system for every class that is
+    // not in the cache
+    private final Set<String> keys = Sets.newConcurrentHashSet();
+
+    private volatile @Nullable AdvisorsFingerprint advisorsFingerprint;
+
+    public WovenClassCache(File dir) {
+        this.dir = dir;
+        environmentFingerprint = getEnvironmentFingerprint();
+        if (!dir.exists() && !dir.mkdirs()) {
+            logger.warn("could not create directory: {}", dir.getAbsolutePath());
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long expirationTime = System.currentTimeMillis() - EXPIRATION_MILLIS;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp") || file.lastModified() < expirationTime) {
+                if (!file.delete()) {
+                    logger.debug("could not delete file: {}", file.getAbsolutePath());
+                }
+            } else {
+                keys.add(name);
+            }
+        }
+    }
+
+    String getKey(String className, byte[] classBytes, List<Advice> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes,
+            boolean noLongerNeedToWeaveMainMethods, List<AnalyzedClass> superAnalyzedClasses) {
+        Hasher hasher = Hashing.sha1().newHasher()
+                .putString(environmentFingerprint, UTF_8)
+                .putString(getAdvisorsFingerprint(advisors, shimTypes, mixinTypes), UTF_8)
+                .putString(className, UTF_8)
+                .putBytes(classBytes)
+                .putBoolean(noLongerNeedToWeaveMainMethods);
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            putAnalyzedClass(hasher, superAnalyzedClass);
+        }
+        return hasher.hash().toString();
+    }
+
+    @Nullable
+    CachedClass get(String key) {
+        if (!keys.contains(key)) {
+            return null;
+        }
+        try {
+            DataInputStream in =
+                    new DataInputStream(new ByteArrayInputStream(Files.toByteArray(getFile(key))));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int usedAdviceTypeCount = in.readInt();
+            List<String> usedAdviceTypes = Lists.newArrayList();
+            for (int i = 0; i < usedAdviceTypeCount; i++) {
+                usedAdviceTypes.add(in.readUTF());
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new CachedClass(bytes, usedAdviceTypes);
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            keys.remove(key);
+            return null;
+        }
+    }
+
+    // usedAdviceTypes are the internal names of advice classes that need to be defined in the
+    // class loader when the cached bytes are used
+    void put(String key, byte[] bytes, List<String> usedAdviceTypes) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length + 100);
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(usedAdviceTypes.size());
+            for (String usedAdviceType : usedAdviceTypes) {
+                out.writeUTF(usedAdviceType);
+            }
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            // write to temporary file and rename, since multiple threads (and possibly multiple
+            // JVMs sharing the same tmp dir) can weave the same class at the same time
+            File tmpFile = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+            Files.write(baos.toByteArray(), tmpFile);
+            File file = getFile(key);
+            if (!tmpFile.renameTo(file)) {
+                // e.g. on windows when the file already exists
+                if (!tmpFile.delete()) {
+                    logger.debug("could not delete file: {}", tmpFile.getAbsolutePath());
+                }
+                return;
+            }
+            keys.add(key);
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(dir, key);
+    }
+
+    private String getAdvisorsFingerprint(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        // the advisors list only changes when instrumentation config is updated
+        AdvisorsFingerprint advisorsFingerprint = this.advisorsFingerprint;
+        if (advisorsFingerprint != null && advisorsFingerprint.advisors == advisors) {
+            return advisorsFingerprint.fingerprint;
+        }
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Advice advice : advisors) {
+            // toString() includes the pointcut and the advice method signatures
+            hasher.putString(advice.toString(), UTF_8);
+        }
+        for (ShimType shimType : shimTypes) {
+            hasher.putString(shimType.toString(), UTF_8);
+        }
+        for (MixinType mixinType : mixinTypes) {
+            hasher.putString(mixinType.toString(), UTF_8);
+        }
+        String fingerprint = hasher.hash().toString();
+        this.advisorsFingerprint = new AdvisorsFingerprint(advisors, fingerprint);
+        return fingerprint;
+    }
+
+    private static void putAnalyzedClass(Hasher hasher, AnalyzedClass analyzedClass) {
+        hasher.putInt(analyzedClass.modifiers());
+        hasher.putString(analyzedClass.name(), UTF_8);
+        String superName = analyzedClass.superName();
+        if (superName != null) {
+            hasher.putString(superName, UTF_8);
+        }
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            hasher.putString(interfaceName, UTF_8);
+        }
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            hasher.putString(analyzedMethod.name(), UTF_8);
+            for (String parameterType : analyzedMethod.parameterTypes()) {
+                hasher.putString(parameterType, UTF_8);
+            }
+            hasher.putString(analyzedMethod.returnType(), UTF_8);
+            hasher.putInt(analyzedMethod.modifiers());
+            for (Advice advice : analyzedMethod.advisors()) {
+                hasher.putString(advice.adviceType().getInternalName(), UTF_8);
+            }
+            for (Advice advice : analyzedMethod.subTypeRestrictedAdvisors()) {
+                hasher.putString(advice.adviceType().getInternalName(), UTF_8);
+            }
+        }
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            hasher.putString(publicFinalMethod.name(), UTF_8);
+            for (String parameterType : publicFinalMethod.parameterTypes()) {
+                hasher.putString(parameterType, UTF_8);
+            }
+        }
+        for (ShimType shimType : analyzedClass.shimTypes()) {
+            hasher.putString(shimType.iface().getInternalName(), UTF_8);
+        }
+        for (MixinType mixinType : analyzedClass.mixinTypes()) {
+            hasher.putString(mixinType.toString(), UTF_8);
+        }
+        for (MixinType mixinType : analyzedClass.nonReweavableMixinTypes()) {
+            hasher.putString(mixinType.toString(), UTF_8);
+        }
+        hasher.putBoolean(analyzedClass.ejbRemote());
+    }
+
+    private static String getEnvironmentFingerprint() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(StandardSystemProperty.JAVA_VERSION.value());
+        // the weaving code itself may change between glowroot versions
+        CodeSource codeSource = WovenClassCache.class.getProtectionDomain().getCodeSource();
+        URL location = codeSource == null ? null : codeSource.getLocation();
+        if (location != null && location.getProtocol().equals("file")) {
+            File file = new File(location.getPath());
+            sb.append(file.getAbsolutePath());
+            sb.append(file.length());
+            sb.append(file.lastModified());
+        }
+        return sb.toString();
+    }
+
+    static class CachedClass {
+
+        private final byte[] bytes;
+        private final ImmutableList<String> usedAdviceTypes;
+
+        private CachedClass(byte[] bytes, List<String> usedAdviceTypes) {
+            this.bytes = bytes;
+            this.usedAdviceTypes = ImmutableList.copyOf(usedAdviceTypes);
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        ImmutableList<String> usedAdviceTypes() {
+            return usedAdviceTypes;
+        }
+    }
+
+    private static class AdvisorsFingerprint {
+
+        private final List<Advice> advisors;
+        private final String fingerprint;
+
+        private AdvisorsFingerprint(List<Advice> advisors, String fingerprint) {
+            this.advisors = advisors;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralSpool.Record;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.AggregateStreamHeader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CentralSpoolTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEachTest() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReplayInOrder() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            spool.append((byte) 1, ImmutableList.of(createMessage(i), createMessage(i + 100)));
+        }
+
+        // when
+        List<Long> captureTimes = Lists.newArrayList();
+        Record record;
+        while ((record = spool.peek()) != null) {
+            captureTimes.addAll(readCaptureTimes(record));
+            spool.remove(record);
+        }
+
+        // then
+        assertThat(captureTimes).hasSize(20);
+        for (int i = 0; i < 10; i++) {
+            assertThat(captureTimes.get(2 * i)).isEqualTo(i);
+            assertThat(captureTimes.get(2 * i + 1)).isEqualTo(i + 100);
+        }
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.getTotalBytes()).isZero();
+        assertThat(dir.listFiles()).isEmpty();
+    }
+
+    @Test
+    public void shouldNotRemoveWhenOnlyPeeked() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024);
+        spool.append((byte) 1, ImmutableList.of(createMessage(1)));
+        spool.append((byte) 2, ImmutableList.of(createMessage(2)));
+
+        // when
+        Record record1 = spool.peek();
+        Record record2 = spool.peek();
+
+        // then
+        assertThat(record1.recordType()).isEqualTo((byte) 1);
+        assertThat(record2.recordType()).isEqualTo((byte) 1);
+        assertThat(readCaptureTimes(record2)).containsExactly(1L);
+    }
+
+    @Test
+    public void shouldDropOldestWhenFull() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1000);
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            spool.append((byte) 1, ImmutableList.of(createMessage(i)));
+        }
+
+        // then
+        assertThat(spool.getTotalBytes()).isLessThanOrEqualTo(1000);
+        List<Long> captureTimes = Lists.newArrayList();
+        Record record;
+        while ((record = spool.peek()) != null) {
+            captureTimes.addAll(readCaptureTimes(record));
+            spool.remove(record);
+        }
+        assertThat(captureTimes).isNotEmpty();
+        assertThat(captureTimes.get(captureTimes.size() - 1)).isEqualTo(999);
+        for (int i = 1; i < captureTimes.size(); i++) {
+            assertThat(captureTimes.get(i)).isEqualTo(captureTimes.get(i - 1) + 1);
+        }
+    }
+
+    @Test
+    public void shouldReplayAfterRestart() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024);
+        spool.append((byte) 1, ImmutableList.of(createMessage(1)));
+        spool.append((byte) 1, ImmutableList.of(createMessage(2)));
+
+        // when
+        spool = new CentralSpool(dir, 1024 * 1024);
+        spool.append((byte) 1, ImmutableList.of(createMessage(3)));
+
+        // then
+        List<Long> captureTimes = Lists.newArrayList();
+        Record record;
+        while ((record = spool.peek()) != null) {
+            captureTimes.addAll(readCaptureTimes(record));
+            spool.remove(record);
+        }
+        assertThat(captureTimes).containsExactly(1L, 2L, 3L);
+    }
+
+    private static AggregateStreamMessage createMessage(long captureTime) {
+        return AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId("xyz")
+                        .setCaptureTime(captureTime))
+                .build();
+    }
+
+    private static List<Long> readCaptureTimes(Record record) throws IOException {
+        List<Long> captureTimes = Lists.newArrayList();
+        InputStream in = new ByteArrayInputStream(record.payload());
+        AggregateStreamMessage message;
+        while ((message = AggregateStreamMessage.parseDelimitedFrom(in)) != null) {
+            captureTimes.add(message.getStreamHeader().getCaptureTime());
+        }
+        return captureTimes;
+    }
+}
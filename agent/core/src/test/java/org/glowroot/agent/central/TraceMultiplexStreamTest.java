@@ -0,0 +1,286 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Test;
+
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.collector.Collector.TraceVisitor;
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceMultiplexStreamTest {
+
+    private final List<String> fallbackTraceIds = Lists.newArrayList();
+
+    private Server server;
+    private ManagedChannel channel;
+
+    @After
+    public void afterEachTest() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    @Test
+    public void shouldSendSharedQueryTextsAndTimerNamesOncePerStream() throws Exception {
+        // given
+        final List<TraceMultiplexStreamMessage> messages = Lists.newArrayList();
+        TraceMultiplexStream traceMultiplexStream =
+                createTraceMultiplexStream(new CollectorServiceImplBase() {
+                    @Override
+                    public StreamObserver<TraceMultiplexStreamMessage> collectTraceMultiplexStream(
+                            final StreamObserver<TraceMultiplexResponseMessage> responseObserver) {
+                        return new StreamObserver<TraceMultiplexStreamMessage>() {
+                            private String traceId = "";
+                            @Override
+                            public void onNext(TraceMultiplexStreamMessage value) {
+                                messages.add(value);
+                                if (value.hasTraceStart()) {
+                                    traceId = value.getTraceStart().getTraceId();
+                                } else if (value.hasTraceEnd()) {
+                                    responseObserver
+                                            .onNext(TraceMultiplexResponseMessage.newBuilder()
+                                                    .setTraceId(traceId)
+                                                    .build());
+                                }
+                            }
+                            @Override
+                            public void onError(Throwable t) {}
+                            @Override
+                            public void onCompleted() {
+                                responseObserver.onCompleted();
+                            }
+                        };
+                    }
+                });
+
+        // when
+        boolean sent1 = traceMultiplexStream.collectTrace(new TraceReaderImpl("trace-1"));
+        boolean sent2 = traceMultiplexStream.collectTrace(new TraceReaderImpl("trace-2"));
+
+        // then
+        assertThat(sent1).isTrue();
+        assertThat(sent2).isTrue();
+        assertThat(messages.get(0).hasStreamHeader()).isTrue();
+        assertThat(count(messages, TraceMultiplexStreamMessage.MessageCase.SHARED_QUERY_TEXT))
+                .isEqualTo(2);
+        assertThat(count(messages, TraceMultiplexStreamMessage.MessageCase.TIMER_NAME))
+                .isEqualTo(2);
+        assertThat(count(messages, TraceMultiplexStreamMessage.MessageCase.TRACE_END))
+                .isEqualTo(2);
+        TraceMultiplexStreamMessage lastMessage = messages.get(messages.size() - 1);
+        assertThat(lastMessage.getTraceEnd().getSharedQueryTextIndexList()).containsExactly(0, 1);
+        assertThat(lastMessage.getTraceEnd().getEntryCount()).isEqualTo(1);
+        Trace.Header header = messages.get(messages.size() - 2).getHeader();
+        assertThat(header.getMainThreadRootTimer().getName()).isEmpty();
+        assertThat(header.getMainThreadRootTimer().getNameIndex()).isEqualTo(0);
+        assertThat(header.getMainThreadRootTimer().getChildTimer(0).getNameIndex()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFallBackOnlyFailedTrace() throws Exception {
+        // given
+        final List<TraceMultiplexStreamMessage> messages = Lists.newArrayList();
+        TraceMultiplexStream traceMultiplexStream =
+                createTraceMultiplexStream(new CollectorServiceImplBase() {
+                    @Override
+                    public StreamObserver<TraceMultiplexStreamMessage> collectTraceMultiplexStream(
+                            final StreamObserver<TraceMultiplexResponseMessage> responseObserver) {
+                        return new StreamObserver<TraceMultiplexStreamMessage>() {
+                            private String traceId = "";
+                            @Override
+                            public void onNext(TraceMultiplexStreamMessage value) {
+                                messages.add(value);
+                                if (value.hasTraceStart()) {
+                                    traceId = value.getTraceStart().getTraceId();
+                                } else if (value.hasTraceEnd()) {
+                                    responseObserver
+                                            .onNext(TraceMultiplexResponseMessage.newBuilder()
+                                                    .setTraceId(traceId)
+                                                    .setFailed(traceId.equals("trace-1"))
+                                                    .build());
+                                }
+                            }
+                            @Override
+                            public void onError(Throwable t) {}
+                            @Override
+                            public void onCompleted() {
+                                responseObserver.onCompleted();
+                            }
+                        };
+                    }
+                });
+
+        // when
+        boolean sent1 = traceMultiplexStream.collectTrace(new TraceReaderImpl("trace-1"));
+        boolean sent2 = traceMultiplexStream.collectTrace(new TraceReaderImpl("trace-2"));
+
+        // then
+        assertThat(sent1).isTrue();
+        assertThat(sent2).isTrue();
+        assertThat(fallbackTraceIds).containsExactly("trace-1");
+        // both traces were sent on the same stream
+        assertThat(count(messages, TraceMultiplexStreamMessage.MessageCase.STREAM_HEADER))
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFallBackWhenTraceReaderFails() throws Exception {
+        // given
+        TraceMultiplexStream traceMultiplexStream =
+                createTraceMultiplexStream(new CollectorServiceImplBase() {
+                    @Override
+                    public StreamObserver<TraceMultiplexStreamMessage> collectTraceMultiplexStream(
+                            final StreamObserver<TraceMultiplexResponseMessage> responseObserver) {
+                        return new StreamObserver<TraceMultiplexStreamMessage>() {
+                            @Override
+                            public void onNext(TraceMultiplexStreamMessage value) {}
+                            @Override
+                            public void onError(Throwable t) {}
+                            @Override
+                            public void onCompleted() {}
+                        };
+                    }
+                });
+
+        // when
+        boolean sent = traceMultiplexStream.collectTrace(new TraceReaderImpl("trace-1") {
+            @Override
+            public void accept(TraceVisitor traceVisitor) {
+                throw new IllegalStateException("failed to read trace");
+            }
+        });
+
+        // then
+        assertThat(sent).isFalse();
+        // the caller falls back for the failed trace, so it is not also passed to the fallback
+        assertThat(fallbackTraceIds).isEmpty();
+    }
+
+    @Test
+    public void shouldFallBackWhenNotSupported() throws Exception {
+        // given
+        TraceMultiplexStream traceMultiplexStream =
+                createTraceMultiplexStream(new CollectorServiceImplBase() {});
+
+        // when
+        boolean sent1 = traceMultiplexStream.collectTrace(new TraceReaderImpl("trace-1"));
+        boolean sent2 = traceMultiplexStream.collectTrace(new TraceReaderImpl("trace-2"));
+
+        // then
+        // the first trace is either not sent, or is passed to the fallback when the stream fails
+        assertThat(!sent1 || fallbackTraceIds.contains("trace-1")).isTrue();
+        assertThat(sent2).isFalse();
+    }
+
+    private TraceMultiplexStream createTraceMultiplexStream(CollectorServiceImplBase service)
+            throws Exception {
+        String serverName = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(serverName)
+                .addService(service)
+                .directExecutor()
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(serverName)
+                .directExecutor()
+                .build();
+        return new TraceMultiplexStream(CollectorServiceGrpc.newStub(channel), "agent-id",
+                new SharedQueryTextLimiter(), new TraceMultiplexStream.Fallback() {
+                    @Override
+                    public void collectTrace(TraceReader traceReader) {
+                        fallbackTraceIds.add(traceReader.traceId());
+                    }
+                }, MoreExecutors.newDirectExecutorService());
+    }
+
+    private static int count(List<TraceMultiplexStreamMessage> messages,
+            TraceMultiplexStreamMessage.MessageCase messageCase) {
+        int count = 0;
+        for (TraceMultiplexStreamMessage message : messages) {
+            if (message.getMessageCase() == messageCase) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class TraceReaderImpl implements TraceReader {
+
+        private final String traceId;
+
+        private TraceReaderImpl(String traceId) {
+            this.traceId = traceId;
+        }
+
+        @Override
+        public long captureTime() {
+            return 0;
+        }
+
+        @Override
+        public String traceId() {
+            return traceId;
+        }
+
+        @Override
+        public boolean partial() {
+            return false;
+        }
+
+        @Override
+        public boolean update() {
+            return false;
+        }
+
+        @Override
+        public void accept(TraceVisitor traceVisitor) {
+            traceVisitor.visitEntry(Trace.Entry.getDefaultInstance());
+            try {
+                traceVisitor.visitSharedQueryTexts(ImmutableList.of("select 1", "select 2"));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            traceVisitor.visitHeader(readHeader());
+        }
+
+        @Override
+        public Trace.Header readHeader() {
+            return Trace.Header.newBuilder()
+                    .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                            .setName("http request")
+                            .addChildTimer(Trace.Timer.newBuilder()
+                                    .setName("jdbc query")))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateIntervalCollectorTest {
+
+    private static final int SHARD_COUNT = 4;
+    private static final int TRANSACTION_NAME_COUNT = 20;
+    private static final int TRANSACTIONS_PER_NAME = 50;
+
+    private Clock clock;
+    private AggregateIntervalCollector collector;
+    private List<Transaction> transactions;
+
+    @Before
+    public void beforeEachTest() {
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(1000L);
+        collector = new AggregateIntervalCollector(0, 60000, 500, 500, 500, SHARD_COUNT, clock);
+        transactions = Lists.newArrayList();
+        for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+            for (int j = 0; j < TRANSACTIONS_PER_NAME; j++) {
+                transactions.add(createTransaction("name-" + i, 1000 * (j + 1)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldMergeShardsAddedFromMultipleThreads() throws Exception {
+        // given
+        long expectedTotalDurationNanos = 0;
+        for (Transaction transaction : transactions) {
+            expectedTotalDurationNanos += transaction.getDurationNanos();
+        }
+
+        // when
+        addFromShardThreads();
+
+        // then
+        OverviewAggregate overviewAggregate = collector.getOverviewAggregate("tt", null);
+        assertThat(overviewAggregate.transactionCount()).isEqualTo(transactions.size());
+        assertThat(overviewAggregate.totalDurationNanos()).isEqualTo(expectedTotalDurationNanos);
+        assertThat(overviewAggregate.mainThreadRootTimers().get(0).getCount())
+                .isEqualTo(transactions.size());
+        long sumOfTransactionCounts = 0;
+        for (int i = 0; i < TRANSACTION_NAME_COUNT; i++) {
+            ThroughputAggregate throughputAggregate =
+                    collector.getThroughputAggregate("tt", "name-" + i);
+            assertThat(throughputAggregate.transactionCount()).isEqualTo(TRANSACTIONS_PER_NAME);
+            sumOfTransactionCounts += throughputAggregate.transactionCount();
+        }
+        assertThat(sumOfTransactionCounts).isEqualTo(transactions.size());
+    }
+
+    @Test
+    public void shouldReuseRecentLiveMerge() throws Exception {
+        // given
+        Transaction transaction = transactions.get(0);
+        int shardIndex = AggregateIntervalCollector.getShardIndex("tt",
+                transaction.getTransactionName(), SHARD_COUNT);
+        collector.add(transaction);
+        assertThat(collector.getThroughputAggregate("tt", null).transactionCount()).isEqualTo(1);
+
+        // when
+        for (Transaction other : transactions) {
+            if (other != transaction && AggregateIntervalCollector.getShardIndex("tt",
+                    other.getTransactionName(), SHARD_COUNT) == shardIndex) {
+                collector.add(other);
+                break;
+            }
+        }
+
+        // then
+        assertThat(collector.getThroughputAggregate("tt", null).transactionCount()).isEqualTo(1);
+        when(clock.currentTimeMillis()).thenReturn(2000L);
+        assertThat(collector.getThroughputAggregate("tt", null).transactionCount()).isEqualTo(2);
+    }
+
+    private void addFromShardThreads() throws InterruptedException {
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            final int shardIndex = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Transaction transaction : transactions) {
+                        if (AggregateIntervalCollector.getShardIndex("tt",
+                                transaction.getTransactionName(), SHARD_COUNT) == shardIndex) {
+                            collector.add(transaction);
+                        }
+                    }
+                    collector.markShardCompleted();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static Transaction createTransaction(String transactionName, long durationNanos) {
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("mock timer");
+        when(rootTimer.getCount()).thenReturn(1L);
+        when(rootTimer.getTotalNanos()).thenReturn(durationNanos);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn("tt");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        when(transaction.getMainThreadRootTimer()).thenReturn(rootTimer);
+        return transaction;
+    }
+}
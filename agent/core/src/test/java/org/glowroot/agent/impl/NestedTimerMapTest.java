@@ -46,4 +46,30 @@ public class NestedTimerMapTest {
             assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
         }
     }
+
+    @Test
+    public void testClear() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        Map<TimerNameImpl, TimerImpl> uniqueTimers = Maps.newHashMap();
+        for (int i = 0; i < 100; i++) {
+            uniqueTimers.put(ImmutableTimerNameImpl.of("timer-" + i, false),
+                    mock(TimerImpl.class));
+        }
+        for (Map.Entry<TimerNameImpl, TimerImpl> entry : uniqueTimers.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        // when
+        map.clear();
+        // then
+        for (TimerNameImpl timerName : uniqueTimers.keySet()) {
+            assertThat(map.get(timerName)).isNull();
+        }
+        for (Map.Entry<TimerNameImpl, TimerImpl> entry : uniqueTimers.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<TimerNameImpl, TimerImpl> entry : uniqueTimers.entrySet()) {
+            assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+        }
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.StackTraceCollector.RotatingThreadContextSelector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StackTraceCollectorTest {
+
+    private List<Transaction> transactions;
+    private List<ThreadContextImpl> threadContexts;
+
+    @Before
+    public void beforeEachTest() {
+        ImmutableList.Builder<Transaction> transactions = ImmutableList.builder();
+        ImmutableList.Builder<ThreadContextImpl> threadContexts = ImmutableList.builder();
+        for (int i = 0; i < 3; i++) {
+            Transaction transaction = mock(Transaction.class);
+            ThreadContextImpl mainThreadContext = mock(ThreadContextImpl.class);
+            ThreadContextImpl auxThreadContext = mock(ThreadContextImpl.class);
+            when(mainThreadContext.isActive()).thenReturn(true);
+            when(transaction.getMainThreadContext()).thenReturn(mainThreadContext);
+            when(transaction.getActiveAuxThreadContexts())
+                    .thenReturn(ImmutableList.of(auxThreadContext));
+            transactions.add(transaction);
+            threadContexts.add(mainThreadContext);
+            threadContexts.add(auxThreadContext);
+        }
+        this.transactions = transactions.build();
+        this.threadContexts = threadContexts.build();
+    }
+
+    @Test
+    public void shouldSelectAllWhenUnderLimit() {
+        // given
+        RotatingThreadContextSelector selector = new RotatingThreadContextSelector(10);
+
+        // when
+        List<ThreadContextImpl> selected1 = selector.select(transactions);
+        List<ThreadContextImpl> selected2 = selector.select(transactions);
+
+        // then
+        assertThat(selected1).containsExactlyElementsOf(threadContexts);
+        assertThat(selected2).containsExactlyElementsOf(threadContexts);
+    }
+
+    @Test
+    public void shouldRotateAcrossTransactionsWhenOverLimit() {
+        // given
+        RotatingThreadContextSelector selector = new RotatingThreadContextSelector(3);
+
+        // when
+        List<ThreadContextImpl> selected1 = selector.select(transactions);
+        List<ThreadContextImpl> selected2 = selector.select(transactions);
+        List<ThreadContextImpl> selected3 = selector.select(transactions);
+
+        // then
+        assertThat(selected1).containsExactly(threadContexts.get(0), threadContexts.get(1),
+                threadContexts.get(2));
+        assertThat(selected2).containsExactly(threadContexts.get(3), threadContexts.get(4),
+                threadContexts.get(5));
+        assertThat(selected3).containsExactly(threadContexts.get(0), threadContexts.get(1),
+                threadContexts.get(2));
+    }
+
+    @Test
+    public void shouldCountMainThreadsAgainstLimit() {
+        // given
+        RotatingThreadContextSelector selector = new RotatingThreadContextSelector(2);
+
+        // when
+        List<ThreadContextImpl> selected1 = selector.select(transactions);
+        List<ThreadContextImpl> selected2 = selector.select(transactions);
+
+        // then
+        assertThat(selected1).containsExactly(threadContexts.get(0), threadContexts.get(1));
+        assertThat(selected2).containsExactly(threadContexts.get(2), threadContexts.get(3));
+    }
+
+    @Test
+    public void shouldRotateWithinAuxThreadsOfBusyTransaction() {
+        // given
+        Transaction transaction = mock(Transaction.class);
+        ThreadContextImpl mainThreadContext = mock(ThreadContextImpl.class);
+        when(mainThreadContext.isActive()).thenReturn(true);
+        when(transaction.getMainThreadContext()).thenReturn(mainThreadContext);
+        ImmutableList.Builder<ThreadContextImpl> auxThreadContexts = ImmutableList.builder();
+        for (int i = 0; i < 5; i++) {
+            auxThreadContexts.add(mock(ThreadContextImpl.class));
+        }
+        List<ThreadContextImpl> aux = auxThreadContexts.build();
+        when(transaction.getActiveAuxThreadContexts()).thenReturn(aux);
+        RotatingThreadContextSelector selector = new RotatingThreadContextSelector(4);
+
+        // when
+        List<ThreadContextImpl> selected1 = selector.select(ImmutableList.of(transaction));
+        List<ThreadContextImpl> selected2 = selector.select(ImmutableList.of(transaction));
+
+        // then
+        assertThat(selected1).containsExactly(mainThreadContext, aux.get(0), aux.get(1),
+                aux.get(2));
+        assertThat(selected2).containsExactly(aux.get(3), aux.get(4), mainThreadContext,
+                aux.get(0));
+    }
+
+    @Test
+    public void shouldRestartRotationWhenTransactionsComplete() {
+        // given
+        RotatingThreadContextSelector selector = new RotatingThreadContextSelector(3);
+        selector.select(transactions);
+        selector.select(transactions);
+
+        // when
+        List<ThreadContextImpl> selected = selector.select(transactions.subList(0, 1));
+
+        // then
+        assertThat(selected).containsExactly(threadContexts.get(0), threadContexts.get(1));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TimerImplPoolTest {
+
+    private static final TimerNameImpl ROOT = ImmutableTimerNameImpl.of("root", false);
+    private static final TimerNameImpl ONE = ImmutableTimerNameImpl.of("one", false);
+    private static final TimerNameImpl TWO = ImmutableTimerNameImpl.of("two", false);
+
+    private TimerImplPool timerPool;
+    private ThreadContextImpl threadContext;
+
+    @Before
+    public void beforeEachTest() {
+        timerPool = new TimerImplPool();
+        threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getTimerPool()).thenReturn(timerPool);
+    }
+
+    @Test
+    public void shouldReturnNullWhenEmpty() {
+        assertThat(timerPool.take()).isNull();
+    }
+
+    @Test
+    public void shouldRecycleWholeTimerTree() throws Exception {
+        // given
+        final TimerImpl rootTimer = createTimerTree();
+        Set<TimerImpl> timers = Sets.newIdentityHashSet();
+        timers.add(rootTimer);
+        for (TimerImpl child = rootTimer.getHeadChild(); child != null; child =
+                child.getNextSibling()) {
+            timers.add(child);
+        }
+
+        // when
+        // timer trees are returned by the aggregate processing thread
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                timerPool.recycle(rootTimer);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // then
+        Set<TimerImpl> recycledTimers = Sets.newIdentityHashSet();
+        for (int i = 0; i < 3; i++) {
+            TimerImpl timer = timerPool.take();
+            assertThat(timer).isNotNull();
+            assertThat(timer.getCount()).isEqualTo(0);
+            assertThat(timer.getTotalNanos()).isEqualTo(0);
+            assertThat(timer.getHeadChild()).isNull();
+            assertThat(timer.getNextSibling()).isNull();
+            recycledTimers.add(timer);
+        }
+        assertThat(timerPool.take()).isNull();
+        assertThat(recycledTimers).isEqualTo(timers);
+    }
+
+    @Test
+    public void shouldReuseRecycledTimers() throws Exception {
+        // given
+        TimerImpl rootTimer = createTimerTree();
+        timerPool.recycle(rootTimer);
+
+        // when
+        TimerImpl newRootTimer = createTimerTree();
+
+        // then
+        assertThat(newRootTimer.getName()).isEqualTo("root");
+        assertThat(newRootTimer.getCount()).isEqualTo(1);
+        assertThat(newRootTimer.getHeadChild().getName()).isEqualTo("two");
+        assertThat(newRootTimer.getHeadChild().getCount()).isEqualTo(1);
+        assertThat(newRootTimer.getHeadChild().getNextSibling().getName()).isEqualTo("one");
+        assertThat(newRootTimer.getHeadChild().getNextSibling().getNextSibling()).isNull();
+        assertThat(timerPool.take()).isNull();
+    }
+
+    private TimerImpl createTimerTree() {
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT);
+        rootTimer.start(0);
+        rootTimer.startNestedTimer(ONE, 1).stop();
+        rootTimer.startNestedTimer(TWO, 3).stop();
+        rootTimer.stop();
+        return rootTimer;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,18 +15,26 @@
  */
 package org.glowroot.agent.init;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.List;
 
+import javax.management.Attribute;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerFactory;
 import javax.management.MalformedObjectNameException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -51,6 +59,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -136,7 +145,8 @@ public class GaugeCollectorTest {
                 .build();
         when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString(),
                 anyMBeanServerList())).thenReturn(555, 565);
-        when(ticker.read()).thenReturn(SECONDS.toNanos(1), SECONDS.toNanos(3));
+        // the first two ticks are read by run() to measure the collection duration
+        when(ticker.read()).thenReturn(0L, 0L, SECONDS.toNanos(1), SECONDS.toNanos(3));
 
         // need to execute run() once in order to initialize internal priorRawCounterValues map
         gaugeCollector.run();
@@ -152,6 +162,86 @@ public class GaugeCollectorTest {
         assertThat(gaugeValues.get(0).getWeight()).isEqualTo(SECONDS.toNanos(2));
     }
 
+    @Test
+    public void shouldReadAllAttributesInSingleCall() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class),
+                anyMBeanServerList())).thenReturn(
+                        ImmutableList.of(new Attribute("ccc", 555), new Attribute("ddd", 666)));
+
+        // when
+        List<GaugeValue> gaugeValues = collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(555);
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(666);
+        verify(lazyPlatformMBeanServer).getAttributes(any(ObjectName.class),
+                eq(new String[] {"ccc", "ddd"}), anyMBeanServerList());
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class),
+                anyString(), anyMBeanServerList());
+    }
+
+    @Test
+    public void shouldReQueryMatchingObjectNamesOnlyAfterRegistration() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:aaa=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        List<MBeanServer> mbeanServers = ImmutableList.of(mbeanServer);
+        when(lazyPlatformMBeanServer.queryNames(any(ObjectName.class), nullable(QueryExp.class),
+                anyMBeanServerList()))
+                        .thenReturn(ImmutableSet.of(ObjectName.getInstance("test:aaa=bbb")));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class),
+                anyMBeanServerList())).thenReturn(ImmutableList.of(new Attribute("ccc", 555)));
+
+        // when
+        gaugeCollector.collectGaugeValues(gaugeConfig, mbeanServers);
+        gaugeCollector.collectGaugeValues(gaugeConfig, mbeanServers);
+
+        // then
+        verify(lazyPlatformMBeanServer).queryNames(any(ObjectName.class),
+                nullable(QueryExp.class), anyMBeanServerList());
+
+        // when
+        mbeanServer.registerMBean(new FileSystem(new File(".")),
+                ObjectName.getInstance("test:aaa=ccc"));
+        gaugeCollector.collectGaugeValues(gaugeConfig, mbeanServers);
+        gaugeCollector.collectGaugeValues(gaugeConfig, mbeanServers);
+
+        // then
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(any(ObjectName.class),
+                nullable(QueryExp.class), anyMBeanServerList());
+    }
+
+    @Test
+    public void shouldRemoveMBeanRegistrationListenerOnClose() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:aaa=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        MBeanServer mbeanServer = mock(MBeanServer.class);
+        gaugeCollector.collectGaugeValues(gaugeConfig, ImmutableList.of(mbeanServer));
+
+        // when
+        gaugeCollector.close();
+
+        // then
+        verify(mbeanServer).addNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME),
+                any(NotificationListener.class), nullable(NotificationFilter.class),
+                nullable(Object.class));
+        verify(mbeanServer).removeNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME),
+                any(NotificationListener.class));
+    }
+
     @Test
     public void shouldHandleInvalidMBeanObjectName() throws Exception {
         // given
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FullQueryTextSha1CacheTest {
+
+    @Test
+    public void shouldReturnSameSha1ForSameInstance() {
+        // given
+        String fullText = "select * from employee where name like ?";
+
+        // when
+        String sha1 = FullQueryTextSha1Cache.getSha1(fullText);
+
+        // then
+        assertThat(sha1).isEqualTo(Hashing.sha1().hashString(fullText, UTF_8).toString());
+        assertThat(FullQueryTextSha1Cache.getSha1(fullText)).isSameAs(sha1);
+    }
+
+    @Test
+    public void shouldReturnEqualSha1ForEqualInstance() {
+        // given
+        String fullText = "select * from employee where name like ?";
+        String otherFullText = new String(fullText);
+
+        // when
+        String sha1 = FullQueryTextSha1Cache.getSha1(fullText);
+        String otherSha1 = FullQueryTextSha1Cache.getSha1(otherFullText);
+
+        // then
+        assertThat(otherSha1).isEqualTo(sha1);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MutableAggregateTimerTest {
+
+    @Test
+    public void shouldMergeMatchingChildTimers() {
+        // given
+        MutableAggregateTimer timer = new MutableAggregateTimer("root", false);
+        timer.newChildTimer("a", false);
+        MutableAggregateTimer toBeMergedTimer = new MutableAggregateTimer("root", false);
+        toBeMergedTimer.newChildTimer("a", false);
+        toBeMergedTimer.newChildTimer("a", true);
+        toBeMergedTimer.newChildTimer("b", false).newChildTimer("c", false);
+
+        // when
+        timer.addDataFrom(toBeMergedTimer);
+
+        // then
+        Aggregate.Timer proto = timer.toProto();
+        assertThat(proto.getChildTimerCount()).isEqualTo(3);
+        assertThat(proto.getChildTimer(0).getName()).isEqualTo("a");
+        assertThat(proto.getChildTimer(0).getExtended()).isFalse();
+        assertThat(proto.getChildTimer(1).getName()).isEqualTo("a");
+        assertThat(proto.getChildTimer(1).getExtended()).isTrue();
+        assertThat(proto.getChildTimer(2).getName()).isEqualTo("b");
+        assertThat(proto.getChildTimer(2).getChildTimer(0).getName()).isEqualTo("c");
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common.config.ImmutableInstrumentationConfig;
+import org.glowroot.common.config.InstrumentationConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.InstrumentationConfig.CaptureKind;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    private static final ImmutableList<String> NO_ANNOTATIONS = ImmutableList.of();
+    private static final ImmutableList<String> NO_SUPER_CLASS_NAMES = ImmutableList.of();
+
+    @Test
+    public void shouldMatchExactClassName() {
+        // given
+        Advice advice = newAdvice(newConfig().className("a.b.C").build());
+        AdviceIndex adviceIndex = new AdviceIndex(ImmutableList.of(advice));
+
+        // when then
+        assertThat(adviceIndex.getCandidates("a.b.C", NO_ANNOTATIONS, NO_SUPER_CLASS_NAMES))
+                .containsExactly(advice);
+        assertThat(adviceIndex.getCandidates("a.b.D", NO_ANNOTATIONS, NO_SUPER_CLASS_NAMES))
+                .isEmpty();
+    }
+
+    @Test
+    public void shouldReuseIndexForConfiguredAdvisorsOnly() {
+        // given
+        List<Advice> configuredAdvisors =
+                ImmutableList.of(newAdvice(newConfig().className("a.b.C").build()));
+        List<Advice> mergedAdvisors = Lists.newArrayList(configuredAdvisors);
+        mergedAdvisors.add(newAdvice(newConfig().className("a.b.D").build()));
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(Suppliers.ofInstance(configuredAdvisors),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), null);
+
+        // when
+        AdviceIndex adviceIndex = analyzedWorld.getAdviceIndex(configuredAdvisors);
+        AdviceIndex mergedAdviceIndex = analyzedWorld.getAdviceIndex(mergedAdvisors);
+
+        // then
+        assertThat(mergedAdviceIndex.advisors()).isSameAs(mergedAdvisors);
+        assertThat(analyzedWorld.getAdviceIndex(configuredAdvisors)).isSameAs(adviceIndex);
+    }
+
+    @Test
+    public void shouldMatchClassNamePrefix() {
+        // given
+        Advice advice1 = newAdvice(newConfig().className("a.b.*").build());
+        Advice advice2 = newAdvice(newConfig().className("x.*|a.c.*").build());
+        Advice advice3 = newAdvice(newConfig().className("*Impl").build());
+        AdviceIndex adviceIndex = new AdviceIndex(ImmutableList.of(advice1, advice2, advice3));
+
+        // when then
+        assertThat(adviceIndex.getCandidates("a.b.C", NO_ANNOTATIONS, NO_SUPER_CLASS_NAMES))
+                .containsExactly(advice1, advice3);
+        assertThat(adviceIndex.getCandidates("a.c.C", NO_ANNOTATIONS, NO_SUPER_CLASS_NAMES))
+                .containsExactly(advice2, advice3);
+        assertThat(adviceIndex.getCandidates("x.Y", NO_ANNOTATIONS, NO_SUPER_CLASS_NAMES))
+                .containsExactly(advice2, advice3);
+    }
+
+    @Test
+    public void shouldMatchClassAnnotation() {
+        // given
+        Advice advice = newAdvice(newConfig().classAnnotation("a.b.Anno").build());
+        AdviceIndex adviceIndex = new AdviceIndex(ImmutableList.of(advice));
+
+        // when then
+        assertThat(adviceIndex.getCandidates("x.Y", ImmutableList.of("La/b/Anno;"),
+                NO_SUPER_CLASS_NAMES)).containsExactly(advice);
+        assertThat(adviceIndex.getCandidates("x.Y", ImmutableList.of("La/b/Other;"),
+                NO_SUPER_CLASS_NAMES)).isEmpty();
+    }
+
+    @Test
+    public void shouldMatchFullRegexAgainstEveryClass() {
+        // given
+        Advice advice = newAdvice(newConfig().className("/a\\.b\\..*/").build());
+        AdviceIndex adviceIndex = new AdviceIndex(ImmutableList.of(advice));
+
+        // when then
+        assertThat(adviceIndex.getCandidates("x.Y", NO_ANNOTATIONS, NO_SUPER_CLASS_NAMES))
+                .containsExactly(advice);
+    }
+
+    @Test
+    public void shouldPreserveAdviceOrder() {
+        // given
+        List<Advice> advisors = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            if (i % 2 == 0) {
+                advisors.add(newAdvice(newConfig().className("a.b.C").timerName("t" + i).build()));
+            } else {
+                advisors.add(newAdvice(newConfig().className("a.*").timerName("t" + i).build()));
+            }
+        }
+        AdviceIndex adviceIndex = new AdviceIndex(advisors);
+
+        // when
+        List<Advice> candidates =
+                adviceIndex.getCandidates("a.b.C", NO_ANNOTATIONS, NO_SUPER_CLASS_NAMES);
+
+        // then
+        assertThat(candidates).isEqualTo(advisors);
+    }
+
+    private static ImmutableInstrumentationConfig.Builder newConfig() {
+        return ImmutableInstrumentationConfig.builder()
+                .methodName("*")
+                .addMethodParameterTypes("..")
+                .captureKind(CaptureKind.TIMER)
+                .timerName("t");
+    }
+
+    private static Advice newAdvice(InstrumentationConfig config) {
+        return AdviceGenerator.createAdvisors(ImmutableList.of(config), null, false, false)
+                .keySet().iterator().next();
+    }
+}
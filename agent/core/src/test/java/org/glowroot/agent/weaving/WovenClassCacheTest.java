@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.base.Suppliers;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.weaving.SomeAspect.SuperBasicAdvice;
+import org.glowroot.agent.weaving.WovenClassCache.CachedClass;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.SuperBasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WovenClassCacheTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEachTest() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReadAfterRestart() {
+        // given
+        WovenClassCache cache = new WovenClassCache(dir);
+        String key = getKey(cache, new byte[] {1, 2, 3});
+        cache.put(key, new byte[] {4, 5, 6}, ImmutableList.of("org/example/SomeAdvice"));
+
+        // when
+        cache = new WovenClassCache(dir);
+        CachedClass cachedClass = cache.get(getKey(cache, new byte[] {1, 2, 3}));
+
+        // then
+        assertThat(cachedClass).isNotNull();
+        assertThat(cachedClass.bytes()).isEqualTo(new byte[] {4, 5, 6});
+        assertThat(cachedClass.usedAdviceTypes()).containsExactly("org/example/SomeAdvice");
+    }
+
+    @Test
+    public void shouldMissWhenClassBytesChange() {
+        // given
+        WovenClassCache cache = new WovenClassCache(dir);
+        cache.put(getKey(cache, new byte[] {1, 2, 3}), new byte[] {4, 5, 6},
+                ImmutableList.<String>of());
+
+        // when
+        CachedClass cachedClass = cache.get(getKey(cache, new byte[] {1, 2, 4}));
+
+        // then
+        assertThat(cachedClass).isNull();
+    }
+
+    @Test
+    public void shouldRegisterAnalyzedClassOnCacheHit() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(
+                PluginDetailBuilder.buildAdviceClass(SuperBasicAdvice.class)).build());
+        byte[] superClassBytes = getClassBytes(SuperBasicMisc.class);
+        byte[] subClassBytes = getClassBytes(BasicMisc.class);
+        ClassLoader loader = new IsolatedWeavingClassLoader();
+        Weaver weaver = newWeaver(advisors, newAnalyzedWorld(advisors), new WovenClassCache(dir));
+        byte[] wovenSuperClassBytes = weave(weaver, superClassBytes, SuperBasicMisc.class, loader);
+        byte[] wovenSubClassBytes = weave(weaver, subClassBytes, BasicMisc.class, loader);
+
+        // when
+        AnalyzedWorld analyzedWorld = spy(newAnalyzedWorld(advisors));
+        weaver = newWeaver(advisors, analyzedWorld, new WovenClassCache(dir));
+        loader = new IsolatedWeavingClassLoader();
+        byte[] cachedSuperClassBytes = weave(weaver, superClassBytes, SuperBasicMisc.class, loader);
+        byte[] subClassBytesAfterCacheHit = weave(weaver, subClassBytes, BasicMisc.class, loader);
+
+        // then
+        assertThat(wovenSuperClassBytes).isNotNull();
+        assertThat(cachedSuperClassBytes).isEqualTo(wovenSuperClassBytes);
+        ArgumentCaptor<AnalyzedClass> captor = ArgumentCaptor.forClass(AnalyzedClass.class);
+        verify(analyzedWorld, atLeastOnce()).add(captor.capture(), same(loader));
+        List<String> addedClassNames = Lists.newArrayList();
+        for (AnalyzedClass analyzedClass : captor.getAllValues()) {
+            addedClassNames.add(analyzedClass.name());
+        }
+        // super class needs to be registered by the cache hit, not re-created from its resource
+        // bytes during analysis of the sub class
+        assertThat(addedClassNames).contains(SuperBasicMisc.class.getName());
+        assertThat(addedClassNames.indexOf(SuperBasicMisc.class.getName()))
+                .isLessThan(addedClassNames.indexOf(BasicMisc.class.getName()));
+        assertThat(subClassBytesAfterCacheHit).isEqualTo(wovenSubClassBytes);
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld(List<Advice> advisors) {
+        return new AnalyzedWorld(Suppliers.ofInstance(advisors), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), null);
+    }
+
+    private static Weaver newWeaver(List<Advice> advisors, AnalyzedWorld analyzedWorld,
+            WovenClassCache wovenClassCache) {
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getCurrentThreadContextHolder())
+                .thenReturn(new ThreadContextThreadLocal().getHolder());
+        return new Weaver(Suppliers.ofInstance(advisors), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
+                Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class),
+                wovenClassCache);
+    }
+
+    private static byte /*@Nullable*/ [] weave(Weaver weaver, byte[] classBytes, Class<?> clazz,
+            ClassLoader loader) {
+        return weaver.weave(classBytes, ClassNames.toInternalName(clazz.getName()), null, null,
+                loader);
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(
+                clazz.getResource("/" + ClassNames.toInternalName(clazz.getName()) + ".class"));
+    }
+
+    private static String getKey(WovenClassCache cache, byte[] classBytes) {
+        return cache.getKey("org/example/Something", classBytes, ImmutableList.<Advice>of(),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), false,
+                ImmutableList.<AnalyzedClass>of());
+    }
+}
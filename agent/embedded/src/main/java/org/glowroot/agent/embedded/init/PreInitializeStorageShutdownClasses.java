@@ -81,6 +81,8 @@ class PreInitializeStorageShutdownClasses {
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream$FsyncRunnable");
         types.add("org.glowroot.agent.embedded.util.DataSource");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
+        types.add("org.glowroot.agent.embedded.util.ReadConnectionPool");
+        types.add("org.glowroot.agent.embedded.util.ReadConnectionPool$ReadConnection");
         types.add("org.glowroot.agent.util.JavaVersion");
         types.add("org.glowroot.common.util.Cancellable");
         types.add("org.glowroot.common.util.ScheduledRunnable");
@@ -40,6 +40,7 @@ import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.embedded.util.ImmutableColumn;
 import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.PartitionedTable;
 import org.glowroot.agent.embedded.util.RowMappers;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
@@ -152,6 +153,10 @@ public class AggregateDao implements AggregateRepository {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
 
+    // one per rollup level
+    private final ImmutableList<PartitionedTable> overallTables;
+    private final ImmutableList<PartitionedTable> transactionTables;
+
     private final AtomicLongArray lastRollupTimes;
 
     private final Object rollupLock = new Object();
@@ -166,16 +171,26 @@ public class AggregateDao implements AggregateRepository {
         this.fullQueryTextDao = fullQueryTextDao;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        ImmutableList.Builder<PartitionedTable> overallTables = ImmutableList.builder();
+        ImmutableList.Builder<PartitionedTable> transactionTables = ImmutableList.builder();
         for (int i = 0; i < rollupConfigs.size(); i++) {
+            long partitionMillis =
+                    PartitionedTable.getPartitionMillis(rollupConfigs.get(i).intervalMillis());
             String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
-            dataSource.syncTable(overallTableName, overallAggregatePointColumns);
-            dataSource.syncIndexes(overallTableName, ImmutableList.<Index>of(
-                    ImmutableIndex.of(overallTableName + "_idx", overallAggregateIndexColumns)));
+            overallTables.add(dataSource.syncPartitionedTable(overallTableName,
+                    overallAggregatePointColumns,
+                    ImmutableList.<Index>of(ImmutableIndex.of(overallTableName + "_idx",
+                            overallAggregateIndexColumns)),
+                    partitionMillis));
             String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
-            dataSource.syncTable(transactionTableName, transactionAggregateColumns);
-            dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
-                    .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
+            transactionTables.add(dataSource.syncPartitionedTable(transactionTableName,
+                    transactionAggregateColumns,
+                    ImmutableList.<Index>of(ImmutableIndex.of(transactionTableName + "_idx",
+                            transactionAggregateIndexColumns)),
+                    partitionMillis));
         }
+        this.overallTables = overallTables.build();
+        this.transactionTables = transactionTables.build();
 
         // don't need last_rollup_times table like in GaugeValueDao since there is already index
         // on capture_time so these queries are relatively fast
@@ -195,6 +210,10 @@ public class AggregateDao implements AggregateRepository {
         // intentionally not using batch update as that could cause memory spike while preparing a
         // large batch
         final CappedDatabase cappedDatabase = rollupCappedDatabases.get(0);
+        final @Untainted String overallTableName =
+                overallTables.get(0).getInsertTableName(captureTime);
+        final @Untainted String transactionTableName =
+                transactionTables.get(0).getInsertTableName(captureTime);
         final List<TruncatedQueryText> truncatedQueryTexts = Lists.newArrayList();
         aggregateReader.accept(new AggregateVisitor() {
             @Override
@@ -202,7 +221,7 @@ public class AggregateDao implements AggregateRepository {
                     Aggregate overallAggregate) throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, null, captureTime,
-                        overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                        overallAggregate, truncatedQueryTexts, overallTableName, cappedDatabase));
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             }
             @Override
@@ -211,7 +230,8 @@ public class AggregateDao implements AggregateRepository {
                     throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
-                        transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                        transactionAggregate, truncatedQueryTexts, transactionTableName,
+                        cappedDatabase));
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -421,8 +441,8 @@ public class AggregateDao implements AggregateRepository {
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws SQLException {
-        dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
-        dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        overallTables.get(rollupLevel).deleteBefore(captureTime);
+        transactionTables.get(rollupLevel).deleteBefore(captureTime);
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -431,9 +451,11 @@ public class AggregateDao implements AggregateRepository {
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
             dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+                    fromRollupLevel, toRollupLevel,
+                    overallTables.get(toRollupLevel).getInsertTableName(rollupTime)));
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+                    fromRollupLevel, toRollupLevel,
+                    transactionTables.get(toRollupLevel).getInsertTableName(rollupTime)));
         }
     }
 
@@ -1017,14 +1039,16 @@ public class AggregateDao implements AggregateRepository {
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
+        private final @Untainted String toTableName;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
         private RollupOverallAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+                int fromRollupLevel, int toRollupLevel, @Untainted String toTableName) {
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
             this.toRollupLevel = toRollupLevel;
+            this.toTableName = toTableName;
         }
 
         @Override
@@ -1059,8 +1083,8 @@ public class AggregateDao implements AggregateRepository {
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
                         dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                                rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                                cappedDatabase, scratchBuffer));
+                                rollupCaptureTime, curr.aggregate(), toTableName, cappedDatabase,
+                                scratchBuffer));
                     }
                     curr = ImmutableMutableOverallAggregate.of(transactionType,
                             new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates));
@@ -1069,7 +1093,7 @@ public class AggregateDao implements AggregateRepository {
             }
             if (curr != null) {
                 dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
+                        rollupCaptureTime, curr.aggregate(), toTableName, cappedDatabase,
                         scratchBuffer));
             }
             return null;
@@ -1087,13 +1111,15 @@ public class AggregateDao implements AggregateRepository {
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
+        private final @Untainted String toTableName;
 
         private RollupTransactionAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+                int fromRollupLevel, int toRollupLevel, @Untainted String toTableName) {
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
             this.toRollupLevel = toRollupLevel;
+            this.toTableName = toTableName;
         }
 
         @Override
@@ -1134,7 +1160,7 @@ public class AggregateDao implements AggregateRepository {
                     if (curr != null) {
                         dataSource.update(new AggregateInsert(curr.transactionType(),
                                 curr.transactionName(), rollupCaptureTime, curr.aggregate(),
-                                toRollupLevel, cappedDatabase, scratchBuffer));
+                                toTableName, cappedDatabase, scratchBuffer));
                     }
                     curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
                             new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates));
@@ -1143,7 +1169,7 @@ public class AggregateDao implements AggregateRepository {
             }
             if (curr != null) {
                 dataSource.update(new AggregateInsert(curr.transactionType(),
-                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
+                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toTableName,
                         cappedDatabase, scratchBuffer));
             }
             return null;
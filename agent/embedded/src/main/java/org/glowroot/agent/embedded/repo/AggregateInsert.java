@@ -39,6 +39,7 @@ import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.MutableServiceCall;
+import org.glowroot.common.model.QuantileSketch;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common2.repo.MutableAggregate;
@@ -75,15 +76,15 @@ class AggregateInsert implements JdbcUpdate {
     private final byte /*@Nullable*/ [] asyncTimers;
     private final byte[] durationNanosHistogramBytes;
 
-    private final int rollupLevel;
+    private final @Untainted String tableName;
 
     AggregateInsert(String transactionType, @Nullable String transactionName,
             long captureTime, Aggregate aggregate, List<TruncatedQueryText> truncatedQueryTexts,
-            int rollupLevel, CappedDatabase cappedDatabase) throws IOException {
+            @Untainted String tableName, CappedDatabase cappedDatabase) throws IOException {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.captureTime = captureTime;
-        this.rollupLevel = rollupLevel;
+        this.tableName = tableName;
         totalDurationNanos = aggregate.getTotalDurationNanos();
         transactionCount = aggregate.getTransactionCount();
         errorCount = aggregate.getErrorCount();
@@ -128,16 +129,17 @@ class AggregateInsert implements JdbcUpdate {
             auxThreadTotalAllocatedBytes = 0;
         }
         asyncTimers = toByteArray(aggregate.getAsyncTimerList());
-        durationNanosHistogramBytes = aggregate.getDurationNanosHistogram().toByteArray();
+        durationNanosHistogramBytes =
+                QuantileSketch.withSketch(aggregate.getDurationNanosHistogram()).toByteArray();
     }
 
     AggregateInsert(String transactionType, @Nullable String transactionName,
-            long captureTime, MutableAggregate aggregate, int rollupLevel,
+            long captureTime, MutableAggregate aggregate, @Untainted String tableName,
             CappedDatabase cappedDatabase, ScratchBuffer scratchBuffer) throws IOException {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.captureTime = captureTime;
-        this.rollupLevel = rollupLevel;
+        this.tableName = tableName;
         totalDurationNanos = aggregate.getTotalDurationNanos();
         transactionCount = aggregate.getTransactionCount();
         errorCount = aggregate.getErrorCount();
@@ -174,20 +176,15 @@ class AggregateInsert implements JdbcUpdate {
         }
         asyncTimers = toByteArray(aggregate.getAsyncTimersProto());
         durationNanosHistogramBytes =
-                aggregate.getDurationNanosHistogram().toProto(scratchBuffer).toByteArray();
+                aggregate.getDurationNanosHistogram().toProtoWithSketch(scratchBuffer)
+                        .toByteArray();
     }
 
     @Override
     public @Untainted String getSql() {
         StringBuilder sb = new StringBuilder();
-        sb.append("merge into aggregate_");
-        if (transactionName != null) {
-            sb.append("tn_");
-        } else {
-            sb.append("tt_");
-        }
-        sb.append("rollup_");
-        sb.append(castUntainted(rollupLevel));
+        sb.append("merge into ");
+        sb.append(tableName);
         sb.append(" (transaction_type,");
         if (transactionName != null) {
             sb.append(" transaction_name,");
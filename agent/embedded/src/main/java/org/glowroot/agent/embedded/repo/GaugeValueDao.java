@@ -36,6 +36,7 @@ import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.embedded.util.ImmutableColumn;
 import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.PartitionedTable;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
@@ -65,6 +66,8 @@ public class GaugeValueDao implements GaugeValueRepository {
     private final DataSource dataSource;
     private final Clock clock;
     private final ImmutableList<RollupConfig> rollupConfigs;
+    // one per rollup level
+    private final ImmutableList<PartitionedTable> tables;
 
     // AtomicLongArray used for visibility
     private final AtomicLongArray lastRollupTimes;
@@ -79,9 +82,17 @@ public class GaugeValueDao implements GaugeValueRepository {
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
+        ImmutableList.Builder<PartitionedTable> tables = ImmutableList.builder();
         for (int i = 0; i <= rollupConfigs.size(); i++) {
-            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
-            dataSource.syncIndexes("gauge_value_rollup_" + castUntainted(i),
+            long partitionMillis;
+            if (i == 0) {
+                partitionMillis = DAYS.toMillis(1);
+            } else {
+                partitionMillis = PartitionedTable
+                        .getPartitionMillis(rollupConfigs.get(i - 1).intervalMillis());
+            }
+            tables.add(dataSource.syncPartitionedTable("gauge_value_rollup_" + castUntainted(i),
+                    columns,
                     ImmutableList.<Index>of(
                             ImmutableIndex.of(
                                     "gauge_value_rollup_" + castUntainted(i) + "_idx",
@@ -92,8 +103,10 @@ public class GaugeValueDao implements GaugeValueRepository {
                                     "gauge_value_rollup_" + castUntainted(i)
                                             + "_by_capture_time_idx",
                                     ImmutableList.of("capture_time", "gauge_id", "value",
-                                            "weight"))));
+                                            "weight"))),
+                    partitionMillis));
         }
+        this.tables = tables.build();
         List<Column> columns = Lists.newArrayList();
         for (int i = 1; i <= rollupConfigs.size(); i++) {
             columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
@@ -139,7 +152,23 @@ public class GaugeValueDao implements GaugeValueRepository {
             gaugeNameDao.insert(gaugeValue.getCaptureTime(), gaugeValue.getGaugeName());
             gaugeValueIdMap.put(gaugeValue, gaugeId);
         }
-        dataSource.batchUpdate(new GaugeValuesBinder(gaugeValueIdMap));
+        // gauge values in a single store are normally all in the same partition (and there is
+        // only one insert table when the table is not partitioned)
+        Map<String, Map<GaugeValue, Long>> gaugeValueIdMapsByTableName = Maps.newHashMap();
+        for (Map.Entry<GaugeValue, Long> entry : gaugeValueIdMap.entrySet()) {
+            String tableName = tables.get(0).getInsertTableName(entry.getKey().getCaptureTime());
+            Map<GaugeValue, Long> map = gaugeValueIdMapsByTableName.get(tableName);
+            if (map == null) {
+                map = Maps.newLinkedHashMap();
+                gaugeValueIdMapsByTableName.put(tableName, map);
+            }
+            map.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Map<GaugeValue, Long>> entry : gaugeValueIdMapsByTableName
+                .entrySet()) {
+            dataSource.batchUpdate(
+                    new GaugeValuesBinder(castUntainted(entry.getKey()), entry.getValue()));
+        }
         synchronized (rollupLock) {
             // clock can never go backwards and future gauge captures will wait until this method
             // completes since ScheduledExecutorService.scheduleAtFixedRate() guarantees that future
@@ -190,7 +219,7 @@ public class GaugeValueDao implements GaugeValueRepository {
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws SQLException {
-        dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        tables.get(rollupLevel).deleteBefore(captureTime);
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
@@ -205,13 +234,32 @@ public class GaugeValueDao implements GaugeValueRepository {
         // need ".0" to force double result
         String captureTimeSql = castUntainted(
                 "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-        dataSource.update("merge into gauge_value_rollup_" + castUntainted(toRollupLevel)
-                + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
-                + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
-                + " sum(value * weight) / sum(weight), sum(weight) from gauge_value_rollup_"
-                + castUntainted(fromRollupLevel) + " gp where gp.capture_time > ?"
-                + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time",
-                lastRollupTime, safeRollupTime);
+        PartitionedTable toTable = tables.get(toRollupLevel);
+        long from = lastRollupTime;
+        while (from < safeRollupTime) {
+            long to;
+            if (toTable.isPartitioned()) {
+                // each merge needs to target a single partition, and the partition boundaries are
+                // multiples of the rollup interval so a rollup interval never spans partitions
+                Long nextCaptureTime = dataSource.queryForOptionalLong("select min(capture_time)"
+                        + " from gauge_value_rollup_" + castUntainted(fromRollupLevel)
+                        + " where capture_time > ? and capture_time <= ?", from, safeRollupTime);
+                if (nextCaptureTime == null) {
+                    return;
+                }
+                to = Math.min(toTable.getPartitionEnd(nextCaptureTime), safeRollupTime);
+            } else {
+                to = safeRollupTime;
+            }
+            dataSource.update("merge into " + toTable.getInsertTableName(to)
+                    + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
+                    + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
+                    + " sum(value * weight) / sum(weight), sum(weight) from gauge_value_rollup_"
+                    + castUntainted(fromRollupLevel) + " gp where gp.capture_time > ?"
+                    + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time",
+                    from, to);
+            from = to;
+        }
     }
 
     private static AtomicLongArray initData(ImmutableList<RollupConfig> rollupConfigs,
@@ -236,15 +284,18 @@ public class GaugeValueDao implements GaugeValueRepository {
 
     private static class GaugeValuesBinder implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final Map<GaugeValue, Long> gaugeValueIdMap;
 
-        private GaugeValuesBinder(Map<GaugeValue, Long> gaugeValueIdMap) {
+        private GaugeValuesBinder(@Untainted String tableName,
+                Map<GaugeValue, Long> gaugeValueIdMap) {
+            this.tableName = tableName;
             this.gaugeValueIdMap = gaugeValueIdMap;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into gauge_value_rollup_0 (gauge_id, capture_time, value, weight)"
+            return "insert into " + tableName + " (gauge_id, capture_time, value, weight)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -42,6 +42,7 @@ import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.embedded.util.ImmutableColumn;
 import org.glowroot.agent.embedded.util.ImmutableIndex;
+import org.glowroot.agent.embedded.util.PartitionedTable;
 import org.glowroot.agent.embedded.util.RowMappers;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
@@ -69,6 +70,7 @@ import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.DAYS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class TraceDao implements TraceRepository {
@@ -140,6 +142,9 @@ public class TraceDao implements TraceRepository {
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
 
+    private final PartitionedTable traceTable;
+    private final PartitionedTable traceAttributeTable;
+
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
             TraceAttributeNameDao traceAttributeNameDao) throws Exception {
@@ -164,10 +169,10 @@ public class TraceDao implements TraceRepository {
             dataSource.execute("alter table trace add column queries_capped_id bigint");
             startupLogger.info("glowroot schema upgrade complete");
         }
-        dataSource.syncTable("trace", traceColumns);
-        dataSource.syncIndexes("trace", traceIndexes);
-        dataSource.syncTable("trace_attribute", traceAttributeColumns);
-        dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        traceTable = dataSource.syncPartitionedTable("trace", traceColumns, traceIndexes,
+                DAYS.toMillis(1));
+        traceAttributeTable = dataSource.syncPartitionedTable("trace_attribute",
+                traceAttributeColumns, traceAttributeIndexes, DAYS.toMillis(1));
     }
 
     public void store(TraceReader traceReader) throws Exception {
@@ -181,12 +186,19 @@ public class TraceDao implements TraceRepository {
         Trace trace = builder.build();
         Trace.Header header = trace.getHeader();
 
-        dataSource.update(new TraceMerge(trace));
+        if (trace.getUpdate() && traceTable.isPartitioned()) {
+            // the capture time of the prior (partial) trace can be in a different partition, in
+            // which case "merge ... key (id)" below would not replace it
+            traceTable.delete("id = ?", trace.getId());
+        }
+        dataSource.update(
+                new TraceMerge(traceTable.getInsertTableName(header.getCaptureTime()), trace));
         if (header.getAttributeCount() > 0) {
             if (trace.getUpdate()) {
-                dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
+                traceAttributeTable.delete("trace_id = ?", trace.getId());
             }
-            dataSource.batchUpdate(new TraceAttributeInsert(trace));
+            dataSource.batchUpdate(new TraceAttributeInsert(
+                    traceAttributeTable.getInsertTableName(header.getCaptureTime()), trace));
             for (Trace.Attribute attribute : header.getAttributeList()) {
                 traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
                         attribute.getName(), header.getCaptureTime());
@@ -322,8 +334,8 @@ public class TraceDao implements TraceRepository {
 
     void deleteBefore(long captureTime) throws SQLException {
         traceAttributeNameDao.deleteBefore(captureTime);
-        dataSource.deleteBefore("trace", captureTime);
-        dataSource.deleteBefore("trace_attribute", captureTime);
+        traceTable.deleteBefore(captureTime);
+        traceAttributeTable.deleteBefore(captureTime);
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
@@ -463,6 +475,7 @@ public class TraceDao implements TraceRepository {
 
     private class TraceMerge implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final String traceId;
         private final Trace.Header header;
         private final @Nullable Long entriesCappedId;
@@ -471,7 +484,8 @@ public class TraceDao implements TraceRepository {
         private final @Nullable Long mainThreadProfileId;
         private final @Nullable Long auxThreadProfileId;
 
-        private TraceMerge(Trace trace) throws IOException {
+        private TraceMerge(@Untainted String tableName, Trace trace) throws IOException {
+            this.tableName = tableName;
             this.traceId = trace.getId();
             this.header = trace.getHeader();
 
@@ -512,11 +526,12 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "merge into trace (id, partial, slow, error, start_time, capture_time,"
-                    + " duration_nanos, transaction_type, transaction_name, headline, user,"
-                    + " error_message, header, entries_capped_id, queries_capped_id,"
-                    + " shared_query_texts_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id) key (id) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
+            return "merge into " + tableName + " (id, partial, slow, error, start_time,"
+                    + " capture_time, duration_nanos, transaction_type, transaction_name,"
+                    + " headline, user, error_message, header, entries_capped_id,"
+                    + " queries_capped_id, shared_query_texts_capped_id,"
+                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id) key (id)"
+                    + " values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
                     + " ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         }
 
@@ -559,15 +574,17 @@ public class TraceDao implements TraceRepository {
 
     private static class TraceAttributeInsert implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final Trace trace;
 
-        private TraceAttributeInsert(Trace trace) {
+        private TraceAttributeInsert(@Untainted String tableName, Trace trace) {
+            this.tableName = tableName;
             this.trace = trace;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into trace_attribute (trace_id, name, value, capture_time)"
+            return "insert into " + tableName + " (trace_id, name, value, capture_time)"
                     + " values (?, ?, ?, ?)";
         }
 
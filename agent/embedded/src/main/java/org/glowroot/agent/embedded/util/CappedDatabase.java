@@ -24,6 +24,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.MappedByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
@@ -60,6 +61,11 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
+    // memory mapped access replaces the seek + read/write system calls (and the additional read
+    // buffering) with memory copies, which makes reading trace details and profiles cheaper
+    private static final boolean MEMORY_MAPPED =
+            Boolean.getBoolean("glowroot.internal.cappedDatabase.memoryMapped");
+
     private static final boolean USE_SAFE_LZF_ENCODER;
 
     static {
@@ -87,9 +93,16 @@ public class CappedDatabase {
     public CappedDatabase(File file, int requestedSizeKb,
             @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker)
             throws IOException {
+        this(file, requestedSizeKb, scheduledExecutor, ticker, MEMORY_MAPPED);
+    }
+
+    CappedDatabase(File file, int requestedSizeKb,
+            @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker,
+            boolean memoryMapped) throws IOException {
         this.file = file;
         this.ticker = ticker;
-        out = CappedDatabaseOutputStream.create(file, requestedSizeKb, scheduledExecutor, ticker);
+        out = CappedDatabaseOutputStream.create(file, requestedSizeKb, scheduledExecutor, ticker,
+                memoryMapped);
         inFile = new RandomAccessFile(file, "r");
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
@@ -176,11 +189,7 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = newLZFInputStream(newCappedBlockInputStream(cappedId));
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
@@ -206,11 +215,7 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = newLZFInputStream(newCappedBlockInputStream(cappedId));
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
@@ -264,6 +269,42 @@ public class CappedDatabase {
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private InputStream newCappedBlockInputStream(long cappedId) {
+        if (out.isMemoryMapped()) {
+            // reads from the memory mapped buffer are just memory copies, so additional buffering
+            // would only add another copy
+            return new CappedBlockInputStream(cappedId);
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying RandomAccessFile
+        final int bufferSize = 32768;
+        return new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize);
+    }
+
+    // must be called under lock
+    private long readLong(long filePosition) throws IOException {
+        MappedByteBuffer mappedBuffer = out.getMappedBuffer();
+        if (mappedBuffer == null) {
+            inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            return inFile.readLong();
+        }
+        return mappedBuffer
+                .getLong((int) (CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition));
+    }
+
+    // must be called under lock
+    private void readFully(long filePosition, byte[] bytes, int off, int len) throws IOException {
+        MappedByteBuffer mappedBuffer = out.getMappedBuffer();
+        if (mappedBuffer == null) {
+            inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            inFile.readFully(bytes, off, len);
+        } else {
+            mappedBuffer.position(
+                    (int) (CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition));
+            mappedBuffer.get(bytes, off, len);
+        }
+    }
+
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
         if (USE_SAFE_LZF_ENCODER) {
             return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
@@ -291,11 +332,7 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
+            return new InputStreamReader(newLZFInputStream(newCappedBlockInputStream(cappedId)),
                     UTF_8);
         }
     }
@@ -320,17 +357,14 @@ public class CappedDatabase {
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
                 }
                 if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+                    blockLength = readLong(out.convertToFilePosition(cappedId));
                 }
                 long filePosition = out.convertToFilePosition(
                         cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
                 long blockRemaining = blockLength - blockIndex;
                 long fileRemaining = out.getSizeKb() * 1024L - filePosition;
                 int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
+                readFully(filePosition, bytes, off, numToRead);
                 blockIndex += numToRead;
                 return numToRead;
             }
@@ -338,15 +372,16 @@ public class CappedDatabase {
 
         @Override
         public int read(byte[] bytes) throws IOException {
-            // this is never called since CappedBlockInputStream is always wrapped in a
-            // BufferedInputStream
             return read(bytes, 0, bytes.length);
         }
 
         @Override
         public int read() throws IOException {
-            throw new UnsupportedOperationException(
-                    "CappedBlockInputStream should always be wrapped in a BufferedInputStream");
+            // this is never called since CappedBlockInputStream is always wrapped in either a
+            // BufferedInputStream or an LZFInputStream (which only performs bulk reads)
+            byte[] bytes = new byte[1];
+            int n = read(bytes, 0, 1);
+            return n == -1 ? -1 : bytes[0] & 0xFF;
         }
     }
 
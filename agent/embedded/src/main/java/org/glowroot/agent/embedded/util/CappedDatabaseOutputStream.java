@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,14 +19,23 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.common.util.ScheduledRunnable;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -35,6 +44,8 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
 class CappedDatabaseOutputStream extends OutputStream {
 
+    private static final Logger logger = LoggerFactory.getLogger(CappedDatabaseOutputStream.class);
+
     static final int HEADER_SKIP_BYTES = 20;
     static final int BLOCK_HEADER_SKIP_BYTES = 8;
 
@@ -44,7 +55,13 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     private final File file;
     private final Ticker ticker;
+    private final boolean memoryMapped;
     private RandomAccessFile out;
+    // when memory mapped, this covers the header and the full capped size of the file, and all
+    // reads and writes (other than resizing) go through it instead of through the RandomAccessFile
+    //
+    // volatile so it can be read outside of the external synchronization (by the fsync thread)
+    private volatile @Nullable MappedByteBuffer mappedBuffer;
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
@@ -63,15 +80,22 @@ class CappedDatabaseOutputStream extends OutputStream {
     private long blockStartPosition;
 
     private final AtomicBoolean fsyncNeeded = new AtomicBoolean();
+
+    // held by the fsync thread while it fsyncs, and by resize() and close() while they unmap the
+    // buffer and swap out (or close) the underlying file, so that the fsync thread never touches an
+    // unmapped buffer (which can crash the JVM) or a closed file
+    private final Object fsyncLock = new Object();
+    @GuardedBy("fsyncLock")
+    private boolean closed;
     private final AtomicLong lastFsyncTick = new AtomicLong();
 
     private final FsyncRunnable fsyncScheduledRunnable;
 
     static CappedDatabaseOutputStream create(File file, int requestedSizeKb,
-            @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker)
-            throws IOException {
+            @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker,
+            boolean memoryMapped) throws IOException {
         CappedDatabaseOutputStream out =
-                new CappedDatabaseOutputStream(file, requestedSizeKb, ticker);
+                new CappedDatabaseOutputStream(file, requestedSizeKb, ticker, memoryMapped);
         if (scheduledExecutor != null) {
             out.fsyncScheduledRunnable.scheduleWithFixedDelay(scheduledExecutor,
                     FSYNC_INTERVAL_MILLIS, FSYNC_INTERVAL_MILLIS, MILLISECONDS);
@@ -79,10 +103,11 @@ class CappedDatabaseOutputStream extends OutputStream {
         return out;
     }
 
-    private CappedDatabaseOutputStream(File file, int requestedSizeKb, Ticker ticker)
-            throws IOException {
+    private CappedDatabaseOutputStream(File file, int requestedSizeKb, Ticker ticker,
+            boolean memoryMapped) throws IOException {
         this.file = file;
         this.ticker = ticker;
+        this.memoryMapped = memoryMapped;
         boolean newFile = !file.exists() || file.length() == 0;
         out = new RandomAccessFile(file, "rw");
         if (newFile) {
@@ -101,6 +126,9 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        if (memoryMapped) {
+            mappedBuffer = map(out, sizeBytes);
+        }
         smallestNonOverwrittenId =
                 calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex, sizeBytes);
         lastFsyncTick.set(ticker.read());
@@ -122,8 +150,8 @@ class CappedDatabaseOutputStream extends OutputStream {
     }
 
     long endBlock() throws IOException {
-        out.seek(HEADER_SKIP_BYTES + blockStartPosition);
-        out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
+        writeLong(HEADER_SKIP_BYTES + blockStartPosition,
+                currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
         fsyncNeeded.set(true);
         return blockStartIndex;
     }
@@ -156,13 +184,35 @@ class CappedDatabaseOutputStream extends OutputStream {
         return sizeKb;
     }
 
+    // this is ok to call outside of external synchronization
+    boolean isMemoryMapped() {
+        return mappedBuffer != null;
+    }
+
+    // the returned buffer must only be used under the external synchronization, and is null if not
+    // memory mapped (or if closed)
+    @Nullable
+    MappedByteBuffer getMappedBuffer() {
+        return mappedBuffer;
+    }
+
     long convertToFilePosition(long index) {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
 
     // perform resize in-place to avoid using extra disk space
     void resize(int newSizeKb) throws IOException {
+        synchronized (fsyncLock) {
+            resizeUnderFsyncLock(newSizeKb);
+        }
+    }
+
+    @GuardedBy("fsyncLock")
+    private void resizeUnderFsyncLock(int newSizeKb) throws IOException {
+        // need to unmap first, otherwise (at least on windows) the file cannot be deleted below
+        unmap();
         if (performEasyResize(newSizeKb)) {
+            remapIfNeeded();
             return;
         }
         long newSizeBytes = newSizeKb * 1024L;
@@ -201,13 +251,18 @@ class CappedDatabaseOutputStream extends OutputStream {
         sizeKb = newSizeKb;
         sizeBytes = newSizeBytes;
         out = new RandomAccessFile(file, "rw");
+        remapIfNeeded();
         updateSmallestNonOverwrittenId();
     }
 
     @Override
     public void close() throws IOException {
         fsyncScheduledRunnable.cancel();
-        out.close();
+        synchronized (fsyncLock) {
+            closed = true;
+            unmap();
+            out.close();
+        }
     }
 
     @Override
@@ -227,29 +282,75 @@ class CappedDatabaseOutputStream extends OutputStream {
                     "A single block cannot have more bytes than size of the capped database");
         }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
         if (len >= remaining) {
             // intentionally handling == case here
-            out.write(b, off, (int) remaining);
-            out.seek(HEADER_SKIP_BYTES);
-            out.write(b, (int) remaining, (int) (len - remaining));
+            write(HEADER_SKIP_BYTES + currPosition, b, off, (int) remaining);
+            write(HEADER_SKIP_BYTES, b, off + (int) remaining, (int) (len - remaining));
         } else {
-            out.write(b, off, len);
+            write(HEADER_SKIP_BYTES + currPosition, b, off, len);
         }
         currIndex += len;
-        out.seek(HEADER_CURR_INDEX_POS);
-        out.writeLong(currIndex);
+        writeLong(HEADER_CURR_INDEX_POS, currIndex);
         updateSmallestNonOverwrittenId();
     }
 
+    private void write(long filePosition, byte[] b, int off, int len) throws IOException {
+        MappedByteBuffer mappedBuffer = this.mappedBuffer;
+        if (mappedBuffer == null) {
+            out.seek(filePosition);
+            out.write(b, off, len);
+        } else {
+            mappedBuffer.position((int) filePosition);
+            mappedBuffer.put(b, off, len);
+        }
+    }
+
+    private void writeLong(long filePosition, long value) throws IOException {
+        MappedByteBuffer mappedBuffer = this.mappedBuffer;
+        if (mappedBuffer == null) {
+            out.seek(filePosition);
+            out.writeLong(value);
+        } else {
+            mappedBuffer.putLong((int) filePosition, value);
+        }
+    }
+
     private void fsyncIfNeeded() throws IOException {
         if (fsyncNeeded.getAndSet(false)) {
-            out.getFD().sync();
+            synchronized (fsyncLock) {
+                if (closed) {
+                    return;
+                }
+                // re-read under the lock, since resize() may have unmapped (and re-mapped) it
+                MappedByteBuffer mappedBuffer = this.mappedBuffer;
+                if (mappedBuffer == null) {
+                    out.getFD().sync();
+                } else {
+                    mappedBuffer.force();
+                }
+            }
             lastFsyncTick.set(ticker.read());
         }
     }
 
+    private void remapIfNeeded() throws IOException {
+        if (memoryMapped) {
+            mappedBuffer = map(out, sizeBytes);
+        }
+    }
+
+    @GuardedBy("fsyncLock")
+    private void unmap() {
+        MappedByteBuffer mappedBuffer = this.mappedBuffer;
+        if (mappedBuffer == null) {
+            return;
+        }
+        this.mappedBuffer = null;
+        mappedBuffer.force();
+        clean(mappedBuffer);
+    }
+
     private boolean performEasyResize(int newSizeKb) throws IOException {
         if (newSizeKb == sizeKb) {
             return true;
@@ -293,6 +394,49 @@ class CappedDatabaseOutputStream extends OutputStream {
         return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
     }
 
+    private static @Nullable MappedByteBuffer map(RandomAccessFile out, long sizeBytes)
+            throws IOException {
+        long mappedSize = HEADER_SKIP_BYTES + sizeBytes;
+        if (mappedSize > Integer.MAX_VALUE) {
+            logger.warn("capped database is too large to be memory mapped ({} bytes), falling back"
+                    + " to non-memory mapped access", mappedSize);
+            return null;
+        }
+        // this grows the file (sparsely on most file systems) to the full capped size up front
+        return out.getChannel().map(MapMode.READ_WRITE, 0, mappedSize);
+    }
+
+    // there is no public api to unmap a MappedByteBuffer, so this is best effort, otherwise the
+    // mapping is released when the buffer is garbage collected
+    //
+    // on Java 9+ this uses sun.misc.Unsafe.invokeCleaner(), since calling setAccessible() on the
+    // jdk internal cleaner() method logs an "illegal reflective access" warning to the monitored
+    // application's stderr (sun.misc is in the jdk.unsupported module, which is open)
+    private static void clean(MappedByteBuffer mappedBuffer) {
+        try {
+            if (JavaVersion.isGreaterThanOrEqualToJava9()) {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafeField.setAccessible(true);
+                Object unsafe = theUnsafeField.get(null);
+                Method invokeCleanerMethod =
+                        unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                invokeCleanerMethod.invoke(unsafe, mappedBuffer);
+                return;
+            }
+            Method cleanerMethod = mappedBuffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(mappedBuffer);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
     private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
             throws IOException {
         byte[] block = new byte[1024];
@@ -44,6 +44,7 @@ import org.h2.jdbc.JdbcConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.embedded.util.ReadConnectionPool.ReadConnection;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.Index;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -52,6 +53,7 @@ import org.glowroot.common2.repo.RepoAdmin.H2Table;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class DataSource {
@@ -64,12 +66,20 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // 0 (the default) disables the read connection pool, in which case all queries use the single
+    // connection, this is opt-in since H2 1.3 still executes statements one at a time
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readConnections", 0);
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private JdbcConnection connection;
+    // null for in-memory database since each connection to an unnamed in-memory database creates
+    // its own separate database
+    private final @Nullable ReadConnectionPool readConnectionPool;
     private volatile boolean closed;
 
     @SuppressWarnings("nullness:type.argument.type.incompatible")
@@ -84,6 +94,7 @@ public class DataSource {
             Maps.newConcurrentMap();
     private final Map</*@Untainted*/ String, ImmutableList<Index>> indexes =
             Maps.newConcurrentMap();
+    private final List<PartitionedTable> partitionedTables = Lists.newCopyOnWriteArrayList();
 
     private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
             CacheBuilder.newBuilder().weakValues()
@@ -99,13 +110,21 @@ public class DataSource {
     public DataSource() throws SQLException {
         dbFile = null;
         connection = createConnection(null);
+        readConnectionPool = null;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READ_CONNECTIONS);
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, int readConnections) throws SQLException {
         this.dbFile = dbFile;
         connection = createConnection(dbFile);
+        readConnectionPool =
+                readConnections > 0 ? new ReadConnectionPool(dbFile, readConnections) : null;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -119,9 +138,14 @@ public class DataSource {
                 return;
             }
             checkConnectionUnderLock();
-            execute("shutdown defrag");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+            closeReadConnectionsUnderLock();
+            try {
+                execute("shutdown defrag");
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                reopenReadConnectionsUnderLock();
+            }
         }
     }
 
@@ -134,9 +158,14 @@ public class DataSource {
                 return;
             }
             checkConnectionUnderLock();
-            execute("shutdown compact");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+            closeReadConnectionsUnderLock();
+            try {
+                execute("shutdown compact");
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                reopenReadConnectionsUnderLock();
+            }
         }
     }
 
@@ -164,12 +193,17 @@ public class DataSource {
             checkConnectionUnderLock();
             List<String> schemaVersionRows =
                     queryForStringList("select schema_version from schema_version");
-            connection.close();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+            closeReadConnectionsUnderLock();
+            try {
+                connection.close();
+                if (!dbFile.delete()) {
+                    throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+                }
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                reopenReadConnectionsUnderLock();
             }
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
             for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
                     .entrySet()) {
                 syncTable(entry.getKey(), entry.getValue());
@@ -178,6 +212,9 @@ public class DataSource {
                     .entrySet()) {
                 syncIndexes(entry.getKey(), entry.getValue());
             }
+            for (PartitionedTable partitionedTable : partitionedTables) {
+                partitionedTable.sync();
+            }
             for (String schemaVersionRow : schemaVersionRows) {
                 update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
             }
@@ -208,52 +245,79 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
+        ResultSetExtractor<Long> rse = new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
+                }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("no rows returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        };
+        if (closed) {
+            return 0;
+        }
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return query(prepareStatement(readConnection, sql), args, rse);
+            } finally {
+                releaseReadConnection(readConnection);
+            }
+        }
         synchronized (lock) {
             if (closed) {
                 return 0;
             }
             checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("no rows returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
-                }
-            });
+            return query(prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS), args, rse);
+            // don't need to close statement since they are all cached and used under lock
         }
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
+        ResultSetExtractor</*@Nullable*/ Long> rse =
+                new ResultSetExtractor</*@Nullable*/ Long>() {
+                    @Override
+                    public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                        if (!resultSet.next()) {
+                            return null;
+                        }
+                        long val = resultSet.getLong(1);
+                        Long value = resultSet.wasNull() ? null : val;
+                        if (resultSet.next()) {
+                            logger.warn("more than one row returned: {}", sql);
+                        }
+                        return value;
+                    }
+                };
+        if (closed) {
+            return null;
+        }
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return query(prepareStatement(readConnection, sql), args, rse);
+            } finally {
+                releaseReadConnection(readConnection);
+            }
+        }
         synchronized (lock) {
             if (closed) {
                 return null;
             }
             checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
-                }
-            });
+            return query(prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS), args, rse);
+            // don't need to close statement since they are all cached and used under lock
         }
     }
 
@@ -273,23 +337,24 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
+        if (closed) {
+            return jdbcQuery.valueIfDataSourceClosed();
+        }
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return query(prepareStatement(readConnection, jdbcQuery.getSql()), jdbcQuery);
+            } finally {
+                releaseReadConnection(readConnection);
+            }
+        }
         synchronized (lock) {
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
             checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            return query(prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS),
+                    jdbcQuery);
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -308,27 +373,24 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
+        if (closed) {
+            return ImmutableList.of();
+        }
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return query(prepareStatement(readConnection, jdbcQuery.getSql()), jdbcQuery);
+            } finally {
+                releaseReadConnection(readConnection);
+            }
+        }
         synchronized (lock) {
             if (closed) {
                 return ImmutableList.of();
             }
             checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
-                }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            return query(prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS),
+                    jdbcQuery);
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -439,10 +501,48 @@ public class DataSource {
         }
     }
 
+    // see PartitionedTable, the returned table should be used for inserts and retention, while
+    // queries can continue to use the table name directly
+    public PartitionedTable syncPartitionedTable(@Untainted String tableName, List<Column> columns,
+            ImmutableList<Index> indexes, long partitionMillis) throws SQLException {
+        return syncPartitionedTable(tableName, columns, indexes, partitionMillis,
+                PartitionedTable.PARTITIONED_TABLES);
+    }
+
+    @VisibleForTesting
+    PartitionedTable syncPartitionedTable(@Untainted String tableName, List<Column> columns,
+            ImmutableList<Index> indexes, long partitionMillis, boolean partitioned)
+            throws SQLException {
+        PartitionedTable partitionedTable = new PartitionedTable(this, lock, tableName, columns,
+                indexes, partitionMillis, partitioned);
+        partitionedTable.sync();
+        partitionedTables.add(partitionedTable);
+        return partitionedTable;
+    }
+
+    // partitions are not registered in tables/indexes since they are re-created (if needed) by
+    // PartitionedTable.sync() after deleting the database
+    void syncPartition(@Untainted String partitionName, List<Column> columns,
+            ImmutableList<Index> indexes) throws SQLException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            checkConnectionUnderLock();
+            Schemas.syncTable(partitionName, columns, connection);
+            Schemas.syncIndexes(partitionName, indexes, connection);
+        }
+    }
+
     long getDbFileSize() {
         return dbFile == null ? 0 : dbFile.length();
     }
 
+    @Nullable
+    ReadConnectionPool getReadConnectionPool() {
+        return readConnectionPool;
+    }
+
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
@@ -454,6 +554,16 @@ public class DataSource {
         }
     }
 
+    boolean viewExists(String viewName) throws SQLException {
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            checkConnectionUnderLock();
+            return Schemas.viewExists(viewName, connection);
+        }
+    }
+
     // helpful for upgrading schema
     public boolean columnExists(String tableName, String columnName) throws SQLException {
         synchronized (lock) {
@@ -512,6 +622,7 @@ public class DataSource {
                 return;
             }
             closed = true;
+            closeReadConnectionsUnderLock();
             connection.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
@@ -531,12 +642,7 @@ public class DataSource {
             int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
-            // setQueryTimeout() affects all statements of this connection (at least with h2)
-            if (suppressQueryTimeout.get()) {
-                preparedStatement.setQueryTimeout(0);
-            } else {
-                preparedStatement.setQueryTimeout(queryTimeoutSeconds);
-            }
+            setQueryTimeout(preparedStatement, queryTimeoutSeconds);
             return preparedStatement;
         } catch (ExecutionException e) {
             Throwable cause = e.getCause();
@@ -548,16 +654,86 @@ public class DataSource {
         }
     }
 
+    private PreparedStatement prepareStatement(ReadConnection readConnection,
+            @Untainted String sql) throws SQLException {
+        PreparedStatement preparedStatement = readConnection.prepareStatement(sql);
+        setQueryTimeout(preparedStatement, QUERY_TIMEOUT_SECONDS);
+        return preparedStatement;
+    }
+
+    private void setQueryTimeout(PreparedStatement preparedStatement, int queryTimeoutSeconds)
+            throws SQLException {
+        // setQueryTimeout() affects all statements of this connection (at least with h2)
+        if (suppressQueryTimeout.get()) {
+            preparedStatement.setQueryTimeout(0);
+        } else {
+            preparedStatement.setQueryTimeout(queryTimeoutSeconds);
+        }
+    }
+
+    // returns null if there is no read connection pool, or if no read connection became available
+    // in time, in which case the single connection should be used (under lock)
+    private @Nullable ReadConnection borrowReadConnection() throws SQLException {
+        return readConnectionPool == null ? null : readConnectionPool.borrow();
+    }
+
+    private void releaseReadConnection(ReadConnection readConnection) {
+        checkNotNull(readConnectionPool).release(readConnection);
+    }
+
+    @GuardedBy("lock")
+    private void closeReadConnectionsUnderLock() {
+        if (readConnectionPool != null) {
+            readConnectionPool.closeAll(SECONDS.toMillis(QUERY_TIMEOUT_SECONDS));
+        }
+    }
+
     @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS);
+    private void reopenReadConnectionsUnderLock() {
+        if (readConnectionPool != null) {
+            readConnectionPool.reopen();
+        }
+    }
+
+    private static <T extends /*@Nullable*/ Object> T query(PreparedStatement preparedStatement,
+            Object[] args, ResultSetExtractor<T> rse) throws SQLException {
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
         ResultSet resultSet = preparedStatement.executeQuery();
         return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
+    }
+
+    private static <T> T query(PreparedStatement preparedStatement, JdbcQuery<T> jdbcQuery)
+            throws Exception {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return jdbcQuery.processResultSet(resultSet);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static <T extends /*@NonNull*/ Object> List<T> query(
+            PreparedStatement preparedStatement, JdbcRowQuery<T> jdbcQuery) throws SQLException {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            List<T> mappedRows = Lists.newArrayList();
+            while (resultSet.next()) {
+                mappedRows.add(jdbcQuery.mapRow(resultSet));
+            }
+            return ImmutableList.copyOf(mappedRows);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
     }
 
     private List<H2Table> analyzeH2DiskSpaceUnderSuppressQueryTimeout() throws Exception {
@@ -580,8 +756,7 @@ public class DataSource {
         return tables;
     }
 
-    @GuardedBy("lock")
-    private List</*@Untainted*/ String> getAllTableNames() throws SQLException {
+    List</*@Untainted*/ String> getAllTableNames() throws SQLException {
         synchronized (lock) {
             if (closed) {
                 return ImmutableList.of();
@@ -607,7 +782,7 @@ public class DataSource {
         }
     }
 
-    private static JdbcConnection createConnection(@Nullable File dbFile) throws SQLException {
+    static JdbcConnection createConnection(@Nullable File dbFile) throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -702,6 +877,10 @@ public class DataSource {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
+                    if (readConnectionPool != null) {
+                        // don't hold up jvm shutdown for long on an in-flight UI query
+                        readConnectionPool.closeAll(1000);
+                    }
                     connection.close();
                 }
             } catch (SQLException e) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -27,4 +27,35 @@ public class H2DatabaseStats implements H2DatabaseStatsMXBean {
     public long getFileSize() {
         return dataSource.getDbFileSize();
     }
+
+    @Override
+    public int getReadConnectionPoolSize() {
+        ReadConnectionPool readConnectionPool = dataSource.getReadConnectionPool();
+        return readConnectionPool == null ? 0 : readConnectionPool.getSize();
+    }
+
+    @Override
+    public long getReadConnectionBorrowCount() {
+        ReadConnectionPool readConnectionPool = dataSource.getReadConnectionPool();
+        return readConnectionPool == null ? 0 : readConnectionPool.getBorrowCount();
+    }
+
+    @Override
+    public long getReadConnectionWaitCount() {
+        ReadConnectionPool readConnectionPool = dataSource.getReadConnectionPool();
+        return readConnectionPool == null ? 0 : readConnectionPool.getWaitCount();
+    }
+
+    @Override
+    public double getReadConnectionTotalWaitMillis() {
+        ReadConnectionPool readConnectionPool = dataSource.getReadConnectionPool();
+        return readConnectionPool == null ? 0
+                : readConnectionPool.getTotalWaitNanos() / 1000000.0;
+    }
+
+    @Override
+    public long getReadConnectionFallbackCount() {
+        ReadConnectionPool readConnectionPool = dataSource.getReadConnectionPool();
+        return readConnectionPool == null ? 0 : readConnectionPool.getFallbackCount();
+    }
 }
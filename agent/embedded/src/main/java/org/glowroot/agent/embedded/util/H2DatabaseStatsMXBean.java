@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,4 +18,17 @@ package org.glowroot.agent.embedded.util;
 public interface H2DatabaseStatsMXBean {
 
     long getFileSize();
+
+    int getReadConnectionPoolSize();
+
+    long getReadConnectionBorrowCount();
+
+    // number of borrows that had to wait for a read connection to become available
+    long getReadConnectionWaitCount();
+
+    double getReadConnectionTotalWaitMillis();
+
+    // number of queries that fell back to the single shared connection after waiting too long for
+    // a read connection
+    long getReadConnectionFallbackCount();
 }
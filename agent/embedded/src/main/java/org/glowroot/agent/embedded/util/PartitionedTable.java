@@ -0,0 +1,283 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.tainting.qual.Untainted;
+
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// table (with a capture_time column) that is optionally split into one physical table per capture
+// time range, behind a "union all" view with the original table name, so that queries do not need
+// to know about the partitions (h2 pushes the where clause down into each branch of the view and
+// uses each partition's indexes), and so that expiring old data is a cheap drop table instead of
+// a long running delete
+//
+// partition "<table>_p<end>" holds the rows where end - partitionMillis < capture_time <= end,
+// which matches the (non-inclusive, inclusive] ranges used by rollups
+public class PartitionedTable {
+
+    static final boolean PARTITIONED_TABLES =
+            Boolean.getBoolean("glowroot.internal.h2.partitionedTables");
+
+    // this keeps the number of partitions small even for coarse rollup levels that are retained
+    // for a long time, e.g. one partition per day for 1 minute rollups, and one partition per 240
+    // days for 4 hour rollups
+    private static final int INTERVALS_PER_PARTITION = 1440;
+
+    private final DataSource dataSource;
+    private final Object lock;
+    private final @Untainted String tableName;
+    private final ImmutableList<Column> columns;
+    // explicit column list is used (instead of "*") when copying between tables and in the view,
+    // since the column order of partitions created by older versions can differ
+    private final @Untainted String columnList;
+    private final ImmutableList<Index> indexes;
+    private final long partitionMillis;
+    private final boolean partitioned;
+
+    // end capture time of each existing partition
+    private final NavigableSet<Long> partitions = new ConcurrentSkipListSet<Long>();
+
+    PartitionedTable(DataSource dataSource, Object lock, @Untainted String tableName,
+            List<Column> columns, ImmutableList<Index> indexes, long partitionMillis,
+            boolean partitioned) {
+        for (Index index : indexes) {
+            // index names need to be unique across the database, so partition index names are
+            // derived from the table name
+            checkArgument(index.name().startsWith(tableName),
+                    "index name must start with the table name: %s", index.name());
+        }
+        this.dataSource = dataSource;
+        this.lock = lock;
+        this.tableName = tableName;
+        this.columns = ImmutableList.copyOf(columns);
+        List<String> columnNames = Lists.newArrayList();
+        for (Column column : columns) {
+            columnNames.add(column.name());
+        }
+        columnList = castUntainted(Joiner.on(", ").join(columnNames));
+        this.indexes = indexes;
+        this.partitionMillis = partitionMillis;
+        this.partitioned = partitioned;
+    }
+
+    public static long getPartitionMillis(long rollupIntervalMillis) {
+        return Math.max(DAYS.toMillis(1), rollupIntervalMillis * INTERVALS_PER_PARTITION);
+    }
+
+    public @Untainted String getTableName() {
+        return tableName;
+    }
+
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    // returns the largest capture time that is stored in the same partition as the given capture
+    // time (or Long.MAX_VALUE if the table is not partitioned)
+    public long getPartitionEnd(long captureTime) {
+        if (!partitioned) {
+            return Long.MAX_VALUE;
+        }
+        return ((captureTime - 1) / partitionMillis + 1) * partitionMillis;
+    }
+
+    // returns the name of the physical table that rows with the given capture time need to be
+    // inserted into, creating the partition if needed
+    public @Untainted String getInsertTableName(long captureTime) throws SQLException {
+        if (!partitioned) {
+            return tableName;
+        }
+        long partitionEnd = getPartitionEnd(captureTime);
+        if (!partitions.contains(partitionEnd)) {
+            synchronized (lock) {
+                if (!partitions.contains(partitionEnd)) {
+                    addPartitionUnderLock(partitionEnd);
+                    updateViewUnderLock();
+                }
+            }
+        }
+        return getPartitionName(partitionEnd);
+    }
+
+    public void deleteBefore(long captureTime) throws SQLException {
+        if (!partitioned) {
+            dataSource.deleteBefore(tableName, captureTime);
+            return;
+        }
+        synchronized (lock) {
+            List<Long> expiredPartitions =
+                    ImmutableList.copyOf(partitions.headSet(captureTime, false));
+            if (expiredPartitions.isEmpty()) {
+                return;
+            }
+            partitions.removeAll(expiredPartitions);
+            if (partitions.isEmpty()) {
+                // the view needs at least one table
+                addPartitionUnderLock(getPartitionEnd(captureTime));
+            }
+            // view needs to be updated before dropping the tables that it references
+            updateViewUnderLock();
+            for (long partitionEnd : expiredPartitions) {
+                dataSource.execute("drop table " + getPartitionName(partitionEnd));
+            }
+        }
+    }
+
+    // a view cannot be deleted from, so this deletes from each partition, which is only fast when
+    // there is an index on the where clause columns
+    public void delete(@Untainted String whereClause, @Nullable Object... args)
+            throws SQLException {
+        if (!partitioned) {
+            dataSource.update("delete from " + tableName + " where " + whereClause, args);
+            return;
+        }
+        // lock is needed so that partitions are not dropped concurrently by deleteBefore()
+        synchronized (lock) {
+            for (long partitionEnd : partitions) {
+                dataSource.update("delete from " + getPartitionName(partitionEnd) + " where "
+                        + whereClause, args);
+            }
+        }
+    }
+
+    // called by DataSource, also after deleting the database
+    void sync() throws SQLException {
+        synchronized (lock) {
+            partitions.clear();
+            if (partitioned) {
+                syncPartitionedUnderLock();
+            } else {
+                syncNonPartitionedUnderLock();
+            }
+        }
+    }
+
+    private void syncPartitionedUnderLock() throws SQLException {
+        if (!dataSource.viewExists(tableName) && dataSource.tableExists(tableName)) {
+            // partitioning was just enabled, so the existing table becomes a single (larger than
+            // usual) partition, which is dropped once all of its data has expired
+            Long maxCaptureTime = dataSource
+                    .queryForOptionalLong("select max(capture_time) from " + tableName);
+            if (maxCaptureTime == null) {
+                dataSource.execute("drop table " + tableName);
+            } else {
+                @Untainted
+                String partitionName = getPartitionName(getPartitionEnd(maxCaptureTime));
+                dataSource.execute("alter table " + tableName + " rename to " + partitionName);
+                for (Index index : indexes) {
+                    dataSource.execute("alter index " + index.name() + " rename to "
+                            + getPartitionIndexName(partitionName, index));
+                }
+            }
+        }
+        String prefix = (tableName + "_p").toUpperCase(Locale.ENGLISH);
+        for (String name : dataSource.getAllTableNames()) {
+            if (!name.toUpperCase(Locale.ENGLISH).startsWith(prefix)) {
+                continue;
+            }
+            Long partitionEnd = Longs.tryParse(name.substring(prefix.length()));
+            if (partitionEnd != null) {
+                addPartitionUnderLock(partitionEnd);
+            }
+        }
+        if (partitions.isEmpty()) {
+            // the view needs at least one table
+            addPartitionUnderLock(getPartitionEnd(System.currentTimeMillis()));
+        }
+        updateViewUnderLock();
+    }
+
+    private void syncNonPartitionedUnderLock() throws SQLException {
+        List</*@Untainted*/ String> partitionNames = Lists.newArrayList();
+        if (dataSource.viewExists(tableName)) {
+            // partitioning was just disabled, so the partitions are merged back into one table
+            String prefix = (tableName + "_p").toUpperCase(Locale.ENGLISH);
+            for (String name : dataSource.getAllTableNames()) {
+                if (name.toUpperCase(Locale.ENGLISH).startsWith(prefix)
+                        && Longs.tryParse(name.substring(prefix.length())) != null) {
+                    partitionNames.add(castUntainted(name.toLowerCase(Locale.ENGLISH)));
+                }
+            }
+            dataSource.execute("drop view " + tableName);
+        }
+        dataSource.syncTable(tableName, columns);
+        for (String partitionName : partitionNames) {
+            dataSource.execute("insert into " + tableName + " (" + columnList + ") select "
+                    + columnList + " from " + partitionName);
+            dataSource.execute("drop table " + partitionName);
+        }
+        // indexes are created after copying the data over since that is faster
+        dataSource.syncIndexes(tableName, indexes);
+    }
+
+    private void addPartitionUnderLock(long partitionEnd) throws SQLException {
+        @Untainted
+        String partitionName = getPartitionName(partitionEnd);
+        List<Index> partitionIndexes = Lists.newArrayList();
+        for (Index index : indexes) {
+            partitionIndexes.add(ImmutableIndex.of(getPartitionIndexName(partitionName, index),
+                    index.columns()));
+        }
+        dataSource.syncPartition(partitionName, columns,
+                ImmutableList.copyOf(partitionIndexes));
+        partitions.add(partitionEnd);
+    }
+
+    private void updateViewUnderLock() throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        sql.append("create or replace view ");
+        sql.append(tableName);
+        sql.append(" as ");
+        boolean first = true;
+        for (long partitionEnd : partitions) {
+            if (!first) {
+                sql.append(" union all ");
+            }
+            sql.append("select ");
+            sql.append(columnList);
+            sql.append(" from ");
+            sql.append(getPartitionName(partitionEnd));
+            first = false;
+        }
+        dataSource.execute(castUntainted(sql.toString()));
+    }
+
+    private @Untainted String getPartitionName(long partitionEnd) {
+        return castUntainted(tableName + "_p" + partitionEnd);
+    }
+
+    private @Untainted String getPartitionIndexName(@Untainted String partitionName,
+            Index index) {
+        return castUntainted(partitionName + index.name().substring(tableName.length()));
+    }
+}
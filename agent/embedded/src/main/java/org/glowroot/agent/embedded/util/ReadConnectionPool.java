@@ -0,0 +1,253 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.h2.jdbc.JdbcConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// small pool of additional connections used for queries, so that result set processing for slow
+// UI queries (e.g. trace point scans) does not hold up the single connection used for inserts
+//
+// connections are created lazily, and are re-created after the database has been shut down
+// underneath them (defrag, compact, delete all, or internally due to OutOfMemoryError)
+//
+// h2 1.3.x still serializes statement execution per database, so this only helps the writer when
+// result set processing is slow, see DataSourceReadConnectionBenchmark (in agent/benchmarks)
+class ReadConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadConnectionPool.class);
+
+    // max time to wait for a read connection before falling back to the single shared connection,
+    // which also protects against a thread that already holds a read connection (e.g. running a
+    // nested query while processing a result set) waiting on itself
+    private static final long MAX_WAIT_NANOS = SECONDS.toNanos(1);
+
+    private static final int PREPARED_STATEMENT_CACHE_SIZE = 100;
+
+    private final File dbFile;
+    private final int size;
+
+    private final Semaphore permits;
+    private final Queue<ReadConnection> idleConnections =
+            new ConcurrentLinkedQueue<ReadConnection>();
+
+    private volatile int generation;
+
+    // set while the database is shut down (between closeAll() and reopen()), during which time
+    // callers fall back to the single shared connection, which blocks on the data source lock
+    private volatile boolean closed;
+
+    // permits held from closeAll() until reopen(), only accessed under the data source lock
+    private int heldPermits;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    ReadConnectionPool(File dbFile, int size) {
+        this.dbFile = dbFile;
+        this.size = size;
+        permits = new Semaphore(size);
+    }
+
+    // returns null if no read connection became available in time, in which case the caller
+    // should use the single shared connection
+    @Nullable
+    ReadConnection borrow() throws SQLException {
+        if (!permits.tryAcquire()) {
+            long startTick = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(MAX_WAIT_NANOS, NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            waitCount.incrementAndGet();
+            totalWaitNanos.addAndGet(System.nanoTime() - startTick);
+            if (!acquired) {
+                fallbackCount.incrementAndGet();
+                return null;
+            }
+        }
+        if (closed) {
+            // e.g. in-flight query released its permit after closeAll() timed out waiting for it
+            permits.release();
+            fallbackCount.incrementAndGet();
+            return null;
+        }
+        borrowCount.incrementAndGet();
+        ReadConnection readConnection = idleConnections.poll();
+        if (readConnection != null && readConnection.isUsable(generation)) {
+            return readConnection;
+        }
+        if (readConnection != null) {
+            readConnection.close();
+        }
+        try {
+            return new ReadConnection(DataSource.createConnection(dbFile), generation);
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(ReadConnection readConnection) {
+        if (readConnection.isUsable(generation)) {
+            idleConnections.add(readConnection);
+        } else {
+            readConnection.close();
+        }
+        permits.release();
+    }
+
+    // called under the data source lock before the database is shut down (or deleted), since the
+    // database is not closed while any connection to it is still open
+    //
+    // permits are held until reopen() so that no new read connections are opened to the database
+    // while it is being shut down
+    void closeAll(long maxWaitMillis) {
+        closed = true;
+        try {
+            // wait for in-flight queries to complete
+            if (permits.tryAcquire(size, maxWaitMillis, MILLISECONDS)) {
+                heldPermits += size;
+            } else {
+                logger.warn("timed out waiting for in-flight queries to complete");
+                heldPermits += permits.drainPermits();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            heldPermits += permits.drainPermits();
+        }
+        // connections that are still in use are closed when they are released
+        generation++;
+        ReadConnection readConnection;
+        while ((readConnection = idleConnections.poll()) != null) {
+            readConnection.close();
+        }
+    }
+
+    // called under the data source lock after the database has been re-opened
+    void reopen() {
+        closed = false;
+        permits.release(heldPermits);
+        heldPermits = 0;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    long getWaitCount() {
+        return waitCount.get();
+    }
+
+    long getTotalWaitNanos() {
+        return totalWaitNanos.get();
+    }
+
+    long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    static class ReadConnection {
+
+        private final JdbcConnection connection;
+        private final int generation;
+
+        // only accessed by the thread that has borrowed the connection
+        private final Map<String, PreparedStatement> preparedStatements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() <= PREPARED_STATEMENT_CACHE_SIZE) {
+                            return false;
+                        }
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                };
+
+        private ReadConnection(JdbcConnection connection, int generation) {
+            this.connection = connection;
+            this.generation = generation;
+        }
+
+        PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+            PreparedStatement preparedStatement = preparedStatements.get(sql);
+            if (preparedStatement == null) {
+                preparedStatement = connection.prepareStatement(sql);
+                preparedStatements.put(sql, preparedStatement);
+            }
+            return preparedStatement;
+        }
+
+        private boolean isUsable(int currentGeneration) {
+            // power off count is -1 when the connection was closed internally due to
+            // OutOfMemoryError (see DataSource.checkConnectionUnderLock())
+            try {
+                return generation == currentGeneration && !connection.isClosed()
+                        && connection.getPowerOffCount() != -1;
+            } catch (SQLException e) {
+                logger.debug(e.getMessage(), e);
+                return false;
+            }
+        }
+
+        private void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+
+        private static void closeQuietly(PreparedStatement preparedStatement) {
+            try {
+                preparedStatement.close();
+            } catch (SQLException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+}
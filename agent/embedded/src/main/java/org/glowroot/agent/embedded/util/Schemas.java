@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -110,6 +110,21 @@ public class Schemas {
         }
     }
 
+    static boolean viewExists(String viewName, Connection connection) throws SQLException {
+        logger.debug("viewExists(): viewName={}", viewName);
+        DatabaseMetaData metaData = connection.getMetaData();
+        ResultSet resultSet = metaData.getTables(null, null, convert(metaData, viewName),
+                new String[] {"VIEW"});
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return resultSet.next();
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
     // useful for upgrades
     static boolean columnExists(String tableName, String columnName, Connection connection)
             throws SQLException {
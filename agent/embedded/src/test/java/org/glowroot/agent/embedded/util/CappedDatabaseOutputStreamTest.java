@@ -20,20 +20,35 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.util.Collection;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+@RunWith(value = Parameterized.class)
 public class CappedDatabaseOutputStreamTest {
 
     private static final int BLOCK_HEADER_SIZE = 8;
 
+    @Parameter
+    public boolean memoryMapped;
+
+    @Parameters(name = "memoryMapped={0}")
+    public static Collection<Boolean> data() {
+        return ImmutableList.of(false, true);
+    }
+
     private File tempFile;
     private ScheduledExecutorService scheduledExecutor;
     private CappedDatabaseOutputStream cappedOut;
@@ -44,7 +59,7 @@ public class CappedDatabaseOutputStreamTest {
         tempFile = File.createTempFile("glowroot-test-", ".capped.txt");
         scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
         cappedOut = CappedDatabaseOutputStream.create(tempFile, 10, scheduledExecutor,
-                Ticker.systemTicker());
+                Ticker.systemTicker(), memoryMapped);
         in = new RandomAccessFile(tempFile, "r");
     }
 
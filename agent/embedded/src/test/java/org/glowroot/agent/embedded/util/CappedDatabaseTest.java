@@ -18,23 +18,38 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Collection;
 import java.util.Random;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
 
 import static com.google.common.base.Charsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 
+@RunWith(value = Parameterized.class)
 public class CappedDatabaseTest {
 
+    @Parameter
+    public boolean memoryMapped;
+
+    @Parameters(name = "memoryMapped={0}")
+    public static Collection<Boolean> data() {
+        return ImmutableList.of(false, true);
+    }
+
     private File tempFile;
     private ScheduledExecutorService scheduledExecutor;
     private CappedDatabase cappedDatabase;
@@ -46,7 +61,8 @@ public class CappedDatabaseTest {
     public void onBefore() throws IOException {
         tempFile = File.createTempFile("glowroot-test-", ".capped.db");
         scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
-        cappedDatabase = new CappedDatabase(tempFile, 1, scheduledExecutor, Ticker.systemTicker());
+        cappedDatabase = new CappedDatabase(tempFile, 1, scheduledExecutor, Ticker.systemTicker(),
+                memoryMapped);
     }
 
     @After
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,13 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
 import java.sql.SQLException;
 
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +96,52 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void testReadConnectionsAfterCompact() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        DataSource dataSource = new DataSource(dbFile, 2);
+        try {
+            dataSource.execute("create table x (y bigint)");
+            dataSource.update("insert into x (y) values (?)", 1);
+            // when
+            long before = dataSource.queryForLong("select y from x");
+            dataSource.compact();
+            dataSource.update("insert into x (y) values (?)", 2);
+            long after = dataSource.queryForLong("select sum(y) from x");
+            // then
+            assertThat(before).isEqualTo(1);
+            assertThat(after).isEqualTo(3);
+            ReadConnectionPool readConnectionPool = dataSource.getReadConnectionPool();
+            assertThat(readConnectionPool).isNotNull();
+            assertThat(readConnectionPool.getBorrowCount()).isEqualTo(2);
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void testNoReadConnectionsWhileClosed() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        DataSource dataSource = new DataSource(dbFile, 1);
+        ReadConnectionPool readConnectionPool = dataSource.getReadConnectionPool();
+        try {
+            // when
+            readConnectionPool.closeAll(0);
+            ReadConnectionPool.ReadConnection whileClosed = readConnectionPool.borrow();
+            readConnectionPool.reopen();
+            ReadConnectionPool.ReadConnection afterReopen = readConnectionPool.borrow();
+            // then
+            assertThat(whileClosed).isNull();
+            assertThat(afterReopen).isNotNull();
+            assertThat(readConnectionPool.getFallbackCount()).isEqualTo(1);
+            readConnectionPool.release(afterReopen);
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
 }
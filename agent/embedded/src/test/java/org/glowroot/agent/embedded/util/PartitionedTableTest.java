@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartitionedTableTest {
+
+    private static final ImmutableList<Column> COLUMNS = ImmutableList.<Column>of(
+            ImmutableColumn.of("name", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT));
+
+    private static final ImmutableList<Index> INDEXES = ImmutableList.<Index>of(
+            ImmutableIndex.of("tbl_idx", ImmutableList.of("capture_time", "name")));
+
+    private File dbFile;
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dataSource = new DataSource(dbFile);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+        dbFile.delete();
+    }
+
+    @Test
+    public void shouldQueryAcrossPartitions() throws Exception {
+        // given
+        PartitionedTable table =
+                dataSource.syncPartitionedTable("tbl", COLUMNS, INDEXES, 1000, true);
+
+        // when
+        insert(table, "a", 500);
+        insert(table, "b", 1000);
+        insert(table, "c", 1001);
+        insert(table, "d", 2500);
+
+        // then
+        assertThat(table.getInsertTableName(1000)).isEqualTo("tbl_p1000");
+        assertThat(table.getInsertTableName(1001)).isEqualTo("tbl_p2000");
+        assertThat(dataSource.queryForLong("select count(*) from tbl")).isEqualTo(4);
+        assertThat(dataSource.queryForLong(
+                "select count(*) from tbl where capture_time > ? and capture_time <= ?", 500,
+                2000)).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldDropExpiredPartitions() throws Exception {
+        // given
+        PartitionedTable table =
+                dataSource.syncPartitionedTable("tbl", COLUMNS, INDEXES, 1000, true);
+        insert(table, "a", 500);
+        insert(table, "b", 1500);
+        insert(table, "c", 2500);
+
+        // when
+        table.deleteBefore(1900);
+
+        // then
+        assertThat(dataSource.queryForStringList("select name from tbl order by name"))
+                .containsExactly("b", "c");
+        assertThat(dataSource.tableExists("tbl_p1000")).isFalse();
+    }
+
+    @Test
+    public void shouldDeleteFromAllPartitions() throws Exception {
+        // given
+        PartitionedTable table =
+                dataSource.syncPartitionedTable("tbl", COLUMNS, INDEXES, 1000, true);
+        insert(table, "a", 500);
+        insert(table, "a", 1500);
+        insert(table, "b", 1500);
+
+        // when
+        table.delete("name = ?", "a");
+
+        // then
+        assertThat(dataSource.queryForStringList("select name from tbl order by name"))
+                .containsExactly("b");
+    }
+
+    @Test
+    public void shouldMigrateBetweenPartitionedAndNonPartitioned() throws Exception {
+        // given
+        PartitionedTable table =
+                dataSource.syncPartitionedTable("tbl", COLUMNS, INDEXES, 1000, false);
+        insert(table, "a", 500);
+        insert(table, "b", 1500);
+
+        // when
+        table = dataSource.syncPartitionedTable("tbl", COLUMNS, INDEXES, 1000, true);
+        insert(table, "c", 2500);
+
+        // then
+        assertThat(dataSource.queryForStringList("select name from tbl order by name"))
+                .containsExactly("a", "b", "c");
+        assertThat(dataSource.tableExists("tbl_p2000")).isTrue();
+
+        // when
+        table = dataSource.syncPartitionedTable("tbl", COLUMNS, INDEXES, 1000, false);
+
+        // then
+        assertThat(dataSource.queryForStringList("select name from tbl order by name"))
+                .containsExactly("a", "b", "c");
+        assertThat(dataSource.tableExists("tbl_p2000")).isFalse();
+        assertThat(table.getInsertTableName(2500)).isEqualTo("tbl");
+    }
+
+    private void insert(PartitionedTable table, String name, long captureTime)
+            throws Exception {
+        dataSource.update("insert into " + table.getInsertTableName(captureTime)
+                + " (name, capture_time) values (?, ?)", name, captureTime);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -40,6 +40,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.Constants;
+import org.glowroot.common.model.TraceStringTables;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceImplBase;
@@ -59,6 +60,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse.Mes
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveRequest;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.Proto;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Charsets.UTF_8;
@@ -198,6 +200,8 @@ class GrpcServerWrapper {
 
                 private @MonotonicNonNull String traceId;
                 private List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+                private List<Proto.StackTraceElement> sharedLocationStackTraceElements =
+                        Lists.newArrayList();
                 private List<Trace.Entry> entries = Lists.newArrayList();
                 private List<Aggregate.Query> queries = Lists.newArrayList();
                 private @MonotonicNonNull Profile mainThreadProfile;
@@ -245,8 +249,15 @@ class GrpcServerWrapper {
                                     .setFullText(resolveFullText(value.getSharedQueryText()))
                                     .build());
                             break;
+                        case SHARED_LOCATION_STACK_TRACE_ELEMENT:
+                            sharedLocationStackTraceElements
+                                    .add(value.getSharedLocationStackTraceElement());
+                            break;
                         case ENTRY:
-                            entries.add(value.getEntry());
+                            // shared location stack trace elements are sent before the entries
+                            // that refer to them
+                            entries.add(TraceStringTables.decodeLocation(value.getEntry(),
+                                    sharedLocationStackTraceElements));
                             break;
                         case QUERIES:
                             queries.addAll(value.getQueries().getQueryList());
@@ -272,7 +283,7 @@ class GrpcServerWrapper {
                         final StreamObserver<EmptyMessage> responseObserver) {
                     Trace.Builder trace = Trace.newBuilder()
                             .setId(checkNotNull(traceId))
-                            .setHeader(checkNotNull(header))
+                            .setHeader(TraceStringTables.decodeTimerNames(checkNotNull(header)))
                             .addAllSharedQueryText(sharedQueryTexts)
                             .addAllEntry(entries)
                             .addAllQuery(queries);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -50,6 +50,8 @@ public class ConnectionAspect {
             configService.getBooleanProperty("captureConnectionLifecycleTraceEntries");
     private static final BooleanProperty captureTransactionLifecycleTraceEntries =
             configService.getBooleanProperty("captureTransactionLifecycleTraceEntries");
+    private static final BooleanProperty normalizeSqlLiterals =
+            configService.getBooleanProperty("normalizeSqlLiterals");
 
     // ===================== Statement Preparation =====================
 
@@ -74,7 +76,8 @@ public class ConnectionAspect {
                 // seems nothing sensible to do here other than ignore
                 return;
             }
-            preparedStatement.glowroot$setStatementMirror(new PreparedStatementMirror(sql));
+            preparedStatement.glowroot$setStatementMirror(
+                    new PreparedStatementMirror(sql, normalizeSqlLiterals.value()));
         }
         @OnAfter
         public static void onAfter(@BindTraveler @Nullable Timer timer) {
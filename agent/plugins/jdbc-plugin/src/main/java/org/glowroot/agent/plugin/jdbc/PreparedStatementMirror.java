@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -31,6 +31,9 @@ class PreparedStatementMirror extends StatementMirror {
     private static final int PARAMETERS_INITIAL_CAPACITY = 4;
 
     private final String sql;
+    // IN lists are collapsed once here instead of on every execution (inline literals are left
+    // alone for prepared statements, see SqlNormalizer)
+    private @Nullable String normalizedSql;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
     private BindParameterList parameters;
@@ -40,8 +43,11 @@ class PreparedStatementMirror extends StatementMirror {
     private @Nullable Collection<BindParameterList> batchedParameters;
     private int batchSize;
 
-    PreparedStatementMirror(String sql) {
+    PreparedStatementMirror(String sql, boolean normalizeSqlLiterals) {
         this.sql = sql;
+        if (normalizeSqlLiterals) {
+            normalizedSql = SqlNormalizer.collapseInLists(sql);
+        }
         // TODO delay creation to optimize case when bind parameter capture is disabled
         parameters = new BindParameterList(PARAMETERS_INITIAL_CAPACITY);
     }
@@ -75,6 +81,14 @@ class PreparedStatementMirror extends StatementMirror {
         return sql;
     }
 
+    String getNormalizedSql() {
+        if (normalizedSql == null) {
+            // normalizeSqlLiterals was enabled after this statement was prepared
+            normalizedSql = SqlNormalizer.collapseInLists(sql);
+        }
+        return normalizedSql;
+    }
+
     int getBatchSize() {
         return batchSize;
     }
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glowroot.agent.plugin.api.checker.Nullable;
+
+// replaces numeric and string literals with ? placeholders, and collapses IN lists of placeholders
+// down to a single placeholder, so that queries which are built with inline literals are
+// aggregated together instead of each one creating a new query aggregate
+//
+// this is a lightweight single pass lexer (not a full sql parser), comments and quoted identifiers
+// are passed through unchanged
+//
+// prepared statements only have their IN lists collapsed (see collapseInLists()), since their
+// captured bind parameters are displayed against the placeholders in the query text, and so
+// replacing their inline literals with additional placeholders would pair the bind parameters with
+// the wrong placeholders
+class SqlNormalizer {
+
+    // bounds the memory held by each of the two caches below (approximately, since the char count
+    // is not updated atomically with the cache itself)
+    private static final int MAX_CACHE_CHARS = 500000;
+
+    // long query texts are not cached, so that a few of them cannot fill up the cache
+    private static final int MAX_CACHED_SQL_LENGTH = 5000;
+
+    // raw sql -> normalized sql
+    //
+    // this is simply cleared when it fills up, since queries that are built with inline literals
+    // are mostly unique, and so there is little point in tracking recency (and this avoids any
+    // locking)
+    private static final ConcurrentMap<String, NormalizedSql> cache =
+            new ConcurrentHashMap<String, NormalizedSql>();
+    private static final AtomicInteger cacheChars = new AtomicInteger();
+
+    // normalized sql -> the same normalized sql instance
+    //
+    // this is not cleared along with the cache above, so that the same normalized sql instance
+    // continues to be returned, which matters since the agent caches the sha1 of long query texts
+    // by instance, and since there are far fewer distinct normalized texts than raw texts, once
+    // this fills up new normalized texts are simply not canonicalized
+    private static final ConcurrentMap<String, String> canonicalSqls =
+            new ConcurrentHashMap<String, String>();
+    private static final AtomicInteger canonicalSqlChars = new AtomicInteger();
+
+    private SqlNormalizer() {}
+
+    static NormalizedSql normalize(String sql) {
+        NormalizedSql normalizedSql = cache.get(sql);
+        if (normalizedSql != null) {
+            return normalizedSql;
+        }
+        normalizedSql = normalizeInternal(sql);
+        String canonicalSql = getCanonicalSql(normalizedSql.sql());
+        if (canonicalSql != normalizedSql.sql()) {
+            normalizedSql = new NormalizedSql(canonicalSql, normalizedSql.literals());
+        }
+        int length = sql.length();
+        if (length <= MAX_CACHED_SQL_LENGTH) {
+            if (cacheChars.addAndGet(length) > MAX_CACHE_CHARS) {
+                cache.clear();
+                cacheChars.set(length);
+            }
+            cache.put(sql, normalizedSql);
+        }
+        return normalizedSql;
+    }
+
+    // leaves inline literals alone, and only collapses IN lists of placeholders, see class comment
+    //
+    // this is called once per prepared statement (see PreparedStatementMirror), so is not cached
+    static String collapseInLists(String sql) {
+        if (sql.indexOf('?') == -1) {
+            return sql;
+        }
+        String collapsedSql = normalizeInternal(sql, false).sql();
+        if (collapsedSql == sql) {
+            return sql;
+        }
+        return getCanonicalSql(collapsedSql);
+    }
+
+    private static String getCanonicalSql(String normalizedSql) {
+        String canonicalSql = canonicalSqls.get(normalizedSql);
+        if (canonicalSql != null) {
+            return canonicalSql;
+        }
+        int length = normalizedSql.length();
+        if (length > MAX_CACHED_SQL_LENGTH
+                || canonicalSqlChars.get() + length > MAX_CACHE_CHARS) {
+            return normalizedSql;
+        }
+        canonicalSql = canonicalSqls.putIfAbsent(normalizedSql, normalizedSql);
+        if (canonicalSql != null) {
+            return canonicalSql;
+        }
+        canonicalSqlChars.addAndGet(length);
+        return normalizedSql;
+    }
+
+    static NormalizedSql normalizeInternal(String sql) {
+        return normalizeInternal(sql, true);
+    }
+
+    static NormalizedSql normalizeInternal(String sql, boolean replaceLiterals) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        @Nullable
+        StringBuilder literals = null;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            int end;
+            if (c == '\'') {
+                end = skipQuoted(sql, i, '\'');
+            } else if (isLiteralPrefix(sql, i)) {
+                // e.g. N'abc', X'0A', B'01', E'abc'
+                end = skipQuoted(sql, i + 1, '\'');
+            } else if (isDigit(c) || c == '.' && i + 1 < length && isDigit(sql.charAt(i + 1))) {
+                end = skipNumber(sql, i);
+            } else {
+                end = skipNonLiteral(sql, i);
+                normalized.append(sql, i, end);
+                if (c == ')') {
+                    collapseInList(normalized);
+                }
+                i = end;
+                continue;
+            }
+            if (!replaceLiterals) {
+                normalized.append(sql, i, end);
+                i = end;
+                continue;
+            }
+            normalized.append('?');
+            if (literals == null) {
+                literals = new StringBuilder(" [");
+            } else {
+                literals.append(", ");
+            }
+            literals.append(sql, i, end);
+            i = end;
+        }
+        if (literals == null) {
+            // IN lists of placeholders may still have been collapsed
+            String normalizedSql =
+                    normalized.length() == sql.length() ? sql : normalized.toString();
+            return new NormalizedSql(normalizedSql, "");
+        }
+        literals.append(']');
+        return new NormalizedSql(normalized.toString(), literals.toString());
+    }
+
+    // returns the index after the end of the token (or run of whitespace) starting at index i
+    private static int skipNonLiteral(String sql, int i) {
+        int length = sql.length();
+        char c = sql.charAt(i);
+        if (isIdentifierStart(c)) {
+            int end = i + 1;
+            // digits are part of the identifier, e.g. table1
+            while (end < length && isIdentifierPart(sql.charAt(end))) {
+                end++;
+            }
+            return end;
+        }
+        if (c == '"' || c == '`') {
+            return skipQuoted(sql, i, c);
+        }
+        if (c == '[') {
+            // sql server quoted identifier
+            return skipQuoted(sql, i, ']');
+        }
+        if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+            int end = sql.indexOf('\n', i);
+            return end == -1 ? length : end;
+        }
+        if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+            int end = sql.indexOf("*/", i + 2);
+            return end == -1 ? length : end + 2;
+        }
+        return i + 1;
+    }
+
+    // returns the index after the closing quote, where a doubled closing quote is an escaped quote
+    private static int skipQuoted(String sql, int i, char closingQuote) {
+        int length = sql.length();
+        int end = i + 1;
+        while (end < length) {
+            if (sql.charAt(end) == closingQuote) {
+                if (end + 1 < length && sql.charAt(end + 1) == closingQuote) {
+                    end += 2;
+                    continue;
+                }
+                return end + 1;
+            }
+            end++;
+        }
+        return length;
+    }
+
+    private static int skipNumber(String sql, int i) {
+        int length = sql.length();
+        int end = i + 1;
+        if (sql.charAt(i) == '0' && end < length
+                && (sql.charAt(end) == 'x' || sql.charAt(end) == 'X')) {
+            // hex literal
+            end++;
+            while (end < length && isHexDigit(sql.charAt(end))) {
+                end++;
+            }
+            return end;
+        }
+        while (end < length) {
+            char c = sql.charAt(end);
+            if (isDigit(c) || c == '.') {
+                end++;
+            } else if ((c == 'e' || c == 'E') && end + 1 < length) {
+                char next = sql.charAt(end + 1);
+                if (isDigit(next)) {
+                    end += 2;
+                } else if ((next == '+' || next == '-') && end + 2 < length
+                        && isDigit(sql.charAt(end + 2))) {
+                    end += 3;
+                } else {
+                    return end;
+                }
+            } else {
+                return end;
+            }
+        }
+        return end;
+    }
+
+    private static boolean isLiteralPrefix(String sql, int i) {
+        if (i + 1 >= sql.length() || sql.charAt(i + 1) != '\'') {
+            return false;
+        }
+        if (i > 0 && isIdentifierPart(sql.charAt(i - 1))) {
+            return false;
+        }
+        switch (sql.charAt(i)) {
+            case 'N':
+            case 'n':
+            case 'X':
+            case 'x':
+            case 'B':
+            case 'b':
+            case 'E':
+            case 'e':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // called after appending a closing parenthesis, replaces "in (?, ?, ?)" with "in (?)"
+    private static void collapseInList(StringBuilder normalized) {
+        int i = normalized.length() - 2;
+        i = skipWhitespaceBackwards(normalized, i);
+        int lastPlaceholder = i;
+        int count = 0;
+        while (i >= 0 && normalized.charAt(i) == '?') {
+            count++;
+            i = skipWhitespaceBackwards(normalized, i - 1);
+            if (i >= 0 && normalized.charAt(i) == ',') {
+                i = skipWhitespaceBackwards(normalized, i - 1);
+            } else {
+                break;
+            }
+        }
+        if (count < 2 || i < 0 || normalized.charAt(i) != '(') {
+            return;
+        }
+        int openParen = i;
+        i = skipWhitespaceBackwards(normalized, i - 1);
+        if (i < 1 || Character.toUpperCase(normalized.charAt(i)) != 'N'
+                || Character.toUpperCase(normalized.charAt(i - 1)) != 'I'
+                || i >= 2 && isIdentifierPart(normalized.charAt(i - 2))) {
+            return;
+        }
+        // keep any whitespace between the opening parenthesis and the first placeholder
+        int firstPlaceholder = skipWhitespaceForwards(normalized, openParen + 1);
+        normalized.setLength(lastPlaceholder + 1);
+        normalized.replace(firstPlaceholder, lastPlaceholder + 1, "?");
+        normalized.append(')');
+    }
+
+    private static int skipWhitespaceBackwards(StringBuilder sb, int i) {
+        while (i >= 0 && Character.isWhitespace(sb.charAt(i))) {
+            i--;
+        }
+        return i;
+    }
+
+    private static int skipWhitespaceForwards(StringBuilder sb, int i) {
+        while (i < sb.length() && Character.isWhitespace(sb.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$' || c == '@' || c == '#' || c == ':';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '@' || c == '#';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+    }
+
+    static class NormalizedSql {
+
+        private final String sql;
+        // the replaced literals, formatted the same as captured bind parameters, e.g. " [1, 'a']"
+        private final String literals;
+
+        private NormalizedSql(String sql, String literals) {
+            this.sql = sql;
+            this.literals = literals;
+        }
+
+        String sql() {
+            return sql;
+        }
+
+        String literals() {
+            return literals;
+        }
+    }
+}
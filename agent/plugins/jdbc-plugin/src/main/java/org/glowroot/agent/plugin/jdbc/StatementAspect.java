@@ -43,6 +43,7 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.plugin.api.weaving.Shim;
 import org.glowroot.agent.plugin.jdbc.PreparedStatementMirror.ByteArrayParameterValue;
 import org.glowroot.agent.plugin.jdbc.PreparedStatementMirror.StreamingParameterValue;
+import org.glowroot.agent.plugin.jdbc.SqlNormalizer.NormalizedSql;
 import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier;
 import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier2;
 import org.glowroot.agent.plugin.jdbc.message.PreparedStatementMessageSupplier;
@@ -60,6 +61,9 @@ public class StatementAspect {
     private static final BooleanProperty captureStatementClose =
             configService.getBooleanProperty("captureStatementClose");
 
+    private static final BooleanProperty normalizeSqlLiterals =
+            configService.getBooleanProperty("normalizeSqlLiterals");
+
     private static boolean captureBindParameters;
 
     static {
@@ -316,8 +320,18 @@ public class StatementAspect {
                 // this shouldn't happen since just checked hasGlowrootStatementMirror() above
                 return null;
             }
-            QueryEntry query = context.startQueryEntry(QUERY_TYPE, sql,
-                    QueryMessageSupplier.create("jdbc query: "), timerName);
+            QueryEntry query;
+            if (normalizeSqlLiterals.value()) {
+                NormalizedSql normalizedSql = SqlNormalizer.normalize(sql);
+                // the replaced literals are displayed in the trace entry the same as bind
+                // parameters
+                String suffix = captureBindParameters ? normalizedSql.literals() : "";
+                query = context.startQueryEntry(QUERY_TYPE, normalizedSql.sql(),
+                        QueryMessageSupplier.create("jdbc query: ", suffix), timerName);
+            } else {
+                query = context.startQueryEntry(QUERY_TYPE, sql,
+                        QueryMessageSupplier.create("jdbc query: "), timerName);
+            }
             mirror.setLastQueryEntry(query);
             return query;
         }
@@ -433,6 +447,9 @@ public class StatementAspect {
             } else {
                 queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
             }
+            if (normalizeSqlLiterals.value()) {
+                queryText = mirror.getNormalizedSql();
+            }
             QueryEntry queryEntry =
                     context.startQueryEntry(QUERY_TYPE, queryText, queryMessageSupplier, timerName);
             mirror.setLastQueryEntry(queryEntry);
@@ -558,7 +575,8 @@ public class StatementAspect {
         private static QueryEntry onBeforePreparedStatement(ThreadContext context,
                 PreparedStatementMirror mirror) {
             QueryMessageSupplier queryMessageSupplier;
-            String queryText = mirror.getSql();
+            String queryText = normalizeSqlLiterals.value() ? mirror.getNormalizedSql()
+                    : mirror.getSql();
             int batchSize = mirror.getBatchSize();
             if (batchSize <= 0) {
                 queryText = "[empty batch] " + queryText;
@@ -583,12 +601,18 @@ public class StatementAspect {
                 concatenated = "[empty batch]";
             } else {
                 StringBuilder sb = new StringBuilder("[batch] ");
+                boolean normalize = normalizeSqlLiterals.value();
                 boolean first = true;
                 for (String sql : batchedSql) {
                     if (!first) {
                         sb.append(", ");
                     }
-                    sb.append(sql);
+                    // the replaced literals are not displayed for batches since there can be many
+                    if (normalize) {
+                        sb.append(SqlNormalizer.normalize(sql).sql());
+                    } else {
+                        sb.append(sql);
+                    }
                     first = false;
                 }
                 concatenated = sb.toString();
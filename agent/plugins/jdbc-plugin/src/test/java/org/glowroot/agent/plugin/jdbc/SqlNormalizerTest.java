@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.jdbc.SqlNormalizer.NormalizedSql;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        NormalizedSql normalizedSql = SqlNormalizer.normalizeInternal(
+                "select * from employee1 where id = 12 and name = 'o''brien' and salary > -1.5e3");
+        assertThat(normalizedSql.sql()).isEqualTo(
+                "select * from employee1 where id = ? and name = ? and salary > -?");
+        assertThat(normalizedSql.literals()).isEqualTo(" [12, 'o''brien', 1.5e3]");
+    }
+
+    @Test
+    public void shouldReplacePrefixedAndHexLiterals() {
+        NormalizedSql normalizedSql = SqlNormalizer
+                .normalizeInternal("insert into t (a, b, c) values (N'abc', X'0A', 0xFF)");
+        assertThat(normalizedSql.sql()).isEqualTo("insert into t (a, b, c) values (?, ?, ?)");
+        assertThat(normalizedSql.literals()).isEqualTo(" [N'abc', X'0A', 0xFF]");
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(SqlNormalizer.normalizeInternal("select * from t where id in (1, 2, 3)").sql())
+                .isEqualTo("select * from t where id in (?)");
+        assertThat(SqlNormalizer.normalizeInternal("select * from t where id IN ( ?,? , ? )").sql())
+                .isEqualTo("select * from t where id IN ( ?)");
+        assertThat(SqlNormalizer.normalizeInternal("select * from t where id not in ('a', 'b')")
+                .sql()).isEqualTo("select * from t where id not in (?)");
+        assertThat(SqlNormalizer.normalizeInternal("select * from t join (1, 2) x").sql())
+                .isEqualTo("select * from t join (?, ?) x");
+        assertThat(SqlNormalizer.normalizeInternal("select * from t where id in (select 1, 2)")
+                .sql()).isEqualTo("select * from t where id in (select ?, ?)");
+    }
+
+    @Test
+    public void shouldOnlyCollapseInListsForPreparedStatements() {
+        assertThat(SqlNormalizer.collapseInLists("select * from t where a = 5 and b in (?, ?)"))
+                .isEqualTo("select * from t where a = 5 and b in (?)");
+        assertThat(SqlNormalizer.collapseInLists("select * from t where a in (1, 2) and b = ?"))
+                .isEqualTo("select * from t where a in (1, 2) and b = ?");
+        String sql = "select * from t where a = 'x'";
+        assertThat(SqlNormalizer.collapseInLists(sql)).isSameAs(sql);
+    }
+
+    @Test
+    public void shouldNotReplaceIdentifiersOrComments() {
+        String sql = "select \"col 1\", `col2`, [col 3] from t2 -- 'comment' 1\n"
+                + "/* 'block' 2 */ where x = :param1";
+        NormalizedSql normalizedSql = SqlNormalizer.normalizeInternal(sql);
+        assertThat(normalizedSql.sql()).isEqualTo(sql);
+        assertThat(normalizedSql.literals()).isEmpty();
+    }
+
+    @Test
+    public void shouldHandleUnterminatedQuotes() {
+        assertThat(SqlNormalizer.normalizeInternal("select 'abc").sql()).isEqualTo("select ?");
+        assertThat(SqlNormalizer.normalizeInternal("select /* abc").sql())
+                .isEqualTo("select /* abc");
+    }
+
+    @Test
+    public void shouldCache() {
+        String sql = "select * from t where id = 123";
+        assertThat(SqlNormalizer.normalize(sql)).isSameAs(SqlNormalizer.normalize(sql));
+    }
+
+    @Test
+    public void shouldReturnSameNormalizedInstanceForDifferentLiterals() {
+        // more than fills up the raw sql cache
+        String normalizedSql = SqlNormalizer.normalize("select * from t where id = 0").sql();
+        for (int i = 1; i < 100000; i++) {
+            assertThat(SqlNormalizer.normalize("select * from t where id = " + i).sql())
+                    .isSameAs(normalizedSql);
+        }
+    }
+}
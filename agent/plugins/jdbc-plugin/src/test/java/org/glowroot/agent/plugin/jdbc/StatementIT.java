@@ -16,6 +16,7 @@
 package org.glowroot.agent.plugin.jdbc;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -40,6 +41,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class StatementIT {
 
+    private static final String PLUGIN_ID = "jdbc";
+
     private static Container container;
 
     @BeforeClass
@@ -88,6 +91,67 @@ public class StatementIT {
         assertThat(j.hasNext()).isFalse();
     }
 
+    @Test
+    public void testStatementWithNormalizedLiterals() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "normalizeSqlLiterals", true);
+
+        // when
+        Trace trace = container.execute(ExecuteStatementUpdate.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEmpty();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("update employee set name = ?");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc query: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" ['nobody'] => 3 rows");
+
+        assertThat(i.hasNext()).isFalse();
+
+        Iterator<Aggregate.Query> j = trace.getQueryList().iterator();
+
+        Aggregate.Query query = j.next();
+        assertThat(query.getType()).isEqualTo("SQL");
+        assertThat(sharedQueryTexts.get(query.getSharedQueryTextIndex()).getFullText())
+                .isEqualTo("update employee set name = ?");
+        assertThat(query.getExecutionCount()).isEqualTo(1);
+
+        assertThat(j.hasNext()).isFalse();
+    }
+
+    @Test
+    public void testPreparedStatementWithNormalizedLiterals() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "normalizeSqlLiterals", true);
+
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementWithInlineLiteral.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEmpty();
+        // inline literals are left alone for prepared statements, so that the bind parameters are
+        // displayed against the correct placeholders
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText())
+                        .isEqualTo("update employee set name = ? where name <> 'nobody'"
+                                + " and name in (?)");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc query: ");
+        assertThat(entry.getQueryEntryMessage().getSuffix())
+                .isEqualTo(" ['somebody', 'john doe', 'jane doe'] => 2 rows");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testStatementQuery() throws Exception {
         // when
@@ -495,6 +559,33 @@ public class StatementIT {
         }
     }
 
+    public static class ExecutePreparedStatementWithInlineLiteral
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement = connection.prepareStatement("update employee"
+                    + " set name = ? where name <> 'nobody' and name in (?, ?)");
+            try {
+                preparedStatement.setString(1, "somebody");
+                preparedStatement.setString(2, "john doe");
+                preparedStatement.setString(3, "jane doe");
+                preparedStatement.executeUpdate();
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecuteNullStatement implements AppUnderTest, TransactionMarker {
         private Connection delegatingConnection;
         @Override
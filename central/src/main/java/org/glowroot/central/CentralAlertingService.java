@@ -20,6 +20,7 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 import com.google.common.base.Stopwatch;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,8 +32,11 @@ import org.glowroot.central.util.MoreExecutors2;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ConfigRepository.AgentConfigNotFoundException;
 import org.glowroot.common2.repo.util.AlertingService;
+import org.glowroot.common2.repo.util.SlidingWindowMetricService;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -44,6 +48,7 @@ class CentralAlertingService {
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
     private final HeartbeatAlertingService heartbeatAlertingService;
+    private final @Nullable SlidingWindowMetricService slidingWindowMetricService;
     private final AlertingDisabledDao alertingDisabledDao;
     private final Clock clock;
 
@@ -55,10 +60,12 @@ class CentralAlertingService {
 
     CentralAlertingService(ConfigRepositoryImpl configRepository, AlertingService alertingService,
             HeartbeatAlertingService heartbeatAlertingService,
+            @Nullable SlidingWindowMetricService slidingWindowMetricService,
             AlertingDisabledDao alertingDisabledDao, Clock clock) {
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.heartbeatAlertingService = heartbeatAlertingService;
+        this.slidingWindowMetricService = slidingWindowMetricService;
         this.alertingDisabledDao = alertingDisabledDao;
         this.clock = clock;
         workerExecutor = MoreExecutors2.newCachedThreadPool("Alert-Async-Worker-%d");
@@ -96,23 +103,31 @@ class CentralAlertingService {
         }
     }
 
-    void checkAggregateAlertsAsync(String agentId, String agentDisplay, long endTime)
-            throws InterruptedException {
+    // the aggregates are passed in so that they can be added to the in-memory sliding windows
+    // (regardless of whether alerting is currently disabled)
+    void checkAggregateAlertsAsync(String agentId, String agentDisplay, long endTime,
+            List<OldAggregatesByType> aggregatesByTypeList) throws InterruptedException {
         List<AlertConfig> alertConfigs;
         try {
+            alertConfigs = configRepository.getAlertConfigs(agentId);
+            if (slidingWindowMetricService != null) {
+                slidingWindowMetricService.addAggregates(agentId, endTime, aggregatesByTypeList,
+                        alertConfigs);
+            }
             if (isCurrentlyDisabled(agentId)) {
                 return;
             }
-            alertConfigs = configRepository.getAlertConfigs(agentId);
         } catch (InterruptedException e) {
             // probably shutdown requested
             throw e;
         } catch (AgentConfigNotFoundException e) {
             // be lenient if agent_config table is messed up
             logger.debug(e.getMessage(), e);
+            clearSlidingWindows(agentId);
             return;
         } catch (Exception e) {
             logger.error("{} - {}", agentId, e.getMessage(), e);
+            clearSlidingWindows(agentId);
             return;
         }
         List<AlertConfig> aggregateAlertConfigs = new ArrayList<>();
@@ -126,23 +141,30 @@ class CentralAlertingService {
         }
     }
 
-    void checkGaugeAndHeartbeatAlertsAsync(String agentId, String agentDisplay, long endTime)
-            throws InterruptedException {
+    // the gauge values are passed in so that they can be added to the in-memory sliding windows
+    // (regardless of whether alerting is currently disabled)
+    void checkGaugeAndHeartbeatAlertsAsync(String agentId, String agentDisplay, long endTime,
+            List<GaugeValue> gaugeValues) throws InterruptedException {
         List<AlertConfig> alertConfigs;
         try {
+            alertConfigs = configRepository.getAlertConfigs(agentId);
+            if (slidingWindowMetricService != null) {
+                slidingWindowMetricService.addGaugeValues(agentId, gaugeValues, alertConfigs);
+            }
             if (isCurrentlyDisabled(agentId)) {
                 return;
             }
-            alertConfigs = configRepository.getAlertConfigs(agentId);
         } catch (InterruptedException e) {
             // probably shutdown requested
             throw e;
         } catch (AgentConfigNotFoundException e) {
             // be lenient if agent_config table is messed up
             logger.debug(e.getMessage(), e);
+            clearSlidingWindows(agentId);
             return;
         } catch (Exception e) {
             logger.error("{} - {}", agentId, e.getMessage(), e);
+            clearSlidingWindows(agentId);
             return;
         }
         List<AlertConfig> gaugeAndHeartbeatAlertConfigs = new ArrayList<>();
@@ -194,6 +216,14 @@ class CentralAlertingService {
         }
     }
 
+    // data may have been stored without being added to the sliding windows, so the sliding windows
+    // need to start over (falling back to reading from the repository in the meantime)
+    private void clearSlidingWindows(String agentId) {
+        if (slidingWindowMetricService != null) {
+            slidingWindowMetricService.clear(agentId);
+        }
+    }
+
     private boolean isCurrentlyDisabled(String agentRollupId) throws Exception {
         Long disabledUntilTime =
                 alertingDisabledDao.getAlertingDisabledUntilTime(agentRollupId);
@@ -94,6 +94,7 @@ import org.glowroot.common2.repo.util.HttpClient;
 import org.glowroot.common2.repo.util.LazySecretKey;
 import org.glowroot.common2.repo.util.LockSet;
 import org.glowroot.common2.repo.util.MailService;
+import org.glowroot.common2.repo.util.SlidingWindowMetricService;
 import org.glowroot.ui.CommonHandler;
 import org.glowroot.ui.CreateUiModuleBuilder;
 import org.glowroot.ui.SessionMapFactory;
@@ -199,7 +200,8 @@ public class CentralModule {
             repoAsyncExecutor = MoreExecutors2.newCachedThreadPool("Repo-Async-Worker-%d");
             repos = new CentralRepoModule(clusterManager, session, directories.getConfDir(),
                     centralConfig.cassandraSymmetricEncryptionKey(), repoAsyncExecutor,
-                    TARGET_MAX_ACTIVE_AGENTS_IN_PAST_7_DAYS, TARGET_MAX_CENTRAL_UI_USERS, clock);
+                    TARGET_MAX_ACTIVE_AGENTS_IN_PAST_7_DAYS, TARGET_MAX_CENTRAL_UI_USERS,
+                    centralConfig.aggregateIncrementalRollups(), clock);
 
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
@@ -214,24 +216,32 @@ public class CentralModule {
                     clusterManager.createReplicatedLockSet("openingIncidentLockSet", 60, SECONDS);
             LockSet<IncidentKey> resolvingIncidentLockSet =
                     clusterManager.createReplicatedLockSet("resolvingIncidentLockSet", 60, SECONDS);
+            // when clustered, an agent's data can be received by any of the central nodes, so
+            // the in-memory sliding windows would be incomplete
+            SlidingWindowMetricService slidingWindowMetricService =
+                    clusterManager.isClustered() ? null
+                            : new SlidingWindowMetricService(repos.getRollupLevelService());
             alertingService = new AlertingService(repos.getConfigRepository(),
                     repos.getIncidentDao(), repos.getAggregateDao(), repos.getGaugeValueDao(),
-                    repos.getTraceDao(), repos.getRollupLevelService(), new MailService(),
-                    httpClient, openingIncidentLockSet, resolvingIncidentLockSet, clock);
+                    repos.getTraceDao(), repos.getRollupLevelService(), slidingWindowMetricService,
+                    new MailService(), httpClient, openingIncidentLockSet,
+                    resolvingIncidentLockSet, clock);
             HeartbeatAlertingService heartbeatAlertingService = new HeartbeatAlertingService(
                     repos.getHeartbeatDao(), repos.getIncidentDao(), alertingService,
                     repos.getConfigRepository());
             centralAlertingService = new CentralAlertingService(repos.getConfigRepository(),
-                    alertingService, heartbeatAlertingService, repos.getAlertingDisabledDao(),
-                    clock);
+                    alertingService, heartbeatAlertingService, slidingWindowMetricService,
+                    repos.getAlertingDisabledDao(), clock);
 
             grpcServer = new GrpcServer(centralConfig.grpcBindAddress(),
                     centralConfig.grpcHttpPort(), centralConfig.grpcHttpsPort(),
                     directories.getConfDir(), repos.getAgentDisplayDao(), repos.getAgentConfigDao(),
                     repos.getActiveAgentDao(), repos.getEnvironmentDao(), repos.getHeartbeatDao(),
                     repos.getAggregateDao(), repos.getGaugeValueDao(), repos.getTraceDao(),
-                    repos.getV09AgentRollupDao(), centralAlertingService, clusterManager, clock,
-                    version);
+                    repos.getV09AgentRollupDao(), centralAlertingService, clusterManager,
+                    centralConfig.grpcIngestionWorkerThreads(),
+                    centralConfig.grpcMaxIngestionQueueDepthPerAgent(),
+                    centralConfig.grpcMaxIngestionQueueDepth(), clock, version);
             DownstreamServiceImpl downstreamService = grpcServer.getDownstreamService();
             updateAgentConfigIfNeededService = new UpdateAgentConfigIfNeededService(
                     repos.getAgentConfigDao(), repos.getActiveAgentDao(), downstreamService, clock);
@@ -457,7 +467,7 @@ public class CentralModule {
             repoAsyncExecutor = MoreExecutors2.newCachedThreadPool("Repo-Async-Worker-%d");
             repos = new CentralRepoModule(ClusterManager.create(), session, centralDir,
                     centralConfig.cassandraSymmetricEncryptionKey(), repoAsyncExecutor, 10, 10,
-                    Clock.systemClock());
+                    false, Clock.systemClock());
             schemaUpgrade.updateSchemaVersionToCurent();
         } finally {
             if (repos != null) {
@@ -583,7 +593,7 @@ public class CentralModule {
             repoAsyncExecutor = MoreExecutors2.newCachedThreadPool("Repo-Async-Worker-%d");
             repos = new CentralRepoModule(ClusterManager.create(), session, centralDir,
                     centralConfig.cassandraSymmetricEncryptionKey(), repoAsyncExecutor, 10, 10,
-                    Clock.systemClock());
+                    false, Clock.systemClock());
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
                 startupLogger.info("glowroot central schema created");
@@ -659,6 +669,10 @@ public class CentralModule {
         if (!Strings.isNullOrEmpty(cassandraMaxConcurrentQueries)) {
             builder.cassandraMaxConcurrentQueries(Integer.parseInt(cassandraMaxConcurrentQueries));
         }
+        String cassandraWriteBatchingText = properties.get("glowroot.cassandra.writeBatching");
+        if (!Strings.isNullOrEmpty(cassandraWriteBatchingText)) {
+            builder.cassandraWriteBatching(Boolean.parseBoolean(cassandraWriteBatchingText));
+        }
         String cassandraPoolTimeoutMillis = properties.get("glowroot.cassandra.pool.timeoutMillis");
         if (!Strings.isNullOrEmpty(cassandraPoolTimeoutMillis)) {
             builder.cassandraPoolTimeoutMillis(Integer.parseInt(cassandraPoolTimeoutMillis));
@@ -683,6 +697,22 @@ public class CentralModule {
                 builder.grpcHttpsPort(Integer.parseInt(grpcHttpsPortText));
             }
         }
+        String grpcIngestionWorkerThreadsText =
+                properties.get("glowroot.grpc.ingestionWorkerThreads");
+        if (!Strings.isNullOrEmpty(grpcIngestionWorkerThreadsText)) {
+            builder.grpcIngestionWorkerThreads(Integer.parseInt(grpcIngestionWorkerThreadsText));
+        }
+        String grpcMaxIngestionQueueDepthPerAgentText =
+                properties.get("glowroot.grpc.maxIngestionQueueDepthPerAgent");
+        if (!Strings.isNullOrEmpty(grpcMaxIngestionQueueDepthPerAgentText)) {
+            builder.grpcMaxIngestionQueueDepthPerAgent(
+                    Integer.parseInt(grpcMaxIngestionQueueDepthPerAgentText));
+        }
+        String grpcMaxIngestionQueueDepthText =
+                properties.get("glowroot.grpc.maxIngestionQueueDepth");
+        if (!Strings.isNullOrEmpty(grpcMaxIngestionQueueDepthText)) {
+            builder.grpcMaxIngestionQueueDepth(Integer.parseInt(grpcMaxIngestionQueueDepthText));
+        }
         String uiBindAddress = properties.get("glowroot.ui.bindAddress");
         if (!Strings.isNullOrEmpty(uiBindAddress)) {
             builder.uiBindAddress(uiBindAddress);
@@ -699,6 +729,12 @@ public class CentralModule {
         if (!Strings.isNullOrEmpty(uiContextPath)) {
             builder.uiContextPath(uiContextPath);
         }
+        String aggregateIncrementalRollupsText =
+                properties.get("glowroot.aggregate.incrementalRollups");
+        if (!Strings.isNullOrEmpty(aggregateIncrementalRollupsText)) {
+            builder.aggregateIncrementalRollups(
+                    Boolean.parseBoolean(aggregateIncrementalRollupsText));
+        }
         for (Map.Entry<String, String> entry : properties.entrySet()) {
             String propertyName = entry.getKey();
             if (propertyName.startsWith("glowroot.jgroups.")) {
@@ -850,7 +886,8 @@ public class CentralModule {
                             // requests per connection" + "max queue size" (which are set to
                             // cassandraMaxConcurrentQueries and cassandraMaxConcurrentQueries * 2
                             // respectively)
-                            centralConfig.cassandraMaxConcurrentQueries() * 3);
+                            centralConfig.cassandraMaxConcurrentQueries() * 3,
+                            centralConfig.cassandraWriteBatching());
                 }
                 String cassandraVersion = verifyCassandraVersion(session);
                 KeyspaceMetadata keyspaceMetadata =
@@ -1052,6 +1089,11 @@ public class CentralModule {
             return 1024;
         }
 
+        @Value.Default
+        boolean cassandraWriteBatching() {
+            return false;
+        }
+
         @Value.Default
         int cassandraPoolTimeoutMillis() {
             // central runs lots of parallel async queries and is very spiky since all aggregates
@@ -1076,6 +1118,27 @@ public class CentralModule {
             return null;
         }
 
+        @Value.Default
+        int grpcIngestionWorkerThreads() {
+            // storing collected data is mostly waiting on (async) cassandra writes, which are
+            // already limited by cassandra.maxConcurrentQueries
+            return 64;
+        }
+
+        @Value.Default
+        int grpcMaxIngestionQueueDepthPerAgent() {
+            // old agents (and gauge values) do not use streaming, and so they are only limited by
+            // this
+            return 100;
+        }
+
+        @Value.Default
+        int grpcMaxIngestionQueueDepth() {
+            // streaming agents are paused (via grpc flow control) once this many collections are
+            // queued
+            return 1000;
+        }
+
         @Value.Default
         String uiBindAddress() {
             return "0.0.0.0";
@@ -1096,6 +1159,11 @@ public class CentralModule {
             return "/";
         }
 
+        @Value.Default
+        boolean aggregateIncrementalRollups() {
+            return false;
+        }
+
         abstract Map<String, String> jgroupsProperties();
     }
 
@@ -22,15 +22,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import javax.annotation.concurrent.GuardedBy;
+
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,7 +46,9 @@ import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SchemaUpgrade;
 import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.V09AgentRollupDao;
+import org.glowroot.central.util.IngestionScheduler;
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.common.model.TraceStringTables;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -69,6 +71,11 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage.LogEven
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage.LogEvent.Level;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OldAggregateMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OldTraceMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage.TraceEnd;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage.TraceMultiplexStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMultiplexStreamMessage.TraceStart;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamHeader;
@@ -96,26 +103,19 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final V09AgentRollupDao v09AgentRollupDao;
     private final GrpcCommon grpcCommon;
     private final CentralAlertingService centralAlertingService;
+    private final IngestionScheduler ingestionScheduler;
     private final Clock clock;
     private final String version;
 
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
-    private final LoadingCache<String, Semaphore> throttlePerAgentId = CacheBuilder.newBuilder()
-            .weakValues()
-            .build(new CacheLoader<String, Semaphore>() {
-                @Override
-                public Semaphore load(String key) throws Exception {
-                    return new Semaphore(1);
-                }
-            });
-
     CollectorServiceImpl(AgentDisplayDao agentDisplayDao, AgentConfigDao agentConfigDao,
             ActiveAgentDao activeAgentDao, EnvironmentDao environmentDao, HeartbeatDao heartbeatDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, TraceDao traceDao,
             V09AgentRollupDao v09AgentRollupDao, GrpcCommon grpcCommon,
-            CentralAlertingService centralAlertingService, Clock clock, String version) {
+            CentralAlertingService centralAlertingService, IngestionScheduler ingestionScheduler,
+            Clock clock, String version) {
         this.agentDisplayDao = agentDisplayDao;
         this.agentConfigDao = agentConfigDao;
         this.activeAgentDao = activeAgentDao;
@@ -127,6 +127,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         this.v09AgentRollupDao = v09AgentRollupDao;
         this.grpcCommon = grpcCommon;
         this.centralAlertingService = centralAlertingService;
+        this.ingestionScheduler = ingestionScheduler;
         this.clock = clock;
         this.version = version;
     }
@@ -175,7 +176,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     @Override
     public StreamObserver<AggregateStreamMessage> collectAggregateStream(
             StreamObserver<AggregateResponseMessage> responseObserver) {
-        return new AggregateStreamObserver(responseObserver);
+        return new AggregateStreamObserver(responseObserver,
+                requestNextMessageWhenAcceptingMore(responseObserver));
     }
 
     @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Aggregates",
@@ -212,7 +214,15 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     @Override
     public StreamObserver<TraceStreamMessage> collectTraceStream(
             StreamObserver<EmptyMessage> responseObserver) {
-        return new TraceStreamObserver(responseObserver);
+        return new TraceStreamObserver(responseObserver,
+                requestNextMessageWhenAcceptingMore(responseObserver));
+    }
+
+    @Override
+    public StreamObserver<TraceMultiplexStreamMessage> collectTraceMultiplexStream(
+            StreamObserver<TraceMultiplexResponseMessage> responseObserver) {
+        return new TraceMultiplexStreamObserver(responseObserver,
+                requestNextMessageWhenAcceptingMore(responseObserver));
     }
 
     @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Trace",
@@ -295,28 +305,49 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
     private <T> void throttle(String agentId, boolean postV09, String collectionType,
             StreamObserver<T> responseObserver, Runnable runnable) {
-        Semaphore semaphore = throttlePerAgentId.getUnchecked(agentId);
-        boolean acquired;
+        Runnable onClose = new Runnable() {
+            @Override
+            public void run() {
+                responseObserver.onError(Status.UNAVAILABLE
+                        .withDescription("central collector is shutting down")
+                        .asRuntimeException());
+            }
+        };
+        boolean scheduled;
         try {
-            acquired = semaphore.tryAcquire(1, MINUTES);
+            scheduled = ingestionScheduler.trySchedule(agentId, runnable, onClose, 1, MINUTES);
         } catch (InterruptedException e) {
             // probably shutdown requested
             responseObserver.onError(e);
             return;
         }
-        if (!acquired) {
-            logger.warn("{} - {} collection rejected due to backlog",
-                    getAgentIdForLogging(agentId, postV09), collectionType);
-            responseObserver.onError(Status.RESOURCE_EXHAUSTED
-                    .withDescription("collection rejected due to backlog")
-                    .asRuntimeException());
+        if (scheduled) {
             return;
         }
-        try {
-            runnable.run();
-        } finally {
-            semaphore.release();
+        if (ingestionScheduler.isClosed()) {
+            onClose.run();
+            return;
         }
+        logger.warn("{} - {} collection rejected due to backlog",
+                getAgentIdForLogging(agentId, postV09), collectionType);
+        responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                .withDescription("collection rejected due to backlog")
+                .asRuntimeException());
+    }
+
+    // inbound stream messages are requested one at a time, and only while the ingestion scheduler
+    // is accepting more work, so that central memory stays bounded when lots of agents send data
+    // at the same time, returns the runnable that requests the next message
+    private Runnable requestNextMessageWhenAcceptingMore(StreamObserver<?> responseObserver) {
+        ServerCallStreamObserver<?> serverCallStreamObserver =
+                (ServerCallStreamObserver<?>) responseObserver;
+        serverCallStreamObserver.disableAutoInboundFlowControl();
+        Runnable requestNextMessage = () -> serverCallStreamObserver.request(1);
+        Runnable requestNextMessageWhenAcceptingMore =
+                () -> ingestionScheduler.whenAcceptingMore(requestNextMessage);
+        // request the first message
+        requestNextMessageWhenAcceptingMore.run();
+        return requestNextMessageWhenAcceptingMore;
     }
 
     private void collectAggregatesUnderThrottle(String agentId, boolean postV09, long captureTime,
@@ -349,7 +380,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         try {
             centralAlertingService.checkForDeletedAlerts(postV09AgentId);
             centralAlertingService.checkAggregateAlertsAsync(postV09AgentId, agentDisplay,
-                    captureTime);
+                    captureTime, aggregatesByTypeList);
         } catch (InterruptedException e) {
             // probably shutdown requested
             logger.debug(e.getMessage(), e);
@@ -372,9 +403,10 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             responseObserver.onError(t);
             return;
         }
+        List<GaugeValue> gaugeValues;
         long maxCaptureTime = 0;
         try {
-            List<GaugeValue> gaugeValues = getFutureProofGaugeValues(request.getGaugeValueList());
+            gaugeValues = getFutureProofGaugeValues(request.getGaugeValueList());
             gaugeValueDao.store(postV09AgentId, gaugeValues);
             for (GaugeValue gaugeValue : gaugeValues) {
                 maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
@@ -402,7 +434,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         try {
             centralAlertingService.checkForDeletedAlerts(postV09AgentId);
             centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(postV09AgentId, agentDisplay,
-                    maxCaptureTime);
+                    maxCaptureTime, gaugeValues);
         } catch (InterruptedException e) {
             // probably shutdown requested
             logger.debug(e.getMessage(), e);
@@ -552,12 +584,15 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final class AggregateStreamObserver implements StreamObserver<AggregateStreamMessage> {
 
         private final StreamObserver<AggregateResponseMessage> responseObserver;
+        private final Runnable requestNextMessage;
         private @MonotonicNonNull AggregateStreamHeader streamHeader;
         private List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
         private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap = new HashMap<>();
 
-        private AggregateStreamObserver(StreamObserver<AggregateResponseMessage> responseObserver) {
+        private AggregateStreamObserver(StreamObserver<AggregateResponseMessage> responseObserver,
+                Runnable requestNextMessage) {
             this.responseObserver = responseObserver;
+            this.requestNextMessage = requestNextMessage;
         }
 
         @Override
@@ -568,6 +603,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 logError(t);
                 throw t;
             }
+            requestNextMessage.run();
         }
 
         @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Aggregates",
@@ -642,8 +678,10 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final class TraceStreamObserver implements StreamObserver<TraceStreamMessage> {
 
         private final StreamObserver<EmptyMessage> responseObserver;
+        private final Runnable requestNextMessage;
         private @MonotonicNonNull TraceStreamHeader streamHeader;
         private List<Trace.SharedQueryText> sharedQueryTexts = new ArrayList<>();
+        private List<Proto.StackTraceElement> sharedLocationStackTraceElements = new ArrayList<>();
         private @MonotonicNonNull Trace trace;
         private List<Trace.Entry> entries = new ArrayList<>();
         private List<Aggregate.Query> queries = new ArrayList<>();
@@ -652,8 +690,10 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         private Trace. /*@MonotonicNonNull*/ Header header;
         private @MonotonicNonNull TraceStreamCounts streamCounts;
 
-        private TraceStreamObserver(StreamObserver<EmptyMessage> responseObserver) {
+        private TraceStreamObserver(StreamObserver<EmptyMessage> responseObserver,
+                Runnable requestNextMessage) {
             this.responseObserver = responseObserver;
+            this.requestNextMessage = requestNextMessage;
         }
 
         @Override
@@ -664,6 +704,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 logError(t);
                 throw t;
             }
+            requestNextMessage.run();
         }
 
         @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Trace",
@@ -691,6 +732,10 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 case SHARED_QUERY_TEXT:
                     sharedQueryTexts.add(value.getSharedQueryText());
                     break;
+                case SHARED_LOCATION_STACK_TRACE_ELEMENT:
+                    sharedLocationStackTraceElements
+                            .add(value.getSharedLocationStackTraceElement());
+                    break;
                 case TRACE:
                     // this is for 0.9.12 and prior agents
                     trace = value.getTrace();
@@ -736,7 +781,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                         .setHeader(checkNotNull(header))
                         .addAllEntry(entries)
                         .addAllQuery(queries)
-                        .addAllSharedQueryText(sharedQueryTexts);
+                        .addAllSharedQueryText(sharedQueryTexts)
+                        .addAllSharedLocationStackTraceElement(sharedLocationStackTraceElements);
                 if (mainThreadProfile != null) {
                     builder.setMainThreadProfile(mainThreadProfile);
                 }
@@ -769,6 +815,15 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                         sharedQueryTexts.size());
                 return false;
             }
+            if (sharedLocationStackTraceElements.size() < streamCounts
+                    .getSharedLocationStackTraceElementCount()) {
+                logger.error("{} - expected {} shared location stack trace elements, but only"
+                        + " received {}, likely due to gRPC maxMessageSize limit exceeded for some"
+                        + " of them", getAgentIdForLogging(),
+                        streamCounts.getSharedLocationStackTraceElementCount(),
+                        sharedLocationStackTraceElements.size());
+                return false;
+            }
             if (entries.size() < streamCounts.getEntryCount()) {
                 logger.error("{} - expected {} entries, but only received {}, likely due to gRPC"
                         + " maxMessageSize limit exceeded for some of them", getAgentIdForLogging(),
@@ -776,6 +831,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 return false;
             }
             checkState(sharedQueryTexts.size() == streamCounts.getSharedQueryTextCount());
+            checkState(sharedLocationStackTraceElements.size() == streamCounts
+                    .getSharedLocationStackTraceElementCount());
             checkState(entries.size() == streamCounts.getEntryCount());
             return true;
         }
@@ -794,4 +851,211 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     streamHeader.getPostV09());
         }
     }
+
+    private final class TraceMultiplexStreamObserver
+            implements StreamObserver<TraceMultiplexStreamMessage> {
+
+        // also used as the lock for sending responses, since traces are acknowledged from the
+        // ingestion worker threads
+        private final StreamObserver<TraceMultiplexResponseMessage> responseObserver;
+        private final Runnable requestNextMessage;
+        private @MonotonicNonNull TraceMultiplexStreamHeader streamHeader;
+
+        // the stream's tables, which are shared by all of the traces on the stream
+        private final List<Trace.SharedQueryText> sharedQueryTexts = new ArrayList<>();
+        private final List<String> timerNames = new ArrayList<>();
+        private final List<Proto.StackTraceElement> sharedLocationStackTraceElements =
+                new ArrayList<>();
+
+        // the trace currently being received
+        private @Nullable TraceStart traceStart;
+        private List<Trace.Entry> entries = new ArrayList<>();
+        private List<Aggregate.Query> queries = new ArrayList<>();
+        private @Nullable Profile mainThreadProfile;
+        private @Nullable Profile auxThreadProfile;
+        private Trace. /*@Nullable*/ Header header;
+
+        // these are guarded by responseObserver
+        private int pendingTraceCount;
+        private boolean inboundCompleted;
+        private boolean terminated;
+
+        private TraceMultiplexStreamObserver(
+                StreamObserver<TraceMultiplexResponseMessage> responseObserver,
+                Runnable requestNextMessage) {
+            this.responseObserver = responseObserver;
+            this.requestNextMessage = requestNextMessage;
+        }
+
+        @Override
+        public void onNext(TraceMultiplexStreamMessage value) {
+            try {
+                onNextInternal(value);
+            } catch (Throwable t) {
+                logError(t);
+                throw t;
+            }
+            requestNextMessage.run();
+        }
+
+        @Override
+        public void onCompleted() {
+            synchronized (responseObserver) {
+                inboundCompleted = true;
+                completeIfDone();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (Status.fromThrowable(t).getCode() == Status.Code.CANCELLED) {
+                // agent cancels the stream when it times out waiting for an acknowledgement
+                logger.debug(t.getMessage(), t);
+            } else {
+                logError(t);
+            }
+            synchronized (responseObserver) {
+                terminated = true;
+            }
+        }
+
+        private void onNextInternal(TraceMultiplexStreamMessage value) {
+            switch (value.getMessageCase()) {
+                case STREAM_HEADER:
+                    streamHeader = value.getStreamHeader();
+                    break;
+                case TRACE_START:
+                    traceStart = value.getTraceStart();
+                    break;
+                case SHARED_QUERY_TEXT:
+                    sharedQueryTexts.add(value.getSharedQueryText());
+                    break;
+                case TIMER_NAME:
+                    timerNames.add(value.getTimerName());
+                    break;
+                case SHARED_LOCATION_STACK_TRACE_ELEMENT:
+                    sharedLocationStackTraceElements
+                            .add(value.getSharedLocationStackTraceElement());
+                    break;
+                case ENTRY:
+                    // location stack trace element indexes refer to the stream's table, so they
+                    // are resolved here (and then re-encoded per trace when stored)
+                    entries.add(TraceStringTables.decodeLocation(value.getEntry(),
+                            sharedLocationStackTraceElements));
+                    break;
+                case QUERIES:
+                    queries.addAll(value.getQueries().getQueryList());
+                    break;
+                case MAIN_THREAD_PROFILE:
+                    mainThreadProfile = value.getMainThreadProfile();
+                    break;
+                case AUX_THREAD_PROFILE:
+                    auxThreadProfile = value.getAuxThreadProfile();
+                    break;
+                case HEADER:
+                    header = value.getHeader();
+                    break;
+                case TRACE_END:
+                    onTraceEnd(value.getTraceEnd());
+                    break;
+                default:
+                    throw new RuntimeException("Unexpected message: " + value.getMessageCase());
+            }
+        }
+
+        @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Trace",
+                traceHeadline = "Collect trace: {{this.streamHeader.agentId}}", timer = "trace")
+        private void onTraceEnd(TraceEnd traceEnd) {
+            checkNotNull(streamHeader);
+            TraceStart traceStart = checkNotNull(this.traceStart);
+            Trace.Header header = checkNotNull(this.header);
+            checkState(entries.size() == traceEnd.getEntryCount());
+            Trace.Builder builder = Trace.newBuilder()
+                    .setId(traceStart.getTraceId())
+                    .setUpdate(traceStart.getUpdate())
+                    .setHeader(TraceStringTables.decodeTimerNames(header, timerNames))
+                    .addAllEntry(entries)
+                    .addAllQuery(queries);
+            for (int sharedQueryTextIndex : traceEnd.getSharedQueryTextIndexList()) {
+                builder.addSharedQueryText(sharedQueryTexts.get(sharedQueryTextIndex));
+            }
+            if (mainThreadProfile != null) {
+                builder.setMainThreadProfile(mainThreadProfile);
+            }
+            if (auxThreadProfile != null) {
+                builder.setAuxThreadProfile(auxThreadProfile);
+            }
+            Trace trace = builder.build();
+            this.traceStart = null;
+            entries = new ArrayList<>();
+            queries = new ArrayList<>();
+            mainThreadProfile = null;
+            auxThreadProfile = null;
+            this.header = null;
+            synchronized (responseObserver) {
+                pendingTraceCount++;
+            }
+            // multiplexed trace stream is only used by post v0.9 agents
+            throttledCollectTrace(streamHeader.getAgentId(), true, trace,
+                    new TraceAckObserver(trace.getId()));
+        }
+
+        @GuardedBy("responseObserver")
+        private void completeIfDone() {
+            if (inboundCompleted && pendingTraceCount == 0 && !terminated) {
+                terminated = true;
+                responseObserver.onCompleted();
+            }
+        }
+
+        private void logError(Throwable t) {
+            if (streamHeader == null) {
+                logger.error(t.getMessage(), t);
+            } else {
+                logger.error("{} - {}", grpcCommon.getAgentIdForLogging(streamHeader.getAgentId(),
+                        true), t.getMessage(), t);
+            }
+        }
+
+        private class TraceAckObserver implements StreamObserver<EmptyMessage> {
+
+            private final String traceId;
+
+            private TraceAckObserver(String traceId) {
+                this.traceId = traceId;
+            }
+
+            @Override
+            public void onNext(EmptyMessage value) {}
+
+            @Override
+            public void onCompleted() {
+                synchronized (responseObserver) {
+                    pendingTraceCount--;
+                    if (!terminated) {
+                        responseObserver.onNext(TraceMultiplexResponseMessage.newBuilder()
+                                .setTraceId(traceId)
+                                .build());
+                        completeIfDone();
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // error has already been logged, and the agent falls back to the per-trace call for
+                // this trace only, since the stream's tables are still intact
+                synchronized (responseObserver) {
+                    pendingTraceCount--;
+                    if (!terminated) {
+                        responseObserver.onNext(TraceMultiplexResponseMessage.newBuilder()
+                                .setTraceId(traceId)
+                                .setFailed(true)
+                                .build());
+                        completeIfDone();
+                    }
+                }
+            }
+        }
+    }
 }
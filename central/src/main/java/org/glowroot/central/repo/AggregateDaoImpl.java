@@ -25,6 +25,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
@@ -50,6 +51,9 @@ import org.immutables.value.Value;
 
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.repo.IncrementalAggregateRollups.PartialAggregate;
+import org.glowroot.central.repo.IncrementalAggregateRollups.PartialRollup;
+import org.glowroot.central.repo.IncrementalAggregateRollups.TransactionTypeRollup;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.MoreFutures.DoRollup;
@@ -73,6 +77,7 @@ import org.glowroot.common.model.MutableServiceCall;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.ProfileCollector;
+import org.glowroot.common.model.QuantileSketch;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.model.TransactionNameErrorSummaryCollector;
@@ -88,7 +93,6 @@ import org.glowroot.common2.repo.ConfigRepository.AgentConfigNotFoundException;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.MutableAggregate;
 import org.glowroot.common2.repo.MutableThreadStats;
-import org.glowroot.common2.repo.MutableTimer;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
@@ -104,6 +108,12 @@ public class AggregateDaoImpl implements AggregateDao {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // per chart aggregate cache (overview, percentile and throughput), weighed using the
+    // serialized size of the protobuf messages plus a fixed per aggregate overhead
+    private static final long AGGREGATE_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int AGGREGATE_OVERHEAD_BYTES = 64;
+    private static final int THROUGHPUT_AGGREGATE_BYTES = AGGREGATE_OVERHEAD_BYTES;
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -235,10 +245,17 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private final ImmutableList<Table> allTables;
 
+    // null when incremental rollups are not enabled
+    private final @Nullable IncrementalAggregateRollups incrementalRollups;
+
+    private final RollupAggregateCache<OverviewAggregate> overviewAggregateCache;
+    private final RollupAggregateCache<PercentileAggregate> percentileAggregateCache;
+    private final RollupAggregateCache<ThroughputAggregate> throughputAggregateCache;
+
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            ConfigRepositoryImpl configRepository, Executor asyncExecutor, Clock clock)
-            throws Exception {
+            ConfigRepositoryImpl configRepository, Executor asyncExecutor,
+            boolean incrementalRollups, Clock clock) throws Exception {
         this.session = session;
         this.activeAgentDao = activeAgentDao;
         this.transactionTypeDao = transactionTypeDao;
@@ -246,6 +263,18 @@ public class AggregateDaoImpl implements AggregateDao {
         this.configRepository = configRepository;
         this.asyncExecutor = asyncExecutor;
         this.clock = clock;
+        this.incrementalRollups = incrementalRollups ? new IncrementalAggregateRollups() : null;
+        overviewAggregateCache = new RollupAggregateCache<>(this::readOverviewAggregatesFromTable,
+                OverviewAggregate::captureTime, AggregateDaoImpl::getEstimatedBytes,
+                AGGREGATE_CACHE_MAX_BYTES, clock);
+        percentileAggregateCache =
+                new RollupAggregateCache<>(this::readPercentileAggregatesFromTable,
+                        PercentileAggregate::captureTime, AggregateDaoImpl::getEstimatedBytes,
+                        AGGREGATE_CACHE_MAX_BYTES, clock);
+        throughputAggregateCache =
+                new RollupAggregateCache<>(this::readThroughputAggregatesFromTable,
+                        ThroughputAggregate::captureTime, aggregate -> THROUGHPUT_AGGREGATE_BYTES,
+                        AGGREGATE_CACHE_MAX_BYTES, clock);
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
@@ -481,6 +510,9 @@ public class AggregateDaoImpl implements AggregateDao {
         // wait for success before inserting "needs rollup" records
         MoreFutures.waitForAll(futures);
         futures.clear();
+        // the interval may have already been read and cached (e.g. late arriving data or spool
+        // replay), so drop any cached level 0 aggregates that cover it
+        invalidateCachedAggregates(agentId, 0, captureTime - 1, captureTime);
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         // TODO report checker framework issue that occurs without this suppression
@@ -504,11 +536,26 @@ public class AggregateDaoImpl implements AggregateDao {
         // insert into aggregate_needs_rollup_1
         long intervalMillis = rollupConfigs.get(1).intervalMillis();
         long rollupCaptureTime = CaptureTimes.getRollup(captureTime, intervalMillis);
+        UUID uniqueness = UUIDs.timeBased();
+        if (incrementalRollups != null) {
+            // merge needs to happen before inserting the "needs rollup" record, so that the
+            // partial rollup is never missing data for a "needs rollup" record that it is matched
+            // against
+            PartialRollup partialRollup = incrementalRollups.getOrCreate(agentId, 1,
+                    rollupCaptureTime, intervalMillis,
+                    getMaxQueryAggregatesPerTransactionAggregate(agentIdForMeta),
+                    getMaxServiceCallAggregatesPerTransactionAggregate(agentIdForMeta),
+                    clock.currentTimeMillis());
+            if (partialRollup != null) {
+                partialRollup.mergeAggregates(captureTime, aggregatesByTypeList,
+                        sharedQueryTexts, uniqueness);
+            }
+        }
         BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
         int i = 0;
         boundStatement.setString(i++, agentId);
         boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-        boundStatement.setUUID(i++, UUIDs.timeBased());
+        boundStatement.setUUID(i++, uniqueness);
         boundStatement.setSet(i++, transactionTypes);
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.writeAsync(boundStatement));
@@ -599,6 +646,13 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        return overviewAggregateCache.read(agentRollupId, query,
+                getSafeCaptureTime(query.rollupLevel()));
+    }
+
+    // query.from() is INCLUSIVE
+    private List<OverviewAggregate> readOverviewAggregatesFromTable(String agentRollupId,
+            AggregateQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, overviewTable);
         List<OverviewAggregate> overviewAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -653,6 +707,13 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        return percentileAggregateCache.read(agentRollupId, query,
+                getSafeCaptureTime(query.rollupLevel()));
+    }
+
+    // query.from() is INCLUSIVE
+    private List<PercentileAggregate> readPercentileAggregatesFromTable(String agentRollupId,
+            AggregateQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, histogramTable);
         List<PercentileAggregate> percentileAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -676,6 +737,13 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        return throughputAggregateCache.read(agentRollupId, query,
+                getSafeCaptureTime(query.rollupLevel()));
+    }
+
+    // query.from() is INCLUSIVE
+    private List<ThroughputAggregate> readThroughputAggregatesFromTable(String agentRollupId,
+            AggregateQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, throughputTable);
         List<ThroughputAggregate> throughputAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -815,6 +883,9 @@ public class AggregateDaoImpl implements AggregateDao {
 
     public void rollup(String agentRollupId, String agentRollupIdForMeta,
             @Nullable String parentAgentRollupId, boolean leaf) throws Exception {
+        if (incrementalRollups != null) {
+            incrementalRollups.removeExpired(clock.currentTimeMillis());
+        }
         List<TTL> ttls = getTTLs();
         if (!leaf) {
             rollupFromChildren(agentRollupId, agentRollupIdForMeta, parentAgentRollupId,
@@ -868,6 +939,8 @@ public class AggregateDaoImpl implements AggregateDao {
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            invalidateCachedAggregates(agentRollupId, rollupLevel,
+                    captureTime - rollupConfigs.get(rollupLevel).intervalMillis(), captureTime);
 
             int needsRollupAdjustedTTL =
                     Common.getNeedsRollupAdjustedTTL(adjustedTTL.generalTTL(), rollupConfigs);
@@ -905,9 +978,25 @@ public class AggregateDaoImpl implements AggregateDao {
                     getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL);
             long from = captureTime - rollupIntervalMillis;
             Set<String> transactionTypes = needsRollup.getKeys();
+            PartialRollup partialRollup = null;
+            if (incrementalRollups != null) {
+                partialRollup = incrementalRollups.close(agentRollupId, rollupLevel, captureTime,
+                        rollupIntervalMillis, needsRollup.getUniquenessKeysForDeletion(),
+                        rollupParams.maxQueryAggregatesPerTransactionAggregate(),
+                        rollupParams.maxServiceCallAggregatesPerTransactionAggregate());
+            }
             List<Future<?>> futures = new ArrayList<>();
-            for (String transactionType : transactionTypes) {
-                futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+            if (partialRollup == null) {
+                for (String transactionType : transactionTypes) {
+                    futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+                }
+            } else {
+                ScratchBuffer scratchBuffer = new ScratchBuffer();
+                for (Map.Entry<String, TransactionTypeRollup> entry : partialRollup
+                        .getTransactionTypeRollups().entrySet()) {
+                    futures.addAll(rollupOneFromPartial(rollupParams, entry.getKey(),
+                            entry.getValue(), from, captureTime, scratchBuffer));
+                }
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -921,13 +1010,35 @@ public class AggregateDaoImpl implements AggregateDao {
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            // the lower rollup level is invalidated too, since the rollup was triggered by data
+            // that was (re-)written there (level 0 is written directly by store())
+            invalidateCachedAggregates(agentRollupId, rollupLevel - 1, from, captureTime);
+            invalidateCachedAggregates(agentRollupId, rollupLevel, from, captureTime);
 
             PreparedStatement insertNeedsRollup = nextRollupIntervalMillis == null ? null
                     : this.insertNeedsRollup.get(rollupLevel);
             PreparedStatement deleteNeedsRollup = this.deleteNeedsRollup.get(rollupLevel - 1);
-            Common.postRollup(agentRollupId, needsRollup.getCaptureTime(), transactionTypes,
-                    needsRollup.getUniquenessKeysForDeletion(), nextRollupIntervalMillis,
-                    insertNeedsRollup, deleteNeedsRollup, needsRollupAdjustedTTL, session);
+            UUID nextUniqueness = Common.postRollup(agentRollupId, needsRollup.getCaptureTime(),
+                    transactionTypes, needsRollup.getUniquenessKeysForDeletion(),
+                    nextRollupIntervalMillis, insertNeedsRollup, deleteNeedsRollup,
+                    needsRollupAdjustedTTL, session);
+            if (incrementalRollups != null && partialRollup != null
+                    && nextRollupIntervalMillis != null && nextUniqueness != null) {
+                // merging after the "needs rollup" record is inserted is safe, since at worst the
+                // next level partial rollup will not match its "needs rollup" records, and that
+                // interval will be rolled up by re-reading the rows
+                PartialRollup nextPartialRollup = incrementalRollups.getOrCreate(agentRollupId,
+                        rollupLevel + 1,
+                        CaptureTimes.getRollup(captureTime, nextRollupIntervalMillis),
+                        nextRollupIntervalMillis,
+                        rollupParams.maxQueryAggregatesPerTransactionAggregate(),
+                        rollupParams.maxServiceCallAggregatesPerTransactionAggregate(),
+                        clock.currentTimeMillis());
+                if (nextPartialRollup != null) {
+                    nextPartialRollup.mergePartialRollup(captureTime, partialRollup,
+                            nextUniqueness, new ScratchBuffer());
+                }
+            }
         }
     }
 
@@ -990,6 +1101,58 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
+    private List<Future<?>> rollupOneFromPartial(RollupParams rollup, String transactionType,
+            TransactionTypeRollup transactionTypeRollup, long from, long to,
+            ScratchBuffer scratchBuffer) throws Exception {
+
+        ImmutableAggregateQuery query = ImmutableAggregateQuery.builder()
+                .transactionType(transactionType)
+                .from(from)
+                .to(to)
+                .rollupLevel(rollup.rollupLevel() - 1)
+                .build();
+        List<Future<?>> futures = new ArrayList<>();
+
+        PartialAggregate overallAggregate = transactionTypeRollup.getOverallAggregate();
+        MutableAggregate aggregate = overallAggregate.getAggregate();
+        futures.add(insertOverallSummary(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount()));
+        if (aggregate.getErrorCount() > 0) {
+            futures.add(insertErrorSummary(rollup, query, aggregate.getErrorCount(),
+                    overallAggregate.getErrorIntervalTransactionCount()));
+        }
+
+        Map<String, MutableSummary> summaries = new HashMap<>();
+        Map<String, MutableErrorSummary> errorSummaries = new HashMap<>();
+        for (Map.Entry<String, PartialAggregate> entry : transactionTypeRollup
+                .getTransactionAggregates().entrySet()) {
+            PartialAggregate transactionAggregate = entry.getValue();
+            MutableAggregate aggregateForName = transactionAggregate.getAggregate();
+            MutableSummary summary = new MutableSummary();
+            summary.totalDurationNanos = aggregateForName.getTotalDurationNanos();
+            summary.transactionCount = aggregateForName.getTransactionCount();
+            summaries.put(entry.getKey(), summary);
+            if (aggregateForName.getErrorCount() > 0) {
+                MutableErrorSummary errorSummary = new MutableErrorSummary();
+                errorSummary.errorCount = aggregateForName.getErrorCount();
+                errorSummary.transactionCount =
+                        transactionAggregate.getErrorIntervalTransactionCount();
+                errorSummaries.put(entry.getKey(), errorSummary);
+            }
+        }
+        futures.add(insertTransactionSummaries(rollup, query, summaries));
+        futures.add(insertTransactionErrorSummaries(rollup, query, errorSummaries));
+
+        futures.addAll(rollupOtherPartsFromPartial(rollup, query, overallAggregate,
+                scratchBuffer));
+        for (Map.Entry<String, PartialAggregate> entry : transactionTypeRollup
+                .getTransactionAggregates().entrySet()) {
+            futures.addAll(rollupOtherPartsFromPartial(rollup,
+                    query.withTransactionName(entry.getKey()), entry.getValue(), scratchBuffer));
+        }
+        return futures;
+    }
+
     private List<Future<?>> rollupOtherParts(RollupParams rollup, AggregateQuery query,
             ScratchBuffer scratchBuffer) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
@@ -1019,6 +1182,36 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
+    private List<Future<?>> rollupOtherPartsFromPartial(RollupParams rollup,
+            AggregateQuery query, PartialAggregate partialAggregate, ScratchBuffer scratchBuffer)
+            throws Exception {
+        MutableAggregate aggregate = partialAggregate.getAggregate();
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(insertOverview(rollup, query, aggregate));
+        futures.add(insertHistogram(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.getDurationNanosHistogram(),
+                scratchBuffer));
+        futures.add(insertThroughput(rollup, query, aggregate.getTransactionCount(),
+                aggregate.getErrorCount()));
+        futures.add(insertQueries(partialAggregate.getSortedAndTruncatedQueries(),
+                rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                query.transactionName(), query.to(), rollup.adjustedTTL()));
+        futures.add(insertServiceCalls(partialAggregate.getSortedAndTruncatedServiceCalls(),
+                rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                query.transactionName(), query.to(), rollup.adjustedTTL()));
+        MutableProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            futures.add(insertThreadProfile(rollup, query, mainThreadProfileTable,
+                    mainThreadProfile.toProto()));
+        }
+        MutableProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            futures.add(insertThreadProfile(rollup, query, auxThreadProfileTable,
+                    auxThreadProfile.toProto()));
+        }
+        return futures;
+    }
+
     private ListenableFuture<?> rollupOverallSummary(RollupParams rollup, AggregateQuery query)
             throws Exception {
         ListenableFuture<ResultSet> future =
@@ -1051,6 +1244,11 @@ public class AggregateDaoImpl implements AggregateDao {
             totalDurationNanos += row.getDouble(0);
             transactionCount += row.getLong(1);
         }
+        return insertOverallSummary(rollup, query, totalDurationNanos, transactionCount);
+    }
+
+    private ListenableFuture<?> insertOverallSummary(RollupParams rollup, AggregateQuery query,
+            double totalDurationNanos, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(summaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1095,6 +1293,11 @@ public class AggregateDaoImpl implements AggregateDao {
             errorCount += row.getLong(0);
             transactionCount += row.getLong(1);
         }
+        return insertErrorSummary(rollup, query, errorCount, transactionCount);
+    }
+
+    private ListenableFuture<?> insertErrorSummary(RollupParams rollup, AggregateQuery query,
+            long errorCount, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(errorSummaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1192,7 +1395,6 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupTransactionErrorSummaryFromRows(RollupParams rollup,
             AggregateQuery query, Iterable<Row> rows) throws Exception {
-        BoundStatement boundStatement;
         Map<String, MutableErrorSummary> summaries = new HashMap<>();
         for (Row row : rows) {
             int i = 0;
@@ -1205,12 +1407,17 @@ public class AggregateDaoImpl implements AggregateDao {
             summary.errorCount += row.getLong(i++);
             summary.transactionCount += row.getLong(i++);
         }
+        return insertTransactionErrorSummaries(rollup, query, summaries);
+    }
+
+    private ListenableFuture<?> insertTransactionErrorSummaries(RollupParams rollup,
+            AggregateQuery query, Map<String, MutableErrorSummary> summaries) throws Exception {
         PreparedStatement preparedStatement =
                 getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel());
         List<ListenableFuture<?>> futures = new ArrayList<>();
         for (Map.Entry<String, MutableErrorSummary> entry : summaries.entrySet()) {
             MutableErrorSummary summary = entry.getValue();
-            boundStatement = preparedStatement.bind();
+            BoundStatement boundStatement = preparedStatement.bind();
             int i = 0;
             boundStatement.setString(i++, rollup.agentRollupId());
             boundStatement.setString(i++, query.transactionType());
@@ -1250,28 +1457,19 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupOverviewFromRows(RollupParams rollup, AggregateQuery query,
             Iterable<Row> rows) throws Exception {
-        double totalDurationNanos = 0;
-        long transactionCount = 0;
-        boolean asyncTransactions = false;
-        List<MutableTimer> mainThreadRootTimers = new ArrayList<>();
-        MutableThreadStats mainThreadStats = new MutableThreadStats();
-        MutableTimer auxThreadRootTimer = MutableTimer.createAuxThreadRootTimer();
-        MutableThreadStats auxThreadStats = new MutableThreadStats();
-        List<MutableTimer> asyncTimers = new ArrayList<>();
+        // query and service call limits are not used since only merging overview data
+        MutableAggregate aggregate = new MutableAggregate(0, 0);
         for (Row row : rows) {
             int i = 0;
-            totalDurationNanos += row.getDouble(i++);
-            transactionCount += row.getLong(i++);
-            if (row.getBool(i++)) {
-                asyncTransactions = true;
-            }
-            List<Aggregate.Timer> toBeMergedMainThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedMainThreadRootTimers, mainThreadRootTimers);
-            mainThreadStats.addTotalCpuNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalBlockedNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalWaitedNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalAllocatedBytes(getNextThreadStat(row, i++));
+            aggregate.addTotalDurationNanos(row.getDouble(i++));
+            aggregate.addTransactionCount(row.getLong(i++));
+            aggregate.addAsyncTransactions(row.getBool(i++));
+            aggregate.mergeMainThreadRootTimers(
+                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser()));
+            aggregate.addMainThreadTotalCpuNanos(getNextThreadStat(row, i++));
+            aggregate.addMainThreadTotalBlockedNanos(getNextThreadStat(row, i++));
+            aggregate.addMainThreadTotalWaitedNanos(getNextThreadStat(row, i++));
+            aggregate.addMainThreadTotalAllocatedBytes(getNextThreadStat(row, i++));
             // reading delimited singleton list for backwards compatibility with data written
             // prior to 0.12.0
             List<Aggregate.Timer> list =
@@ -1280,16 +1478,20 @@ public class AggregateDaoImpl implements AggregateDao {
             if (toBeMergedAuxThreadRootTimer == null) {
                 i += 4;
             } else {
-                auxThreadRootTimer.merge(toBeMergedAuxThreadRootTimer);
-                auxThreadStats.addTotalCpuNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalBlockedNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalWaitedNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalAllocatedBytes(getNextThreadStat(row, i++));
+                aggregate.mergeAuxThreadRootTimer(toBeMergedAuxThreadRootTimer);
+                aggregate.addAuxThreadTotalCpuNanos(getNextThreadStat(row, i++));
+                aggregate.addAuxThreadTotalBlockedNanos(getNextThreadStat(row, i++));
+                aggregate.addAuxThreadTotalWaitedNanos(getNextThreadStat(row, i++));
+                aggregate.addAuxThreadTotalAllocatedBytes(getNextThreadStat(row, i++));
             }
-            List<Aggregate.Timer> toBeMergedAsyncTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedAsyncTimers, asyncTimers);
+            aggregate.mergeAsyncTimers(
+                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser()));
         }
+        return insertOverview(rollup, query, aggregate);
+    }
+
+    private ListenableFuture<?> insertOverview(RollupParams rollup, AggregateQuery query,
+            MutableAggregate aggregate) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(overviewTable, rollup.rollupLevel()).bind();
@@ -1303,36 +1505,40 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setString(i++, query.transactionName());
         }
         boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setDouble(i++, totalDurationNanos);
-        boundStatement.setLong(i++, transactionCount);
-        boundStatement.setBool(i++, asyncTransactions);
+        boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
+        boundStatement.setLong(i++, aggregate.getTransactionCount());
+        boundStatement.setBool(i++, aggregate.isAsyncTransactions());
         boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
+                Messages.toByteBuffer(aggregate.getMainThreadRootTimersProto()));
+        MutableThreadStats mainThreadStats = aggregate.getMainThreadStats();
         boundStatement.setDouble(i++, mainThreadStats.getTotalCpuNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalBlockedNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalWaitedNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalAllocatedBytes());
-        if (auxThreadRootTimer.getCount() == 0) {
+        Aggregate.Timer auxThreadRootTimer = aggregate.getAuxThreadRootTimerProto();
+        if (auxThreadRootTimer == null || auxThreadRootTimer.getCount() == 0) {
             boundStatement.setToNull(i++);
             boundStatement.setToNull(i++);
             boundStatement.setToNull(i++);
             boundStatement.setToNull(i++);
             boundStatement.setToNull(i++);
         } else {
+            // aux thread stats is non-null when aux thread root timer is non-null
+            MutableThreadStats auxThreadStats = checkNotNull(aggregate.getAuxThreadStats());
             // writing as delimited singleton list for backwards compatibility with data written
             // prior to 0.12.0
-            boundStatement.setBytes(i++, Messages
-                    .toByteBuffer(MutableAggregate.toProto(ImmutableList.of(auxThreadRootTimer))));
+            boundStatement.setBytes(i++,
+                    Messages.toByteBuffer(ImmutableList.of(auxThreadRootTimer)));
             boundStatement.setDouble(i++, auxThreadStats.getTotalCpuNanos());
             boundStatement.setDouble(i++, auxThreadStats.getTotalBlockedNanos());
             boundStatement.setDouble(i++, auxThreadStats.getTotalWaitedNanos());
             boundStatement.setDouble(i++, auxThreadStats.getTotalAllocatedBytes());
         }
+        List<Aggregate.Timer> asyncTimers = aggregate.getAsyncTimersProto();
         if (asyncTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(asyncTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(asyncTimers));
         }
         boundStatement.setInt(i++, rollup.adjustedTTL().generalTTL());
         return session.writeAsync(boundStatement);
@@ -1375,6 +1581,13 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(i++));
             durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(bytes));
         }
+        return insertHistogram(rollup, query, totalDurationNanos, transactionCount,
+                durationNanosHistogram, scratchBuffer);
+    }
+
+    private ListenableFuture<?> insertHistogram(RollupParams rollup, AggregateQuery query,
+            double totalDurationNanos, long transactionCount, LazyHistogram durationNanosHistogram,
+            ScratchBuffer scratchBuffer) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(histogramTable, rollup.rollupLevel()).bind();
@@ -1390,7 +1603,8 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setDouble(i++, totalDurationNanos);
         boundStatement.setLong(i++, transactionCount);
-        boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
+        boundStatement.setBytes(i++,
+                toByteBuffer(durationNanosHistogram.toProtoWithSketch(scratchBuffer)));
         boundStatement.setInt(i++, rollup.adjustedTTL().generalTTL());
         return session.writeAsync(boundStatement);
     }
@@ -1434,6 +1648,12 @@ public class AggregateDaoImpl implements AggregateDao {
                 errorCount += row.getLong(1);
             }
         }
+        return insertThroughput(rollup, query, transactionCount,
+                hasMissingErrorCount ? null : errorCount);
+    }
+
+    private ListenableFuture<?> insertThroughput(RollupParams rollup, AggregateQuery query,
+            long transactionCount, @Nullable Long errorCount) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
@@ -1448,7 +1668,7 @@ public class AggregateDaoImpl implements AggregateDao {
         }
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setLong(i++, transactionCount);
-        if (hasMissingErrorCount) {
+        if (errorCount == null) {
             boundStatement.setToNull(i++);
         } else {
             boundStatement.setLong(i++, errorCount);
@@ -1577,6 +1797,11 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(bytes));
         }
+        return insertThreadProfile(rollup, query, table, profile.toProto());
+    }
+
+    private ListenableFuture<?> insertThreadProfile(RollupParams rollup, AggregateQuery query,
+            Table table, Profile profile) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
@@ -1590,7 +1815,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setString(i++, query.transactionName());
         }
         boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setBytes(i++, toByteBuffer(profile.toProto()));
+        boundStatement.setBytes(i++, toByteBuffer(profile));
         boundStatement.setInt(i++, rollup.adjustedTTL().profileTTL());
         return session.writeAsync(boundStatement);
     }
@@ -1669,7 +1894,8 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
-        boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
+        boundStatement.setBytes(i++,
+                toByteBuffer(QuantileSketch.withSketch(aggregate.getDurationNanosHistogram())));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
         futures.add(session.writeAsync(boundStatement));
 
@@ -1736,7 +1962,8 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
-        boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
+        boundStatement.setBytes(i++,
+                toByteBuffer(QuantileSketch.withSketch(aggregate.getDurationNanosHistogram())));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
         futures.add(session.writeAsync(boundStatement));
 
@@ -2033,6 +2260,21 @@ public class AggregateDaoImpl implements AggregateDao {
         }
     }
 
+    private void invalidateCachedAggregates(String agentRollupId, int rollupLevel, long from,
+            long to) {
+        overviewAggregateCache.invalidate(agentRollupId, rollupLevel, from, to);
+        percentileAggregateCache.invalidate(agentRollupId, rollupLevel, from, to);
+        throughputAggregateCache.invalidate(agentRollupId, rollupLevel, from, to);
+    }
+
+    // aggregates are only cached once they are at least two rollup intervals old, which gives
+    // time for them to be stored and rolled up
+    private long getSafeCaptureTime(int rollupLevel) {
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        return clock.currentTimeMillis() - 2 * intervalMillis;
+    }
+
     private List<TTL> getTTLs() throws Exception {
         List<Integer> rollupExpirationHours =
                 configRepository.getCentralStorageConfig().rollupExpirationHours();
@@ -2171,7 +2413,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static List<Aggregate.Query> getQueries(Aggregate aggregate) {
+    static List<Aggregate.Query> getQueries(Aggregate aggregate) {
         List<Aggregate.OldQueriesByType> queriesByTypeList = aggregate.getOldQueriesByTypeList();
         if (queriesByTypeList.isEmpty()) {
             return aggregate.getQueryList();
@@ -2191,7 +2433,7 @@ public class AggregateDaoImpl implements AggregateDao {
         return queries;
     }
 
-    private static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
+    static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
         List<Aggregate.OldServiceCallsByType> serviceCallsByTypeList =
                 aggregate.getOldServiceCallsByTypeList();
         if (serviceCallsByTypeList.isEmpty()) {
@@ -2359,6 +2601,29 @@ public class AggregateDaoImpl implements AggregateDao {
         return sb.toString();
     }
 
+    private static int getEstimatedBytes(OverviewAggregate aggregate) {
+        int bytes = AGGREGATE_OVERHEAD_BYTES + aggregate.mainThreadStats().getSerializedSize();
+        for (Aggregate.Timer timer : aggregate.mainThreadRootTimers()) {
+            bytes += timer.getSerializedSize();
+        }
+        Aggregate.Timer auxThreadRootTimer = aggregate.auxThreadRootTimer();
+        if (auxThreadRootTimer != null) {
+            bytes += auxThreadRootTimer.getSerializedSize();
+        }
+        Aggregate.ThreadStats auxThreadStats = aggregate.auxThreadStats();
+        if (auxThreadStats != null) {
+            bytes += auxThreadStats.getSerializedSize();
+        }
+        for (Aggregate.Timer timer : aggregate.asyncTimers()) {
+            bytes += timer.getSerializedSize();
+        }
+        return bytes;
+    }
+
+    private static int getEstimatedBytes(PercentileAggregate aggregate) {
+        return AGGREGATE_OVERHEAD_BYTES + aggregate.durationNanosHistogram().getSerializedSize();
+    }
+
     private static String insertSummaryPS(Table table, boolean transaction, int i) {
         StringBuilder sb = new StringBuilder();
         sb.append("insert into ");
@@ -67,8 +67,8 @@ public class CentralRepoModule {
 
     public CentralRepoModule(ClusterManager clusterManager, Session session, File confDir,
             String cassandraSymmetricEncryptionKey, ExecutorService asyncExecutor,
-            int targetMaxActiveAgentsInPast7Days, int targetMaxCentralUiUsers, Clock clock)
-            throws Exception {
+            int targetMaxActiveAgentsInPast7Days, int targetMaxCentralUiUsers,
+            boolean incrementalAggregateRollups, Clock clock) throws Exception {
 
         boolean populateFromAdminDefault = session.getTable("central_config") == null;
 
@@ -138,7 +138,8 @@ public class CentralRepoModule {
         }
         fullQueryTextDao = new FullQueryTextDao(session, configRepository, asyncExecutor);
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, clock);
+                transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor,
+                incrementalAggregateRollups, clock);
         GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
                 clusterManager, asyncExecutor, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl = new SyntheticResultDaoImpl(session,
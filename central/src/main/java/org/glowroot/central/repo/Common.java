@@ -165,19 +165,24 @@ class Common {
     // present rollup has completed
     // if insert after deleting present rollup then possible for error to occur in between
     // and insert would never happen
-    static void postRollup(String agentRollupId, long captureTime, Set<String> keys,
+    //
+    // returns the uniqueness key of the inserted next "needs rollup" record, or null if there is no
+    // next rollup level
+    static @Nullable UUID postRollup(String agentRollupId, long captureTime, Set<String> keys,
             Set<UUID> uniquenessKeysForDeletion, @Nullable Long nextRollupIntervalMillis,
             @Nullable PreparedStatement insertNeedsRollup, PreparedStatement deleteNeedsRollup,
             int needsRollupAdjustedTTL, Session session) throws Exception {
+        UUID nextUniqueness = null;
         if (nextRollupIntervalMillis != null) {
             checkNotNull(insertNeedsRollup);
             long rollupCaptureTime = CaptureTimes.getRollup(captureTime,
                     nextRollupIntervalMillis);
+            nextUniqueness = UUIDs.timeBased();
             BoundStatement boundStatement = insertNeedsRollup.bind();
             int i = 0;
             boundStatement.setString(i++, agentRollupId);
             boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
+            boundStatement.setUUID(i++, nextUniqueness);
             boundStatement.setSet(i++, keys);
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
             // intentionally not async, see method-level comment
@@ -193,6 +198,7 @@ class Common {
             futures.add(session.writeAsync(boundStatement));
         }
         MoreFutures.waitForAll(futures);
+        return nextUniqueness;
     }
 
     static boolean isOldEnoughToRollup(long captureTime, long currentTimeMillis,
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+// packs the values of a single gauge into a compact blob, using delta-of-delta encoding for the
+// capture times and weights (which are nearly always collected at a fixed interval, and so
+// typically take a single bit each), and XOR encoding for the values (which typically change
+// slowly, so consecutive values share sign, exponent and high order mantissa bits), see
+// "Gorilla: A Fast, Scalable, In-Memory Time Series Database" (http://www.vldb.org/pvldb/vol8/
+// p1816-teller.pdf)
+//
+// gauge values must be passed in capture time order, and the gauge name is not included in the
+// encoded blob (it is part of the primary key)
+class GaugeValueBlocks {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private GaugeValueBlocks() {}
+
+    static ByteBuffer encode(List<GaugeValue> gaugeValues) {
+        BitWriter writer = new BitWriter();
+        writer.writeBits(FORMAT_VERSION, 8);
+        writer.writeBits(gaugeValues.size(), 32);
+        if (gaugeValues.isEmpty()) {
+            return writer.toByteBuffer();
+        }
+        GaugeValue first = gaugeValues.get(0);
+        writer.writeBits(first.getCaptureTime(), 64);
+        writer.writeBits(Double.doubleToRawLongBits(first.getValue()), 64);
+        writer.writeBits(first.getWeight(), 64);
+        DeltaOfDeltaEncoder captureTimeEncoder = new DeltaOfDeltaEncoder(first.getCaptureTime());
+        XorEncoder valueEncoder = new XorEncoder(first.getValue());
+        DeltaOfDeltaEncoder weightEncoder = new DeltaOfDeltaEncoder(first.getWeight());
+        for (int i = 1; i < gaugeValues.size(); i++) {
+            GaugeValue gaugeValue = gaugeValues.get(i);
+            captureTimeEncoder.encode(writer, gaugeValue.getCaptureTime());
+            valueEncoder.encode(writer, gaugeValue.getValue());
+            weightEncoder.encode(writer, gaugeValue.getWeight());
+        }
+        return writer.toByteBuffer();
+    }
+
+    static List<GaugeValue> decode(ByteBuffer buffer) {
+        BitReader reader = new BitReader(buffer);
+        int formatVersion = (int) reader.readBits(8);
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IllegalStateException("Unexpected gauge value block format version: "
+                    + formatVersion);
+        }
+        int count = (int) reader.readBits(32);
+        List<GaugeValue> gaugeValues = new ArrayList<>(count);
+        if (count == 0) {
+            return gaugeValues;
+        }
+        long captureTime = reader.readBits(64);
+        double value = Double.longBitsToDouble(reader.readBits(64));
+        long weight = reader.readBits(64);
+        gaugeValues.add(GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build());
+        DeltaOfDeltaDecoder captureTimeDecoder = new DeltaOfDeltaDecoder(captureTime);
+        XorDecoder valueDecoder = new XorDecoder(value);
+        DeltaOfDeltaDecoder weightDecoder = new DeltaOfDeltaDecoder(weight);
+        for (int i = 1; i < count; i++) {
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setCaptureTime(captureTimeDecoder.decode(reader))
+                    .setValue(valueDecoder.decode(reader))
+                    .setWeight(weightDecoder.decode(reader))
+                    .build());
+        }
+        return gaugeValues;
+    }
+
+    // control bits:
+    // '0' delta-of-delta is zero
+    // '10' followed by 7 bit delta-of-delta
+    // '110' followed by 9 bit delta-of-delta
+    // '1110' followed by 12 bit delta-of-delta
+    // '1111' followed by 64 bit delta-of-delta
+    private static class DeltaOfDeltaEncoder {
+
+        private long priorValue;
+        private long priorDelta;
+
+        private DeltaOfDeltaEncoder(long firstValue) {
+            priorValue = firstValue;
+        }
+
+        private void encode(BitWriter writer, long value) {
+            long delta = value - priorValue;
+            long deltaOfDelta = delta - priorDelta;
+            if (deltaOfDelta == 0) {
+                writer.writeBit(false);
+            } else if (fitsInBits(deltaOfDelta, 7)) {
+                writer.writeBits(0b10, 2);
+                writer.writeBits(deltaOfDelta, 7);
+            } else if (fitsInBits(deltaOfDelta, 9)) {
+                writer.writeBits(0b110, 3);
+                writer.writeBits(deltaOfDelta, 9);
+            } else if (fitsInBits(deltaOfDelta, 12)) {
+                writer.writeBits(0b1110, 4);
+                writer.writeBits(deltaOfDelta, 12);
+            } else {
+                writer.writeBits(0b1111, 4);
+                writer.writeBits(deltaOfDelta, 64);
+            }
+            priorValue = value;
+            priorDelta = delta;
+        }
+
+        private static boolean fitsInBits(long value, int bits) {
+            long limit = 1L << (bits - 1);
+            return value >= -limit && value < limit;
+        }
+    }
+
+    private static class DeltaOfDeltaDecoder {
+
+        private long priorValue;
+        private long priorDelta;
+
+        private DeltaOfDeltaDecoder(long firstValue) {
+            priorValue = firstValue;
+        }
+
+        private long decode(BitReader reader) {
+            long deltaOfDelta;
+            if (!reader.readBit()) {
+                deltaOfDelta = 0;
+            } else if (!reader.readBit()) {
+                deltaOfDelta = reader.readSignedBits(7);
+            } else if (!reader.readBit()) {
+                deltaOfDelta = reader.readSignedBits(9);
+            } else if (!reader.readBit()) {
+                deltaOfDelta = reader.readSignedBits(12);
+            } else {
+                deltaOfDelta = reader.readBits(64);
+            }
+            priorDelta += deltaOfDelta;
+            priorValue += priorDelta;
+            return priorValue;
+        }
+    }
+
+    // control bits:
+    // '0' value is the same as the prior value
+    // '10' followed by the meaningful bits of the XOR, using the prior leading and trailing zeros
+    // '11' followed by 6 bits of leading zeros, 6 bits of meaningful bit length (0 meaning 64) and
+    // then the meaningful bits of the XOR
+    private static class XorEncoder {
+
+        private long priorBits;
+        private int priorLeadingZeros = Integer.MAX_VALUE;
+        private int priorTrailingZeros;
+
+        private XorEncoder(double firstValue) {
+            priorBits = Double.doubleToRawLongBits(firstValue);
+        }
+
+        private void encode(BitWriter writer, double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            long xor = bits ^ priorBits;
+            if (xor == 0) {
+                writer.writeBit(false);
+            } else {
+                int leadingZeros = Long.numberOfLeadingZeros(xor);
+                int trailingZeros = Long.numberOfTrailingZeros(xor);
+                if (leadingZeros >= priorLeadingZeros && trailingZeros >= priorTrailingZeros) {
+                    writer.writeBits(0b10, 2);
+                    int meaningfulBits = 64 - priorLeadingZeros - priorTrailingZeros;
+                    writer.writeBits(xor >>> priorTrailingZeros, meaningfulBits);
+                } else {
+                    // leading zeros can be at most 63 here since xor is non-zero
+                    int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                    writer.writeBits(0b11, 2);
+                    writer.writeBits(leadingZeros, 6);
+                    writer.writeBits(meaningfulBits, 6);
+                    writer.writeBits(xor >>> trailingZeros, meaningfulBits);
+                    priorLeadingZeros = leadingZeros;
+                    priorTrailingZeros = trailingZeros;
+                }
+            }
+            priorBits = bits;
+        }
+    }
+
+    private static class XorDecoder {
+
+        private long priorBits;
+        private int priorLeadingZeros;
+        private int priorTrailingZeros;
+
+        private XorDecoder(double firstValue) {
+            priorBits = Double.doubleToRawLongBits(firstValue);
+        }
+
+        private double decode(BitReader reader) {
+            if (reader.readBit()) {
+                if (reader.readBit()) {
+                    priorLeadingZeros = (int) reader.readBits(6);
+                    int meaningfulBits = (int) reader.readBits(6);
+                    if (meaningfulBits == 0) {
+                        meaningfulBits = 64;
+                    }
+                    priorTrailingZeros = 64 - priorLeadingZeros - meaningfulBits;
+                }
+                int meaningfulBits = 64 - priorLeadingZeros - priorTrailingZeros;
+                priorBits ^= reader.readBits(meaningfulBits) << priorTrailingZeros;
+            }
+            return Double.longBitsToDouble(priorBits);
+        }
+    }
+
+    private static class BitWriter {
+
+        private byte[] bytes = new byte[64];
+        private int bitPosition;
+
+        private void writeBit(boolean bit) {
+            ensureCapacity(bitPosition + 1);
+            if (bit) {
+                bytes[bitPosition >>> 3] |= (byte) (0x80 >>> (bitPosition & 7));
+            }
+            bitPosition++;
+        }
+
+        // writes the lowest numBits of value, most significant bit first
+        private void writeBits(long value, int numBits) {
+            for (int i = numBits - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) != 0);
+            }
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, (bitPosition + 7) >>> 3).slice();
+        }
+
+        private void ensureCapacity(int numBits) {
+            int numBytes = (numBits + 7) >>> 3;
+            if (numBytes > bytes.length) {
+                byte[] temp = new byte[Math.max(numBytes, bytes.length * 2)];
+                System.arraycopy(bytes, 0, temp, 0, bytes.length);
+                bytes = temp;
+            }
+        }
+    }
+
+    private static class BitReader {
+
+        private final ByteBuffer buffer;
+        private final int startPosition;
+        private int bitPosition;
+
+        private BitReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            startPosition = buffer.position();
+        }
+
+        private boolean readBit() {
+            int b = buffer.get(startPosition + (bitPosition >>> 3));
+            boolean bit = (b & (0x80 >>> (bitPosition & 7))) != 0;
+            bitPosition++;
+            return bit;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        private long readSignedBits(int numBits) {
+            long value = readBits(numBits);
+            // sign extend
+            return (value << (64 - numBits)) >> (64 - numBits);
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,6 +24,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -40,6 +41,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.serial.Serial;
@@ -50,6 +52,7 @@ import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.MoreFutures.DoRollup;
+import org.glowroot.central.util.MoreFutures.DoWithResults;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
@@ -67,6 +70,21 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class GaugeValueDaoImpl implements GaugeValueDao {
 
+    // gauge values at every rollup level except the last are also packed into blocks (one blob per
+    // gauge per block interval), once per block when the block interval closes, so the individual
+    // rows at those levels are only read for the block intervals that have not been packed (e.g.
+    // the most recent block interval(s), and data stored prior to blocks being introduced)
+    //
+    // the individual rows are written with the full TTL of their rollup level, since there is no
+    // bound on how long packing can be delayed (e.g. central being down, or a rollup backlog), and
+    // since the tables use TWCS, expiring (or deleting) them any earlier would not free up their
+    // space any earlier anyways
+
+    // number of intervals of the next rollup level that are packed into each block, e.g. 1-hour
+    // blocks of 5-second gauge values (720 values), and 5-hour blocks of 1-minute gauge values (300
+    // values) when using the default rollup configuration
+    private static final int BLOCK_INTERVAL_MULTIPLIER = 60;
+
     private final Session session;
     private final ConfigRepositoryImpl configRepository;
     private final ExecutorService asyncExecutor;
@@ -81,6 +99,12 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     private final ImmutableList<PreparedStatement> readValueForRollupPS;
     private final PreparedStatement readValueForRollupFromChildPS;
 
+    // index is rollupLevel, and there are no blocks for the last rollup level
+    private final ImmutableList<PreparedStatement> insertBlockPS;
+    private final ImmutableList<PreparedStatement> readBlockPS;
+    private final ImmutableList<PreparedStatement> readBlocksPS;
+    private final ImmutableList<PreparedStatement> readOldestBlockPS;
+
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
@@ -127,9 +151,9 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             readOldestCaptureTimePS.add(session.prepare("select capture_time from"
                     + " gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name = ?"
                     + " limit 1"));
-            readValueForRollupPS.add(session.prepare("select value, weight from gauge_value_rollup_"
-                    + i + " where agent_rollup = ? and gauge_name = ? and capture_time > ? and"
-                    + " capture_time <= ?"));
+            readValueForRollupPS.add(session.prepare("select value, weight, capture_time from"
+                    + " gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name = ? and"
+                    + " capture_time > ? and capture_time <= ?"));
         }
         this.insertValuePS = ImmutableList.copyOf(insertValuePS);
         this.readValuePS = ImmutableList.copyOf(readValuePS);
@@ -139,6 +163,34 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
                 + " gauge_value_rollup_1 where agent_rollup = ? and gauge_name = ? and"
                 + " capture_time = ?");
 
+        List<PreparedStatement> insertBlockPS = new ArrayList<>();
+        List<PreparedStatement> readBlockPS = new ArrayList<>();
+        List<PreparedStatement> readBlocksPS = new ArrayList<>();
+        List<PreparedStatement> readOldestBlockPS = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // capture_time is the end of the block interval (inclusive), same as rollup capture
+            // times
+            session.createTableWithTWCS("create table if not exists gauge_value_block_rollup_" + i
+                    + " (agent_rollup varchar, gauge_name varchar, capture_time timestamp, block"
+                    + " blob, primary key ((agent_rollup, gauge_name), capture_time))",
+                    rollupExpirationHours.get(i));
+            insertBlockPS.add(session.prepare("insert into gauge_value_block_rollup_" + i
+                    + " (agent_rollup, gauge_name, capture_time, block) values (?, ?, ?, ?) using"
+                    + " ttl ?"));
+            readBlockPS.add(session.prepare("select block from gauge_value_block_rollup_" + i
+                    + " where agent_rollup = ? and gauge_name = ? and capture_time = ?"));
+            readBlocksPS.add(session.prepare("select capture_time, block from"
+                    + " gauge_value_block_rollup_" + i
+                    + " where agent_rollup = ? and gauge_name = ? and capture_time >= ? and"
+                    + " capture_time <= ?"));
+            readOldestBlockPS.add(session.prepare("select block from gauge_value_block_rollup_"
+                    + i + " where agent_rollup = ? and gauge_name = ? limit 1"));
+        }
+        this.insertBlockPS = ImmutableList.copyOf(insertBlockPS);
+        this.readBlockPS = ImmutableList.copyOf(readBlockPS);
+        this.readBlocksPS = ImmutableList.copyOf(readBlocksPS);
+        this.readOldestBlockPS = ImmutableList.copyOf(readOldestBlockPS);
+
         // since rollup operations are idempotent, any records resurrected after gc_grace_seconds
         // would just create extra work, but not have any other effect
         //
@@ -288,6 +340,49 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     @Override
     public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
             long to, int rollupLevel) throws Exception {
+        if (rollupLevel >= insertBlockPS.size()) {
+            // values at the last rollup level are not packed into blocks
+            return readUnpackedGaugeValues(agentRollupId, gaugeName, from, to, rollupLevel);
+        }
+        long blockIntervalMillis = getBlockIntervalMillis(rollupLevel);
+        BoundStatement boundStatement = readBlocksPS.get(rollupLevel).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++,
+                new Date(CaptureTimes.getRollup(from, blockIntervalMillis)));
+        boundStatement.setTimestamp(i++, new Date(CaptureTimes.getRollup(to, blockIntervalMillis)));
+        ResultSet results = session.read(boundStatement);
+        List<GaugeValue> gaugeValues = new ArrayList<>();
+        // the individual rows are only read for the parts of the range that are not covered by a
+        // packed block, e.g. the open block interval(s), and any data stored prior to blocks being
+        // introduced
+        long rowsFrom = from;
+        for (Row row : results) {
+            long blockCaptureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            long blockFrom = blockCaptureTime - blockIntervalMillis + 1;
+            if (blockFrom > rowsFrom) {
+                gaugeValues.addAll(readUnpackedGaugeValues(agentRollupId, gaugeName, rowsFrom,
+                        Math.min(blockFrom - 1, to), rollupLevel));
+            }
+            for (GaugeValue gaugeValue : GaugeValueBlocks.decode(checkNotNull(row.getBytes(1)))) {
+                long captureTime = gaugeValue.getCaptureTime();
+                if (captureTime >= from && captureTime <= to) {
+                    gaugeValues.add(gaugeValue);
+                }
+            }
+            rowsFrom = Math.max(rowsFrom, blockCaptureTime + 1);
+        }
+        if (rowsFrom <= to) {
+            gaugeValues.addAll(
+                    readUnpackedGaugeValues(agentRollupId, gaugeName, rowsFrom, to, rollupLevel));
+        }
+        return gaugeValues;
+    }
+
+    // from is INCLUSIVE
+    private List<GaugeValue> readUnpackedGaugeValues(String agentRollupId, String gaugeName,
+            long from, long to, int rollupLevel) throws Exception {
         BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -316,7 +411,25 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         boundStatement.setString(i++, gaugeName);
         ResultSet results = session.read(boundStatement);
         Row row = results.one();
-        return row == null ? Long.MAX_VALUE : checkNotNull(row.getTimestamp(0)).getTime();
+        long oldestCaptureTime =
+                row == null ? Long.MAX_VALUE : checkNotNull(row.getTimestamp(0)).getTime();
+        if (rollupLevel < insertBlockPS.size()) {
+            boundStatement = readOldestBlockPS.get(rollupLevel).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, gaugeName);
+            results = session.read(boundStatement);
+            row = results.one();
+            if (row != null) {
+                List<GaugeValue> gaugeValues =
+                        GaugeValueBlocks.decode(checkNotNull(row.getBytes(0)));
+                if (!gaugeValues.isEmpty()) {
+                    oldestCaptureTime =
+                            Math.min(oldestCaptureTime, gaugeValues.get(0).getCaptureTime());
+                }
+            }
+        }
+        return oldestCaptureTime;
     }
 
     @Override
@@ -342,7 +455,8 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         }
         while (rollupLevel <= configRepository.getRollupConfigs().size()) {
             int ttl = ttls.get(rollupLevel);
-            rollup(agentRollupId, parentAgentRollupId, rollupLevel, ttl);
+            int blockTTL = ttls.get(rollupLevel - 1);
+            rollup(agentRollupId, parentAgentRollupId, rollupLevel, ttl, blockTTL);
             rollupLevel++;
         }
     }
@@ -350,12 +464,17 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     private SetMultimap<Long, String> getRollupCaptureTimes(List<GaugeValue> gaugeValues) {
         SetMultimap<Long, String> rollupCaptureTimes = HashMultimap.create();
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long blockIntervalMillis = getBlockIntervalMillis(0);
         for (GaugeValue gaugeValue : gaugeValues) {
             String gaugeName = gaugeValue.getGaugeName();
             long captureTime = gaugeValue.getCaptureTime();
             long intervalMillis = rollupConfigs.get(0).intervalMillis();
             long rollupCaptureTime = CaptureTimes.getRollup(captureTime, intervalMillis);
             rollupCaptureTimes.put(rollupCaptureTime, gaugeName);
+            // also needs rollup at the end of the block interval, so that the block is packed
+            // even if there are no values in the last rollup interval of the block
+            rollupCaptureTimes.put(CaptureTimes.getRollup(captureTime, blockIntervalMillis),
+                    gaugeName);
         }
         return rollupCaptureTimes;
     }
@@ -384,6 +503,10 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
 
             int needsRollupAdjustedTTL =
                     Common.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+            // insert needs to happen first before call to postRollup(), see method-level comment
+            // on postRollup
+            insertNeedsRollupForBlock(agentRollupId, rollupLevel, captureTime,
+                    needsRollupFromChildren.getKeys().keySet(), needsRollupAdjustedTTL);
             if (parentAgentRollupId != null) {
                 // insert needs to happen first before call to postRollup(), see method-level
                 // comment on postRollup
@@ -399,8 +522,9 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         }
     }
 
+    // blockTTL is the TTL of the prior rollup level, whose values are packed into blocks
     private void rollup(String agentRollupId, @Nullable String parentAgentRollupId, int rollupLevel,
-            int ttl) throws Exception {
+            int ttl, int blockTTL) throws Exception {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel - 1).intervalMillis();
         Collection<NeedsRollup> needsRollupList = Common.getNeedsRollupList(agentRollupId,
@@ -413,11 +537,12 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             long captureTime = needsRollup.getCaptureTime();
             long from = captureTime - rollupIntervalMillis;
             int adjustedTTL = Common.getAdjustedTTL(ttl, captureTime, clock);
+            int blockAdjustedTTL = Common.getAdjustedTTL(blockTTL, captureTime, clock);
             Set<String> gaugeNames = needsRollup.getKeys();
             List<ListenableFuture<?>> futures = new ArrayList<>();
             for (String gaugeName : gaugeNames) {
                 futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from, captureTime,
-                        adjustedTTL));
+                        adjustedTTL, blockAdjustedTTL));
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -447,6 +572,10 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
                 boundStatement.setInt(i++, needsRollupAdjustedTTL);
                 session.write(boundStatement);
             }
+            // insert needs to happen first before call to postRollup(), see method-level comment
+            // on postRollup
+            insertNeedsRollupForBlock(agentRollupId, rollupLevel, captureTime, gaugeNames,
+                    needsRollupAdjustedTTL);
             PreparedStatement insertNeedsRollup = nextRollupIntervalMillis == null ? null
                     : this.insertNeedsRollup.get(rollupLevel);
             PreparedStatement deleteNeedsRollup = this.deleteNeedsRollup.get(rollupLevel - 1);
@@ -481,7 +610,13 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
 
     // from is non-inclusive
     private ListenableFuture<?> rollupOne(int rollupLevel, String agentRollupId,
-            String gaugeName, long from, long to, int adjustedTTL) throws Exception {
+            String gaugeName, long from, long to, int adjustedTTL, int blockAdjustedTTL)
+            throws Exception {
+        long blockIntervalMillis = getBlockIntervalMillis(rollupLevel - 1);
+        if (to % blockIntervalMillis == 0) {
+            return rollupOneAndPackBlock(rollupLevel, agentRollupId, gaugeName, from, to,
+                    adjustedTTL, to - blockIntervalMillis, blockAdjustedTTL);
+        }
         BoundStatement boundStatement = readValueForRollupPS.get(rollupLevel - 1).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -501,6 +636,134 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         });
     }
 
+    // the block interval of the prior rollup level closes at the end of this rollup interval, so
+    // the whole block interval is read, both for the rollup and for packing the block
+    //
+    // there is a "needs rollup" record at the end of each block interval even when there are no
+    // values in its last rollup interval (see insertNeedsRollupForBlock()), so not warning if no
+    // rows are found
+    //
+    // from and blockFrom are non-inclusive
+    private ListenableFuture<?> rollupOneAndPackBlock(int rollupLevel, String agentRollupId,
+            String gaugeName, long from, long to, int adjustedTTL, long blockFrom,
+            int blockAdjustedTTL) throws Exception {
+        // the block may already have been packed, e.g. when re-packing after late arriving data
+        BoundStatement boundStatement = readBlockPS.get(rollupLevel - 1).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(to));
+        ListenableFuture<ResultSet> blockFuture = session.readAsync(boundStatement);
+        boundStatement = readValueForRollupPS.get(rollupLevel - 1).bind();
+        i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(blockFrom));
+        boundStatement.setTimestamp(i++, new Date(to));
+        ListenableFuture<ResultSet> rowsFuture = session.readAsync(boundStatement);
+        return MoreFutures.transformAsync(blockFuture, asyncExecutor, new DoWithResults() {
+            @Override
+            public ListenableFuture<?> execute(ResultSet blockResults) throws Exception {
+                Row blockRow = blockResults.one();
+                List<GaugeValue> existingBlockValues = blockRow == null ? null
+                        : GaugeValueBlocks.decode(checkNotNull(blockRow.getBytes(0)));
+                return MoreFutures.transformAsync(rowsFuture, asyncExecutor,
+                        new DoWithResults() {
+                            @Override
+                            public ListenableFuture<?> execute(ResultSet rowResults)
+                                    throws Exception {
+                                return rollupOneAndPackBlock(rollupLevel, agentRollupId,
+                                        gaugeName, from, to, adjustedTTL, blockAdjustedTTL,
+                                        existingBlockValues, rowResults);
+                            }
+                        });
+            }
+        });
+    }
+
+    private ListenableFuture<?> rollupOneAndPackBlock(int rollupLevel, String agentRollupId,
+            String gaugeName, long from, long to, int adjustedTTL, int blockAdjustedTTL,
+            @Nullable List<GaugeValue> existingBlockValues, Iterable<Row> rows) throws Exception {
+        // keyed by capture time, late arriving rows are merged into the existing block (replacing
+        // any existing values with the same capture time), instead of replacing the block, since
+        // some of the values that were packed into the existing block may no longer be available
+        // as individual rows
+        TreeMap<Long, GaugeValue> blockValues = new TreeMap<>();
+        if (existingBlockValues != null) {
+            for (GaugeValue gaugeValue : existingBlockValues) {
+                blockValues.put(gaugeValue.getCaptureTime(), gaugeValue);
+            }
+        }
+        boolean hasRows = false;
+        for (Row row : rows) {
+            long captureTime = checkNotNull(row.getTimestamp(2)).getTime();
+            blockValues.put(captureTime, GaugeValue.newBuilder()
+                    .setCaptureTime(captureTime)
+                    .setValue(row.getDouble(0))
+                    .setWeight(row.getLong(1))
+                    .build());
+            hasRows = true;
+        }
+        if (!hasRows) {
+            // nothing to pack (or re-pack), and nothing to roll up that has not already been
+            // rolled up when the block was packed
+            return Futures.immediateFuture(null);
+        }
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        futures.add(packBlock(rollupLevel - 1, agentRollupId, gaugeName, to, blockAdjustedTTL,
+                new ArrayList<>(blockValues.values())));
+        List<GaugeValue> rollupValues = new ArrayList<>(blockValues.tailMap(from, false).values());
+        if (!rollupValues.isEmpty()) {
+            futures.add(rollupOneFromValues(rollupLevel, agentRollupId, gaugeName, to,
+                    adjustedTTL, rollupValues));
+        }
+        return Futures.allAsList(futures);
+    }
+
+    // the block is written once (per needs rollup record), from the existing block (if any) merged
+    // with the individual rows in its interval
+    private ListenableFuture<?> packBlock(int rollupLevel, String agentRollupId, String gaugeName,
+            long blockCaptureTime, int adjustedTTL, List<GaugeValue> gaugeValues)
+            throws Exception {
+        BoundStatement boundStatement = insertBlockPS.get(rollupLevel).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, gaugeName);
+        boundStatement.setTimestamp(i++, new Date(blockCaptureTime));
+        boundStatement.setBytes(i++, GaugeValueBlocks.encode(gaugeValues));
+        boundStatement.setInt(i++, adjustedTTL);
+        return session.writeAsync(boundStatement);
+    }
+
+    // inserts a "needs rollup" record (for the next rollup level) at the end of the block interval
+    // that the values with the given capture time are packed into, so that the block is packed
+    // once its interval closes, even when there are no values in the last rollup interval of the
+    // block
+    private void insertNeedsRollupForBlock(String agentRollupId, int rollupLevel,
+            long captureTime, Set<String> gaugeNames, int needsRollupAdjustedTTL)
+            throws Exception {
+        if (rollupLevel >= insertBlockPS.size()) {
+            // values at the last rollup level are not packed into blocks
+            return;
+        }
+        long blockCaptureTime =
+                CaptureTimes.getRollup(captureTime, getBlockIntervalMillis(rollupLevel));
+        long nextRollupCaptureTime = CaptureTimes.getRollup(captureTime,
+                configRepository.getRollupConfigs().get(rollupLevel).intervalMillis());
+        if (blockCaptureTime == nextRollupCaptureTime) {
+            // already inserted by postRollup()
+            return;
+        }
+        BoundStatement boundStatement = insertNeedsRollup.get(rollupLevel).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setTimestamp(i++, new Date(blockCaptureTime));
+        boundStatement.setUUID(i++, UUIDs.timeBased());
+        boundStatement.setSet(i++, gaugeNames);
+        boundStatement.setInt(i++, needsRollupAdjustedTTL);
+        session.write(boundStatement);
+    }
+
     private ListenableFuture<?> rollupOneFromRows(int rollupLevel, String agentRollupId,
             String gaugeName, long to, int adjustedTTL, Iterable<Row> rows) throws Exception {
         double totalWeightedValue = 0;
@@ -511,12 +774,32 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             totalWeightedValue += value * weight;
             totalWeight += weight;
         }
+        return insertRollupValue(rollupLevel, agentRollupId, gaugeName, to, adjustedTTL,
+                totalWeightedValue, totalWeight);
+    }
+
+    private ListenableFuture<?> rollupOneFromValues(int rollupLevel, String agentRollupId,
+            String gaugeName, long to, int adjustedTTL, List<GaugeValue> gaugeValues)
+            throws Exception {
+        double totalWeightedValue = 0;
+        long totalWeight = 0;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
+            totalWeight += gaugeValue.getWeight();
+        }
+        return insertRollupValue(rollupLevel, agentRollupId, gaugeName, to, adjustedTTL,
+                totalWeightedValue, totalWeight);
+    }
+
+    private ListenableFuture<?> insertRollupValue(int rollupLevel, String agentRollupId,
+            String gaugeName, long to, int adjustedTTL, double totalWeightedValue,
+            long totalWeight) throws Exception {
         BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, gaugeName);
         boundStatement.setTimestamp(i++, new Date(to));
-        // individual gauge value weights cannot be zero, and rows is non-empty
+        // individual gauge value weights cannot be zero, and rows/values are non-empty
         // (see callers of this method), so totalWeight is guaranteed non-zero
         checkState(totalWeight != 0);
         boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
@@ -525,6 +808,11 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         return session.writeAsync(boundStatement);
     }
 
+    private long getBlockIntervalMillis(int rollupLevel) {
+        return configRepository.getRollupConfigs().get(rollupLevel).intervalMillis()
+                * BLOCK_INTERVAL_MULTIPLIER;
+    }
+
     private List<Integer> getTTLs() throws Exception {
         List<Integer> rollupExpirationHours = Lists
                 .newArrayList(configRepository.getCentralStorageConfig().rollupExpirationHours());
@@ -542,6 +830,9 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         for (int i = 0; i <= configRepository.getRollupConfigs().size(); i++) {
             session.updateSchemaWithRetry("truncate gauge_value_rollup_" + i);
         }
+        for (int i = 0; i < configRepository.getRollupConfigs().size(); i++) {
+            session.updateSchemaWithRetry("truncate gauge_value_block_rollup_" + i);
+        }
         for (int i = 1; i <= configRepository.getRollupConfigs().size(); i++) {
             session.updateSchemaWithRetry("truncate gauge_needs_rollup_" + i);
         }
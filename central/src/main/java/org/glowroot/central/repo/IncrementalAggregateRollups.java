@@ -0,0 +1,533 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.MutableServiceCall;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.model.ServiceCallCollector;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.common2.repo.MutableThreadStats;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// partial rollups of the aggregates stored by this central node, built up as the aggregates are
+// stored (and as each rollup level completes), so that rolling up an interval does not need to
+// re-read the finer grained rows back from cassandra
+//
+// a partial rollup is only used when it contains exactly the data referenced by the interval's
+// "needs rollup" records (each store and each rollup into the next level inserts its own "needs
+// rollup" record with a unique id), otherwise the interval is rolled up by re-reading the rows as
+// before, e.g. after a central restart, or when some of the interval's data was sent to a
+// different central node
+//
+// the memory retained by all partial rollups is bounded, estimated using the serialized size of the
+// data merged into each partial rollup, and a partial rollup that would exceed the bound is
+// discarded, so that its interval is also rolled up by re-reading the rows
+class IncrementalAggregateRollups {
+
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    // per query and per service call overhead, in addition to the text
+    private static final int QUERY_OVERHEAD_BYTES = 64;
+
+    private final ConcurrentMap<PartialRollupKey, PartialRollup> partialRollups =
+            new ConcurrentHashMap<>();
+
+    private final long maxBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private volatile long lastRemoveExpiredTime;
+
+    IncrementalAggregateRollups() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    @VisibleForTesting
+    IncrementalAggregateRollups(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // returns null if there is no partial rollup for the interval, and it is too late to create one
+    // (the interval may have already been rolled up, or may be in the middle of being rolled up)
+    @Nullable
+    PartialRollup getOrCreate(String agentRollupId, int rollupLevel, long rollupCaptureTime,
+            long rollupIntervalMillis, int maxQueryAggregates, int maxServiceCallAggregates,
+            long currentTimeMillis) {
+        PartialRollupKey key = ImmutablePartialRollupKey.of(agentRollupId, rollupLevel,
+                rollupCaptureTime);
+        PartialRollup partialRollup = partialRollups.get(key);
+        if (partialRollup != null) {
+            return partialRollup;
+        }
+        if (Common.isOldEnoughToRollup(rollupCaptureTime, currentTimeMillis,
+                rollupIntervalMillis)) {
+            return null;
+        }
+        partialRollup = new PartialRollup(this, maxQueryAggregates, maxServiceCallAggregates,
+                getExpirationTime(rollupCaptureTime, rollupIntervalMillis), false);
+        PartialRollup existingPartialRollup = partialRollups.putIfAbsent(key, partialRollup);
+        return existingPartialRollup == null ? partialRollup : existingPartialRollup;
+    }
+
+    // always closes the interval, so that any aggregates stored late for this interval do not
+    // start a new partial rollup (which would then look complete for the late "needs rollup"
+    // records alone)
+    //
+    // returns null if there is no usable partial rollup for the interval
+    @Nullable
+    PartialRollup close(String agentRollupId, int rollupLevel, long rollupCaptureTime,
+            long rollupIntervalMillis, Set<UUID> uniquenessKeys, int maxQueryAggregates,
+            int maxServiceCallAggregates) {
+        PartialRollupKey key = ImmutablePartialRollupKey.of(agentRollupId, rollupLevel,
+                rollupCaptureTime);
+        PartialRollup closedMarker = new PartialRollup(this, maxQueryAggregates,
+                maxServiceCallAggregates,
+                getExpirationTime(rollupCaptureTime, rollupIntervalMillis), true);
+        PartialRollup partialRollup = partialRollups.put(key, closedMarker);
+        if (partialRollup == null) {
+            return null;
+        }
+        if (partialRollup.close(uniquenessKeys, maxQueryAggregates, maxServiceCallAggregates)) {
+            return partialRollup;
+        }
+        return null;
+    }
+
+    void removeExpired(long currentTimeMillis) {
+        if (currentTimeMillis - lastRemoveExpiredTime < MINUTES.toMillis(1)) {
+            return;
+        }
+        lastRemoveExpiredTime = currentTimeMillis;
+        partialRollups.values().removeIf(partialRollup -> {
+            if (partialRollup.expirationTime < currentTimeMillis) {
+                partialRollup.release();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @VisibleForTesting
+    long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    private static long getExpirationTime(long rollupCaptureTime, long rollupIntervalMillis) {
+        // the interval is normally rolled up shortly after rollupCaptureTime + rollupIntervalMillis
+        // (see Common.getNeedsRollupList()), after that the partial rollup is no longer needed,
+        // and the closed marker only needs to outlive the window in which the partial rollup
+        // could be created
+        return rollupCaptureTime + 2 * rollupIntervalMillis;
+    }
+
+    static class PartialRollup {
+
+        private final IncrementalAggregateRollups incrementalRollups;
+        private final int maxQueryAggregates;
+        private final int maxServiceCallAggregates;
+        private final long expirationTime;
+
+        // uniqueness keys of the "needs rollup" records for the data merged into this partial
+        // rollup
+        private final Set<UUID> uniquenessKeys = new HashSet<>();
+        // capture times of the data merged into this partial rollup, used to detect the same data
+        // being stored more than once (e.g. when the agent re-sends data after a timeout), which
+        // is idempotent in cassandra, but would be double counted here
+        private final Set<Long> captureTimes = new HashSet<>();
+        // key is transaction type
+        private final Map<String, TransactionTypeRollup> transactionTypeRollups = new HashMap<>();
+
+        // estimated bytes retained by this partial rollup, included in the total bytes until
+        // this partial rollup is closed, expired or invalidated
+        private long estimatedBytes;
+
+        private boolean invalid;
+        private boolean closed;
+
+        private PartialRollup(IncrementalAggregateRollups incrementalRollups,
+                int maxQueryAggregates, int maxServiceCallAggregates, long expirationTime,
+                boolean closed) {
+            this.incrementalRollups = incrementalRollups;
+            this.maxQueryAggregates = maxQueryAggregates;
+            this.maxServiceCallAggregates = maxServiceCallAggregates;
+            this.expirationTime = expirationTime;
+            this.closed = closed;
+        }
+
+        // must only be called after the partial rollup has been returned from close()
+        Map<String, TransactionTypeRollup> getTransactionTypeRollups() {
+            return transactionTypeRollups;
+        }
+
+        // sharedQueryTexts are expected to already have long query texts replaced by their sha1
+        synchronized void mergeAggregates(long captureTime,
+                List<OldAggregatesByType> aggregatesByTypeList,
+                List<Aggregate.SharedQueryText> sharedQueryTexts, UUID uniqueness) {
+            if (!beginMerge(captureTime, uniqueness)) {
+                return;
+            }
+            long bytes = 0;
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                bytes += aggregatesByType.getSerializedSize();
+            }
+            for (Aggregate.SharedQueryText sharedQueryText : sharedQueryTexts) {
+                bytes += sharedQueryText.getSerializedSize();
+            }
+            if (!reserve(bytes)) {
+                return;
+            }
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                TransactionTypeRollup transactionTypeRollup =
+                        getOrCreateTransactionTypeRollup(aggregatesByType.getTransactionType());
+                transactionTypeRollup.overallAggregate
+                        .mergeAggregate(aggregatesByType.getOverallAggregate(), sharedQueryTexts);
+                for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                        .getTransactionAggregateList()) {
+                    transactionTypeRollup
+                            .getOrCreateTransactionAggregate(
+                                    transactionAggregate.getTransactionName())
+                            .mergeAggregate(transactionAggregate.getAggregate(), sharedQueryTexts);
+                }
+            }
+        }
+
+        // the partial rollup being merged must have already been returned from close(), and must
+        // have already been written, since this merges exactly what was written (e.g. the
+        // truncated queries), the same as what would be read back if re-reading the rows
+        synchronized void mergePartialRollup(long captureTime, PartialRollup partialRollup,
+                UUID uniqueness, ScratchBuffer scratchBuffer) {
+            if (!beginMerge(captureTime, uniqueness)) {
+                return;
+            }
+            // the size of the merged data is only known once it has been converted for merging
+            long bytes = 0;
+            for (Map.Entry<String, TransactionTypeRollup> entry : partialRollup
+                    .getTransactionTypeRollups().entrySet()) {
+                TransactionTypeRollup toBeMerged = entry.getValue();
+                TransactionTypeRollup transactionTypeRollup =
+                        getOrCreateTransactionTypeRollup(entry.getKey());
+                bytes += transactionTypeRollup.overallAggregate
+                        .mergePartialAggregate(toBeMerged.overallAggregate, scratchBuffer);
+                for (Map.Entry<String, PartialAggregate> transactionEntry : toBeMerged
+                        .transactionAggregates.entrySet()) {
+                    bytes += transactionTypeRollup
+                            .getOrCreateTransactionAggregate(transactionEntry.getKey())
+                            .mergePartialAggregate(transactionEntry.getValue(), scratchBuffer);
+                }
+            }
+            reserve(bytes);
+        }
+
+        private boolean beginMerge(long captureTime, UUID uniqueness) {
+            if (closed || invalid) {
+                // if closed, then the "needs rollup" record for this data will not match and so
+                // will be rolled up by re-reading the rows
+                return false;
+            }
+            if (!captureTimes.add(captureTime)) {
+                invalidate();
+                return false;
+            }
+            uniquenessKeys.add(uniqueness);
+            return true;
+        }
+
+        private boolean reserve(long bytes) {
+            AtomicLong totalBytes = incrementalRollups.totalBytes;
+            if (totalBytes.addAndGet(bytes) > incrementalRollups.maxBytes) {
+                totalBytes.addAndGet(-bytes);
+                invalidate();
+                return false;
+            }
+            estimatedBytes += bytes;
+            return true;
+        }
+
+        private void invalidate() {
+            invalid = true;
+            transactionTypeRollups.clear();
+            releaseInternal();
+        }
+
+        private synchronized void release() {
+            releaseInternal();
+        }
+
+        private void releaseInternal() {
+            incrementalRollups.totalBytes.addAndGet(-estimatedBytes);
+            estimatedBytes = 0;
+        }
+
+        private synchronized boolean close(Set<UUID> uniquenessKeys, int maxQueryAggregates,
+                int maxServiceCallAggregates) {
+            closed = true;
+            // the partial rollup is no longer retained by IncrementalAggregateRollups once closed
+            releaseInternal();
+            // limits are compared in case the agent's advanced config was changed during the
+            // interval
+            return !invalid && this.uniquenessKeys.equals(uniquenessKeys)
+                    && this.maxQueryAggregates == maxQueryAggregates
+                    && this.maxServiceCallAggregates == maxServiceCallAggregates;
+        }
+
+        private TransactionTypeRollup getOrCreateTransactionTypeRollup(String transactionType) {
+            TransactionTypeRollup transactionTypeRollup =
+                    transactionTypeRollups.get(transactionType);
+            if (transactionTypeRollup == null) {
+                transactionTypeRollup = new TransactionTypeRollup(this);
+                transactionTypeRollups.put(transactionType, transactionTypeRollup);
+            }
+            return transactionTypeRollup;
+        }
+    }
+
+    static class TransactionTypeRollup {
+
+        private final PartialRollup partialRollup;
+        private final PartialAggregate overallAggregate;
+        // key is transaction name
+        private final Map<String, PartialAggregate> transactionAggregates = new HashMap<>();
+
+        private TransactionTypeRollup(PartialRollup partialRollup) {
+            this.partialRollup = partialRollup;
+            overallAggregate = new PartialAggregate(partialRollup);
+        }
+
+        PartialAggregate getOverallAggregate() {
+            return overallAggregate;
+        }
+
+        Map<String, PartialAggregate> getTransactionAggregates() {
+            return transactionAggregates;
+        }
+
+        private PartialAggregate getOrCreateTransactionAggregate(String transactionName) {
+            PartialAggregate transactionAggregate = transactionAggregates.get(transactionName);
+            if (transactionAggregate == null) {
+                transactionAggregate = new PartialAggregate(partialRollup);
+                transactionAggregates.put(transactionName, transactionAggregate);
+            }
+            return transactionAggregate;
+        }
+    }
+
+    static class PartialAggregate {
+
+        private final MutableAggregate aggregate;
+        // the error summary tables only have rows for the intervals with errors, so the
+        // transaction count rolled up from them only includes the transactions from those
+        // intervals
+        private long errorIntervalTransactionCount;
+
+        private PartialAggregate(PartialRollup partialRollup) {
+            aggregate = new MutableAggregate(partialRollup.maxQueryAggregates,
+                    partialRollup.maxServiceCallAggregates);
+        }
+
+        MutableAggregate getAggregate() {
+            return aggregate;
+        }
+
+        long getErrorIntervalTransactionCount() {
+            return errorIntervalTransactionCount;
+        }
+
+        List<MutableQuery> getSortedAndTruncatedQueries() {
+            QueryCollector queries = aggregate.getQueries();
+            return queries == null ? ImmutableList.<MutableQuery>of()
+                    : queries.getSortedAndTruncatedQueries();
+        }
+
+        List<MutableServiceCall> getSortedAndTruncatedServiceCalls() {
+            ServiceCallCollector serviceCalls = aggregate.getServiceCalls();
+            return serviceCalls == null ? ImmutableList.<MutableServiceCall>of()
+                    : serviceCalls.getSortedAndTruncatedServiceCalls();
+        }
+
+        // this mirrors what AggregateDaoImpl writes for each aggregate at rollup level 0
+        private void mergeAggregate(Aggregate toBeMerged,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            aggregate.addTotalDurationNanos(toBeMerged.getTotalDurationNanos());
+            aggregate.addTransactionCount(toBeMerged.getTransactionCount());
+            aggregate.addErrorCount(toBeMerged.getErrorCount());
+            if (toBeMerged.getErrorCount() > 0) {
+                errorIntervalTransactionCount += toBeMerged.getTransactionCount();
+            }
+            aggregate.addAsyncTransactions(toBeMerged.getAsyncTransactions());
+            aggregate.mergeMainThreadRootTimers(toBeMerged.getMainThreadRootTimerList());
+            if (toBeMerged.hasOldMainThreadStats()) {
+                // data from agent prior to 0.10.9
+                Aggregate.OldThreadStats mainThreadStats = toBeMerged.getOldMainThreadStats();
+                aggregate.addMainThreadTotalCpuNanos(
+                        mainThreadStats.getTotalCpuNanos().getValue());
+                aggregate.addMainThreadTotalBlockedNanos(
+                        mainThreadStats.getTotalBlockedNanos().getValue());
+                aggregate.addMainThreadTotalWaitedNanos(
+                        mainThreadStats.getTotalWaitedNanos().getValue());
+                aggregate.addMainThreadTotalAllocatedBytes(
+                        mainThreadStats.getTotalAllocatedBytes().getValue());
+            } else {
+                aggregate.mergeMainThreadStats(toBeMerged.getMainThreadStats());
+            }
+            if (toBeMerged.hasAuxThreadRootTimer()) {
+                aggregate.mergeAuxThreadRootTimer(toBeMerged.getAuxThreadRootTimer());
+                if (toBeMerged.hasOldAuxThreadStats()) {
+                    Aggregate.OldThreadStats auxThreadStats = toBeMerged.getOldAuxThreadStats();
+                    aggregate.addAuxThreadTotalCpuNanos(
+                            auxThreadStats.getTotalCpuNanos().getValue());
+                    aggregate.addAuxThreadTotalBlockedNanos(
+                            auxThreadStats.getTotalBlockedNanos().getValue());
+                    aggregate.addAuxThreadTotalWaitedNanos(
+                            auxThreadStats.getTotalWaitedNanos().getValue());
+                    aggregate.addAuxThreadTotalAllocatedBytes(
+                            auxThreadStats.getTotalAllocatedBytes().getValue());
+                } else {
+                    aggregate.mergeAuxThreadStats(toBeMerged.getAuxThreadStats());
+                }
+            }
+            aggregate.mergeAsyncTimers(toBeMerged.getAsyncTimerList());
+            aggregate.mergeDurationNanosHistogram(toBeMerged.getDurationNanosHistogram());
+            for (Aggregate.Query query : AggregateDaoImpl.getQueries(toBeMerged)) {
+                Aggregate.SharedQueryText sharedQueryText =
+                        sharedQueryTexts.get(query.getSharedQueryTextIndex());
+                String fullTextSha1 = sharedQueryText.getFullTextSha1();
+                if (fullTextSha1.isEmpty()) {
+                    aggregate.mergeQuery(query.getType(), sharedQueryText.getFullText(), null,
+                            query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows().getValue());
+                } else {
+                    aggregate.mergeQuery(query.getType(), sharedQueryText.getTruncatedText(),
+                            fullTextSha1, query.getTotalDurationNanos(),
+                            query.getExecutionCount(), query.hasTotalRows(),
+                            query.getTotalRows().getValue());
+                }
+            }
+            for (Aggregate.ServiceCall serviceCall : AggregateDaoImpl
+                    .getServiceCalls(toBeMerged)) {
+                aggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+            }
+            if (toBeMerged.hasMainThreadProfile()) {
+                aggregate.mergeMainThreadProfile(toBeMerged.getMainThreadProfile());
+            }
+            if (toBeMerged.hasAuxThreadProfile()) {
+                aggregate.mergeAuxThreadProfile(toBeMerged.getAuxThreadProfile());
+            }
+        }
+
+        // this mirrors what AggregateDaoImpl writes for each partial aggregate at rollup levels
+        // greater than 0
+        //
+        // returns the estimated bytes of the merged data
+        private long mergePartialAggregate(PartialAggregate toBeMerged,
+                ScratchBuffer scratchBuffer) {
+            MutableAggregate from = toBeMerged.aggregate;
+            long bytes = 0;
+            aggregate.addTotalDurationNanos(from.getTotalDurationNanos());
+            aggregate.addTransactionCount(from.getTransactionCount());
+            aggregate.addErrorCount(from.getErrorCount());
+            errorIntervalTransactionCount += toBeMerged.errorIntervalTransactionCount;
+            aggregate.addAsyncTransactions(from.isAsyncTransactions());
+            List<Aggregate.Timer> mainThreadRootTimers = from.getMainThreadRootTimersProto();
+            for (Aggregate.Timer mainThreadRootTimer : mainThreadRootTimers) {
+                bytes += mainThreadRootTimer.getSerializedSize();
+            }
+            aggregate.mergeMainThreadRootTimers(mainThreadRootTimers);
+            MutableThreadStats mainThreadStats = from.getMainThreadStats();
+            aggregate.addMainThreadTotalCpuNanos(mainThreadStats.getTotalCpuNanos());
+            aggregate.addMainThreadTotalBlockedNanos(mainThreadStats.getTotalBlockedNanos());
+            aggregate.addMainThreadTotalWaitedNanos(mainThreadStats.getTotalWaitedNanos());
+            aggregate.addMainThreadTotalAllocatedBytes(mainThreadStats.getTotalAllocatedBytes());
+            Aggregate.Timer auxThreadRootTimer = from.getAuxThreadRootTimerProto();
+            if (auxThreadRootTimer != null && auxThreadRootTimer.getCount() > 0) {
+                bytes += auxThreadRootTimer.getSerializedSize();
+                aggregate.mergeAuxThreadRootTimer(auxThreadRootTimer);
+                // aux thread stats is non-null when aux thread root timer is non-null
+                MutableThreadStats auxThreadStats = checkNotNull(from.getAuxThreadStats());
+                aggregate.addAuxThreadTotalCpuNanos(auxThreadStats.getTotalCpuNanos());
+                aggregate.addAuxThreadTotalBlockedNanos(auxThreadStats.getTotalBlockedNanos());
+                aggregate.addAuxThreadTotalWaitedNanos(auxThreadStats.getTotalWaitedNanos());
+                aggregate.addAuxThreadTotalAllocatedBytes(
+                        auxThreadStats.getTotalAllocatedBytes());
+            }
+            List<Aggregate.Timer> asyncTimers = from.getAsyncTimersProto();
+            for (Aggregate.Timer asyncTimer : asyncTimers) {
+                bytes += asyncTimer.getSerializedSize();
+            }
+            aggregate.mergeAsyncTimers(asyncTimers);
+            Aggregate.Histogram durationNanosHistogram =
+                    from.getDurationNanosHistogram().toProto(scratchBuffer);
+            bytes += durationNanosHistogram.getSerializedSize();
+            aggregate.mergeDurationNanosHistogram(durationNanosHistogram);
+            for (MutableQuery query : toBeMerged.getSortedAndTruncatedQueries()) {
+                bytes += QUERY_OVERHEAD_BYTES + query.getTruncatedText().length();
+                aggregate.mergeQuery(query.getType(), query.getTruncatedText(),
+                        query.getFullTextSha1(), query.getTotalDurationNanos(),
+                        query.getExecutionCount(), query.hasTotalRows(), query.getTotalRows());
+            }
+            for (MutableServiceCall serviceCall : toBeMerged
+                    .getSortedAndTruncatedServiceCalls()) {
+                bytes += QUERY_OVERHEAD_BYTES + serviceCall.getText().length();
+                aggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+            }
+            MutableProfile mainThreadProfile = from.getMainThreadProfile();
+            if (mainThreadProfile != null) {
+                Profile profile = mainThreadProfile.toProto();
+                bytes += profile.getSerializedSize();
+                aggregate.mergeMainThreadProfile(profile);
+            }
+            MutableProfile auxThreadProfile = from.getAuxThreadProfile();
+            if (auxThreadProfile != null) {
+                Profile profile = auxThreadProfile.toProto();
+                bytes += profile.getSerializedSize();
+                aggregate.mergeAuxThreadProfile(profile);
+            }
+            return bytes;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PartialRollupKey {
+        String agentRollupId();
+        int rollupLevel();
+        long rollupCaptureTime();
+    }
+}
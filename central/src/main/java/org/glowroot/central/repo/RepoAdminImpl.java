@@ -160,7 +160,8 @@ public class RepoAdminImpl implements RepoAdmin {
             CentralStorageConfig storageConfig) {
         if (tableName.startsWith("trace_")) {
             return storageConfig.traceExpirationHours();
-        } else if (tableName.startsWith("gauge_value_rollup_")) {
+        } else if (tableName.startsWith("gauge_value_rollup_")
+                || tableName.startsWith("gauge_value_block_rollup_")) {
             int rollupLevel = Integer.parseInt(tableName.substring(tableName.lastIndexOf('_') + 1));
             if (rollupLevel == 0) {
                 return storageConfig.rollupExpirationHours().get(rollupLevel);
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.ImmutableAggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches the aggregates read for chart queries, so that repeated queries over a sliding time
+// window (e.g. auto refresh, or many users watching the same dashboard) only need to read the
+// aggregates that have been stored/rolled up since the prior query
+//
+// this relies on aggregates being stored (and rolled up) in capture time order, so that once an
+// aggregate has been read, all of the aggregates (at the same rollup level) prior to it have also
+// been stored, and on invalidate() being called whenever level 0 aggregates are stored or a rollup
+// completes, so that aggregates which are (re-)written later (e.g. from an agent that was
+// disconnected for a while) are not served stale from the cache
+class RollupAggregateCache<T> {
+
+    // backstop in case an invalidation is missed (e.g. the rollup was performed by a different
+    // central node)
+    private static final long MAX_ENTRY_AGE_MILLIS = MINUTES.toMillis(10);
+
+    private final Reader<T> reader;
+    private final ToLongFunction<T> captureTimeFn;
+    private final Clock clock;
+
+    private final Cache<CacheKey, CacheEntry<T>> cache;
+
+    RollupAggregateCache(Reader<T> reader, ToLongFunction<T> captureTimeFn,
+            ToIntFunction<T> estimatedBytesFn, long maxBytes, Clock clock) {
+        this.reader = reader;
+        this.captureTimeFn = captureTimeFn;
+        this.clock = clock;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .<CacheKey, CacheEntry<T>>weigher((key, entry) -> {
+                    int bytes = 0;
+                    for (T aggregate : entry.aggregates) {
+                        bytes += estimatedBytesFn.applyAsInt(aggregate);
+                    }
+                    return bytes;
+                })
+                .build();
+    }
+
+    // query.from() is INCLUSIVE
+    //
+    // aggregates with capture time after safeCaptureTime are never cached since they may still be
+    // stored (or rolled up) after being read
+    List<T> read(String agentRollupId, AggregateQuery query, long safeCaptureTime)
+            throws Exception {
+        CacheKey key = ImmutableCacheKey.of(agentRollupId, query.transactionType(),
+                query.transactionName(), query.rollupLevel());
+        long currentTime = clock.currentTimeMillis();
+        CacheEntry<T> entry = cache.getIfPresent(key);
+        List<T> aggregates = new ArrayList<>();
+        long createdTime;
+        if (entry != null && entry.from <= query.from() && query.from() <= entry.to + 1
+                && currentTime - entry.createdTime < MAX_ENTRY_AGE_MILLIS) {
+            for (T aggregate : entry.aggregates) {
+                long captureTime = captureTimeFn.applyAsLong(aggregate);
+                if (captureTime >= query.from() && captureTime <= query.to()) {
+                    aggregates.add(aggregate);
+                }
+            }
+            if (query.to() > entry.to) {
+                aggregates.addAll(reader.read(agentRollupId, ImmutableAggregateQuery.builder()
+                        .copyFrom(query)
+                        .from(entry.to + 1)
+                        .build()));
+            }
+            createdTime = entry.createdTime;
+        } else {
+            aggregates.addAll(reader.read(agentRollupId, query));
+            createdTime = currentTime;
+        }
+        if (!aggregates.isEmpty()) {
+            long lastCaptureTime = captureTimeFn.applyAsLong(aggregates.get(aggregates.size() - 1));
+            long to = Math.min(lastCaptureTime, Math.min(safeCaptureTime, query.to()));
+            if (to >= query.from()) {
+                ImmutableList.Builder<T> cachedAggregates = ImmutableList.builder();
+                for (T aggregate : aggregates) {
+                    if (captureTimeFn.applyAsLong(aggregate) <= to) {
+                        cachedAggregates.add(aggregate);
+                    }
+                }
+                CacheEntry<T> newEntry =
+                        new CacheEntry<>(query.from(), to, createdTime, cachedAggregates.build());
+                if (entry == null) {
+                    cache.asMap().putIfAbsent(key, newEntry);
+                } else {
+                    // don't overwrite an invalidation that occurred while reading from the
+                    // repository
+                    cache.asMap().replace(key, entry, newEntry);
+                }
+            }
+        }
+        return aggregates;
+    }
+
+    // called after aggregates are stored or rolled up for the interval [from, to] (from is
+    // non-inclusive)
+    void invalidate(String agentRollupId, int rollupLevel, long from, long to) {
+        cache.asMap().entrySet().removeIf(mapEntry -> {
+            CacheKey key = mapEntry.getKey();
+            CacheEntry<T> entry = mapEntry.getValue();
+            return key.agentRollupId().equals(agentRollupId) && key.rollupLevel() == rollupLevel
+                    && entry.from <= to && entry.to > from;
+        });
+    }
+
+    interface Reader<T> {
+        // query.from() is INCLUSIVE
+        List<T> read(String agentRollupId, AggregateQuery query) throws Exception;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface CacheKey {
+        String agentRollupId();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+    }
+
+    // contains all of the aggregates with capture time between from and to (both inclusive)
+    private static class CacheEntry<T> {
+
+        private final long from;
+        private final long to;
+        private final long createdTime;
+        private final ImmutableList<T> aggregates;
+
+        private CacheEntry(long from, long to, long createdTime, ImmutableList<T> aggregates) {
+            this.from = from;
+            this.to = to;
+            this.createdTime = createdTime;
+            this.aggregates = aggregates;
+        }
+    }
+}
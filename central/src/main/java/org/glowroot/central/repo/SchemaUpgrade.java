@@ -107,7 +107,7 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 90;
+    private static final int CURR_SCHEMA_VERSION = 91;
 
     private final Session session;
     private final Clock clock;
@@ -535,6 +535,11 @@ public class SchemaUpgrade {
             splitActiveAgentRollupTables(3);
             updateSchemaVersion(90);
         }
+        // 0.13.5 to 0.13.6
+        if (initialSchemaVersion < 91) {
+            addColumnIfNotExists("trace_entry_v2", "location_stack_trace_index", "blob");
+            updateSchemaVersion(91);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded glowroot central schema from version {} to version {}",
@@ -40,6 +40,8 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Ordering;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
@@ -59,6 +61,8 @@ import org.glowroot.common.live.LiveTraceRepository.Queries;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.model.Result;
+import org.glowroot.common.model.TraceStringTables;
+import org.glowroot.common.model.TraceStringTables.LocationEncoder;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.NotAvailableAware;
@@ -115,6 +119,7 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertEntryV2;
     private final PreparedStatement insertQueryV2;
     private final PreparedStatement insertSharedQueryTextV2;
+    private final PreparedStatement insertSharedLocationV2;
     private final PreparedStatement insertMainThreadProfileV2;
     private final PreparedStatement insertAuxThreadProfileV2;
 
@@ -147,6 +152,7 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement readEntriesV2;
     private final PreparedStatement readQueriesV2;
     private final PreparedStatement readSharedQueryTextsV2;
+    private final PreparedStatement readSharedLocationV2;
     private final PreparedStatement readMainThreadProfileV2;
     private final PreparedStatement readAuxThreadProfileV2;
 
@@ -308,12 +314,15 @@ public class TraceDaoImpl implements TraceDao {
                 expirationHours);
 
         // index_ is used to provide uniqueness and ordering
+        //
+        // location_stack_trace_index refers to trace_shared_location_v2 (location_stack_trace is
+        // only populated for entries stored prior to 0.13.6)
         session.createTableWithTWCS("create table if not exists trace_entry_v2 (agent_id varchar,"
                 + " trace_id varchar, index_ int, depth int, start_offset_nanos bigint,"
                 + " duration_nanos bigint, active boolean, message varchar, shared_query_text_index"
                 + " int, query_message_prefix varchar, query_message_suffix varchar, detail blob,"
-                + " location_stack_trace blob, error blob, primary key ((agent_id, trace_id),"
-                + " index_))", expirationHours);
+                + " location_stack_trace blob, location_stack_trace_index blob, error blob,"
+                + " primary key ((agent_id, trace_id), index_))", expirationHours);
 
         session.createTableWithTWCS("create table if not exists trace_query_v2 (agent_id varchar,"
                 + " trace_id varchar, type varchar, shared_query_text_index int,"
@@ -327,6 +336,10 @@ public class TraceDaoImpl implements TraceDao {
                 + " truncated_end_text varchar, full_text_sha1 varchar, primary key ((agent_id,"
                 + " trace_id), index_))", expirationHours);
 
+        session.createTableWithTWCS("create table if not exists trace_shared_location_v2"
+                + " (agent_id varchar, trace_id varchar, location_stack_trace blob, primary key"
+                + " ((agent_id, trace_id)))", expirationHours);
+
         session.createTableWithTWCS("create table if not exists trace_main_thread_profile_v2"
                 + " (agent_id varchar, trace_id varchar, profile blob, primary key ((agent_id,"
                 + " trace_id)))", expirationHours);
@@ -404,8 +417,8 @@ public class TraceDaoImpl implements TraceDao {
         insertEntryV2 = session.prepare("insert into trace_entry_v2 (agent_id, trace_id, index_,"
                 + " depth, start_offset_nanos, duration_nanos, active, message,"
                 + " shared_query_text_index, query_message_prefix, query_message_suffix, detail,"
-                + " location_stack_trace, error) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-                + " using ttl ?");
+                + " location_stack_trace_index, error) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?,"
+                + " ?, ?) using ttl ?");
 
         insertQueryV2 = session.prepare("insert into trace_query_v2 (agent_id, trace_id, type,"
                 + " shared_query_text_index, total_duration_nanos, execution_count, total_rows,"
@@ -415,6 +428,9 @@ public class TraceDaoImpl implements TraceDao {
                 + " (agent_id, trace_id, index_, truncated_text, truncated_end_text,"
                 + " full_text_sha1) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertSharedLocationV2 = session.prepare("insert into trace_shared_location_v2 (agent_id,"
+                + " trace_id, location_stack_trace) values (?, ?, ?) using ttl ?");
+
         insertMainThreadProfileV2 = session.prepare("insert into trace_main_thread_profile_v2"
                 + " (agent_id, trace_id, profile) values (?, ?, ?) using ttl ?");
 
@@ -542,8 +558,8 @@ public class TraceDaoImpl implements TraceDao {
 
         readEntriesV2 = session.prepare("select depth, start_offset_nanos, duration_nanos, active,"
                 + " message, shared_query_text_index, query_message_prefix, query_message_suffix,"
-                + " detail, location_stack_trace, error from trace_entry_v2 where agent_id = ? and"
-                + " trace_id = ?");
+                + " detail, location_stack_trace, error, location_stack_trace_index from"
+                + " trace_entry_v2 where agent_id = ? and trace_id = ?");
 
         readQueriesV2 = session.prepare("select type, shared_query_text_index,"
                 + " total_duration_nanos, execution_count, total_rows, active from trace_query_v2"
@@ -553,6 +569,9 @@ public class TraceDaoImpl implements TraceDao {
                 + " full_text_sha1 from trace_shared_query_text_v2 where agent_id = ? and trace_id"
                 + " = ?");
 
+        readSharedLocationV2 = session.prepare("select location_stack_trace from"
+                + " trace_shared_location_v2 where agent_id = ? and trace_id = ?");
+
         readMainThreadProfileV2 = session.prepare("select profile from trace_main_thread_profile_v2"
                 + " where agent_id = ? and trace_id = ?");
 
@@ -752,12 +771,18 @@ public class TraceDaoImpl implements TraceDao {
         int i = 0;
         boundStatement.setString(i++, agentId);
         boundStatement.setString(i++, traceId);
-        boundStatement.setBytes(i++, ByteBuffer.wrap(header.toByteArray()));
+        boundStatement.setBytes(i++,
+                ByteBuffer.wrap(TraceStringTables.encodeTimerNames(header).toByteArray()));
         boundStatement.setInt(i++, adjustedTTL);
         futures.add(session.writeAsync(boundStatement));
 
+        // entries from 0.13.6 and later agents are already encoded, in which case the trace's
+        // shared location stack trace elements are stored as is
+        LocationEncoder locationEncoder =
+                new LocationEncoder(trace.getSharedLocationStackTraceElementList());
         int index = 0;
         for (Trace.Entry entry : trace.getEntryList()) {
+            entry = locationEncoder.encode(entry);
             boundStatement = insertEntryV2.bind();
             i = 0;
             boundStatement.setString(i++, agentId);
@@ -787,11 +812,11 @@ public class TraceDaoImpl implements TraceDao {
             } else {
                 boundStatement.setBytes(i++, Messages.toByteBuffer(detailEntries));
             }
-            List<StackTraceElement> location = entry.getLocationStackTraceElementList();
-            if (location.isEmpty()) {
+            List<Integer> locationIndexes = entry.getLocationStackTraceElementIndexList();
+            if (locationIndexes.isEmpty()) {
                 boundStatement.setToNull(i++);
             } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(location));
+                boundStatement.setBytes(i++, toByteBuffer(locationIndexes));
             }
             if (entry.hasError()) {
                 boundStatement.setBytes(i++, ByteBuffer.wrap(entry.getError().toByteArray()));
@@ -842,6 +867,18 @@ public class TraceDaoImpl implements TraceDao {
             futures.add(session.writeAsync(boundStatement));
         }
 
+        List<StackTraceElement> sharedLocationStackTraceElements =
+                locationEncoder.getSharedLocationStackTraceElements();
+        if (!sharedLocationStackTraceElements.isEmpty()) {
+            boundStatement = insertSharedLocationV2.bind();
+            i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setBytes(i++, Messages.toByteBuffer(sharedLocationStackTraceElements));
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.writeAsync(boundStatement));
+        }
+
         if (trace.hasMainThreadProfile()) {
             boundStatement = insertMainThreadProfileV2.bind();
             bindThreadProfile(boundStatement, agentId, traceId, trace.getMainThreadProfile(),
@@ -1153,19 +1190,20 @@ public class TraceDaoImpl implements TraceDao {
         if (row == null) {
             return null;
         }
-        return Trace.Header.parseFrom(checkNotNull(row.getBytes(0)));
+        return TraceStringTables
+                .decodeTimerNames(Trace.Header.parseFrom(checkNotNull(row.getBytes(0))));
     }
 
     private List<Trace.Entry> readEntriesInternal(String agentId, String traceId) throws Exception {
-        List<Trace.Entry> entries = readEntriesUsingPS(agentId, traceId, readEntriesV2);
+        List<Trace.Entry> entries = readEntriesUsingPS(agentId, traceId, readEntriesV2, true);
         if (!entries.isEmpty()) {
             return entries;
         }
-        return readEntriesUsingPS(agentId, traceId, readEntriesV1);
+        return readEntriesUsingPS(agentId, traceId, readEntriesV1, false);
     }
 
     private List<Trace.Entry> readEntriesUsingPS(String agentId, String traceId,
-            PreparedStatement readPS) throws Exception {
+            PreparedStatement readPS, boolean hasLocationIndexes) throws Exception {
         BoundStatement boundStatement = readPS.bind();
         boundStatement.setString(0, agentId);
         boundStatement.setString(1, traceId);
@@ -1208,11 +1246,60 @@ public class TraceDaoImpl implements TraceDao {
             if (errorBytes != null) {
                 entry.setError(Trace.Error.parseFrom(errorBytes));
             }
+            if (hasLocationIndexes) {
+                ByteBuffer locationIndexBytes = row.getBytes(i++);
+                if (locationIndexBytes != null) {
+                    // clear in case the entry was overwritten (by a partial trace update) after
+                    // upgrading from a version that stored location_stack_trace
+                    entry.clearLocationStackTraceElement()
+                            .addAllLocationStackTraceElementIndex(parseIndexes(locationIndexBytes));
+                }
+            }
             entries.add(entry.build());
         }
+        if (hasLocationIndexes) {
+            return decodeLocations(agentId, traceId, entries);
+        }
         return entries;
     }
 
+    private List<Trace.Entry> decodeLocations(String agentId, String traceId,
+            List<Trace.Entry> entries) throws Exception {
+        boolean encoded = false;
+        for (Trace.Entry entry : entries) {
+            if (entry.getLocationStackTraceElementIndexCount() > 0) {
+                encoded = true;
+                break;
+            }
+        }
+        if (!encoded) {
+            return entries;
+        }
+        BoundStatement boundStatement = readSharedLocationV2.bind();
+        boundStatement.setString(0, agentId);
+        boundStatement.setString(1, traceId);
+        ResultSet results = session.read(boundStatement);
+        Row row = results.one();
+        if (row == null) {
+            // shared location has expired (or was never stored due to a partial write failure)
+            List<Trace.Entry> decodedEntries = new ArrayList<>();
+            for (Trace.Entry entry : entries) {
+                decodedEntries.add(entry.toBuilder()
+                        .clearLocationStackTraceElementIndex()
+                        .build());
+            }
+            return decodedEntries;
+        }
+        List<StackTraceElement> sharedLocationStackTraceElements =
+                Messages.parseDelimitedFrom(row.getBytes(0), Proto.StackTraceElement.parser());
+        List<Trace.Entry> decodedEntries = new ArrayList<>();
+        for (Trace.Entry entry : entries) {
+            decodedEntries
+                    .add(TraceStringTables.decodeLocation(entry, sharedLocationStackTraceElements));
+        }
+        return decodedEntries;
+    }
+
     private List<Aggregate.Query> readQueriesInternal(String agentId, String traceId)
             throws Exception {
         BoundStatement boundStatement = readQueriesV2.bind();
@@ -1482,6 +1569,29 @@ public class TraceDaoImpl implements TraceDao {
         return tracePoints;
     }
 
+    private static ByteBuffer toByteBuffer(List<Integer> indexes) throws IOException {
+        int size = 0;
+        for (int index : indexes) {
+            size += CodedOutputStream.computeUInt32SizeNoTag(index);
+        }
+        byte[] bytes = new byte[size];
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        for (int index : indexes) {
+            output.writeUInt32NoTag(index);
+        }
+        output.checkNoSpaceLeft();
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static List<Integer> parseIndexes(ByteBuffer bytes) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(bytes);
+        List<Integer> indexes = new ArrayList<>();
+        while (!input.isAtEnd()) {
+            indexes.add(input.readUInt32());
+        }
+        return indexes;
+    }
+
     private static Result<TracePoint> combine(List<TracePoint> completedPoints,
             List<TracePoint> partialPoints, int limit) {
         if (partialPoints.isEmpty()) {
@@ -319,6 +319,16 @@ public class CassandraWriteMetrics {
         }
     }
 
+    // used for sizing write batches, so unlike recordMetrics() this includes partition key columns
+    static int getApproximateNumBytes(BoundStatement boundStatement) {
+        ColumnDefinitions columnDefinitions = boundStatement.preparedStatement().getVariables();
+        int numBytes = 0;
+        for (int i = 0; i < columnDefinitions.size(); i++) {
+            numBytes += getNumBytes(boundStatement, i, columnDefinitions.getType(i));
+        }
+        return numBytes;
+    }
+
     private static int getNumBytes(BoundStatement boundStatement, int i, DataType dataType) {
         switch (dataType.getName()) {
             case VARCHAR:
@@ -86,6 +86,8 @@ public abstract class ClusterManager {
         }
     }
 
+    public abstract boolean isClustered();
+
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createPerAgentCache(
             String cacheName, int size, CacheLoader<K, V> loader);
 
@@ -129,6 +131,11 @@ public abstract class ClusterManager {
             executor = MoreExecutors2.newCachedThreadPool("Cluster-Manager-Worker");
         }
 
+        @Override
+        public boolean isClustered() {
+            return true;
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createPerAgentCache(
                 String cacheName, int size, CacheLoader<K, V> loader) {
@@ -264,6 +271,11 @@ public abstract class ClusterManager {
 
     private static class NonClusterManager extends ClusterManager {
 
+        @Override
+        public boolean isClustered() {
+            return false;
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createPerAgentCache(
                 String cacheName, int size, CacheLoader<K, V> loader) {
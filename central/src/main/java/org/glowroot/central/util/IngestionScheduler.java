@@ -0,0 +1,270 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Stopwatch;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.Styles;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// schedules the storage of collected data (aggregates, gauge values and traces) on a fixed number
+// of worker threads, instead of running it on the grpc threads under a per-agent permit
+//
+// each agent has a bounded queue, and agents with queued work are serviced round robin (one task
+// per turn, and only one task per agent at a time), so that a single agent cannot monopolize the
+// workers, and no worker sits idle while any agent has queued work (callers only block when their
+// agent's queue is full, waiting for room up to the given timeout)
+//
+// grpc streams use whenAcceptingMore() to delay requesting their next message while the total
+// queue depth is over the limit, which pushes back on the agents (via grpc flow control) instead
+// of buffering their data in central when lots of agents send data at the same time (e.g. right
+// after each minute marker)
+//
+// on close, the queued tasks are given a few seconds to drain, and any that are still queued after
+// that are rejected (via their onClose callback) instead of being silently dropped
+public class IngestionScheduler implements IngestionSchedulerStatsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestionScheduler.class);
+
+    private static final int DRAIN_TIMEOUT_SECONDS = 5;
+
+    private final int maxQueueDepthPerAgent;
+    private final int maxQueueDepth;
+
+    // agent queues are never removed, which keeps the "one task per agent at a time" guarantee
+    // simple, and the number of agents is bounded
+    private final ConcurrentMap<String, AgentQueue> agentQueues = new ConcurrentHashMap<>();
+
+    // agent queues that have queued tasks and are not currently being serviced by a worker
+    private final BlockingQueue<AgentQueue> readyAgentQueues = new LinkedBlockingQueue<>();
+
+    private final Queue<Runnable> pausedStreams = new ConcurrentLinkedQueue<>();
+
+    // includes tasks that are currently running
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final ExecutorService workerExecutor;
+
+    private volatile boolean closed;
+
+    public IngestionScheduler(int workerThreads, int maxQueueDepthPerAgent, int maxQueueDepth) {
+        this.maxQueueDepthPerAgent = maxQueueDepthPerAgent;
+        this.maxQueueDepth = maxQueueDepth;
+        workerExecutor = MoreExecutors2.newFixedThreadPool(workerThreads, "Ingestion-Worker-%d");
+        for (int i = 0; i < workerThreads; i++) {
+            workerExecutor.execute(this::runWorker);
+        }
+    }
+
+    // waits up to the timeout for room in the agent's queue, and returns false if the agent's queue
+    // is still full (or if the scheduler is closed)
+    //
+    // onClose is run instead of the task if the task is still queued when the scheduler is closed
+    public boolean trySchedule(String agentId, Runnable task, Runnable onClose, long timeout,
+            TimeUnit unit) throws InterruptedException {
+        AgentQueue agentQueue = agentQueues.computeIfAbsent(agentId, k -> new AgentQueue());
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (agentQueue) {
+            while (!closed && agentQueue.tasks.size() >= maxQueueDepthPerAgent) {
+                long remainingMillis = NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    rejectedCount.getAndIncrement();
+                    return false;
+                }
+                agentQueue.wait(remainingMillis);
+            }
+            if (closed) {
+                return false;
+            }
+            agentQueue.tasks.add(ImmutableQueuedTask.of(task, onClose));
+            queueDepth.getAndIncrement();
+            if (!agentQueue.scheduled) {
+                agentQueue.scheduled = true;
+                readyAgentQueues.add(agentQueue);
+            }
+        }
+        return true;
+    }
+
+    // runs the callback (typically requesting the next message from a grpc stream) immediately if
+    // the queue depth is under the limit, otherwise once it drops back under the limit
+    public void whenAcceptingMore(Runnable callback) {
+        if (queueDepth.get() < maxQueueDepth) {
+            callback.run();
+            return;
+        }
+        pausedStreams.add(callback);
+        // re-check in case the queue drained concurrently with adding to paused streams
+        resumePausedStreams();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() throws InterruptedException {
+        closed = true;
+        // wake up callers that are waiting for room in an agent queue, so that they are rejected
+        for (AgentQueue agentQueue : agentQueues.values()) {
+            synchronized (agentQueue) {
+                agentQueue.notifyAll();
+            }
+        }
+        // the workers keep running the queued tasks until they are interrupted below
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (queueDepth.get() > 0 && stopwatch.elapsed(SECONDS) < DRAIN_TIMEOUT_SECONDS) {
+            MILLISECONDS.sleep(10);
+        }
+        // shutdownNow() is needed to interrupt the workers waiting for ready agent queues
+        workerExecutor.shutdownNow();
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        int rejectedOnCloseCount = 0;
+        for (AgentQueue agentQueue : agentQueues.values()) {
+            QueuedTask queuedTask;
+            while ((queuedTask = pollTask(agentQueue)) != null) {
+                try {
+                    queuedTask.onClose().run();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+                queueDepth.getAndDecrement();
+                rejectedOnCloseCount++;
+            }
+        }
+        if (rejectedOnCloseCount > 0) {
+            logger.warn("{} queued collection(s) rejected during shutdown", rejectedOnCloseCount);
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public int getReadyAgentCount() {
+        return readyAgentQueues.size();
+    }
+
+    @Override
+    public int getPausedStreamCount() {
+        return pausedStreams.size();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private void runWorker() {
+        // this keeps running after closed is set, in order to drain the queued tasks, and exits
+        // once interrupted by close()
+        while (true) {
+            AgentQueue agentQueue;
+            try {
+                agentQueue = readyAgentQueues.take();
+            } catch (InterruptedException e) {
+                // shutdown requested
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // agent queue is only added to the ready queue when it has queued tasks
+            QueuedTask queuedTask = checkNotNull(pollTask(agentQueue));
+            try {
+                queuedTask.task().run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+            queueDepth.getAndDecrement();
+            synchronized (agentQueue) {
+                if (agentQueue.tasks.isEmpty()) {
+                    agentQueue.scheduled = false;
+                } else {
+                    // go to the back of the line
+                    readyAgentQueues.add(agentQueue);
+                }
+            }
+            resumePausedStreams();
+        }
+    }
+
+    private static @Nullable QueuedTask pollTask(AgentQueue agentQueue) {
+        synchronized (agentQueue) {
+            QueuedTask queuedTask = agentQueue.tasks.poll();
+            if (queuedTask != null) {
+                // wake up a caller that is waiting for room in the agent queue
+                agentQueue.notify();
+            }
+            return queuedTask;
+        }
+    }
+
+    private void resumePausedStreams() {
+        while (queueDepth.get() < maxQueueDepth) {
+            Runnable callback = pausedStreams.poll();
+            if (callback == null) {
+                return;
+            }
+            try {
+                callback.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private static class AgentQueue {
+
+        @GuardedBy("this")
+        private final Queue<QueuedTask> tasks = new ArrayDeque<>();
+
+        // true while the agent queue is in the ready queue or one of its tasks is running
+        @GuardedBy("this")
+        private boolean scheduled;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface QueuedTask {
+        Runnable task();
+        Runnable onClose();
+    }
+}
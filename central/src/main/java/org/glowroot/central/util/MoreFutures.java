@@ -149,6 +149,21 @@ public class MoreFutures {
                 });
     }
 
+    // function is only executed if input succeeds
+    @SuppressWarnings("unchecked")
+    public static ListenableFuture<?> afterAsync(ListenableFuture<?> input,
+            Executor asyncExecutor, DoAfter function) {
+        return transformAsync((ListenableFuture</*@Nullable*/ Object>) input, asyncExecutor,
+                new AsyncFunction</*@Nullable*/ Object, /*@Nullable*/ Object>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public ListenableFuture</*@Nullable*/ Object> apply(
+                            /*@Nullable*/ Object result) throws Exception {
+                        return (ListenableFuture</*@Nullable*/ Object>) function.execute();
+                    }
+                });
+    }
+
     private static <V, R> ListenableFuture<R> transformAsync(ListenableFuture<V> future,
             Executor asyncExecutor, AsyncFunction<V, R> function) {
         boolean inRollupThread = Session.isInRollupThread();
@@ -189,4 +204,8 @@ public class MoreFutures {
     public interface DoRollup {
         ListenableFuture<?> execute(Iterable<Row> rows) throws Exception;
     }
+
+    public interface DoAfter {
+        ListenableFuture<?> execute() throws Exception;
+    }
 }
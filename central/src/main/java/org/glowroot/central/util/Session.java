@@ -26,6 +26,7 @@ import javax.management.ObjectName;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Configuration;
 import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
@@ -82,9 +83,17 @@ public class Session {
 
     private final CassandraWriteMetrics cassandraWriteMetrics;
 
+    private final @Nullable WriteBatcher writeBatcher;
+
     public Session(com.datastax.driver.core.Session wrappedSession, String keyspaceName,
             @Nullable ConsistencyLevel writeConsistencyLevel, int maxConcurrentQueries)
             throws Exception {
+        this(wrappedSession, keyspaceName, writeConsistencyLevel, maxConcurrentQueries, false);
+    }
+
+    public Session(com.datastax.driver.core.Session wrappedSession, String keyspaceName,
+            @Nullable ConsistencyLevel writeConsistencyLevel, int maxConcurrentQueries,
+            boolean writeBatching) throws Exception {
         this.wrappedSession = wrappedSession;
         this.keyspaceName = keyspaceName;
         this.writeConsistencyLevel = writeConsistencyLevel;
@@ -95,6 +104,17 @@ public class Session {
 
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
 
+        if (writeBatching) {
+            Configuration configuration = wrappedSession.getCluster().getConfiguration();
+            // the write batcher acquires a write query permit per statement when it is queued
+            writeBatcher = new WriteBatcher(wrappedSession::executeAsync, writeQuerySemaphore,
+                    maxConcurrentQueries / 2,
+                    configuration.getProtocolOptions().getProtocolVersion(),
+                    configuration.getCodecRegistry());
+        } else {
+            writeBatcher = null;
+        }
+
         if (wrappedSession.getCluster().getMetadata().getKeyspace(keyspaceName) == null) {
             // "create keyspace if not exists" requires create permission on all keyspaces
             // so only run it if needed, to allow the central collector to be run under more
@@ -112,6 +132,10 @@ public class Session {
                 ObjectName.getInstance("org.glowroot.central:type=WriteQuerySemaphore"));
         platformMBeanServer.registerMBean(new SemaphoreStats(rollupQuerySemaphore),
                 ObjectName.getInstance("org.glowroot.central:type=RollupQuerySemaphore"));
+        if (writeBatcher != null) {
+            platformMBeanServer.registerMBean(writeBatcher,
+                    ObjectName.getInstance("org.glowroot.central:type=WriteBatcher"));
+        }
     }
 
     public CassandraWriteMetrics getCassandraWriteMetrics() {
@@ -215,6 +239,17 @@ public class Session {
         if (statement.getConsistencyLevel() == null && writeConsistencyLevel != null) {
             statement.setConsistencyLevel(writeConsistencyLevel);
         }
+        if (writeBatcher != null && !inRollupThread.get()
+                && statement instanceof BoundStatement) {
+            // recording metrics here (instead of when the batch is executed) because
+            // CassandraWriteMetrics relies on some thread locals
+            cassandraWriteMetrics.recordMetrics(statement);
+            ListenableFuture<ResultSet> future = writeBatcher.add((BoundStatement) statement);
+            if (future != null) {
+                return future;
+            }
+            return throttleWrite(() -> wrappedSession.executeAsync(statement));
+        }
         return throttleWrite(() -> {
             // for now, need to record metrics in the same method because CassandraWriteMetrics
             // relies on some thread locals
@@ -269,6 +304,12 @@ public class Session {
                 ObjectName.getInstance("org.glowroot.central:type=WriteQuerySemaphore"));
         platformMBeanServer.unregisterMBean(
                 ObjectName.getInstance("org.glowroot.central:type=RollupQuerySemaphore"));
+        if (writeBatcher != null) {
+            platformMBeanServer.unregisterMBean(
+                    ObjectName.getInstance("org.glowroot.central:type=WriteBatcher"));
+            // executes any pending batches before the wrapped session is closed
+            writeBatcher.close();
+        }
         wrappedSession.close();
         cassandraWriteMetrics.close();
     }
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// coalesces inserts into the same partition of the same table into unlogged batches, which
+// cassandra applies as a single mutation, in order to cut per-statement coordinator overhead when
+// lots of agents send data at the same time (e.g. right after each minute marker)
+//
+// each insert waits at most LINGER_MILLIS for other inserts into the same partition, and the max
+// batch size is adjusted based on the observed write latency and on the number of writes in flight
+//
+// each insert acquires a write query permit before it is queued (blocking the caller if there are
+// too many writes pending or in flight), and the permits are released once its batch completes,
+// so that the batcher thread itself never blocks
+class WriteBatcher implements WriteBatcherStatsMXBean {
+
+    private static final long LINGER_MILLIS = 2;
+
+    // stays under cassandra's default batch_size_warn_threshold_in_kb of 5, inserts larger than
+    // this (e.g. profiles and trace entries with large blobs) are not batched
+    private static final int MAX_BATCH_BYTES = 4 * 1024;
+
+    private final BatchExecutor batchExecutor;
+    private final Semaphore writeQuerySemaphore;
+    private final int maxWriteQueries;
+    private final ProtocolVersion protocolVersion;
+    private final CodecRegistry codecRegistry;
+
+    private final ScheduledExecutorService scheduledExecutor =
+            MoreExecutors2.newSingleThreadScheduledExecutor("Cassandra-Write-Batcher");
+
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private final Map<BatchKey, PendingBatch> pendingBatches = new HashMap<>();
+
+    private final BatchSizer batchSizer = new BatchSizer();
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedStatementCount = new AtomicLong();
+
+    WriteBatcher(BatchExecutor batchExecutor, Semaphore writeQuerySemaphore, int maxWriteQueries,
+            ProtocolVersion protocolVersion, CodecRegistry codecRegistry) {
+        this.batchExecutor = batchExecutor;
+        this.writeQuerySemaphore = writeQuerySemaphore;
+        this.maxWriteQueries = maxWriteQueries;
+        this.protocolVersion = protocolVersion;
+        this.codecRegistry = codecRegistry;
+    }
+
+    // returns null if the statement cannot be batched, in which case the caller should execute it
+    // directly
+    @Nullable
+    ListenableFuture<ResultSet> add(BoundStatement statement) throws InterruptedException {
+        String queryString = statement.preparedStatement().getQueryString();
+        if (!queryString.startsWith("insert ") || queryString.contains(" if ")) {
+            return null;
+        }
+        ColumnDefinitions variables = statement.preparedStatement().getVariables();
+        if (variables.size() == 0) {
+            return null;
+        }
+        ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey == null) {
+            return null;
+        }
+        int numBytes = CassandraWriteMetrics.getApproximateNumBytes(statement);
+        if (numBytes > MAX_BATCH_BYTES) {
+            return null;
+        }
+        BatchKey key = ImmutableBatchKey.of(variables.getTable(0), routingKey,
+                statement.getConsistencyLevel());
+        // released when the batch containing this statement completes
+        writeQuerySemaphore.acquire();
+        SettableFuture<ResultSet> future = SettableFuture.create();
+        List<PendingBatch> readyBatches = new ArrayList<>();
+        synchronized (lock) {
+            PendingBatch pendingBatch = pendingBatches.get(key);
+            if (pendingBatch != null && pendingBatch.numBytes + numBytes > MAX_BATCH_BYTES) {
+                pendingBatches.remove(key);
+                readyBatches.add(pendingBatch);
+                pendingBatch = null;
+            }
+            if (pendingBatch == null) {
+                PendingBatch newPendingBatch = new PendingBatch(key);
+                pendingBatches.put(key, newPendingBatch);
+                scheduledExecutor.schedule(() -> executeIfStillPending(newPendingBatch),
+                        LINGER_MILLIS, MILLISECONDS);
+                pendingBatch = newPendingBatch;
+            }
+            pendingBatch.statements.add(statement);
+            pendingBatch.futures.add(future);
+            pendingBatch.numBytes += numBytes;
+            if (pendingBatch.statements.size() >= batchSizer.getMaxBatchSize()) {
+                pendingBatches.remove(key);
+                readyBatches.add(pendingBatch);
+            }
+        }
+        for (PendingBatch readyBatch : readyBatches) {
+            execute(readyBatch);
+        }
+        return future;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return batchSizer.getMaxBatchSize();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public long getBatchedStatementCount() {
+        return batchedStatementCount.get();
+    }
+
+    void close() throws InterruptedException {
+        // pending batches are executed by the already scheduled tasks, so this shouldn't require
+        // shutdownNow()
+        scheduledExecutor.shutdown();
+        if (!scheduledExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for Cassandra write batcher thread to terminate");
+        }
+    }
+
+    private void executeIfStillPending(PendingBatch pendingBatch) {
+        synchronized (lock) {
+            if (pendingBatches.get(pendingBatch.key) != pendingBatch) {
+                // already executed because it reached max batch size or max batch bytes
+                return;
+            }
+            pendingBatches.remove(pendingBatch.key);
+        }
+        execute(pendingBatch);
+    }
+
+    private void execute(PendingBatch pendingBatch) {
+        List<BoundStatement> statements = pendingBatch.statements;
+        int batchSize = statements.size();
+        Statement statement;
+        if (batchSize == 1) {
+            statement = statements.get(0);
+        } else {
+            BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            batchStatement.addAll(statements);
+            ConsistencyLevel consistencyLevel = pendingBatch.key.consistencyLevel();
+            if (consistencyLevel != null) {
+                batchStatement.setConsistencyLevel(consistencyLevel);
+            }
+            statement = batchStatement;
+            batchCount.incrementAndGet();
+            batchedStatementCount.addAndGet(batchSize);
+        }
+        // permits were already acquired when the statements were queued, so the latency measured
+        // here does not include any time spent waiting on the write query semaphore
+        long startTick = System.nanoTime();
+        ListenableFuture<ResultSet> future;
+        try {
+            future = batchExecutor.execute(statement);
+        } catch (Throwable t) {
+            writeQuerySemaphore.release(batchSize);
+            pendingBatch.setException(t);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                long latencyNanos = System.nanoTime() - startTick;
+                // sampled before releasing this batch's own permits
+                double writeUtilization = 1
+                        - writeQuerySemaphore.availablePermits() / (double) maxWriteQueries;
+                writeQuerySemaphore.release(batchSize);
+                batchSizer.onSuccess(batchSize, latencyNanos, writeUtilization);
+                for (SettableFuture<ResultSet> future : pendingBatch.futures) {
+                    future.set(result);
+                }
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                writeQuerySemaphore.release(batchSize);
+                batchSizer.onFailure();
+                pendingBatch.setException(t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    // additive increase while batches are filling up and latency is steady, multiplicative
+    // decrease when a batch takes much longer than the recent average write (or fails), so batches
+    // grow during bursts, and shrink back when cassandra is struggling with the larger mutations
+    //
+    // the share of write query permits in use (writes queued in front of cassandra or in flight) is
+    // also taken into account, since it rises as soon as cassandra falls behind, well before
+    // latency spikes or timeouts (CassandraWriteMetrics only tracks rows and bytes written, not
+    // latency or writes in flight, so it has nothing to offer here)
+    static class BatchSizer {
+
+        private static final int INITIAL_MAX_BATCH_SIZE = 8;
+        private static final int MAX_MAX_BATCH_SIZE = 64;
+
+        // no additive increase above this share of write query permits in use
+        private static final double GROW_MAX_WRITE_UTILIZATION = 0.5;
+        // multiplicative decrease above this share of write query permits in use
+        private static final double SHRINK_MIN_WRITE_UTILIZATION = 0.9;
+
+        private volatile int maxBatchSize = INITIAL_MAX_BATCH_SIZE;
+
+        // exponentially weighted moving average
+        @GuardedBy("this")
+        private double averageLatencyNanos;
+
+        int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        synchronized void onSuccess(int batchSize, long latencyNanos, double writeUtilization) {
+            if (averageLatencyNanos == 0) {
+                averageLatencyNanos = latencyNanos;
+            }
+            if (batchSize > 1 && (latencyNanos > 2 * averageLatencyNanos
+                    || writeUtilization >= SHRINK_MIN_WRITE_UTILIZATION)) {
+                maxBatchSize = Math.max(1, maxBatchSize / 2);
+            } else if (batchSize >= maxBatchSize
+                    && writeUtilization <= GROW_MAX_WRITE_UTILIZATION) {
+                maxBatchSize = Math.min(MAX_MAX_BATCH_SIZE, maxBatchSize + 1);
+            }
+            averageLatencyNanos = 0.9 * averageLatencyNanos + 0.1 * latencyNanos;
+        }
+
+        synchronized void onFailure() {
+            maxBatchSize = Math.max(1, maxBatchSize / 2);
+        }
+    }
+
+    interface BatchExecutor {
+        ListenableFuture<ResultSet> execute(Statement statement) throws Exception;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface BatchKey {
+        String tableName();
+        ByteBuffer routingKey();
+        @Nullable
+        ConsistencyLevel consistencyLevel();
+    }
+
+    private static class PendingBatch {
+
+        private final BatchKey key;
+        private final List<BoundStatement> statements = new ArrayList<>();
+        private final List<SettableFuture<ResultSet>> futures = new ArrayList<>();
+        private int numBytes;
+
+        private PendingBatch(BatchKey key) {
+            this.key = key;
+        }
+
+        private void setException(Throwable t) {
+            for (SettableFuture<ResultSet> future : futures) {
+                future.setException(t);
+            }
+        }
+    }
+}
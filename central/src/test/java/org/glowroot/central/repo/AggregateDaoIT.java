@@ -108,7 +108,7 @@ public class AggregateDaoIT {
                 configRepository, rollupLevelService, Clock.systemClock());
         aggregateDao = new AggregateDaoWithV09Support(ImmutableSet.of(), 0, 0, Clock.systemClock(),
                 new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao, fullQueryTextDao,
-                        configRepository, asyncExecutor, Clock.systemClock()));
+                        configRepository, asyncExecutor, false, Clock.systemClock()));
     }
 
     @AfterClass
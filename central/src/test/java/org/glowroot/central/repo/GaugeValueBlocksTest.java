@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeValueBlocksTest {
+
+    @Test
+    public void shouldRoundTripEmpty() {
+        // when
+        List<GaugeValue> gaugeValues = GaugeValueBlocks.decode(GaugeValueBlocks
+                .encode(ImmutableList.<GaugeValue>of()));
+
+        // then
+        assertThat(gaugeValues).isEmpty();
+    }
+
+    @Test
+    public void shouldRoundTripRegularValues() {
+        // given
+        List<GaugeValue> gaugeValues = new ArrayList<>();
+        long captureTime = 1546300800000L;
+        for (int i = 0; i < 720; i++) {
+            // a few milliseconds of jitter in the capture times
+            gaugeValues.add(gaugeValue(captureTime + i * 5000 + i % 3, 1024.0 * (i / 10), 5000));
+        }
+
+        // when
+        ByteBuffer block = GaugeValueBlocks.encode(gaugeValues);
+
+        // then
+        assertThat(GaugeValueBlocks.decode(block)).isEqualTo(gaugeValues);
+        // compared to at least 24 bytes per value unpacked
+        assertThat(block.remaining()).isLessThan(720 * 2);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularValues() {
+        // given
+        Random random = new Random(0);
+        List<GaugeValue> gaugeValues = new ArrayList<>();
+        long captureTime = 1546300800000L;
+        for (int i = 0; i < 1000; i++) {
+            captureTime += random.nextInt(100000000);
+            gaugeValues.add(gaugeValue(captureTime, random.nextGaussian() * 1e10,
+                    random.nextInt(100000) + 1));
+        }
+        gaugeValues.add(gaugeValue(captureTime + 1, Double.NaN, Long.MAX_VALUE));
+        gaugeValues.add(gaugeValue(captureTime + 2, -0.0, 1));
+        gaugeValues.add(gaugeValue(captureTime + 3, Double.MAX_VALUE, 1));
+
+        // when
+        List<GaugeValue> decoded = GaugeValueBlocks.decode(GaugeValueBlocks.encode(gaugeValues));
+
+        // then
+        assertThat(decoded).isEqualTo(gaugeValues);
+    }
+
+    private static GaugeValue gaugeValue(long captureTime, double value, long weight) {
+        return GaugeValue.newBuilder()
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
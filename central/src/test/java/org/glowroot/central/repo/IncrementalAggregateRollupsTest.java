@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.IncrementalAggregateRollups.PartialAggregate;
+import org.glowroot.central.repo.IncrementalAggregateRollups.PartialRollup;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IncrementalAggregateRollupsTest {
+
+    private static final long INTERVAL = 300000;
+    private static final long ROLLUP_CAPTURE_TIME = 3000000;
+
+    private IncrementalAggregateRollups incrementalRollups;
+
+    @Before
+    public void beforeEachTest() {
+        incrementalRollups = new IncrementalAggregateRollups();
+    }
+
+    @Test
+    public void shouldRollupWhenAllNeedsRollupRecordsAreMerged() {
+        // given
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        merge(ROLLUP_CAPTURE_TIME - 60000, 0, uniqueness1);
+        merge(ROLLUP_CAPTURE_TIME, 1, uniqueness2);
+
+        // when
+        PartialRollup partialRollup = close(uniqueness1, uniqueness2);
+
+        // then
+        assertThat(partialRollup).isNotNull();
+        PartialAggregate overallAggregate = partialRollup.getTransactionTypeRollups().get("Web")
+                .getOverallAggregate();
+        assertThat(overallAggregate.getAggregate().getTransactionCount()).isEqualTo(20);
+        assertThat(overallAggregate.getAggregate().getErrorCount()).isEqualTo(1);
+        assertThat(overallAggregate.getErrorIntervalTransactionCount()).isEqualTo(10);
+        assertThat(overallAggregate.getSortedAndTruncatedQueries()).hasSize(1);
+        assertThat(overallAggregate.getSortedAndTruncatedQueries().get(0).getExecutionCount())
+                .isEqualTo(6);
+        assertThat(partialRollup.getTransactionTypeRollups().get("Web")
+                .getTransactionAggregates().keySet()).containsExactly("/abc");
+    }
+
+    @Test
+    public void shouldNotRollupWhenMissingNeedsRollupRecord() {
+        // given
+        UUID uniqueness1 = UUIDs.timeBased();
+        merge(ROLLUP_CAPTURE_TIME, 0, uniqueness1);
+
+        // when
+        PartialRollup partialRollup = close(uniqueness1, UUIDs.timeBased());
+
+        // then
+        assertThat(partialRollup).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupWhenSameCaptureTimeMergedTwice() {
+        // given
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        merge(ROLLUP_CAPTURE_TIME, 0, uniqueness1);
+        merge(ROLLUP_CAPTURE_TIME, 0, uniqueness2);
+
+        // when
+        PartialRollup partialRollup = close(uniqueness1, uniqueness2);
+
+        // then
+        assertThat(partialRollup).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupWhenOverMaxBytes() {
+        // given
+        incrementalRollups = new IncrementalAggregateRollups(100);
+        UUID uniqueness1 = UUIDs.timeBased();
+        merge(ROLLUP_CAPTURE_TIME, 0, uniqueness1);
+
+        // when
+        PartialRollup partialRollup = close(uniqueness1);
+
+        // then
+        assertThat(partialRollup).isNull();
+        assertThat(incrementalRollups.getTotalBytes()).isZero();
+    }
+
+    @Test
+    public void shouldReleaseBytesOnClose() {
+        // given
+        UUID uniqueness1 = UUIDs.timeBased();
+        merge(ROLLUP_CAPTURE_TIME, 0, uniqueness1);
+        assertThat(incrementalRollups.getTotalBytes()).isPositive();
+
+        // when
+        PartialRollup partialRollup = close(uniqueness1);
+
+        // then
+        assertThat(partialRollup).isNotNull();
+        assertThat(incrementalRollups.getTotalBytes()).isZero();
+    }
+
+    @Test
+    public void shouldNotCreatePartialRollupWhenTooLate() {
+        // when
+        PartialRollup partialRollup = incrementalRollups.getOrCreate("a", 1, ROLLUP_CAPTURE_TIME,
+                INTERVAL, 500, 500, ROLLUP_CAPTURE_TIME + INTERVAL + 1);
+
+        // then
+        assertThat(partialRollup).isNull();
+    }
+
+    @Test
+    public void shouldNotRollupLateDataAfterClose() {
+        // given
+        UUID uniqueness1 = UUIDs.timeBased();
+        merge(ROLLUP_CAPTURE_TIME, 0, uniqueness1);
+        close(uniqueness1);
+        UUID uniqueness2 = UUIDs.timeBased();
+        merge(ROLLUP_CAPTURE_TIME - 60000, 0, uniqueness2);
+
+        // when
+        PartialRollup partialRollup = close(uniqueness2);
+
+        // then
+        assertThat(partialRollup).isNull();
+    }
+
+    @Test
+    public void shouldMergeIntoNextLevel() {
+        // given
+        UUID uniqueness1 = UUIDs.timeBased();
+        merge(ROLLUP_CAPTURE_TIME, 1, uniqueness1);
+        PartialRollup partialRollup = close(uniqueness1);
+        UUID nextUniqueness = UUIDs.timeBased();
+        PartialRollup nextPartialRollup = incrementalRollups.getOrCreate("a", 2, 3600000,
+                1800000, 500, 500, ROLLUP_CAPTURE_TIME + INTERVAL + 1);
+        nextPartialRollup.mergePartialRollup(ROLLUP_CAPTURE_TIME, partialRollup, nextUniqueness,
+                new ScratchBuffer());
+
+        // when
+        PartialRollup closedNextPartialRollup = incrementalRollups.close("a", 2, 3600000,
+                1800000, ImmutableSet.of(nextUniqueness), 500, 500);
+
+        // then
+        assertThat(closedNextPartialRollup).isNotNull();
+        PartialAggregate overallAggregate = closedNextPartialRollup.getTransactionTypeRollups()
+                .get("Web").getOverallAggregate();
+        assertThat(overallAggregate.getAggregate().getTransactionCount()).isEqualTo(10);
+        assertThat(overallAggregate.getAggregate().getErrorCount()).isEqualTo(1);
+        assertThat(overallAggregate.getErrorIntervalTransactionCount()).isEqualTo(10);
+        assertThat(overallAggregate.getAggregate().getMainThreadProfile()).isNull();
+    }
+
+    private void merge(long captureTime, int errorCount, UUID uniqueness) {
+        PartialRollup partialRollup = incrementalRollups.getOrCreate("a", 1,
+                ROLLUP_CAPTURE_TIME, INTERVAL, 500, 500, captureTime);
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(1000)
+                .setTransactionCount(10)
+                .setErrorCount(errorCount)
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("SQL")
+                        .setSharedQueryTextIndex(0)
+                        .setTotalDurationNanos(100)
+                        .setExecutionCount(3))
+                .build();
+        List<OldAggregatesByType> aggregatesByTypeList =
+                ImmutableList.of(OldAggregatesByType.newBuilder()
+                        .setTransactionType("Web")
+                        .setOverallAggregate(aggregate)
+                        .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                                .setTransactionName("/abc")
+                                .setAggregate(aggregate))
+                        .build());
+        List<Aggregate.SharedQueryText> sharedQueryTexts =
+                ImmutableList.of(Aggregate.SharedQueryText.newBuilder()
+                        .setFullText("select 1")
+                        .build());
+        partialRollup.mergeAggregates(captureTime, aggregatesByTypeList, sharedQueryTexts,
+                uniqueness);
+    }
+
+    private PartialRollup close(UUID... uniquenessKeys) {
+        return incrementalRollups.close("a", 1, ROLLUP_CAPTURE_TIME, INTERVAL,
+                ImmutableSet.copyOf(uniquenessKeys), 500, 500);
+    }
+}
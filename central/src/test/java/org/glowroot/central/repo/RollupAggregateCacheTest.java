@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableAggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RollupAggregateCacheTest {
+
+    private Clock clock;
+    private List<Long> storedCaptureTimes;
+    private List<AggregateQuery> repositoryQueries;
+    private RollupAggregateCache<Long> cache;
+
+    @Before
+    public void beforeEachTest() {
+        clock = mock(Clock.class);
+        storedCaptureTimes = new ArrayList<>();
+        repositoryQueries = new ArrayList<>();
+        cache = new RollupAggregateCache<>((agentRollupId, query) -> {
+            repositoryQueries.add(query);
+            List<Long> captureTimes = new ArrayList<>();
+            for (long captureTime : storedCaptureTimes) {
+                if (captureTime >= query.from() && captureTime <= query.to()) {
+                    captureTimes.add(captureTime);
+                }
+            }
+            return captureTimes;
+        }, aggregate -> aggregate, aggregate -> 1, 100, clock);
+    }
+
+    @Test
+    public void shouldOnlyReadNewAggregates() throws Exception {
+        // given
+        storedCaptureTimes.add(60000L);
+        storedCaptureTimes.add(120000L);
+        storedCaptureTimes.add(180000L);
+        cache.read("", query(1, 200000), 130000);
+
+        // when
+        storedCaptureTimes.add(240000L);
+        List<Long> aggregates = cache.read("", query(60001, 260000), 190000);
+
+        // then
+        assertThat(aggregates).containsExactly(120000L, 180000L, 240000L);
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(130001);
+        assertThat(repositoryQueries.get(1).to()).isEqualTo(260000);
+    }
+
+    @Test
+    public void shouldNotUseCacheOutsideOfCachedRange() throws Exception {
+        // given
+        storedCaptureTimes.add(60000L);
+        storedCaptureTimes.add(120000L);
+        cache.read("", query(60000, 200000), 200000);
+
+        // when
+        List<Long> aggregates = cache.read("", query(1, 200000), 200000);
+
+        // then
+        assertThat(aggregates).containsExactly(60000L, 120000L);
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReReadAfterMaxEntryAge() throws Exception {
+        // given
+        storedCaptureTimes.add(60000L);
+        cache.read("", query(1, 200000), 200000);
+
+        // when
+        when(clock.currentTimeMillis()).thenReturn(MINUTES.toMillis(10));
+        cache.read("", query(1, 200000), 200000);
+
+        // then
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReReadAfterInvalidate() throws Exception {
+        // given
+        storedCaptureTimes.add(60000L);
+        storedCaptureTimes.add(120000L);
+        cache.read("", query(1, 200000), 200000);
+
+        // when
+        cache.invalidate("", 0, 60000, 120000);
+        List<Long> aggregates = cache.read("", query(1, 200000), 200000);
+
+        // then
+        assertThat(aggregates).containsExactly(60000L, 120000L);
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotInvalidateOtherRollupLevels() throws Exception {
+        // given
+        storedCaptureTimes.add(60000L);
+        cache.read("", query(1, 200000), 200000);
+
+        // when
+        cache.invalidate("", 1, 0, 300000);
+        cache.invalidate("other", 0, 0, 300000);
+        cache.read("", query(1, 200000), 200000);
+
+        // then
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(60001);
+    }
+
+    @Test
+    public void shouldNotCacheBeyondMaxBytes() throws Exception {
+        // given
+        for (long i = 1; i <= 101; i++) {
+            storedCaptureTimes.add(i * 60000);
+        }
+        cache.read("", query(1, 101 * 60000), 101 * 60000);
+
+        // when
+        cache.read("", query(1, 101 * 60000), 101 * 60000);
+
+        // then
+        assertThat(repositoryQueries).hasSize(2);
+        assertThat(repositoryQueries.get(1).from()).isEqualTo(1);
+    }
+
+    private static AggregateQuery query(long from, long to) {
+        return ImmutableAggregateQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+}
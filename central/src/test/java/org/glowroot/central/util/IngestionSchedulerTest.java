@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IngestionSchedulerTest {
+
+    private IngestionScheduler ingestionScheduler;
+
+    private final CountDownLatch blockingTaskStarted = new CountDownLatch(1);
+    private final CountDownLatch blockingTaskRelease = new CountDownLatch(1);
+
+    @After
+    public void afterEachTest() throws Exception {
+        blockingTaskRelease.countDown();
+        ingestionScheduler.close();
+    }
+
+    @Test
+    public void shouldServiceAgentsRoundRobin() throws Exception {
+        // given
+        ingestionScheduler = new IngestionScheduler(1, 10, 100);
+        List<String> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+        trySchedule("a", blockingTask(executed, "a1", done));
+        blockingTaskStarted.await(10, SECONDS);
+
+        // when
+        trySchedule("a", task(executed, "a2", done));
+        trySchedule("a", task(executed, "a3", done));
+        trySchedule("b", task(executed, "b1", done));
+        blockingTaskRelease.countDown();
+
+        // then
+        assertThat(done.await(10, SECONDS)).isTrue();
+        assertThat(executed).containsExactly("a1", "b1", "a2", "a3");
+    }
+
+    @Test
+    public void shouldRejectWhenAgentQueueIsFull() throws Exception {
+        // given
+        ingestionScheduler = new IngestionScheduler(1, 2, 100);
+        List<String> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+        trySchedule("a", blockingTask(executed, "a1", done));
+        blockingTaskStarted.await(10, SECONDS);
+
+        // when
+        boolean scheduled2 = trySchedule("a", task(executed, "a2", done));
+        boolean scheduled3 = trySchedule("a", task(executed, "a3", done));
+        boolean scheduled4 = trySchedule("a", task(executed, "a4", done));
+        boolean scheduledOther = trySchedule("b", task(executed, "b1", done));
+
+        // then
+        assertThat(scheduled2).isTrue();
+        assertThat(scheduled3).isTrue();
+        assertThat(scheduled4).isFalse();
+        assertThat(scheduledOther).isTrue();
+        assertThat(ingestionScheduler.getRejectedCount()).isEqualTo(1);
+        assertThat(ingestionScheduler.getQueueDepth()).isEqualTo(4);
+        blockingTaskRelease.countDown();
+        assertThat(done.await(10, SECONDS)).isTrue();
+    }
+
+    @Test
+    public void shouldPauseStreamsWhileQueueIsFull() throws Exception {
+        // given
+        ingestionScheduler = new IngestionScheduler(1, 10, 1);
+        List<String> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        trySchedule("a", blockingTask(executed, "a1", done));
+        blockingTaskStarted.await(10, SECONDS);
+
+        // when
+        CountDownLatch resumed = new CountDownLatch(1);
+        ingestionScheduler.whenAcceptingMore(resumed::countDown);
+
+        // then
+        assertThat(resumed.getCount()).isEqualTo(1);
+        assertThat(ingestionScheduler.getPausedStreamCount()).isEqualTo(1);
+        blockingTaskRelease.countDown();
+        assertThat(resumed.await(10, SECONDS)).isTrue();
+        assertThat(ingestionScheduler.getPausedStreamCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotPauseStreamsWhenQueueIsNotFull() throws Exception {
+        // given
+        ingestionScheduler = new IngestionScheduler(1, 10, 1);
+        AtomicBoolean resumed = new AtomicBoolean();
+
+        // when
+        ingestionScheduler.whenAcceptingMore(() -> resumed.set(true));
+
+        // then
+        assertThat(resumed.get()).isTrue();
+    }
+
+    @Test
+    public void shouldWaitForRoomInAgentQueue() throws Exception {
+        // given
+        ingestionScheduler = new IngestionScheduler(1, 1, 100);
+        List<String> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        trySchedule("a", blockingTask(executed, "a1", done));
+        blockingTaskStarted.await(10, SECONDS);
+        trySchedule("a", task(executed, "a2", done));
+
+        // when
+        Thread thread = new Thread(blockingTaskRelease::countDown);
+        thread.start();
+        boolean scheduled3 = ingestionScheduler.trySchedule("a", task(executed, "a3", done),
+                () -> {}, 10, SECONDS);
+
+        // then
+        assertThat(scheduled3).isTrue();
+        assertThat(done.await(10, SECONDS)).isTrue();
+        assertThat(executed).containsExactly("a1", "a2", "a3");
+        assertThat(ingestionScheduler.getRejectedCount()).isZero();
+    }
+
+    @Test
+    public void shouldRejectQueuedTasksOnClose() throws Exception {
+        // given
+        ingestionScheduler = new IngestionScheduler(1, 10, 100);
+        List<String> executed = new CopyOnWriteArrayList<>();
+        List<String> rejected = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        trySchedule("a", blockingTask(executed, "a1", done));
+        blockingTaskStarted.await(10, SECONDS);
+        ingestionScheduler.trySchedule("a", task(executed, "a2", done), () -> rejected.add("a2"),
+                0, SECONDS);
+
+        // when
+        ingestionScheduler.close();
+
+        // then
+        // the blocking task is interrupted once the drain timeout expires
+        assertThat(executed).containsExactly("a1");
+        assertThat(rejected).containsExactly("a2");
+        assertThat(ingestionScheduler.getQueueDepth()).isZero();
+        assertThat(trySchedule("a", task(executed, "a3", done))).isFalse();
+    }
+
+    private boolean trySchedule(String agentId, Runnable task) throws InterruptedException {
+        return ingestionScheduler.trySchedule(agentId, task, () -> {}, 0, SECONDS);
+    }
+
+    private Runnable blockingTask(List<String> executed, String name, CountDownLatch done) {
+        return () -> {
+            blockingTaskStarted.countDown();
+            try {
+                blockingTaskRelease.await(10, SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executed.add(name);
+            done.countDown();
+        };
+    }
+
+    private static Runnable task(List<String> executed, String name, CountDownLatch done) {
+        return () -> {
+            executed.add(name);
+            done.countDown();
+        };
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.WriteBatcher.BatchSizer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WriteBatcherTest {
+
+    private BatchSizer batchSizer;
+
+    @Before
+    public void beforeEachTest() {
+        batchSizer = new BatchSizer();
+    }
+
+    @Test
+    public void shouldGrowWhenFullBatchesAreFast() {
+        // when
+        for (int i = 0; i < 100; i++) {
+            batchSizer.onSuccess(batchSizer.getMaxBatchSize(), 1000000, 0);
+        }
+
+        // then
+        assertThat(batchSizer.getMaxBatchSize()).isEqualTo(64);
+    }
+
+    @Test
+    public void shouldNotGrowWhenBatchesAreNotFull() {
+        // when
+        for (int i = 0; i < 100; i++) {
+            batchSizer.onSuccess(2, 1000000, 0);
+        }
+
+        // then
+        assertThat(batchSizer.getMaxBatchSize()).isEqualTo(8);
+    }
+
+    @Test
+    public void shouldShrinkWhenBatchIsSlow() {
+        // given
+        for (int i = 0; i < 10; i++) {
+            batchSizer.onSuccess(batchSizer.getMaxBatchSize(), 1000000, 0);
+        }
+        int maxBatchSize = batchSizer.getMaxBatchSize();
+
+        // when
+        batchSizer.onSuccess(maxBatchSize, 10000000, 0);
+
+        // then
+        assertThat(batchSizer.getMaxBatchSize()).isEqualTo(maxBatchSize / 2);
+    }
+
+    @Test
+    public void shouldNotGrowWhenManyWritesAreInFlight() {
+        // when
+        for (int i = 0; i < 100; i++) {
+            batchSizer.onSuccess(batchSizer.getMaxBatchSize(), 1000000, 0.75);
+        }
+
+        // then
+        assertThat(batchSizer.getMaxBatchSize()).isEqualTo(8);
+    }
+
+    @Test
+    public void shouldShrinkWhenWritePermitsAreNearlyExhausted() {
+        // when
+        batchSizer.onSuccess(batchSizer.getMaxBatchSize(), 1000000, 0.95);
+
+        // then
+        assertThat(batchSizer.getMaxBatchSize()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldHoldWritePermitsUntilBatchCompletes() throws Exception {
+        // given
+        Semaphore writeQuerySemaphore = new Semaphore(3);
+        SettableFuture<ResultSet> batchFuture = SettableFuture.create();
+        CountDownLatch executed = new CountDownLatch(1);
+        WriteBatcher writeBatcher = new WriteBatcher(statement -> {
+            executed.countDown();
+            return batchFuture;
+        }, writeQuerySemaphore, 3, ProtocolVersion.V4, CodecRegistry.DEFAULT_INSTANCE);
+        BoundStatement statement = createBoundStatement();
+
+        // when
+        ListenableFuture<ResultSet> future1 = writeBatcher.add(statement);
+        ListenableFuture<ResultSet> future2 = writeBatcher.add(statement);
+
+        // then
+        assertThat(writeQuerySemaphore.availablePermits()).isEqualTo(1);
+        assertThat(executed.await(10, SECONDS)).isTrue();
+        assertThat(writeQuerySemaphore.availablePermits()).isEqualTo(1);
+        batchFuture.set(mock(ResultSet.class));
+        future1.get(10, SECONDS);
+        future2.get(10, SECONDS);
+        assertThat(writeQuerySemaphore.availablePermits()).isEqualTo(3);
+        writeBatcher.close();
+    }
+
+    @Test
+    public void shouldShrinkOnFailure() {
+        // when
+        batchSizer.onFailure();
+        batchSizer.onFailure();
+        batchSizer.onFailure();
+        batchSizer.onFailure();
+
+        // then
+        assertThat(batchSizer.getMaxBatchSize()).isEqualTo(1);
+    }
+
+    private static BoundStatement createBoundStatement() {
+        ColumnDefinitions variables = mock(ColumnDefinitions.class);
+        when(variables.size()).thenReturn(1);
+        when(variables.getTable(0)).thenReturn("tbl");
+        when(variables.getType(0)).thenReturn(DataType.cint());
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        when(preparedStatement.getQueryString()).thenReturn("insert into tbl (id) values (?)");
+        when(preparedStatement.getVariables()).thenReturn(variables);
+        BoundStatement statement = mock(BoundStatement.class);
+        when(statement.preparedStatement()).thenReturn(preparedStatement);
+        when(statement.getRoutingKey(any(), any())).thenReturn(ByteBuffer.wrap(new byte[] {1}));
+        return statement;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -57,6 +57,16 @@ public class LazyHistogram {
     }
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
+        return toProto(scratchBuffer, false);
+    }
+
+    // the sketch is only built when storing (rollups in the embedded and central collectors), so
+    // that it does not add cpu and payload to each aggregate flushed by the agent
+    public Aggregate.Histogram toProtoWithSketch(ScratchBuffer scratchBuffer) {
+        return toProto(scratchBuffer, true);
+    }
+
+    private Aggregate.Histogram toProto(ScratchBuffer scratchBuffer, boolean withSketch) {
         final Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
         if (histogram == null) {
             if (!sorted) {
@@ -84,6 +94,12 @@ public class LazyHistogram {
                     builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
                 }
             });
+            if (withSketch) {
+                // stored alongside the full precision histogram (which is still needed for
+                // rollups), so that percentiles across many aggregates can be calculated without
+                // decoding it
+                builder.setSketch(QuantileSketch.from(histogram).toByteString());
+            }
         }
         return builder.build();
     }
@@ -16,137 +16,220 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// the profile tree is stored as a struct of arrays indexed by node, with children linked through
+// firstChildNodes/nextSiblingNodes, instead of one object and one child list per node, which was
+// slow and memory hungry when merging large profiles
+//
+// frames (package/class/method/file name, line number and leaf thread state) are interned, so each
+// node only references a frame, and child nodes are found by scanning the (typically very short)
+// sibling chain, except for nodes with lots of children (e.g. thread pool worker run() methods),
+// whose children are found using a single open addressing hash table keyed by (parent node, frame)
+//
+// node 0 is a synthetic root node, whose children are the root nodes of the profile
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    // TODO use primitive maps, e.g. from GS collections
-    private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    // parent of nodes that have been removed by filtering or truncation
+    private static final int DETACHED = -2;
+    // parent node and frame are never negative, so this never matches a valid key
+    private static final long REMOVED_KEY = -1;
 
-    private final List<String> packageNames = Lists.newArrayList();
-    private final List<String> classNames = Lists.newArrayList();
-    private final List<String> methodNames = Lists.newArrayList();
-    private final List<String> fileNames = Lists.newArrayList();
+    private static final int INITIAL_CAPACITY = 16;
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    // scanning short sibling chains is faster than hashing, since nodes are mostly visited in the
+    // same order they were created in
+    private static final int MAX_SCANNED_CHILD_COUNT = 8;
+
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    private final NameTable packageNames = new NameTable();
+    private final NameTable classNames = new NameTable();
+    private final NameTable methodNames = new NameTable();
+    private final NameTable fileNames = new NameTable();
+
+    // caches the package name and class name split of full class names from stack trace elements
+    private final NameTable fullClassNames = new NameTable();
+    private int[] fullClassNamePackageNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] fullClassNameClassNameIndexes = new int[INITIAL_CAPACITY];
+
+    private final FrameTable frames = new FrameTable();
+
+    private int nodeCount = 1;
+
+    private int[] nodeFrames = new int[INITIAL_CAPACITY];
+    private long[] sampleCounts = new long[INITIAL_CAPACITY];
+    private long[] ellipsedSampleCounts = new long[INITIAL_CAPACITY];
+
+    private int[] parentNodes = new int[INITIAL_CAPACITY];
+    private int[] firstChildNodes = new int[INITIAL_CAPACITY];
+    private int[] lastChildNodes = new int[INITIAL_CAPACITY];
+    private int[] nextSiblingNodes = new int[INITIAL_CAPACITY];
+    // number of child nodes ever created (this is not decremented when child nodes are removed,
+    // so that once a node's children are in the child table, they stay in the child table)
+    private int[] childCounts = new int[INITIAL_CAPACITY];
+
+    // open addressing (linear probing) from (parent node, frame) to child node, only for children
+    // of nodes with more than MAX_SCANNED_CHILD_COUNT children, with the key packed into a long so
+    // that probing doesn't need to touch the node arrays
+    private long[] childTableKeys = new long[INITIAL_CAPACITY];
+    // 0 means empty slot (which works since the synthetic root node is never a child)
+    private int[] childTableNodes = new int[INITIAL_CAPACITY];
+    // including removed entries
+    private int childTableSize;
+
+    // only used for filtering and json output
+    private @Nullable String /*@Nullable*/ [] texts;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
-    // this method is not used that often (only for traces with > 20 stack trace samples) so ok
-    // that it does not have most optimal implementation (converts unnecessarily to profile tree)
+    public MutableProfile() {
+        parentNodes[ROOT] = NONE;
+        firstChildNodes[ROOT] = NONE;
+        lastChildNodes[ROOT] = NONE;
+        nextSiblingNodes[ROOT] = NONE;
+    }
+
     public void merge(MutableProfile profile) {
-        merge(profile.toProto());
+        int[] packageNameIndexMapping = packageNames.addAll(profile.packageNames);
+        int[] classNameIndexMapping = classNames.addAll(profile.classNames);
+        int[] methodNameIndexMapping = methodNames.addAll(profile.methodNames);
+        int[] fileNameIndexMapping = fileNames.addAll(profile.fileNames);
+        FrameTable toBeMergedFrames = profile.frames;
+        int[] frameMapping = new int[toBeMergedFrames.size];
+        for (int i = 0; i < toBeMergedFrames.size; i++) {
+            frameMapping[i] = frames.getFrame(
+                    packageNameIndexMapping[toBeMergedFrames.packageNameIndexes[i]],
+                    classNameIndexMapping[toBeMergedFrames.classNameIndexes[i]],
+                    methodNameIndexMapping[toBeMergedFrames.methodNameIndexes[i]],
+                    fileNameIndexMapping[toBeMergedFrames.fileNameIndexes[i]],
+                    toBeMergedFrames.lineNumbers[i], toBeMergedFrames.leafThreadStates[i]);
+        }
+        // maps from node in the profile being merged to node in this profile
+        int[] nodeMapping = new int[profile.nodeCount];
+        nodeMapping[ROOT] = ROOT;
+        // pre-order traversal, so parent nodes are always mapped before their children
+        int node = profile.firstChildNodes[ROOT];
+        while (node != NONE) {
+            int destinationNode = getOrCreateChildNode(nodeMapping[profile.parentNodes[node]],
+                    frameMapping[profile.nodeFrames[node]]);
+            sampleCounts[destinationNode] += profile.sampleCounts[node];
+            nodeMapping[node] = destinationNode;
+            node = profile.nextInPreOrder(node, ROOT);
+        }
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        int[] packageNameIndexMapping = packageNames.addAll(profile.getPackageNameList());
+        int[] classNameIndexMapping = classNames.addAll(profile.getClassNameList());
+        int[] methodNameIndexMapping = methodNames.addAll(profile.getMethodNameList());
+        int[] fileNameIndexMapping = fileNames.addAll(profile.getFileNameList());
+        // destination node of the most recent flat node at each depth
+        int[] destinationNodes = new int[INITIAL_CAPACITY];
+        for (Profile.ProfileNode flatNode : profile.getNodeList()) {
+            int depth = flatNode.getDepth();
+            int parentNode = depth == 0 ? ROOT : destinationNodes[depth - 1];
+            int frame = frames.getFrame(packageNameIndexMapping[flatNode.getPackageNameIndex()],
+                    classNameIndexMapping[flatNode.getClassNameIndex()],
+                    methodNameIndexMapping[flatNode.getMethodNameIndex()],
+                    fileNameIndexMapping[flatNode.getFileNameIndex()],
+                    flatNode.getLineNumber(), (byte) flatNode.getLeafThreadState().ordinal());
+            int destinationNode = getOrCreateChildNode(parentNode, frame);
+            sampleCounts[destinationNode] += flatNode.getSampleCount();
+            if (depth >= destinationNodes.length) {
+                destinationNodes = Arrays.copyOf(destinationNodes,
+                        Math.max(depth + 1, destinationNodes.length * 2));
+            }
+            destinationNodes[depth] = destinationNode;
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
+        int parentNode = ROOT;
         boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
+            StackTraceElement stackTraceElement = stackTraceElements.get(i);
             String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
-            int methodNameIndex =
-                    getNameIndex(MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
-                            "<null method name>"), methodNameIndexes, methodNames);
-            int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
-                    fileNameIndexes, fileNames);
+            int fullClassNameCount = fullClassNames.names.size();
+            int fullClassNameIndex = fullClassNames.getIndex(fullClassName);
+            if (fullClassNameIndex == fullClassNameCount) {
+                splitFullClassName(fullClassName, fullClassNameIndex);
+            }
+            int packageNameIndex = fullClassNamePackageNameIndexes[fullClassNameIndex];
+            int classNameIndex = fullClassNameClassNameIndexes[fullClassNameIndex];
+            int methodNameIndex = methodNames.getIndex(MoreObjects
+                    .firstNonNull(stackTraceElement.getMethodName(), "<null method name>"));
+            int fileNameIndex =
+                    fileNames.getIndex(Strings.nullToEmpty(stackTraceElement.getFileName()));
             int lineNumber = stackTraceElement.getLineNumber();
             Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
+                    i == 0 ? getThreadState(threadState) : Profile.LeafThreadState.NONE;
+            int frame = frames.getFrame(packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, (byte) leafThreadState.ordinal());
 
-            ProfileNode node = null;
+            int node = NONE;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                node = findChildNode(parentNode, frame);
             }
-            if (node == null) {
+            if (node == NONE) {
+                // once a new node is created, all of the remaining nodes will also be new
                 lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+                node = createChildNode(parentNode, frame);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            sampleCounts[node]++;
+            parentNode = node;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        boolean[] matched = new boolean[nodeCount];
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
+            String filterTextUpper = include.toUpperCase(Locale.ENGLISH);
+            int rootNode = firstChildNodes[ROOT];
+            while (rootNode != NONE) {
+                int nextRootNode = nextSiblingNodes[rootNode];
+                filter(rootNode, filterTextUpper, false, matched);
+                if (matched[rootNode]) {
+                    resetMatches(rootNode, matched);
                 } else {
-                    i.remove();
+                    removeChildNode(ROOT, rootNode);
                 }
+                rootNode = nextRootNode;
             }
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
+            String filterTextUpper = exclude.toUpperCase(Locale.ENGLISH);
+            int rootNode = firstChildNodes[ROOT];
+            while (rootNode != NONE) {
+                int nextRootNode = nextSiblingNodes[rootNode];
+                filter(rootNode, filterTextUpper, true, matched);
+                if (matched[rootNode]) {
+                    removeChildNode(ROOT, rootNode);
                 }
+                rootNode = nextRootNode;
             }
         }
     }
@@ -156,35 +239,35 @@ public class MutableProfile {
             return;
         }
         int minSamples = (int) Math.ceil(getSampleCount() * truncateBranchPercentage / 100);
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
+        // pre-order traversal, so child nodes are truncated before they are visited
+        int node = firstChildNodes[ROOT];
+        while (node != NONE) {
+            int childNode = firstChildNodes[node];
+            while (childNode != NONE) {
+                int nextChildNode = nextSiblingNodes[childNode];
+                if (sampleCounts[childNode] < minSamples) {
+                    removeChildNode(node, childNode);
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
-                } else {
-                    toBeVisited.add(childNode);
+                    ellipsedSampleCounts[node] += sampleCounts[childNode];
                 }
+                childNode = nextChildNode;
             }
+            node = nextInPreOrder(node, ROOT);
         }
     }
 
     public boolean isEmpty() {
-        return rootNodes.isEmpty();
+        return firstChildNodes[ROOT] == NONE;
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        int rootNode = firstChildNodes[ROOT];
+        while (rootNode != NONE) {
+            sampleCount += sampleCounts[rootNode];
+            rootNode = nextSiblingNodes[rootNode];
         }
         return sampleCount;
     }
@@ -199,14 +282,30 @@ public class MutableProfile {
 
     public Profile toProto() {
         List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
+        int[] depths = new int[nodeCount];
+        int node = firstChildNodes[ROOT];
+        while (node != NONE) {
+            int parentNode = parentNodes[node];
+            int depth = parentNode == ROOT ? 0 : depths[parentNode] + 1;
+            depths[node] = depth;
+            int frame = nodeFrames[node];
+            nodes.add(Profile.ProfileNode.newBuilder()
+                    .setDepth(depth)
+                    .setPackageNameIndex(frames.packageNameIndexes[frame])
+                    .setClassNameIndex(frames.classNameIndexes[frame])
+                    .setMethodNameIndex(frames.methodNameIndexes[frame])
+                    .setFileNameIndex(frames.fileNameIndexes[frame])
+                    .setLineNumber(frames.lineNumbers[frame])
+                    .setLeafThreadState(getLeafThreadState(node))
+                    .setSampleCount(sampleCounts[node])
+                    .build());
+            node = nextInPreOrder(node, ROOT);
         }
         return Profile.newBuilder()
-                .addAllPackageName(packageNames)
-                .addAllClassName(classNames)
-                .addAllMethodName(methodNames)
-                .addAllFileName(fileNames)
+                .addAllPackageName(packageNames.names)
+                .addAllClassName(classNames.names)
+                .addAllMethodName(methodNames.names)
+                .addAllFileName(fileNames.names)
                 .addAllNode(nodes)
                 .build();
     }
@@ -223,8 +322,25 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
+        int node = firstChildNodes[ROOT];
+        while (node != NONE) {
+            jg.writeStartObject();
+            jg.writeStringField("stackTraceElement", getText(node));
+            Profile.LeafThreadState leafThreadState = getLeafThreadState(node);
+            if (leafThreadState != Profile.LeafThreadState.NONE) {
+                jg.writeStringField("leafThreadState", leafThreadState.name());
+            }
+            jg.writeNumberField("sampleCount", sampleCounts[node]);
+            long ellipsedSampleCount = ellipsedSampleCounts[node];
+            if (ellipsedSampleCount > 0) {
+                jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
+            }
+            if (firstChildNodes[node] == NONE) {
+                node = writeEndObjects(jg, node, ROOT);
+            } else {
+                jg.writeArrayFieldStart("childNodes");
+                node = firstChildNodes[node];
+            }
         }
         jg.writeEndArray();
         jg.writeEndObject();
@@ -238,12 +354,13 @@ public class MutableProfile {
             jg.writeNumberField("totalSampleCount", getSampleCount());
             jg.writeArrayFieldStart("rootNodes");
             int height = 0;
-            for (ProfileNode rootNode : rootNodes) {
-                if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                    FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                    flameGraphWriter.traverse();
-                    height = Math.max(height, flameGraphWriter.height);
+            int[] depths = new int[nodeCount];
+            int rootNode = firstChildNodes[ROOT];
+            while (rootNode != NONE) {
+                if (sampleCounts[rootNode] > ellipsedSampleCounts[rootNode]) {
+                    height = Math.max(height, writeFlameGraphJson(jg, rootNode, depths));
                 }
+                rootNode = nextSiblingNodes[rootNode];
             }
             jg.writeEndArray();
             jg.writeNumberField("height", height);
@@ -254,396 +371,575 @@ public class MutableProfile {
         return sb.toString();
     }
 
-    private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
-            List<String> names) {
-        Integer index = nameIndexes.get(name);
-        if (index == null) {
-            index = names.size();
-            names.add(name);
-            nameIndexes.put(name, index);
+    // returns the height of the subtree
+    private int writeFlameGraphJson(JsonGenerator jg, int rootNode, int[] depths)
+            throws IOException {
+        int height = 0;
+        int node = rootNode;
+        while (node != NONE) {
+            int depth = node == rootNode ? 0 : depths[parentNodes[node]] + 1;
+            depths[node] = depth;
+            height = Math.max(height, depth + 1);
+            jg.writeStartObject();
+            jg.writeStringField("name", getText(node));
+            jg.writeNumberField("value", sampleCounts[node]);
+            if (firstChildNodes[node] == NONE) {
+                node = writeEndObjects(jg, node, rootNode);
+            } else {
+                jg.writeArrayFieldStart("children");
+                node = firstChildNodes[node];
+            }
         }
-        return index;
+        return height;
     }
 
-    private static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
-        if (state == null) {
-            return Profile.LeafThreadState.NONE;
-        }
-        switch (state) {
-            case NEW:
-                return Profile.LeafThreadState.NEW;
-            case RUNNABLE:
-                return Profile.LeafThreadState.RUNNABLE;
-            case BLOCKED:
-                return Profile.LeafThreadState.BLOCKED;
-            case WAITING:
-                return Profile.LeafThreadState.WAITING;
-            case TIMED_WAITING:
-                return Profile.LeafThreadState.TIMED_WAITING;
-            case TERMINATED:
-                return Profile.LeafThreadState.TERMINATED;
-            default:
-                logger.warn("unexpected thread state: {}", state);
-                return Profile.LeafThreadState.NONE;
+    // closes the json objects (and child arrays) of the given leaf node and of its ancestors that
+    // have no more children to write, stopping at subtreeRootNode (inclusive), and returns the next
+    // node in pre-order (or NONE if the end of the subtree has been reached)
+    private int writeEndObjects(JsonGenerator jg, int leafNode, int subtreeRootNode)
+            throws IOException {
+        int node = leafNode;
+        jg.writeEndObject();
+        while (node != subtreeRootNode) {
+            int nextSiblingNode = nextSiblingNodes[node];
+            if (nextSiblingNode != NONE) {
+                return nextSiblingNode;
+            }
+            node = parentNodes[node];
+            if (node == ROOT) {
+                return NONE;
+            }
+            jg.writeEndArray();
+            jg.writeEndObject();
         }
+        return NONE;
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
-    private static int[] makeIndexMapping(List<String> toBeMergedNames,
-            Map<String, Integer> existingIndexes, List<String> existingNames) {
-        int[] indexMapping = new int[toBeMergedNames.size()];
-        for (int i = 0; i < toBeMergedNames.size(); i++) {
-            String toBeMergedName = toBeMergedNames.get(i);
-            Integer existingIndex = existingIndexes.get(toBeMergedName);
-            if (existingIndex == null) {
-                int newIndex = existingNames.size();
-                existingNames.add(toBeMergedName);
-                existingIndexes.put(toBeMergedName, newIndex);
-                indexMapping[i] = newIndex;
-            } else {
-                indexMapping[i] = existingIndex;
-            }
+    // returns the next node in pre-order within the subtree of subtreeRootNode (exclusive), or
+    // NONE if there are no more nodes
+    private int nextInPreOrder(int node, int subtreeRootNode) {
+        int firstChildNode = firstChildNodes[node];
+        if (firstChildNode != NONE) {
+            return firstChildNode;
         }
-        return indexMapping;
+        return nextInPreOrderSkippingChildren(node, subtreeRootNode);
     }
 
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
-
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
+    private int nextInPreOrderSkippingChildren(int node, int subtreeRootNode) {
+        int curr = node;
+        while (curr != subtreeRootNode) {
+            int nextSiblingNode = nextSiblingNodes[curr];
+            if (nextSiblingNode != NONE) {
+                return nextSiblingNode;
+            }
+            curr = parentNodes[curr];
         }
+        return NONE;
+    }
 
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
+    // post-order traversal (using explicit links to avoid StackOverflowError caused by a recursive
+    // algorithm), the subtree root node is marked as matched if it should be removed by the caller
+    // (in the case of exclusion), or if it should be kept (in the case of inclusion)
+    private void filter(int subtreeRootNode, String filterTextUpper, boolean exclusion,
+            boolean[] matched) {
+        int node = subtreeRootNode;
+        while (true) {
+            // descend as far as possible, marking direct matches along the way
+            while (true) {
+                if (isMatch(node, filterTextUpper)) {
+                    matched[node] = true;
+                    // no need to visit children
+                    break;
                 }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
+                int firstChildNode = firstChildNodes[node];
+                if (firstChildNode == NONE) {
+                    break;
+                }
+                node = firstChildNode;
             }
-            return text;
-        }
-
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
+            // revisit after children, then move on to the next sibling or up to the parent
+            while (true) {
+                int nextSiblingNode = nextSiblingNodes[node];
+                int parentNode = parentNodes[node];
+                revisitAfterChildren(node, exclusion, matched);
+                if (node == subtreeRootNode) {
+                    return;
+                }
+                if (nextSiblingNode != NONE) {
+                    node = nextSiblingNode;
+                    break;
+                }
+                node = parentNode;
             }
-            return textUpper;
         }
     }
 
-    private class Merger {
-
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
-
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
-
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
+    private void revisitAfterChildren(int node, boolean exclusion, boolean[] matched) {
+        if (matched[node]) {
+            // if exclusion then node will be removed by parent
+            // if not exclusion then keep node and all children
+            return;
         }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
-                }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
-                }
+        if (firstChildNodes[node] == NONE) {
+            return;
+        }
+        if (removeNode(node, exclusion, matched)) {
+            // node will be removed by parent
+            if (exclusion) {
+                matched[node] = true;
             }
+            return;
         }
-
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
+        if (!exclusion) {
+            matched[node] = true;
+        }
+        // node is a partial match, need to filter it out
+        long filteredSampleCount = 0;
+        int childNode = firstChildNodes[node];
+        while (childNode != NONE) {
+            int nextChildNode = nextSiblingNodes[childNode];
+            if (exclusion == !matched[childNode]) {
+                filteredSampleCount += sampleCounts[childNode];
+            } else {
+                removeChildNode(node, childNode);
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
+            childNode = nextChildNode;
         }
+        sampleCounts[node] = filteredSampleCount;
+    }
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
+    private boolean isMatch(int node, String filterTextUpper) {
+        String textUpper = getText(node).toUpperCase(Locale.ENGLISH);
+        if (textUpper.contains(filterTextUpper)) {
+            return true;
         }
+        String leafThreadStateUpper =
+                getLeafThreadState(node).name().toUpperCase(Locale.ENGLISH);
+        return leafThreadStateUpper.contains(filterTextUpper);
     }
 
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
-
-        private final List<Profile.ProfileNode> nodes;
-
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
-            this.nodes = nodes;
+    private boolean removeNode(int node, boolean exclusion, boolean[] matched) {
+        if (exclusion) {
+            return hasOnlyMatchedChildren(node, matched);
+        } else {
+            return hasNoMatchedChildren(node, matched);
         }
+    }
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            nodes.add(Profile.ProfileNode.newBuilder()
-                    .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
-                    .build());
-            return node.childNodes;
+    private boolean hasOnlyMatchedChildren(int node, boolean[] matched) {
+        int childNode = firstChildNodes[node];
+        while (childNode != NONE) {
+            if (!matched[childNode]) {
+                return false;
+            }
+            childNode = nextSiblingNodes[childNode];
         }
+        return true;
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private boolean hasNoMatchedChildren(int node, boolean[] matched) {
+        int childNode = firstChildNodes[node];
+        while (childNode != NONE) {
+            if (matched[childNode]) {
+                return false;
+            }
+            childNode = nextSiblingNodes[childNode];
+        }
+        return true;
+    }
 
-        private final String filterTextUpper;
-        private final boolean exclusion;
+    private void resetMatches(int subtreeRootNode, boolean[] matched) {
+        int node = subtreeRootNode;
+        while (node != NONE) {
+            matched[node] = false;
+            node = nextInPreOrder(node, subtreeRootNode);
+        }
+    }
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
-            this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
-            this.exclusion = exclusion;
+    private void splitFullClassName(String fullClassName, int fullClassNameIndex) {
+        int index = fullClassName.lastIndexOf('.');
+        String packageName;
+        String className;
+        if (index == -1) {
+            packageName = "";
+            className = fullClassName;
+        } else {
+            packageName = fullClassName.substring(0, index);
+            className = fullClassName.substring(index + 1);
         }
+        if (fullClassNameIndex == fullClassNamePackageNameIndexes.length) {
+            int capacity = fullClassNameIndex * 2;
+            fullClassNamePackageNameIndexes =
+                    Arrays.copyOf(fullClassNamePackageNameIndexes, capacity);
+            fullClassNameClassNameIndexes = Arrays.copyOf(fullClassNameClassNameIndexes, capacity);
+        }
+        fullClassNamePackageNameIndexes[fullClassNameIndex] = packageNames.getIndex(packageName);
+        fullClassNameClassNameIndexes[fullClassNameIndex] = classNames.getIndex(className);
+    }
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            if (isMatch(node)) {
-                node.matched = true;
-                // no need to visit children
-                return ImmutableList.of();
+    private String getText(int node) {
+        String[] texts = this.texts;
+        if (texts == null || texts.length < nodeCount) {
+            texts = texts == null ? new String[nodeCount] : Arrays.copyOf(texts, nodeCount);
+            this.texts = texts;
+        }
+        String text = texts[node];
+        if (text == null) {
+            int frame = nodeFrames[node];
+            String packageName = packageNames.names.get(frames.packageNameIndexes[frame]);
+            String className = classNames.names.get(frames.classNameIndexes[frame]);
+            String fullClassName;
+            if (packageName.isEmpty()) {
+                fullClassName = className;
+            } else {
+                fullClassName = packageName + '.' + className;
             }
-            return node.childNodes;
+            text = new StackTraceElement(fullClassName,
+                    methodNames.names.get(frames.methodNameIndexes[frame]),
+                    fileNames.names.get(frames.fileNameIndexes[frame]), frames.lineNumbers[frame])
+                            .toString();
+            texts[node] = text;
         }
+        return text;
+    }
 
-        @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
-                // if exclusion then node will be removed by parent
-                // if not exclusion then keep node and all children
-                return;
-            }
-            if (node.childNodes.isEmpty()) {
-                return;
-            }
-            if (removeNode(node)) {
-                // node will be removed by parent
-                if (exclusion) {
-                    node.matched = true;
-                }
-                return;
-            }
-            if (!exclusion) {
-                node.matched = true;
-            }
-            // node is a partial match, need to filter it out
-            long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
-                } else {
-                    i.remove();
-                }
-            }
-            node.sampleCount = filteredSampleCount;
+    private Profile.LeafThreadState getLeafThreadState(int node) {
+        return LEAF_THREAD_STATES[frames.leafThreadStates[nodeFrames[node]]];
+    }
+
+    private int getOrCreateChildNode(int parentNode, int frame) {
+        int node = findChildNode(parentNode, frame);
+        if (node == NONE) {
+            node = createChildNode(parentNode, frame);
         }
+        return node;
+    }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
-            if (textUpper.contains(filterTextUpper)) {
-                return true;
-            }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
+    private int findChildNode(int parentNode, int frame) {
+        if (childCounts[parentNode] <= MAX_SCANNED_CHILD_COUNT) {
+            int childNode = firstChildNodes[parentNode];
+            while (childNode != NONE) {
+                if (nodeFrames[childNode] == frame) {
+                    return childNode;
                 }
+                childNode = nextSiblingNodes[childNode];
             }
-            return false;
-        }
-
-        private boolean removeNode(ProfileNode node) {
-            if (exclusion) {
-                return hasOnlyMatchedChildren(node);
-            } else {
-                return hasNoMatchedChildren(node);
+            return NONE;
+        }
+        long key = childTableKey(parentNode, frame);
+        int mask = childTableKeys.length - 1;
+        int slot = hash(key) & mask;
+        int node;
+        while ((node = childTableNodes[slot]) != 0) {
+            if (childTableKeys[slot] == key) {
+                return node;
             }
+            slot = (slot + 1) & mask;
         }
+        return NONE;
+    }
 
-        private static boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
-                    return false;
-                }
+    private int createChildNode(int parentNode, int frame) {
+        if (nodeCount == parentNodes.length) {
+            growNodeArrays();
+        }
+        int node = nodeCount++;
+        nodeFrames[node] = frame;
+        parentNodes[node] = parentNode;
+        firstChildNodes[node] = NONE;
+        lastChildNodes[node] = NONE;
+        nextSiblingNodes[node] = NONE;
+        // append to preserve the order in which nodes were first seen
+        int lastChildNode = lastChildNodes[parentNode];
+        if (lastChildNode == NONE) {
+            firstChildNodes[parentNode] = node;
+        } else {
+            nextSiblingNodes[lastChildNode] = node;
+        }
+        lastChildNodes[parentNode] = node;
+        int childCount = ++childCounts[parentNode];
+        if (childCount == MAX_SCANNED_CHILD_COUNT + 1) {
+            // switching from scanning to the child table for this parent node
+            int childNode = firstChildNodes[parentNode];
+            while (childNode != NONE) {
+                insertIntoChildTable(childNode);
+                childNode = nextSiblingNodes[childNode];
             }
-            return true;
+        } else if (childCount > MAX_SCANNED_CHILD_COUNT) {
+            insertIntoChildTable(node);
         }
+        return node;
+    }
 
-        private static boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
-                    return false;
-                }
+    private void removeChildNode(int parentNode, int childNode) {
+        int prevChildNode = NONE;
+        int curr = firstChildNodes[parentNode];
+        while (curr != childNode) {
+            prevChildNode = curr;
+            curr = nextSiblingNodes[curr];
+        }
+        int nextChildNode = nextSiblingNodes[childNode];
+        if (prevChildNode == NONE) {
+            firstChildNodes[parentNode] = nextChildNode;
+        } else {
+            nextSiblingNodes[prevChildNode] = nextChildNode;
+        }
+        if (lastChildNodes[parentNode] == childNode) {
+            lastChildNodes[parentNode] = prevChildNode;
+        }
+        if (childCounts[parentNode] > MAX_SCANNED_CHILD_COUNT) {
+            // the key is replaced so that the removed node can no longer be matched by subsequent
+            // merging (the slot itself can't be emptied since that would break probing for other
+            // keys)
+            long key = childTableKey(parentNode, nodeFrames[childNode]);
+            int mask = childTableKeys.length - 1;
+            int slot = hash(key) & mask;
+            while (childTableNodes[slot] != childNode) {
+                slot = (slot + 1) & mask;
             }
-            return true;
+            childTableKeys[slot] = REMOVED_KEY;
         }
+        // the removed node (and its subtree) stays in the node arrays, but is no longer reachable
+        parentNodes[childNode] = DETACHED;
+        nextSiblingNodes[childNode] = NONE;
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
+    private void growNodeArrays() {
+        int capacity = parentNodes.length * 2;
+        nodeFrames = Arrays.copyOf(nodeFrames, capacity);
+        sampleCounts = Arrays.copyOf(sampleCounts, capacity);
+        ellipsedSampleCounts = Arrays.copyOf(ellipsedSampleCounts, capacity);
+        parentNodes = Arrays.copyOf(parentNodes, capacity);
+        firstChildNodes = Arrays.copyOf(firstChildNodes, capacity);
+        lastChildNodes = Arrays.copyOf(lastChildNodes, capacity);
+        nextSiblingNodes = Arrays.copyOf(nextSiblingNodes, capacity);
+        childCounts = Arrays.copyOf(childCounts, capacity);
+    }
 
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
+    private void insertIntoChildTable(int node) {
+        if ((childTableSize + 1) * 2 > childTableKeys.length) {
+            rebuildChildTable();
         }
+        long key = childTableKey(parentNodes[node], nodeFrames[node]);
+        int mask = childTableKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (childTableNodes[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        childTableKeys[slot] = key;
+        childTableNodes[slot] = node;
+        childTableSize++;
+    }
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
+    private void rebuildChildTable() {
+        long[] oldKeys = childTableKeys;
+        int[] oldNodes = childTableNodes;
+        int liveSize = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldNodes[i] != 0 && oldKeys[i] != REMOVED_KEY) {
+                liveSize++;
+            }
+        }
+        int capacity = oldKeys.length;
+        while ((liveSize + 1) * 2 > capacity) {
+            capacity *= 2;
+        }
+        childTableKeys = new long[capacity];
+        childTableNodes = new int[capacity];
+        childTableSize = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            int node = oldNodes[i];
+            long key = oldKeys[i];
+            // removed entries are dropped
+            if (node != 0 && key != REMOVED_KEY) {
+                int slot = hash(key) & mask;
+                while (childTableNodes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                childTableKeys[slot] = key;
+                childTableNodes[slot] = node;
+                childTableSize++;
+            }
         }
     }
 
-    private static class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private static long childTableKey(int parentNode, int frame) {
+        return ((long) parentNode << 32) | frame;
+    }
 
-        private final JsonGenerator jg;
+    // murmur3 finalizer, since linear probing is sensitive to clustering
+    private static int hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
-            this.jg = jg;
+    private static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
+        if (state == null) {
+            return Profile.LeafThreadState.NONE;
+        }
+        switch (state) {
+            case NEW:
+                return Profile.LeafThreadState.NEW;
+            case RUNNABLE:
+                return Profile.LeafThreadState.RUNNABLE;
+            case BLOCKED:
+                return Profile.LeafThreadState.BLOCKED;
+            case WAITING:
+                return Profile.LeafThreadState.WAITING;
+            case TIMED_WAITING:
+                return Profile.LeafThreadState.TIMED_WAITING;
+            case TERMINATED:
+                return Profile.LeafThreadState.TERMINATED;
+            default:
+                logger.warn("unexpected thread state: {}", state);
+                return Profile.LeafThreadState.NONE;
         }
+    }
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
-            jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != Profile.LeafThreadState.NONE) {
-                jg.writeStringField("leafThreadState", leafThreadState.name());
+    // interns frames to indexes, using open addressing (linear probing), the number of distinct
+    // frames is typically much smaller than the number of nodes so this table stays small
+    private static class FrameTable {
+
+        private int size;
+
+        private int[] packageNameIndexes = new int[INITIAL_CAPACITY];
+        private int[] classNameIndexes = new int[INITIAL_CAPACITY];
+        private int[] methodNameIndexes = new int[INITIAL_CAPACITY];
+        private int[] fileNameIndexes = new int[INITIAL_CAPACITY];
+        private int[] lineNumbers = new int[INITIAL_CAPACITY];
+        private byte[] leafThreadStates = new byte[INITIAL_CAPACITY];
+
+        // frame index + 1, 0 means empty slot
+        private int[] table = new int[INITIAL_CAPACITY * 2];
+
+        private int getFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+                int fileNameIndex, int lineNumber, byte leafThreadState) {
+            int mask = table.length - 1;
+            int slot = hash(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                    lineNumber, leafThreadState) & mask;
+            int entry;
+            while ((entry = table[slot]) != 0) {
+                int frame = entry - 1;
+                // checking line number first since most likely to be different
+                if (lineNumbers[frame] == lineNumber
+                        && fileNameIndexes[frame] == fileNameIndex
+                        && leafThreadStates[frame] == leafThreadState
+                        && methodNameIndexes[frame] == methodNameIndex
+                        && classNameIndexes[frame] == classNameIndex
+                        && packageNameIndexes[frame] == packageNameIndex) {
+                    return frame;
+                }
+                slot = (slot + 1) & mask;
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
-            if (ellipsedSampleCount > 0) {
-                jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
+            if (size == lineNumbers.length) {
+                int capacity = size * 2;
+                packageNameIndexes = Arrays.copyOf(packageNameIndexes, capacity);
+                classNameIndexes = Arrays.copyOf(classNameIndexes, capacity);
+                methodNameIndexes = Arrays.copyOf(methodNameIndexes, capacity);
+                fileNameIndexes = Arrays.copyOf(fileNameIndexes, capacity);
+                lineNumbers = Arrays.copyOf(lineNumbers, capacity);
+                leafThreadStates = Arrays.copyOf(leafThreadStates, capacity);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
-                jg.writeArrayFieldStart("childNodes");
+            int frame = size++;
+            packageNameIndexes[frame] = packageNameIndex;
+            classNameIndexes[frame] = classNameIndex;
+            methodNameIndexes[frame] = methodNameIndex;
+            fileNameIndexes[frame] = fileNameIndex;
+            lineNumbers[frame] = lineNumber;
+            leafThreadStates[frame] = leafThreadState;
+            table[slot] = frame + 1;
+            if (size * 2 > table.length) {
+                rebuildTable(table.length * 2);
+            }
+            return frame;
+        }
+
+        private void rebuildTable(int capacity) {
+            table = new int[capacity];
+            int mask = capacity - 1;
+            for (int frame = 0; frame < size; frame++) {
+                int slot = hash(packageNameIndexes[frame], classNameIndexes[frame],
+                        methodNameIndexes[frame], fileNameIndexes[frame], lineNumbers[frame],
+                        leafThreadStates[frame]) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = frame + 1;
             }
-            return childNodes;
         }
 
-        @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
-                jg.writeEndArray();
-            }
-            jg.writeEndObject();
+        private static int hash(int packageNameIndex, int classNameIndex, int methodNameIndex,
+                int fileNameIndex, int lineNumber, byte leafThreadState) {
+            int h = packageNameIndex;
+            h = 31 * h + classNameIndex;
+            h = 31 * h + methodNameIndex;
+            h = 31 * h + fileNameIndex;
+            h = 31 * h + lineNumber;
+            h = 31 * h + leafThreadState;
+            return h ^ (h >>> 16);
         }
     }
 
-    private static class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    // interns names to indexes, using open addressing (linear probing) on the name hash codes
+    private static class NameTable {
+
+        private final List<String> names = Lists.newArrayList();
 
-        private final JsonGenerator jg;
-        private int height;
+        // name index + 1, 0 means empty slot
+        private int[] table = new int[INITIAL_CAPACITY];
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
-            this.jg = jg;
+        private int getIndex(String name) {
+            int mask = table.length - 1;
+            int slot = spread(name.hashCode()) & mask;
+            int entry;
+            while ((entry = table[slot]) != 0) {
+                if (names.get(entry - 1).equals(name)) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int index = names.size();
+            names.add(name);
+            table[slot] = index + 1;
+            if (names.size() * 2 > table.length) {
+                rebuildTable(table.length * 2);
+            }
+            return index;
         }
 
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
-            height = Math.max(height, depth + 1);
-            jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
-                jg.writeArrayFieldStart("children");
+        // returns mapping from the given name indexes to the indexes in this table
+        private int[] addAll(List<String> toBeMergedNames) {
+            int[] indexMapping = new int[toBeMergedNames.size()];
+            for (int i = 0; i < toBeMergedNames.size(); i++) {
+                indexMapping[i] = getIndex(toBeMergedNames.get(i));
             }
-            return node.childNodes;
+            return indexMapping;
         }
 
-        @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
-                jg.writeEndArray();
+        private int[] addAll(NameTable toBeMergedNames) {
+            return addAll(toBeMergedNames.names);
+        }
+
+        private void rebuildTable(int capacity) {
+            table = new int[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < names.size(); i++) {
+                int slot = spread(names.get(i).hashCode()) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
             }
-            jg.writeEndObject();
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
         }
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// fixed bucket log-linear histogram, used for calculating percentiles across many aggregates
+// (e.g. percentile charts over long time ranges), where decoding and merging full precision
+// HdrHistograms for each aggregate is expensive
+//
+// values below 256 are tracked exactly, and larger values are tracked in 128 linear sub-buckets
+// per power of two, so the relative error of the reported percentiles is below 0.4%, and the
+// number of buckets is bounded (less than 7296 for the full range of long values)
+public class QuantileSketch {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private long[] counts = new long[0];
+    private long totalCount;
+
+    public static QuantileSketch from(Aggregate.Histogram hist) {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.merge(hist);
+        return sketch;
+    }
+
+    // adds the sketch to a histogram received from an agent (agents do not build the sketch, see
+    // LazyHistogram.toProtoWithSketch()), raw value histograms are left as is since they are
+    // already cheap to merge
+    public static Aggregate.Histogram withSketch(Aggregate.Histogram hist) {
+        if (hist.getEncodedBytes().isEmpty() || !hist.getSketch().isEmpty()) {
+            return hist;
+        }
+        return hist.toBuilder()
+                .setSketch(from(hist).toByteString())
+                .build();
+    }
+
+    public void add(long value) {
+        add(value, 1);
+    }
+
+    public void merge(QuantileSketch toBeMergedSketch) {
+        ensureCapacity(toBeMergedSketch.counts.length);
+        for (int i = 0; i < toBeMergedSketch.counts.length; i++) {
+            counts[i] += toBeMergedSketch.counts[i];
+        }
+        totalCount += toBeMergedSketch.totalCount;
+    }
+
+    public void merge(Aggregate.Histogram toBeMergedHistogram) {
+        ByteString sketch = toBeMergedHistogram.getSketch();
+        if (!sketch.isEmpty()) {
+            mergeEncoded(sketch);
+            return;
+        }
+        ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
+        if (encodedBytes.isEmpty()) {
+            for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
+                add(rawValue);
+            }
+        } else {
+            // aggregates that were stored before the sketch was introduced
+            add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        // this is consistent with LazyHistogram behavior when tracking raw values, including
+        // support for "0th" percentile to mean the smallest tracked value
+        long countAtPercentile = Math.max((long) Math.ceil(totalCount * percentile / 100), 1);
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= countAtPercentile) {
+                return getRepresentativeValue(i);
+            }
+        }
+        // only reached for percentiles above 100
+        return getRepresentativeValue(counts.length - 1);
+    }
+
+    // sparse encoding of the non-empty buckets, as pairs of varints (index delta from prior
+    // non-empty bucket, count)
+    public ByteString toByteString() {
+        // each varint is at most 10 bytes
+        ByteBuffer buffer = ByteBuffer.allocate(20 * getNonEmptyBucketCount());
+        int priorIndex = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                writeVarint(buffer, i - priorIndex);
+                writeVarint(buffer, counts[i]);
+                priorIndex = i;
+            }
+        }
+        return ByteString.copyFrom(buffer.array(), 0, buffer.position());
+    }
+
+    static QuantileSketch from(Histogram histogram) {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(histogram);
+        return sketch;
+    }
+
+    private void add(long value, long count) {
+        int index = getIndex(value);
+        ensureCapacity(index + 1);
+        counts[index] += count;
+        totalCount += count;
+    }
+
+    private void add(Histogram histogram) {
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            add(histogram.medianEquivalentValue(value.getValueIteratedTo()),
+                    value.getCountAtValueIteratedTo());
+        }
+    }
+
+    private void mergeEncoded(ByteString encoded) {
+        ByteBuffer buffer = encoded.asReadOnlyByteBuffer();
+        int index = 0;
+        while (buffer.hasRemaining()) {
+            index += (int) readVarint(buffer);
+            long count = readVarint(buffer);
+            ensureCapacity(index + 1);
+            counts[index] += count;
+            totalCount += count;
+        }
+    }
+
+    private int getNonEmptyBucketCount() {
+        int nonEmptyBucketCount = 0;
+        for (long count : counts) {
+            if (count != 0) {
+                nonEmptyBucketCount++;
+            }
+        }
+        return nonEmptyBucketCount;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > counts.length) {
+            long[] temp = new long[capacity];
+            System.arraycopy(counts, 0, temp, 0, counts.length);
+            counts = temp;
+        }
+    }
+
+    private static int getIndex(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) Math.max(value, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    private static long getRepresentativeValue(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowestValue = (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+        // midpoint of the bucket
+        return lowestValue + ((1L << shift) >>> 1);
+    }
+
+    private static void writeVarint(ByteBuffer buffer, long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// string table encoding of timer names (Trace.Header.timer_name) and entry location stack trace
+// elements (Trace.shared_location_stack_trace_element), which otherwise repeat the same class and
+// method names many times over in large traces
+public class TraceStringTables {
+
+    private TraceStringTables() {}
+
+    public static Trace.Header encodeTimerNames(Trace.Header header) {
+        if (header.getTimerNameCount() > 0) {
+            // already encoded
+            return header;
+        }
+        Map<String, Integer> timerNameIndexes = Maps.newHashMap();
+        Trace.Header.Builder builder = header.toBuilder();
+        if (header.hasMainThreadRootTimer()) {
+            builder.setMainThreadRootTimer(
+                    encodeTimer(header.getMainThreadRootTimer(), timerNameIndexes, builder));
+        }
+        if (header.hasAuxThreadRootTimer()) {
+            builder.setAuxThreadRootTimer(
+                    encodeTimer(header.getAuxThreadRootTimer(), timerNameIndexes, builder));
+        }
+        builder.clearAsyncTimer();
+        for (Trace.Timer asyncTimer : header.getAsyncTimerList()) {
+            builder.addAsyncTimer(encodeTimer(asyncTimer, timerNameIndexes, builder));
+        }
+        return builder.build();
+    }
+
+    public static Trace.Header decodeTimerNames(Trace.Header header) {
+        if (header.getTimerNameCount() == 0) {
+            // not encoded
+            return header;
+        }
+        return decodeTimerNames(header, header.getTimerNameList()).toBuilder()
+                .clearTimerName()
+                .build();
+    }
+
+    // timer names can also refer to a table that is shared across traces (e.g. the timer name
+    // table of the multiplexed trace stream)
+    public static Trace.Header decodeTimerNames(Trace.Header header, List<String> timerNames) {
+        Trace.Header.Builder builder = header.toBuilder();
+        if (header.hasMainThreadRootTimer()) {
+            builder.setMainThreadRootTimer(
+                    decodeTimer(header.getMainThreadRootTimer(), timerNames));
+        }
+        if (header.hasAuxThreadRootTimer()) {
+            builder.setAuxThreadRootTimer(decodeTimer(header.getAuxThreadRootTimer(), timerNames));
+        }
+        builder.clearAsyncTimer();
+        for (Trace.Timer asyncTimer : header.getAsyncTimerList()) {
+            builder.addAsyncTimer(decodeTimer(asyncTimer, timerNames));
+        }
+        return builder.build();
+    }
+
+    public static Trace.Entry decodeLocation(Trace.Entry entry,
+            List<Proto.StackTraceElement> sharedLocationStackTraceElements) {
+        if (entry.getLocationStackTraceElementIndexCount() == 0) {
+            // not encoded
+            return entry;
+        }
+        Trace.Entry.Builder builder = entry.toBuilder()
+                .clearLocationStackTraceElementIndex();
+        for (int index : entry.getLocationStackTraceElementIndexList()) {
+            builder.addLocationStackTraceElement(sharedLocationStackTraceElements.get(index));
+        }
+        return builder.build();
+    }
+
+    private static Trace.Timer encodeTimer(Trace.Timer timer, Map<String, Integer> timerNameIndexes,
+            Trace.Header.Builder header) {
+        String timerName = timer.getName();
+        Integer index = timerNameIndexes.get(timerName);
+        if (index == null) {
+            index = timerNameIndexes.size();
+            timerNameIndexes.put(timerName, index);
+            header.addTimerName(timerName);
+        }
+        Trace.Timer.Builder builder = timer.toBuilder()
+                .clearName()
+                .setNameIndex(index)
+                .clearChildTimer();
+        for (Trace.Timer childTimer : timer.getChildTimerList()) {
+            builder.addChildTimer(encodeTimer(childTimer, timerNameIndexes, header));
+        }
+        return builder.build();
+    }
+
+    private static Trace.Timer decodeTimer(Trace.Timer timer, List<String> timerNames) {
+        Trace.Timer.Builder builder = timer.toBuilder()
+                .clearChildTimer();
+        if (timer.getName().isEmpty()) {
+            builder.setName(timerNames.get(timer.getNameIndex()))
+                    .clearNameIndex();
+        }
+        for (Trace.Timer childTimer : timer.getChildTimerList()) {
+            builder.addChildTimer(decodeTimer(childTimer, timerNames));
+        }
+        return builder.build();
+    }
+
+    public static class LocationEncoder {
+
+        private final Map<Proto.StackTraceElement, Integer> indexes = Maps.newHashMap();
+        private final List<Proto.StackTraceElement> sharedLocationStackTraceElements =
+                Lists.newArrayList();
+
+        public LocationEncoder() {}
+
+        // continues the shared location stack trace element table of entries that are already
+        // (partially) encoded
+        public LocationEncoder(List<Proto.StackTraceElement> sharedLocationStackTraceElements) {
+            for (Proto.StackTraceElement element : sharedLocationStackTraceElements) {
+                add(element);
+            }
+        }
+
+        public Trace.Entry encode(Trace.Entry entry) {
+            if (entry.getLocationStackTraceElementCount() == 0) {
+                return entry;
+            }
+            Trace.Entry.Builder builder = entry.toBuilder()
+                    .clearLocationStackTraceElement();
+            for (Proto.StackTraceElement element : entry.getLocationStackTraceElementList()) {
+                builder.addLocationStackTraceElementIndex(getIndex(element));
+            }
+            return builder.build();
+        }
+
+        public int getIndex(Proto.StackTraceElement element) {
+            Integer index = indexes.get(element);
+            if (index == null) {
+                index = add(element);
+            }
+            return index;
+        }
+
+        public List<Proto.StackTraceElement> getSharedLocationStackTraceElements() {
+            return sharedLocationStackTraceElements;
+        }
+
+        private int add(Proto.StackTraceElement element) {
+            // the same element can appear more than once in a received table, in which case the
+            // first index is used for subsequent entries, but the later index is kept valid
+            int index = sharedLocationStackTraceElements.size();
+            sharedLocationStackTraceElements.add(element);
+            if (!indexes.containsKey(element)) {
+                indexes.put(element, index);
+            }
+            return index;
+        }
+    }
+}
@@ -17,12 +17,14 @@ package org.glowroot.common.model;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
@@ -164,6 +166,234 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testTruncateBranches() throws IOException {
+        // given
+        MutableProfile profile = createProfile();
+        // when
+        profile.truncateBranches(25);
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 5,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"Main.main(Main.java:1)\","
+                + "      \"sampleCount\": 5,"
+                + "      \"ellipsedSampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"A.a(A.java:2)\","
+                + "          \"sampleCount\": 4,"
+                + "          \"ellipsedSampleCount\": 1,"
+                + "          \"childNodes\": ["
+                + "            {"
+                + "              \"stackTraceElement\": \"B.b(B.java:3)\","
+                + "              \"leafThreadState\": \"RUNNABLE\","
+                + "              \"sampleCount\": 3"
+                + "            }"
+                + "          ]"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        // given
+        MutableProfile includeProfile = createProfile();
+        MutableProfile excludeProfile = createProfile();
+        // when
+        includeProfile.filter(ImmutableList.of("c.c"), ImmutableList.<String>of());
+        excludeProfile.filter(ImmutableList.<String>of(), ImmutableList.of("waiting"));
+        // then
+        assertThat(includeProfile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 5,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"Main.main(Main.java:1)\","
+                + "      \"sampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"A.a(A.java:2)\","
+                + "          \"sampleCount\": 1,"
+                + "          \"childNodes\": ["
+                + "            {"
+                + "              \"stackTraceElement\": \"C.c(C.java:4)\","
+                + "              \"leafThreadState\": \"RUNNABLE\","
+                + "              \"sampleCount\": 1"
+                + "            }"
+                + "          ]"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+        assertThat(excludeProfile.getUnfilteredSampleCount()).isEqualTo(5);
+        assertThat(excludeProfile.getSampleCount()).isEqualTo(4);
+        assertThat(excludeProfile.toFlameGraphJson()).isEqualTo(("{"
+                + "  \"totalSampleCount\": 4,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"name\": \"Main.main(Main.java:1)\","
+                + "      \"value\": 4,"
+                + "      \"children\": ["
+                + "        {"
+                + "          \"name\": \"A.a(A.java:2)\","
+                + "          \"value\": 4,"
+                + "          \"children\": ["
+                + "            {"
+                + "              \"name\": \"B.b(B.java:3)\","
+                + "              \"value\": 3"
+                + "            },"
+                + "            {"
+                + "              \"name\": \"C.c(C.java:4)\","
+                + "              \"value\": 1"
+                + "            }"
+                + "          ]"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ],"
+                + "  \"height\": 3"
+                + "}").replace(" ", ""));
+    }
+
+    @Test
+    public void testMergingProfiles() throws IOException {
+        // given
+        MutableProfile profile = createProfile();
+        MutableProfile mergedProfile = new MutableProfile();
+        // when
+        mergedProfile.merge(profile);
+        mergedProfile.merge(profile.toProto());
+        // then
+        assertThat(mergedProfile.toFlameGraphJson()).isEqualTo(("{"
+                + "  \"totalSampleCount\": 10,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"name\": \"Main.main(Main.java:1)\","
+                + "      \"value\": 10,"
+                + "      \"children\": ["
+                + "        {"
+                + "          \"name\": \"A.a(A.java:2)\","
+                + "          \"value\": 8,"
+                + "          \"children\": ["
+                + "            {"
+                + "              \"name\": \"B.b(B.java:3)\","
+                + "              \"value\": 6"
+                + "            },"
+                + "            {"
+                + "              \"name\": \"C.c(C.java:4)\","
+                + "              \"value\": 2"
+                + "            }"
+                + "          ]"
+                + "        },"
+                + "        {"
+                + "          \"name\": \"D.d(D.java:5)\","
+                + "          \"value\": 2"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ],"
+                + "  \"height\": 3"
+                + "}").replace(" ", ""));
+        assertThat(mergedProfile.toProto().getNodeCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void testLargeProfile() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+            int depth = 1 + random.nextInt(20);
+            for (int j = 0; j < depth; j++) {
+                // more than 8 distinct frames at each depth, so some nodes have lots of children
+                int k = random.nextInt(12);
+                stackTraceElements.add(new StackTraceElement("org.example" + k + ".Class" + j,
+                        "method" + k, "Class" + j + ".java", k));
+            }
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        }
+        MutableProfile copy = new MutableProfile();
+        // when
+        copy.merge(profile.toProto());
+        // then
+        assertThat(copy.getSampleCount()).isEqualTo(1000);
+        assertThat(copy.toProto()).isEqualTo(profile.toProto());
+        assertThat(copy.toJson()).isEqualTo(profile.toJson());
+    }
+
+    @Test
+    public void testMergingAfterTruncateBranches() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 20; i++) {
+            // the root node ends up with more than 8 child nodes
+            profile.merge(ImmutableList.of(
+                    new StackTraceElement("Child", "child", "Child.java", i),
+                    new StackTraceElement("Main", "main", "Main.java", 1)),
+                    Thread.State.RUNNABLE);
+        }
+        for (int i = 0; i < 20; i++) {
+            profile.merge(ImmutableList.of(
+                    new StackTraceElement("Child", "child", "Child.java", 0),
+                    new StackTraceElement("Main", "main", "Main.java", 1)),
+                    Thread.State.RUNNABLE);
+        }
+        profile.truncateBranches(10);
+        // when
+        profile.merge(ImmutableList.of(new StackTraceElement("Child", "child", "Child.java", 1),
+                new StackTraceElement("Main", "main", "Main.java", 1)), Thread.State.RUNNABLE);
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 41,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"Main.main(Main.java:1)\","
+                + "      \"sampleCount\": 41,"
+                + "      \"ellipsedSampleCount\": 19,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"Child.child(Child.java:0)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 21"
+                + "        },"
+                + "        {"
+                + "          \"stackTraceElement\": \"Child.child(Child.java:1)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 1"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    private static MutableProfile createProfile() {
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = ImmutableList.of(
+                new StackTraceElement("B", "b", "B.java", 3),
+                new StackTraceElement("A", "a", "A.java", 2),
+                new StackTraceElement("Main", "main", "Main.java", 1));
+        List<StackTraceElement> stackTraceElements2 = ImmutableList.of(
+                new StackTraceElement("C", "c", "C.java", 4),
+                new StackTraceElement("A", "a", "A.java", 2),
+                new StackTraceElement("Main", "main", "Main.java", 1));
+        List<StackTraceElement> stackTraceElements3 = ImmutableList.of(
+                new StackTraceElement("D", "d", "D.java", 5),
+                new StackTraceElement("Main", "main", "Main.java", 1));
+        for (int i = 0; i < 3; i++) {
+            profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        }
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements3, Thread.State.WAITING);
+        return profile;
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
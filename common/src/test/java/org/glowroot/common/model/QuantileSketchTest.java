@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void shouldTrackSmallValuesExactly() {
+        // given
+        QuantileSketch sketch = new QuantileSketch();
+
+        // when
+        for (int i = 1; i <= 200; i++) {
+            sketch.add(i);
+        }
+
+        // then
+        assertThat(sketch.getTotalCount()).isEqualTo(200);
+        assertThat(sketch.getValueAtPercentile(0)).isEqualTo(1);
+        assertThat(sketch.getValueAtPercentile(50)).isEqualTo(100);
+        assertThat(sketch.getValueAtPercentile(99)).isEqualTo(198);
+        assertThat(sketch.getValueAtPercentile(100)).isEqualTo(200);
+    }
+
+    @Test
+    public void shouldTrackLargeValuesWithinRelativeError() {
+        // given
+        QuantileSketch sketch = new QuantileSketch();
+        LazyHistogram histogram = new LazyHistogram();
+        Random random = new Random(0);
+
+        // when
+        for (int i = 0; i < 100000; i++) {
+            long value = (long) (1000000 * Math.pow(10, 4 * random.nextDouble()));
+            sketch.add(value);
+            histogram.add(value);
+        }
+
+        // then
+        for (double percentile : new double[] {50, 95, 99, 99.9}) {
+            long expected = histogram.getValueAtPercentile(percentile);
+            assertThat((double) sketch.getValueAtPercentile(percentile))
+                    .isCloseTo(expected, within(expected * 0.004));
+        }
+    }
+
+    @Test
+    public void shouldEncodeDecodeAndMerge() {
+        // given
+        QuantileSketch sketch1 = new QuantileSketch();
+        QuantileSketch sketch2 = new QuantileSketch();
+        for (int i = 0; i < 1000; i++) {
+            sketch1.add(i * 1000000L);
+            sketch2.add(i * 1000000L + 500000000);
+        }
+
+        // when
+        QuantileSketch mergedSketch = new QuantileSketch();
+        mergedSketch.merge(toProto(sketch1));
+        mergedSketch.merge(toProto(sketch2));
+
+        // then
+        QuantileSketch expectedSketch = new QuantileSketch();
+        expectedSketch.merge(sketch1);
+        expectedSketch.merge(sketch2);
+        assertThat(mergedSketch.getTotalCount()).isEqualTo(2000);
+        for (double percentile : new double[] {0, 10, 50, 90, 100}) {
+            assertThat(mergedSketch.getValueAtPercentile(percentile))
+                    .isEqualTo(expectedSketch.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void shouldReadFromLazyHistogramProto() {
+        // given
+        LazyHistogram rawValuesHistogram = new LazyHistogram();
+        LazyHistogram hdrHistogram = new LazyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            rawValuesHistogram.add(i * 1000000L);
+        }
+        for (int i = 1; i <= 10000; i++) {
+            hdrHistogram.add(i * 1000000L);
+        }
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        Aggregate.Histogram hdrHistogramProto = hdrHistogram.toProtoWithSketch(scratchBuffer);
+        Aggregate.Histogram oldHdrHistogramProto = hdrHistogram.toProto(scratchBuffer);
+
+        // when
+        QuantileSketch rawValuesSketch =
+                QuantileSketch.from(rawValuesHistogram.toProto(scratchBuffer));
+        QuantileSketch hdrSketch = QuantileSketch.from(hdrHistogramProto);
+        QuantileSketch oldHdrSketch = QuantileSketch.from(oldHdrHistogramProto);
+
+        // then
+        assertThat(hdrHistogramProto.getSketch().size())
+                .isLessThan(hdrHistogramProto.getEncodedBytes().size());
+        assertThat(oldHdrHistogramProto.getSketch().isEmpty()).isTrue();
+        assertThat(QuantileSketch.withSketch(oldHdrHistogramProto).getSketch())
+                .isEqualTo(hdrHistogramProto.getSketch());
+        assertThat(rawValuesSketch.getTotalCount()).isEqualTo(100);
+        assertThat((double) rawValuesSketch.getValueAtPercentile(50))
+                .isCloseTo(50000000, within(50000000 * 0.004));
+        assertThat(hdrSketch.getTotalCount()).isEqualTo(10000);
+        assertThat((double) hdrSketch.getValueAtPercentile(50))
+                .isCloseTo(5000000000.0, within(5000000000.0 * 0.004));
+        assertThat(oldHdrSketch.getValueAtPercentile(50))
+                .isEqualTo(hdrSketch.getValueAtPercentile(50));
+    }
+
+    private static Aggregate.Histogram toProto(QuantileSketch sketch) {
+        return Aggregate.Histogram.newBuilder()
+                .setSketch(sketch.toByteString())
+                .build();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.common.model.TraceStringTables.LocationEncoder;
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceStringTablesTest {
+
+    @Test
+    public void shouldEncodeAndDecodeTimerNames() {
+        // given
+        Trace.Header header = Trace.Header.newBuilder()
+                .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(100)
+                        .addChildTimer(Trace.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(10))
+                        .addChildTimer(Trace.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(20)))
+                .addAsyncTimer(Trace.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(30))
+                .build();
+
+        // when
+        Trace.Header encodedHeader = TraceStringTables.encodeTimerNames(header);
+
+        // then
+        assertThat(encodedHeader.getTimerNameList()).containsExactly("http request", "jdbc query");
+        Trace.Timer rootTimer = encodedHeader.getMainThreadRootTimer();
+        assertThat(rootTimer.getName()).isEmpty();
+        assertThat(rootTimer.getNameIndex()).isEqualTo(0);
+        assertThat(rootTimer.getChildTimer(0).getNameIndex()).isEqualTo(1);
+        assertThat(rootTimer.getChildTimer(1).getNameIndex()).isEqualTo(1);
+        assertThat(encodedHeader.getAsyncTimer(0).getNameIndex()).isEqualTo(0);
+        assertThat(TraceStringTables.encodeTimerNames(encodedHeader)).isEqualTo(encodedHeader);
+        assertThat(TraceStringTables.decodeTimerNames(encodedHeader)).isEqualTo(header);
+        assertThat(TraceStringTables.decodeTimerNames(header)).isEqualTo(header);
+    }
+
+    @Test
+    public void shouldEncodeAndDecodeLocations() {
+        // given
+        Proto.StackTraceElement element1 = createStackTraceElement("a.B", "c", 1);
+        Proto.StackTraceElement element2 = createStackTraceElement("a.B", "d", 2);
+        Proto.StackTraceElement element3 = createStackTraceElement("e.F", "g", 3);
+        Trace.Entry entry1 = Trace.Entry.newBuilder()
+                .setMessage("one")
+                .addLocationStackTraceElement(element1)
+                .addLocationStackTraceElement(element2)
+                .build();
+        Trace.Entry entry2 = Trace.Entry.newBuilder()
+                .setMessage("two")
+                .addLocationStackTraceElement(element3)
+                .addLocationStackTraceElement(element2)
+                .build();
+        Trace.Entry entry3 = Trace.Entry.newBuilder()
+                .setMessage("three")
+                .build();
+        LocationEncoder locationEncoder = new LocationEncoder();
+
+        // when
+        Trace.Entry encodedEntry1 = locationEncoder.encode(entry1);
+        Trace.Entry encodedEntry2 = locationEncoder.encode(entry2);
+        Trace.Entry encodedEntry3 = locationEncoder.encode(entry3);
+
+        // then
+        assertThat(locationEncoder.getSharedLocationStackTraceElements())
+                .containsExactly(element1, element2, element3);
+        assertThat(encodedEntry1.getLocationStackTraceElementList()).isEmpty();
+        assertThat(encodedEntry1.getLocationStackTraceElementIndexList()).containsExactly(0, 1);
+        assertThat(encodedEntry2.getLocationStackTraceElementIndexList()).containsExactly(2, 1);
+        assertThat(encodedEntry3).isEqualTo(entry3);
+        assertThat(TraceStringTables.decodeLocation(encodedEntry1,
+                locationEncoder.getSharedLocationStackTraceElements())).isEqualTo(entry1);
+        assertThat(TraceStringTables.decodeLocation(encodedEntry2,
+                locationEncoder.getSharedLocationStackTraceElements())).isEqualTo(entry2);
+    }
+
+    @Test
+    public void shouldContinueReceivedTable() {
+        // given
+        Proto.StackTraceElement element1 = createStackTraceElement("a.B", "c", 1);
+        Proto.StackTraceElement element2 = createStackTraceElement("a.B", "d", 2);
+        Trace.Entry alreadyEncodedEntry = Trace.Entry.newBuilder()
+                .addLocationStackTraceElementIndex(0)
+                .build();
+        Trace.Entry entry = Trace.Entry.newBuilder()
+                .addLocationStackTraceElement(element2)
+                .addLocationStackTraceElement(element1)
+                .build();
+        LocationEncoder locationEncoder = new LocationEncoder(ImmutableList.of(element1));
+
+        // when
+        Trace.Entry encodedEntry1 = locationEncoder.encode(alreadyEncodedEntry);
+        Trace.Entry encodedEntry2 = locationEncoder.encode(entry);
+
+        // then
+        assertThat(locationEncoder.getSharedLocationStackTraceElements())
+                .containsExactly(element1, element2);
+        assertThat(encodedEntry1).isEqualTo(alreadyEncodedEntry);
+        assertThat(encodedEntry2.getLocationStackTraceElementIndexList()).containsExactly(1, 0);
+    }
+
+    private static Proto.StackTraceElement createStackTraceElement(String className,
+            String methodName, int lineNumber) {
+        return Proto.StackTraceElement.newBuilder()
+                .setClassName(className)
+                .setMethodName(methodName)
+                .setFileName(className + ".java")
+                .setLineNumber(lineNumber)
+                .build();
+    }
+}
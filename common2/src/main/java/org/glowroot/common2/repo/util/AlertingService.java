@@ -63,6 +63,7 @@ import org.glowroot.common2.repo.IncidentRepository.OpenIncident;
 import org.glowroot.common2.repo.TraceRepository;
 import org.glowroot.common2.repo.Utils;
 import org.glowroot.common2.repo.util.HttpClient.TooManyRequestsHttpResponseException;
+import org.glowroot.common2.repo.util.SlidingWindowMetricService.WindowValue;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
@@ -90,6 +91,8 @@ public class AlertingService {
     private final Clock clock;
 
     private final MetricService metricService;
+    // null when metric alerts are always evaluated by reading from the repository
+    private final @Nullable SlidingWindowMetricService slidingWindowMetricService;
 
     // limit missing smtp host configuration warning to once per hour
     private final RateLimiter smtpHostWarningRateLimiter = RateLimiter.create(1.0 / 3600);
@@ -101,6 +104,7 @@ public class AlertingService {
     public AlertingService(ConfigRepository configRepository, IncidentRepository incidentRepository,
             AggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
             TraceRepository traceRepository, RollupLevelService rollupLevelService,
+            @Nullable SlidingWindowMetricService slidingWindowMetricService,
             MailService mailService, HttpClient httpClient,
             LockSet<IncidentKey> openingIncidentLockSet,
             LockSet<IncidentKey> resolvingIncidentLockSet, Clock clock) {
@@ -113,6 +117,7 @@ public class AlertingService {
         this.clock = clock;
         this.metricService = new MetricService(aggregateRepository, gaugeValueRepository,
                 traceRepository, rollupLevelService);
+        this.slidingWindowMetricService = slidingWindowMetricService;
         pagerDutyRetryExecutor = Executors.newSingleThreadScheduledExecutor();
     }
 
@@ -146,8 +151,18 @@ public class AlertingService {
             String agentRollupDisplay, AlertConfig alertConfig, MetricCondition metricCondition,
             long endTime) throws Exception {
         long startTime = endTime - SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
-        Number value =
-                metricService.getMetricValue(agentRollupId, metricCondition, startTime, endTime);
+        WindowValue windowValue = null;
+        if (slidingWindowMetricService != null) {
+            windowValue = slidingWindowMetricService.getWindowValue(agentRollupId,
+                    metricCondition, startTime, endTime);
+        }
+        Number value;
+        if (windowValue == null) {
+            value = metricService.getMetricValue(agentRollupId, metricCondition, startTime,
+                    endTime);
+        } else {
+            value = windowValue.metricValue();
+        }
         if (value == null) {
             // cannot calculate due to no data, e.g. error rate (but not error count, which can be
             // calculated - zero - when no data)
@@ -171,10 +186,15 @@ public class AlertingService {
             if (hasMinTransactionCount(metricCondition.getMetric())) {
                 long minTransactionCount = metricCondition.getMinTransactionCount();
                 if (minTransactionCount != 0) {
-                    long transactionCount = metricService.getTransactionCount(agentRollupId,
-                            metricCondition.getTransactionType(),
-                            Strings.emptyToNull(metricCondition.getTransactionName()), startTime,
-                            endTime);
+                    long transactionCount;
+                    if (windowValue == null) {
+                        transactionCount = metricService.getTransactionCount(agentRollupId,
+                                metricCondition.getTransactionType(),
+                                Strings.emptyToNull(metricCondition.getTransactionName()),
+                                startTime, endTime);
+                    } else {
+                        transactionCount = windowValue.transactionCount();
+                    }
                     if (transactionCount < minTransactionCount) {
                         return;
                     }
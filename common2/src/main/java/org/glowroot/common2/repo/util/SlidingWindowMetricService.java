@@ -0,0 +1,601 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common2.repo.util.RollupLevelService.DataKind;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// keeps in-memory sliding windows of the values needed to evaluate metric alerts, fed as aggregates
+// and gauge values are collected, so that metric alerts do not need to re-read the whole alert time
+// period from the repository every time they are evaluated
+//
+// windows are only kept for agents (not for agent rollups), and only cover data received since the
+// window was created (e.g. since central start-up, or since the alert was added), so until a window
+// covers the full alert time period, alerts fall back to reading from the repository
+//
+// this relies on all data for an agent passing through this central node, so it must not be used
+// when central is clustered
+public class SlidingWindowMetricService {
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    // longer time periods fall back to reading from the repository, in order to bound memory (and
+    // rollup level 0 is not read for these longer time periods anyways, see RollupLevelService)
+    private static final long MAX_TIME_PERIOD_SECONDS = HOURS.toSeconds(1);
+
+    // percentile windows retain a histogram per capture time, so the total size of the retained
+    // histograms (across all agents and alerts) is bounded, and percentile windows that would go
+    // over this budget fall back to reading from the repository
+    private static final long MAX_HISTOGRAM_BYTES = 32 * 1024 * 1024;
+
+    private final RollupLevelService rollupLevelService;
+    private final long maxHistogramBytes;
+
+    private final ConcurrentMap<String, AgentWindows> agentWindows = Maps.newConcurrentMap();
+
+    private final AtomicLong histogramBytes = new AtomicLong();
+
+    public SlidingWindowMetricService(RollupLevelService rollupLevelService) {
+        this(rollupLevelService, MAX_HISTOGRAM_BYTES);
+    }
+
+    @VisibleForTesting
+    SlidingWindowMetricService(RollupLevelService rollupLevelService, long maxHistogramBytes) {
+        this.rollupLevelService = rollupLevelService;
+        this.maxHistogramBytes = maxHistogramBytes;
+    }
+
+    public void addAggregates(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList, List<AlertConfig> alertConfigs) {
+        for (Map.Entry<MetricCondition, Window> entry : getWindows(agentId, alertConfigs, false,
+                captureTime).entrySet()) {
+            MetricCondition metricCondition = entry.getKey();
+            Window window = entry.getValue();
+            Aggregate aggregate = getAggregate(aggregatesByTypeList,
+                    metricCondition.getTransactionType(), metricCondition.getTransactionName());
+            window.add(captureTime,
+                    aggregate == null ? null : Bucket.fromAggregate(aggregate, window.percentile));
+        }
+    }
+
+    public void addGaugeValues(String agentId, List<GaugeValue> gaugeValues,
+            List<AlertConfig> alertConfigs) {
+        if (gaugeValues.isEmpty()) {
+            return;
+        }
+        long minCaptureTime = Long.MAX_VALUE;
+        long maxCaptureTime = Long.MIN_VALUE;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            minCaptureTime = Math.min(minCaptureTime, gaugeValue.getCaptureTime());
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+        }
+        for (Map.Entry<MetricCondition, Window> entry : getWindows(agentId, alertConfigs, true,
+                minCaptureTime).entrySet()) {
+            String gaugeName = entry.getKey().getMetric().substring("gauge:".length());
+            Window window = entry.getValue();
+            for (GaugeValue gaugeValue : gaugeValues) {
+                if (gaugeValue.getGaugeName().equals(gaugeName)) {
+                    window.add(gaugeValue.getCaptureTime(), Bucket.fromGaugeValue(gaugeValue));
+                }
+            }
+            window.add(maxCaptureTime, null);
+        }
+    }
+
+    // this is used when data may have been stored without being added above, e.g. when alert
+    // configs could not be read
+    public void clear(String agentId) {
+        AgentWindows windows = agentWindows.remove(agentId);
+        if (windows != null) {
+            windows.release();
+        }
+    }
+
+    // returns null if the window is not available in memory, in which case the caller needs to
+    // fall back to reading from the repository
+    @Nullable
+    WindowValue getWindowValue(String agentRollupId, MetricCondition metricCondition,
+            long startTime, long endTime) throws Exception {
+        AgentWindows windows = agentWindows.get(agentRollupId);
+        if (windows == null) {
+            return null;
+        }
+        Window window = windows.get(metricCondition);
+        if (window == null || !isRollupLevelZero(metricCondition, startTime, endTime)) {
+            return null;
+        }
+        Bucket totals = window.getTotals(startTime, endTime);
+        if (totals == null) {
+            return null;
+        }
+        return ImmutableWindowValue.builder()
+                .metricValue(getMetricValue(metricCondition, totals))
+                .transactionCount(totals.transactionCount)
+                .build();
+    }
+
+    private Map<MetricCondition, Window> getWindows(String agentId,
+            List<AlertConfig> alertConfigs, boolean gauge, long firstCaptureTime) {
+        List<MetricCondition> metricConditions = Lists.newArrayList();
+        for (AlertConfig alertConfig : alertConfigs) {
+            AlertCondition alertCondition = alertConfig.getCondition();
+            if (alertCondition.getValCase() == AlertCondition.ValCase.METRIC_CONDITION
+                    && isSupported(alertCondition.getMetricCondition())) {
+                metricConditions.add(alertCondition.getMetricCondition());
+            }
+        }
+        if (metricConditions.isEmpty()) {
+            clear(agentId);
+            return Maps.newHashMap();
+        }
+        AgentWindows windows = agentWindows.get(agentId);
+        if (windows == null) {
+            windows = new AgentWindows();
+            AgentWindows existing = agentWindows.putIfAbsent(agentId, windows);
+            if (existing != null) {
+                windows = existing;
+            }
+        }
+        return windows.update(metricConditions, gauge, firstCaptureTime);
+    }
+
+    // returns false if the histogram bytes cannot be retained without going over the budget
+    private boolean reserveHistogramBytes(long bytes) {
+        while (true) {
+            long current = histogramBytes.get();
+            if (current + bytes > maxHistogramBytes) {
+                return false;
+            }
+            if (histogramBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseHistogramBytes(long bytes) {
+        histogramBytes.addAndGet(-bytes);
+    }
+
+    // the in-memory windows only hold rollup level 0 data, so other rollup levels (e.g. when
+    // rollup level 0 has already expired) fall back to reading from the repository, so that
+    // evaluation is always consistent with reading from the repository
+    private boolean isRollupLevelZero(MetricCondition metricCondition, long startTime,
+            long endTime) throws Exception {
+        if (isGauge(metricCondition)) {
+            return rollupLevelService.getGaugeRollupLevelForView(startTime, endTime, false) == 0;
+        } else {
+            return rollupLevelService.getRollupLevelForView(startTime, endTime,
+                    DataKind.GENERAL) == 0;
+        }
+    }
+
+    // see MetricService for the corresponding calculations when reading from the repository
+    private static @Nullable Number getMetricValue(MetricCondition metricCondition,
+            Bucket totals) {
+        String metric = metricCondition.getMetric();
+        if (metric.equals("transaction:x-percentile")) {
+            if (totals.transactionCount == 0) {
+                return null;
+            }
+            LazyHistogram durationNanosHistogram = new LazyHistogram();
+            for (Aggregate.Histogram histogram : totals.durationNanosHistograms) {
+                durationNanosHistogram.merge(histogram);
+            }
+            return durationNanosHistogram.getValueAtPercentile(
+                    metricCondition.getPercentile().getValue()) / NANOSECONDS_PER_MILLISECOND;
+        } else if (metric.equals("transaction:average")) {
+            if (totals.transactionCount == 0) {
+                return null;
+            }
+            return totals.totalDurationNanos
+                    / (totals.transactionCount * NANOSECONDS_PER_MILLISECOND);
+        } else if (metric.equals("transaction:count")) {
+            return totals.transactionCount;
+        } else if (metric.equals("error:rate")) {
+            if (totals.transactionCount == 0) {
+                return null;
+            }
+            return (100.0 * totals.errorCount) / totals.transactionCount;
+        } else if (metric.equals("error:count")) {
+            return totals.errorCount;
+        } else if (metric.startsWith("gauge:")) {
+            if (totals.totalWeight == 0) {
+                return null;
+            }
+            return totals.totalWeightedValue / totals.totalWeight;
+        } else {
+            throw new IllegalStateException("Unexpected metric: " + metric);
+        }
+    }
+
+    private static boolean isSupported(MetricCondition metricCondition) {
+        if (metricCondition.getTimePeriodSeconds() > MAX_TIME_PERIOD_SECONDS) {
+            return false;
+        }
+        String metric = metricCondition.getMetric();
+        if (metric.equals("error:count")) {
+            // error message filter requires reading traces
+            return metricCondition.getErrorMessageFilter().isEmpty();
+        }
+        return metric.equals("transaction:x-percentile") || metric.equals("transaction:average")
+                || metric.equals("transaction:count") || metric.equals("error:rate")
+                || metric.startsWith("gauge:");
+    }
+
+    private static boolean isGauge(MetricCondition metricCondition) {
+        return metricCondition.getMetric().startsWith("gauge:");
+    }
+
+    private static @Nullable Aggregate getAggregate(List<OldAggregatesByType> aggregatesByTypeList,
+            String transactionType, String transactionName) {
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            if (!aggregatesByType.getTransactionType().equals(transactionType)) {
+                continue;
+            }
+            if (transactionName.isEmpty()) {
+                return aggregatesByType.getOverallAggregate();
+            }
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                if (transactionAggregate.getTransactionName().equals(transactionName)) {
+                    return transactionAggregate.getAggregate();
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    @Value.Immutable
+    interface WindowValue {
+        @Nullable
+        Number metricValue();
+        long transactionCount();
+    }
+
+    private class AgentWindows {
+
+        private final Map<MetricCondition, Window> windows = Maps.newHashMap();
+
+        // removes windows for alerts that no longer exist, and creates windows for new alerts
+        private synchronized Map<MetricCondition, Window> update(
+                List<MetricCondition> metricConditions, boolean gauge, long firstCaptureTime) {
+            Set<MetricCondition> metricConditionSet = Sets.newHashSet(metricConditions);
+            Iterator<Map.Entry<MetricCondition, Window>> i = windows.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<MetricCondition, Window> entry = i.next();
+                if (!metricConditionSet.contains(entry.getKey())) {
+                    entry.getValue().release();
+                    i.remove();
+                }
+            }
+            Map<MetricCondition, Window> matchingWindows = Maps.newHashMap();
+            for (MetricCondition metricCondition : metricConditions) {
+                if (isGauge(metricCondition) != gauge) {
+                    continue;
+                }
+                Window window = windows.get(metricCondition);
+                if (window == null) {
+                    window = new Window(metricCondition, firstCaptureTime);
+                    windows.put(metricCondition, window);
+                }
+                matchingWindows.put(metricCondition, window);
+            }
+            return matchingWindows;
+        }
+
+        private synchronized @Nullable Window get(MetricCondition metricCondition) {
+            return windows.get(metricCondition);
+        }
+
+        private synchronized void release() {
+            for (Window window : windows.values()) {
+                window.release();
+            }
+            windows.clear();
+        }
+    }
+
+    private class Window {
+
+        private final long timePeriodMillis;
+        private final boolean percentile;
+
+        // keyed by capture time
+        private final NavigableMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+
+        // all data with capture time in [coveredFrom, lastCaptureTime] has been added
+        private long coveredFrom;
+        private long lastCaptureTime;
+
+        // running totals for (lastCaptureTime - timePeriodMillis, lastCaptureTime], which is the
+        // window that is normally evaluated, buckets are added to these as they enter the window
+        // and subtracted as they leave (or are replaced in) the window
+        //
+        // these are not used for percentiles, which instead merge the histograms of the window
+        // each time they are evaluated, so percentile evaluation is linear in the number of capture
+        // times in the window (bounded by MAX_TIME_PERIOD_SECONDS and by the histogram budget),
+        // this is because merged histograms cannot be subtracted without possibly changing their
+        // representation (see LazyHistogram), which would make evaluation inconsistent with
+        // reading from the repository
+        private final RunningTotals runningTotals = new RunningTotals();
+
+        // the histogram bytes reserved by the buckets of this (percentile) window
+        private long histogramBytes;
+        // the window has been discarded (e.g. the alert was removed)
+        private boolean discarded;
+
+        private Window(MetricCondition metricCondition, long firstCaptureTime) {
+            timePeriodMillis = SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
+            percentile = metricCondition.getMetric().equals("transaction:x-percentile");
+            coveredFrom = firstCaptureTime;
+            lastCaptureTime = firstCaptureTime - 1;
+        }
+
+        // bucket is null when there is no data at the capture time
+        //
+        // data that is re-sent for the same capture time (e.g. after the agent did not receive the
+        // response) replaces the previous data, consistent with the repository
+        private synchronized void add(long captureTime, @Nullable Bucket bucket) {
+            if (discarded || captureTime < coveredFrom) {
+                return;
+            }
+            if (captureTime > lastCaptureTime) {
+                // evicting first frees up histogram budget before reserving it below (this does not
+                // affect advance(), which only subtracts buckets after lastCaptureTime - timePeriod
+                // when advancing by less than the time period, and otherwise resets the running
+                // totals)
+                evict(captureTime);
+            }
+            if (bucket != null && bucket.histogramBytes > 0
+                    && !reserveHistogramBytes(bucket.histogramBytes)) {
+                // over the budget, so drop this window's data, and the window then needs to cover
+                // the full time period again (with the budget permitting) before it is used again
+                releaseBuckets();
+                lastCaptureTime = Math.max(lastCaptureTime, captureTime);
+                coveredFrom = lastCaptureTime + 1;
+                return;
+            }
+            if (bucket != null) {
+                histogramBytes += bucket.histogramBytes;
+                Bucket replacedBucket = buckets.put(captureTime, bucket);
+                if (replacedBucket != null) {
+                    releaseHistogramBytes(replacedBucket.histogramBytes);
+                    histogramBytes -= replacedBucket.histogramBytes;
+                }
+                if (!percentile && captureTime <= lastCaptureTime
+                        && captureTime > lastCaptureTime - timePeriodMillis) {
+                    if (replacedBucket != null) {
+                        runningTotals.subtract(replacedBucket);
+                    }
+                    runningTotals.add(bucket);
+                }
+            }
+            if (captureTime > lastCaptureTime) {
+                advance(captureTime);
+            }
+        }
+
+        private void advance(long captureTime) {
+            if (!percentile) {
+                long windowStart = captureTime - timePeriodMillis;
+                if (captureTime - lastCaptureTime < timePeriodMillis) {
+                    // subtract the buckets that leave the window
+                    for (Bucket bucket : buckets.subMap(lastCaptureTime - timePeriodMillis, false,
+                            windowStart, true).values()) {
+                        runningTotals.subtract(bucket);
+                    }
+                } else {
+                    // all buckets leave the window
+                    runningTotals.clear();
+                }
+                // add the buckets that enter the window
+                for (Bucket bucket : buckets
+                        .subMap(Math.max(lastCaptureTime, windowStart), false, captureTime, true)
+                        .values()) {
+                    runningTotals.add(bucket);
+                }
+            }
+            lastCaptureTime = captureTime;
+        }
+
+        private void evict(long captureTime) {
+            // retaining twice the time period so that evaluations that run a bit behind (e.g.
+            // due to the next data already being received) can still be served from memory
+            long evictBefore = captureTime - 2 * timePeriodMillis;
+            NavigableMap<Long, Bucket> evicted = buckets.headMap(evictBefore, true);
+            if (percentile) {
+                for (Bucket bucket : evicted.values()) {
+                    releaseHistogramBytes(bucket.histogramBytes);
+                    histogramBytes -= bucket.histogramBytes;
+                }
+            }
+            evicted.clear();
+            coveredFrom = Math.max(coveredFrom, evictBefore + 1);
+        }
+
+        private synchronized void release() {
+            releaseBuckets();
+            discarded = true;
+        }
+
+        private void releaseBuckets() {
+            releaseHistogramBytes(histogramBytes);
+            histogramBytes = 0;
+            buckets.clear();
+            runningTotals.clear();
+        }
+
+        // startTime is exclusive, consistent with reading from the repository (see MetricService)
+        private synchronized @Nullable Bucket getTotals(long startTime, long endTime) {
+            if (startTime + 1 < coveredFrom || endTime > lastCaptureTime) {
+                return null;
+            }
+            if (!percentile && endTime == lastCaptureTime
+                    && endTime - startTime == timePeriodMillis && runningTotals.isFinite()) {
+                return runningTotals.toBucket();
+            }
+            Bucket totals = new Bucket();
+            for (Bucket bucket : buckets.subMap(startTime, false, endTime, true).values()) {
+                totals.add(bucket);
+            }
+            return totals;
+        }
+    }
+
+    private static class Bucket {
+
+        private long transactionCount;
+        private long errorCount;
+        private double totalDurationNanos;
+        private final List<Aggregate.Histogram> durationNanosHistograms = Lists.newArrayList();
+
+        private double totalWeightedValue;
+        private long totalWeight;
+
+        // only used for the buckets in a window (not for totals)
+        private int histogramBytes;
+
+        private static Bucket fromAggregate(Aggregate aggregate, boolean includeHistogram) {
+            Bucket bucket = new Bucket();
+            bucket.transactionCount = aggregate.getTransactionCount();
+            bucket.errorCount = aggregate.getErrorCount();
+            bucket.totalDurationNanos = aggregate.getTotalDurationNanos();
+            if (includeHistogram) {
+                Aggregate.Histogram histogram = aggregate.getDurationNanosHistogram();
+                bucket.durationNanosHistograms.add(histogram);
+                bucket.histogramBytes = histogram.getSerializedSize();
+            }
+            return bucket;
+        }
+
+        private static Bucket fromGaugeValue(GaugeValue gaugeValue) {
+            Bucket bucket = new Bucket();
+            bucket.totalWeightedValue = gaugeValue.getValue() * gaugeValue.getWeight();
+            bucket.totalWeight = gaugeValue.getWeight();
+            return bucket;
+        }
+
+        private void add(Bucket bucket) {
+            transactionCount += bucket.transactionCount;
+            errorCount += bucket.errorCount;
+            totalDurationNanos += bucket.totalDurationNanos;
+            durationNanosHistograms.addAll(bucket.durationNanosHistograms);
+            totalWeightedValue += bucket.totalWeightedValue;
+            totalWeight += bucket.totalWeight;
+        }
+
+        private boolean isFinite() {
+            return !Double.isNaN(totalDurationNanos) && !Double.isInfinite(totalDurationNanos)
+                    && !Double.isNaN(totalWeightedValue) && !Double.isInfinite(totalWeightedValue);
+        }
+    }
+
+    // the double totals are kept as exact decimals, so that subtracting a bucket exactly undoes
+    // adding it (e.g. a large value leaving the window does not take the precision of the small
+    // values that remain in the window with it), which means the running totals do not drift from
+    // the totals of the buckets in the window
+    private static class RunningTotals {
+
+        private long transactionCount;
+        private long errorCount;
+        private BigDecimal totalDurationNanos = BigDecimal.ZERO;
+
+        private BigDecimal totalWeightedValue = BigDecimal.ZERO;
+        private long totalWeight;
+
+        // buckets with NaN or infinite values cannot be represented as exact decimals, so these
+        // are not included in the running totals, and while any are in the window, the window is
+        // instead summed from the buckets when evaluated
+        private int nonFiniteBucketCount;
+
+        private void add(Bucket bucket) {
+            if (!bucket.isFinite()) {
+                nonFiniteBucketCount++;
+                return;
+            }
+            transactionCount += bucket.transactionCount;
+            errorCount += bucket.errorCount;
+            totalDurationNanos = totalDurationNanos.add(new BigDecimal(bucket.totalDurationNanos));
+            totalWeightedValue = totalWeightedValue.add(new BigDecimal(bucket.totalWeightedValue));
+            totalWeight += bucket.totalWeight;
+        }
+
+        private void subtract(Bucket bucket) {
+            if (!bucket.isFinite()) {
+                nonFiniteBucketCount--;
+                return;
+            }
+            transactionCount -= bucket.transactionCount;
+            errorCount -= bucket.errorCount;
+            totalDurationNanos =
+                    totalDurationNanos.subtract(new BigDecimal(bucket.totalDurationNanos));
+            totalWeightedValue =
+                    totalWeightedValue.subtract(new BigDecimal(bucket.totalWeightedValue));
+            totalWeight -= bucket.totalWeight;
+        }
+
+        private boolean isFinite() {
+            return nonFiniteBucketCount == 0;
+        }
+
+        private void clear() {
+            transactionCount = 0;
+            errorCount = 0;
+            totalDurationNanos = BigDecimal.ZERO;
+            totalWeightedValue = BigDecimal.ZERO;
+            totalWeight = 0;
+            nonFiniteBucketCount = 0;
+        }
+
+        private Bucket toBucket() {
+            Bucket bucket = new Bucket();
+            bucket.transactionCount = transactionCount;
+            bucket.errorCount = errorCount;
+            bucket.totalDurationNanos = totalDurationNanos.doubleValue();
+            bucket.totalWeightedValue = totalWeightedValue.doubleValue();
+            bucket.totalWeight = totalWeight;
+            return bucket;
+        }
+    }
+}
@@ -157,7 +157,7 @@ public class AlertingServiceTest {
         setupForTransaction(1000000);
         AlertingService alertingService = new AlertingService(configRepository,
                 incidentRepository, aggregateRepository, gaugeValueRepository, traceRepository,
-                rollupLevelService, mailService, httpClient, newLockSet(),
+                rollupLevelService, null, mailService, httpClient, newLockSet(),
                 newLockSet(),
                 Clock.systemClock());
         // when
@@ -176,7 +176,7 @@ public class AlertingServiceTest {
         setupForTransaction(999999);
         AlertingService alertingService = new AlertingService(configRepository,
                 incidentRepository, aggregateRepository, gaugeValueRepository, traceRepository,
-                rollupLevelService, mailService, httpClient, newLockSet(),
+                rollupLevelService, null, mailService, httpClient, newLockSet(),
                 newLockSet(),
                 Clock.systemClock());
         // when
@@ -192,7 +192,7 @@ public class AlertingServiceTest {
         setupForGauge(500);
         AlertingService alertingService = new AlertingService(configRepository,
                 incidentRepository, aggregateRepository, gaugeValueRepository, traceRepository,
-                rollupLevelService, mailService, httpClient, newLockSet(),
+                rollupLevelService, null, mailService, httpClient, newLockSet(),
                 newLockSet(),
                 Clock.systemClock());
         // when
@@ -211,7 +211,7 @@ public class AlertingServiceTest {
         setupForGauge(499);
         AlertingService alertingService = new AlertingService(configRepository,
                 incidentRepository, aggregateRepository, gaugeValueRepository, traceRepository,
-                rollupLevelService, mailService, httpClient, newLockSet(),
+                rollupLevelService, null, mailService, httpClient, newLockSet(),
                 newLockSet(),
                 Clock.systemClock());
         // when
@@ -227,7 +227,7 @@ public class AlertingServiceTest {
         setupForGauge(500);
         AlertingService alertingService = new AlertingService(configRepository,
                 incidentRepository, aggregateRepository, gaugeValueRepository, traceRepository,
-                rollupLevelService, mailService, httpClient, newLockSet(),
+                rollupLevelService, null, mailService, httpClient, newLockSet(),
                 newLockSet(),
                 Clock.systemClock());
         // when
@@ -246,7 +246,7 @@ public class AlertingServiceTest {
         setupForGauge(501);
         AlertingService alertingService = new AlertingService(configRepository,
                 incidentRepository, aggregateRepository, gaugeValueRepository, traceRepository,
-                rollupLevelService, mailService, httpClient, newLockSet(),
+                rollupLevelService, null, mailService, httpClient, newLockSet(),
                 newLockSet(),
                 Clock.systemClock());
         // when
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common2.repo.util.RollupLevelService.DataKind;
+import org.glowroot.common2.repo.util.SlidingWindowMetricService.WindowValue;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SlidingWindowMetricServiceTest {
+
+    private static final MetricCondition TRANSACTION_AVERAGE_CONDITION =
+            MetricCondition.newBuilder()
+                    .setMetric("transaction:average")
+                    .setTransactionType("tt")
+                    .setThreshold(1)
+                    .setTimePeriodSeconds(120)
+                    .build();
+
+    private static final MetricCondition TRANSACTION_PERCENTILE_CONDITION =
+            MetricCondition.newBuilder()
+                    .setMetric("transaction:x-percentile")
+                    .setTransactionType("tt")
+                    .setPercentile(OptionalDouble.newBuilder()
+                            .setValue(99))
+                    .setThreshold(1)
+                    .setTimePeriodSeconds(60)
+                    .build();
+
+    // serialized size of the histograms created below
+    private static final int HISTOGRAM_BYTES = 5;
+
+    private static final MetricCondition GAUGE_CONDITION = MetricCondition.newBuilder()
+            .setMetric("gauge:java.lang:type=Memory:HeapMemoryUsage.used")
+            .setThreshold(1)
+            .setTimePeriodSeconds(60)
+            .build();
+
+    private RollupLevelService rollupLevelService;
+    private SlidingWindowMetricService slidingWindowMetricService;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        rollupLevelService = mock(RollupLevelService.class);
+        when(rollupLevelService.getRollupLevelForView(anyLong(), anyLong(), eq(DataKind.GENERAL)))
+                .thenReturn(0);
+        when(rollupLevelService.getGaugeRollupLevelForView(anyLong(), anyLong(), anyBoolean()))
+                .thenReturn(0);
+        slidingWindowMetricService = new SlidingWindowMetricService(rollupLevelService);
+    }
+
+    @Test
+    public void shouldFallBackUntilWindowIsCovered() throws Exception {
+        // given
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(
+                TRANSACTION_AVERAGE_CONDITION));
+
+        // when
+        slidingWindowMetricService.addAggregates("a", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+        slidingWindowMetricService.addAggregates("a", 120000, createAggregates(1, 4000000),
+                alertConfigs);
+
+        // then
+        assertThat(slidingWindowMetricService.getWindowValue("a", TRANSACTION_AVERAGE_CONDITION,
+                0, 120000)).isNull();
+        assertThat(slidingWindowMetricService.getWindowValue("a", TRANSACTION_AVERAGE_CONDITION,
+                120000, 180000)).isNull();
+        assertThat(slidingWindowMetricService.getWindowValue("b", TRANSACTION_AVERAGE_CONDITION,
+                60000, 120000)).isNull();
+        WindowValue windowValue = slidingWindowMetricService.getWindowValue("a",
+                TRANSACTION_AVERAGE_CONDITION, 59999, 120000);
+        assertThat(windowValue.metricValue()).isEqualTo(3.0);
+        assertThat(windowValue.transactionCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldSlideWindow() throws Exception {
+        // given
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(
+                TRANSACTION_AVERAGE_CONDITION));
+
+        // when
+        slidingWindowMetricService.addAggregates("a", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+        slidingWindowMetricService.addAggregates("a", 120000, createAggregates(1, 4000000),
+                alertConfigs);
+        slidingWindowMetricService.addAggregates("a", 180000, createAggregates(2, 2000000),
+                alertConfigs);
+        slidingWindowMetricService.addAggregates("a", 240000,
+                ImmutableList.<OldAggregatesByType>of(), alertConfigs);
+        // re-sent, e.g. after the agent did not receive the response
+        slidingWindowMetricService.addAggregates("a", 180000, createAggregates(2, 2000000),
+                alertConfigs);
+
+        // then
+        WindowValue windowValue = slidingWindowMetricService.getWindowValue("a",
+                TRANSACTION_AVERAGE_CONDITION, 120000, 240000);
+        assertThat(windowValue.metricValue()).isEqualTo(1.0);
+        assertThat(windowValue.transactionCount()).isEqualTo(2);
+        windowValue = slidingWindowMetricService.getWindowValue("a",
+                TRANSACTION_AVERAGE_CONDITION, 60000, 180000);
+        assertThat(windowValue.metricValue()).isEqualTo(2.0);
+        assertThat(windowValue.transactionCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReturnNullMetricValueWhenNoData() throws Exception {
+        // given
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(
+                TRANSACTION_AVERAGE_CONDITION));
+
+        // when
+        slidingWindowMetricService.addAggregates("a", 60000,
+                ImmutableList.<OldAggregatesByType>of(), alertConfigs);
+        slidingWindowMetricService.addAggregates("a", 120000,
+                ImmutableList.<OldAggregatesByType>of(), alertConfigs);
+
+        // then
+        WindowValue windowValue = slidingWindowMetricService.getWindowValue("a",
+                TRANSACTION_AVERAGE_CONDITION, 59999, 120000);
+        assertThat(windowValue.metricValue()).isNull();
+        assertThat(windowValue.transactionCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldCalculateGaugeAverage() throws Exception {
+        // given
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(GAUGE_CONDITION));
+        String gaugeName = "java.lang:type=Memory:HeapMemoryUsage.used";
+
+        // when
+        slidingWindowMetricService.addGaugeValues("a", ImmutableList.of(
+                createGaugeValue(gaugeName, 10000, 100, 1),
+                createGaugeValue("other", 10000, 1000, 1),
+                createGaugeValue(gaugeName, 40000, 300, 3)), alertConfigs);
+        slidingWindowMetricService.addGaugeValues("a", ImmutableList.of(
+                createGaugeValue(gaugeName, 70000, 500, 1),
+                createGaugeValue("other", 80000, 1000, 1)), alertConfigs);
+
+        // then
+        assertThat(slidingWindowMetricService.getWindowValue("a", GAUGE_CONDITION, 9999, 69999)
+                .metricValue()).isEqualTo(250.0);
+        assertThat(slidingWindowMetricService.getWindowValue("a", GAUGE_CONDITION, 20000, 80000)
+                .metricValue()).isEqualTo(350.0);
+        assertThat(slidingWindowMetricService.getWindowValue("a", GAUGE_CONDITION, 20000, 90000))
+                .isNull();
+    }
+
+    @Test
+    public void shouldDropWindowsForRemovedAlerts() throws Exception {
+        // given
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(
+                TRANSACTION_AVERAGE_CONDITION));
+        slidingWindowMetricService.addAggregates("a", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+        slidingWindowMetricService.addAggregates("a", 120000, createAggregates(1, 4000000),
+                alertConfigs);
+
+        // when
+        slidingWindowMetricService.addAggregates("a", 180000, createAggregates(1, 4000000),
+                ImmutableList.<AlertConfig>of());
+
+        // then
+        assertThat(slidingWindowMetricService.getWindowValue("a", TRANSACTION_AVERAGE_CONDITION,
+                59999, 120000)).isNull();
+    }
+
+    @Test
+    public void shouldFallBackWhenOverHistogramBudget() throws Exception {
+        // given
+        slidingWindowMetricService =
+                new SlidingWindowMetricService(rollupLevelService, 2 * HISTOGRAM_BYTES);
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(
+                TRANSACTION_PERCENTILE_CONDITION));
+
+        // when
+        slidingWindowMetricService.addAggregates("a", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+        slidingWindowMetricService.addAggregates("b", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+        slidingWindowMetricService.addAggregates("c", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+
+        // then
+        assertThat(slidingWindowMetricService.getWindowValue("a",
+                TRANSACTION_PERCENTILE_CONDITION, 59999, 60000).metricValue()).isEqualTo(2.0);
+        assertThat(slidingWindowMetricService.getWindowValue("b",
+                TRANSACTION_PERCENTILE_CONDITION, 59999, 60000).metricValue()).isEqualTo(2.0);
+        assertThat(slidingWindowMetricService.getWindowValue("c",
+                TRANSACTION_PERCENTILE_CONDITION, 59999, 60000)).isNull();
+    }
+
+    @Test
+    public void shouldReleaseHistogramBudgetOnEviction() throws Exception {
+        // given
+        slidingWindowMetricService =
+                new SlidingWindowMetricService(rollupLevelService, HISTOGRAM_BYTES);
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(
+                TRANSACTION_PERCENTILE_CONDITION));
+        slidingWindowMetricService.addAggregates("a", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+
+        // when
+        // evicted since older than twice the time period
+        slidingWindowMetricService.addAggregates("a", 240000, createAggregates(1, 1000000),
+                alertConfigs);
+
+        // then
+        assertThat(slidingWindowMetricService.getWindowValue("a",
+                TRANSACTION_PERCENTILE_CONDITION, 239999, 240000).metricValue()).isEqualTo(1.0);
+    }
+
+    @Test
+    public void shouldReleaseHistogramBudgetWhenAlertRemoved() throws Exception {
+        // given
+        slidingWindowMetricService =
+                new SlidingWindowMetricService(rollupLevelService, HISTOGRAM_BYTES);
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(
+                TRANSACTION_PERCENTILE_CONDITION));
+        slidingWindowMetricService.addAggregates("a", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+        slidingWindowMetricService.addAggregates("b", 60000, createAggregates(1, 2000000),
+                alertConfigs);
+
+        // when
+        slidingWindowMetricService.addAggregates("a", 120000, createAggregates(1, 2000000),
+                ImmutableList.<AlertConfig>of());
+        slidingWindowMetricService.addAggregates("b", 120000, createAggregates(1, 1000000),
+                alertConfigs);
+
+        // then
+        assertThat(slidingWindowMetricService.getWindowValue("b",
+                TRANSACTION_PERCENTILE_CONDITION, 59999, 60000)).isNull();
+        assertThat(slidingWindowMetricService.getWindowValue("b",
+                TRANSACTION_PERCENTILE_CONDITION, 119999, 120000).metricValue()).isEqualTo(1.0);
+    }
+
+    @Test
+    public void shouldNotDriftWhenSubtractingFromRunningTotals() throws Exception {
+        // given
+        List<AlertConfig> alertConfigs = ImmutableList.of(createAlertConfig(
+                TRANSACTION_AVERAGE_CONDITION));
+
+        // when
+        // large values that are subtracted back out of the running totals lose the precision of
+        // the small values that are added along with them
+        for (int i = 1; i <= 10; i++) {
+            double totalDurationNanos = i % 2 == 0 ? 1e20 : 1;
+            slidingWindowMetricService.addAggregates("a", i * 60000L,
+                    createAggregates(1, totalDurationNanos), alertConfigs);
+        }
+        for (int i = 11; i <= 12; i++) {
+            slidingWindowMetricService.addAggregates("a", i * 60000L,
+                    createAggregates(1, 1000000), alertConfigs);
+        }
+
+        // then
+        WindowValue windowValue = slidingWindowMetricService.getWindowValue("a",
+                TRANSACTION_AVERAGE_CONDITION, 600000, 720000);
+        assertThat(windowValue.metricValue()).isEqualTo(1.0);
+    }
+
+    private static AlertConfig createAlertConfig(MetricCondition metricCondition) {
+        return AlertConfig.newBuilder()
+                .setCondition(AlertCondition.newBuilder()
+                        .setMetricCondition(metricCondition))
+                .build();
+    }
+
+    private static List<OldAggregatesByType> createAggregates(long transactionCount,
+            double totalDurationNanos) {
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("tt")
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTransactionCount(transactionCount)
+                        .setTotalDurationNanos(totalDurationNanos)
+                        .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                                .addOrderedRawValue((long) totalDurationNanos)))
+                .build());
+    }
+
+    private static GaugeValue createGaugeValue(String gaugeName, long captureTime, double value,
+            long weight) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(weight)
+                .build();
+    }
+}
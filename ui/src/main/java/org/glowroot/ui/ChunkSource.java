@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -21,11 +21,17 @@ import java.io.Writer;
 import java.util.Iterator;
 import java.util.List;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.io.CharSource;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 public abstract class ChunkSource {
 
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
     public abstract ChunkCopier getCopier(Writer writer) throws IOException;
 
     static ChunkSource create(final CharSource charSource) {
@@ -61,9 +67,29 @@ public abstract class ChunkSource {
         boolean copyNext() throws IOException;
     }
 
-    private static class ReaderChunkCopier implements ChunkCopier {
+    // the json is generated incrementally, one chunk at a time, directly into the writer (and
+    // netty's ChunkedWriteHandler only asks for the next chunk once the channel is writable again),
+    // so that large json responses (e.g. traces with 100k+ entries) are never fully materialized in
+    // memory
+    abstract static class JsonChunkSource extends ChunkSource {
+
+        @Override
+        public ChunkCopier getCopier(Writer writer) throws IOException {
+            return new JsonChunkCopier(jsonFactory.createGenerator(writer),
+                    createJsonChunkWriter());
+        }
+
+        // called once per copy, so the returned writer can be stateful
+        abstract JsonChunkWriter createJsonChunkWriter();
+    }
+
+    interface JsonChunkWriter {
 
-        private static final int CHUNK_SIZE = 8192;
+        // returns false when nothing left to write after this chunk
+        boolean writeNext(JsonGenerator jg) throws IOException;
+    }
+
+    private static class ReaderChunkCopier implements ChunkCopier {
 
         private final Reader reader;
         private final Writer writer;
@@ -139,6 +165,7 @@ public abstract class ChunkSource {
         private final String str;
         private final Writer writer;
 
+        private volatile int index;
         private volatile boolean closed;
 
         private StringChunkCopier(String str, Writer writer) {
@@ -151,8 +178,36 @@ public abstract class ChunkSource {
             if (closed) {
                 return false;
             }
-            writer.write(str);
-            closed = true;
+            // large strings are copied in multiple chunks to avoid encoding the whole string into
+            // a single (large) buffer
+            int end = Math.min(index + CHUNK_SIZE, str.length());
+            writer.write(str, index, end - index);
+            index = end;
+            closed = end == str.length();
+            return true;
+        }
+    }
+
+    private static class JsonChunkCopier implements ChunkCopier {
+
+        private final JsonGenerator jg;
+        private final JsonChunkWriter jsonChunkWriter;
+
+        private volatile boolean closed;
+
+        private JsonChunkCopier(JsonGenerator jg, JsonChunkWriter jsonChunkWriter) {
+            this.jg = jg;
+            this.jsonChunkWriter = jsonChunkWriter;
+        }
+
+        @Override
+        public boolean copyNext() throws IOException {
+            if (closed) {
+                return false;
+            }
+            closed = !jsonChunkWriter.writeNext(jg);
+            // not closing the json generator since that would also close the underlying writer
+            jg.flush();
             return true;
         }
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -121,7 +121,10 @@ class ChunkedInputs {
                 // flush to byteBuf
                 writer.flush();
                 while (byteBuf.writerIndex() == 0) {
-                    chunkCopier.copyNext();
+                    if (!chunkCopier.copyNext()) {
+                        // only empty chunks remained, the next call will return null
+                        break;
+                    }
                     // flush to byteBuf
                     writer.flush();
                 }
@@ -51,7 +51,7 @@ import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
-import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.QuantileSketch;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.ObjectMappers;
 import org.glowroot.common2.repo.ActiveAgentRepository;
@@ -396,25 +396,23 @@ class ReportJsonService {
                     .captureTime(lastRollupCaptureTime)
                     .build());
         }
+        QuantileSketch mergedSketch = new QuantileSketch();
         PercentileAggregate priorAggregate = null;
         for (PercentileAggregate aggregate : aggregates) {
             if (priorAggregate != null
                     && aggregate.captureTime() - priorAggregate.captureTime() > gapMillis) {
                 dataSeries.addNull();
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(aggregate.durationNanosHistogram());
+            QuantileSketch durationNanosSketch =
+                    QuantileSketch.from(aggregate.durationNanosHistogram());
             dataSeries.add(getIntervalAverage(rollup, timeZone, aggregate.captureTime()),
-                    durationNanosHistogram.getValueAtPercentile(percentile)
+                    durationNanosSketch.getValueAtPercentile(percentile)
                             / NANOSECONDS_PER_MILLISECOND);
+            mergedSketch.merge(durationNanosSketch);
             priorAggregate = aggregate;
         }
-        LazyHistogram mergedHistogram = new LazyHistogram();
-        for (PercentileAggregate aggregate : aggregates) {
-            mergedHistogram.merge(aggregate.durationNanosHistogram());
-        }
         dataSeries.setOverall(
-                mergedHistogram.getValueAtPercentile(percentile) / NANOSECONDS_PER_MILLISECOND);
+                mergedSketch.getValueAtPercentile(percentile) / NANOSECONDS_PER_MILLISECOND);
         return dataSeries;
     }
 
@@ -17,7 +17,6 @@ package org.glowroot.ui;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeoutException;
@@ -42,6 +41,8 @@ import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.AgentDisplayRepository;
 import org.glowroot.common2.repo.TraceRepository;
 import org.glowroot.common2.repo.TraceRepository.HeaderPlus;
+import org.glowroot.ui.ChunkSource.JsonChunkSource;
+import org.glowroot.ui.ChunkSource.JsonChunkWriter;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
@@ -89,7 +90,7 @@ class TraceCommonService {
     }
 
     @Nullable
-    String getEntriesJson(String agentId, String traceId, boolean checkLiveTraces)
+    ChunkSource getEntriesJson(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
@@ -103,14 +104,15 @@ class TraceCommonService {
                 entries = null;
             }
             if (entries != null) {
-                return toJson(entries);
+                return toChunkSource(entries);
             }
         }
-        return toJson(getStoredEntries(agentId, traceId, new RetryCountdown(checkLiveTraces)));
+        return toChunkSource(
+                getStoredEntries(agentId, traceId, new RetryCountdown(checkLiveTraces)));
     }
 
     @Nullable
-    String getQueriesJson(String agentId, String traceId, boolean checkLiveTraces)
+    ChunkSource getQueriesJson(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
@@ -124,22 +126,23 @@ class TraceCommonService {
                 queries = null;
             }
             if (queries != null) {
-                return toJson(queries);
+                return toChunkSource(queries);
             }
         }
-        return toJson(getStoredQueries(agentId, traceId, new RetryCountdown(checkLiveTraces)));
+        return toChunkSource(
+                getStoredQueries(agentId, traceId, new RetryCountdown(checkLiveTraces)));
     }
 
     @Nullable
-    String getMainThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
+    ChunkSource getMainThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
-        return toJson(getMainThreadProfile(agentId, traceId, checkLiveTraces));
+        return toChunkSource(getMainThreadProfile(agentId, traceId, checkLiveTraces));
     }
 
     @Nullable
-    String getAuxThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
+    ChunkSource getAuxThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
-        return toJson(getAuxThreadProfile(agentId, traceId, checkLiveTraces));
+        return toChunkSource(getAuxThreadProfile(agentId, traceId, checkLiveTraces));
     }
 
     @Nullable
@@ -203,14 +206,14 @@ class TraceCommonService {
                 return ImmutableTraceExport.builder()
                         .fileName(getFileName(header))
                         .headerJson(toJsonLiveHeader(agentId, header))
-                        .entriesJson(entriesToJson(trace.getEntryList()))
-                        .queriesJson(queriesToJson(trace.getQueryList()))
+                        .entriesJson(entriesToChunkSource(trace.getEntryList()))
+                        .queriesJson(queriesToChunkSource(trace.getQueryList()))
                         // SharedQueryTexts are always returned from getFullTrace() above with
                         // fullTrace, so no need to resolve fullTraceSha1
                         .sharedQueryTextsJson(
-                                sharedQueryTextsToJson(trace.getSharedQueryTextList()))
-                        .mainThreadProfileJson(toJson(trace.getMainThreadProfile()))
-                        .auxThreadProfileJson(toJson(trace.getAuxThreadProfile()))
+                                sharedQueryTextsToChunkSource(trace.getSharedQueryTextList()))
+                        .mainThreadProfileJson(toChunkSource(trace.getMainThreadProfile()))
+                        .auxThreadProfileJson(toChunkSource(trace.getAuxThreadProfile()))
                         .build();
             }
         }
@@ -225,17 +228,17 @@ class TraceCommonService {
         EntriesAndQueries queriesAndEntries =
                 getStoredEntriesAndQueriesForExport(agentId, traceId, retryCountdown);
         if (queriesAndEntries != null) {
-            builder.entriesJson(entriesToJson(queriesAndEntries.entries()));
-            builder.queriesJson(queriesToJson(queriesAndEntries.queries()));
+            builder.entriesJson(entriesToChunkSource(queriesAndEntries.entries()));
+            builder.queriesJson(queriesToChunkSource(queriesAndEntries.queries()));
             // SharedQueryTexts are always returned from getStoredEntries() above with fullTrace,
             // so no need to resolve fullTraceSha1
             builder.sharedQueryTextsJson(
-                    sharedQueryTextsToJson(queriesAndEntries.sharedQueryTexts()));
+                    sharedQueryTextsToChunkSource(queriesAndEntries.sharedQueryTexts()));
         }
         builder.mainThreadProfileJson(
-                toJson(getStoredMainThreadProfile(agentId, traceId, retryCountdown)));
+                toChunkSource(getStoredMainThreadProfile(agentId, traceId, retryCountdown)));
         builder.auxThreadProfileJson(
-                toJson(getStoredAuxThreadProfile(agentId, traceId, retryCountdown)));
+                toChunkSource(getStoredAuxThreadProfile(agentId, traceId, retryCountdown)));
         return builder.build();
     }
 
@@ -306,125 +309,114 @@ class TraceCommonService {
         return profile;
     }
 
-    private static @Nullable String toJson(@Nullable Entries entries) throws IOException {
+    private static @Nullable ChunkSource toChunkSource(final @Nullable Entries entries) {
         if (entries == null) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            jg.writeStartObject();
-            jg.writeFieldName("entries");
-            writeEntries(jg, entries.entries());
-            jg.writeFieldName("sharedQueryTexts");
-            writeSharedQueryTexts(jg, entries.sharedQueryTexts());
-            jg.writeEndObject();
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return new JsonChunkSource() {
+            @Override
+            JsonChunkWriter createJsonChunkWriter() {
+                return new EntriesJsonChunkWriter(entries.entries(), entries.sharedQueryTexts());
+            }
+        };
     }
 
-    private static @Nullable String toJson(@Nullable Queries queries) throws IOException {
+    private static @Nullable ChunkSource toChunkSource(final @Nullable Queries queries) {
         if (queries == null) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            jg.writeStartObject();
-            jg.writeFieldName("queries");
-            writeQueries(jg, queries.queries());
-            jg.writeFieldName("sharedQueryTexts");
-            writeSharedQueryTexts(jg, queries.sharedQueryTexts());
-            jg.writeEndObject();
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return new JsonChunkSource() {
+            @Override
+            JsonChunkWriter createJsonChunkWriter() {
+                return new QueriesJsonChunkWriter(queries.queries(), queries.sharedQueryTexts());
+            }
+        };
     }
 
     @VisibleForTesting
-    static @Nullable String entriesToJson(List<Trace.Entry> entries) throws IOException {
+    static @Nullable ChunkSource entriesToChunkSource(final List<Trace.Entry> entries) {
         if (entries.isEmpty()) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            writeEntries(jg, entries);
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return new JsonChunkSource() {
+            @Override
+            JsonChunkWriter createJsonChunkWriter() {
+                return new EntriesJsonChunkWriter(entries, null);
+            }
+        };
     }
 
-    @VisibleForTesting
-    static @Nullable String queriesToJson(List<Aggregate.Query> queries) throws IOException {
+    private static @Nullable ChunkSource queriesToChunkSource(
+            final List<Aggregate.Query> queries) {
         if (queries.isEmpty()) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            writeQueries(jg, queries);
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return new JsonChunkSource() {
+            @Override
+            JsonChunkWriter createJsonChunkWriter() {
+                return new QueriesJsonChunkWriter(queries, null);
+            }
+        };
     }
 
-    private static @Nullable String sharedQueryTextsToJson(
-            List<Trace.SharedQueryText> sharedQueryTexts) throws IOException {
+    private static @Nullable ChunkSource sharedQueryTextsToChunkSource(
+            final List<Trace.SharedQueryText> sharedQueryTexts) {
         if (sharedQueryTexts.isEmpty()) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            writeSharedQueryTexts(jg, sharedQueryTexts);
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return new JsonChunkSource() {
+            @Override
+            JsonChunkWriter createJsonChunkWriter() {
+                return new JsonChunkWriter() {
+                    @Override
+                    public boolean writeNext(JsonGenerator jg) throws IOException {
+                        writeSharedQueryTexts(jg, sharedQueryTexts);
+                        return false;
+                    }
+                };
+            }
+        };
     }
 
-    private static void writeEntries(JsonGenerator jg, List<Trace.Entry> entries)
-            throws IOException {
-        jg.writeStartArray();
-        PeekingIterator<Trace.Entry> i = Iterators.peekingIterator(entries.iterator());
-        while (i.hasNext()) {
-            Trace.Entry entry = i.next();
-            int depth = entry.getDepth();
-            jg.writeStartObject();
-            writeJson(entry, jg);
-            int nextDepth = i.hasNext() ? i.peek().getDepth() : 0;
-            if (nextDepth > depth) {
-                jg.writeArrayFieldStart("childEntries");
-            } else if (nextDepth < depth) {
-                jg.writeEndObject();
-                for (int j = depth; j > nextDepth; j--) {
-                    jg.writeEndArray();
-                    jg.writeEndObject();
-                }
-            } else {
-                jg.writeEndObject();
-            }
+    private static @Nullable ChunkSource toChunkSource(final @Nullable Profile profile) {
+        if (profile == null) {
+            return null;
         }
-        jg.writeEndArray();
+        return new JsonChunkSource() {
+            @Override
+            JsonChunkWriter createJsonChunkWriter() {
+                return new JsonChunkWriter() {
+                    @Override
+                    public boolean writeNext(JsonGenerator jg) throws IOException {
+                        // profile is written as a single (pre-order traversal) chunk
+                        MutableProfile mutableProfile = new MutableProfile();
+                        mutableProfile.merge(profile);
+                        mutableProfile.writeJson(jg);
+                        return false;
+                    }
+                };
+            }
+        };
     }
 
-    private static void writeQueries(JsonGenerator jg, List<Aggregate.Query> queries)
+    private static void writeEntry(JsonGenerator jg, PeekingIterator<Trace.Entry> i)
             throws IOException {
-        jg.writeStartArray();
-        Iterator<Aggregate.Query> i = queries.iterator();
-        while (i.hasNext()) {
-            Aggregate.Query query = i.next();
-            jg.writeStartObject();
-            writeJson(query, jg);
+        Trace.Entry entry = i.next();
+        int depth = entry.getDepth();
+        jg.writeStartObject();
+        writeJson(entry, jg);
+        int nextDepth = i.hasNext() ? i.peek().getDepth() : 0;
+        if (nextDepth > depth) {
+            jg.writeArrayFieldStart("childEntries");
+        } else if (nextDepth < depth) {
+            jg.writeEndObject();
+            for (int j = depth; j > nextDepth; j--) {
+                jg.writeEndArray();
+                jg.writeEndObject();
+            }
+        } else {
             jg.writeEndObject();
         }
-        jg.writeEndArray();
     }
 
     private static void writeSharedQueryTexts(JsonGenerator jg,
@@ -446,15 +438,6 @@ class TraceCommonService {
         jg.writeEndArray();
     }
 
-    private static @Nullable String toJson(@Nullable Profile profile) throws IOException {
-        if (profile == null) {
-            return null;
-        }
-        MutableProfile mutableProfile = new MutableProfile();
-        mutableProfile.merge(profile);
-        return mutableProfile.toJson();
-    }
-
     private String toJsonLiveHeader(String agentId, Trace.Header header) throws Exception {
         boolean hasProfile = header.getMainThreadProfileSampleCount() > 0
                 || header.getAuxThreadProfileSampleCount() > 0;
@@ -774,20 +757,98 @@ class TraceCommonService {
         }
     }
 
+    // writes the array a batch of elements per chunk, wrapped in an object together with the
+    // shared query texts when those are provided
+    private abstract static class ArrayJsonChunkWriter<T> implements JsonChunkWriter {
+
+        private static final int ELEMENTS_PER_CHUNK = 100;
+
+        private final String fieldName;
+        private final PeekingIterator<T> i;
+        private final @Nullable List<Trace.SharedQueryText> sharedQueryTexts;
+
+        private boolean started;
+
+        private ArrayJsonChunkWriter(String fieldName, List<T> elements,
+                @Nullable List<Trace.SharedQueryText> sharedQueryTexts) {
+            this.fieldName = fieldName;
+            this.i = Iterators.peekingIterator(elements.iterator());
+            this.sharedQueryTexts = sharedQueryTexts;
+        }
+
+        @Override
+        public boolean writeNext(JsonGenerator jg) throws IOException {
+            if (!started) {
+                if (sharedQueryTexts != null) {
+                    jg.writeStartObject();
+                    jg.writeFieldName(fieldName);
+                }
+                jg.writeStartArray();
+                started = true;
+            }
+            for (int count = 0; count < ELEMENTS_PER_CHUNK && i.hasNext(); count++) {
+                writeNextElement(jg, i);
+            }
+            if (i.hasNext()) {
+                return true;
+            }
+            jg.writeEndArray();
+            if (sharedQueryTexts != null) {
+                jg.writeFieldName("sharedQueryTexts");
+                writeSharedQueryTexts(jg, sharedQueryTexts);
+                jg.writeEndObject();
+            }
+            return false;
+        }
+
+        abstract void writeNextElement(JsonGenerator jg, PeekingIterator<T> i)
+                throws IOException;
+    }
+
+    private static class EntriesJsonChunkWriter extends ArrayJsonChunkWriter<Trace.Entry> {
+
+        private EntriesJsonChunkWriter(List<Trace.Entry> entries,
+                @Nullable List<Trace.SharedQueryText> sharedQueryTexts) {
+            super("entries", entries, sharedQueryTexts);
+        }
+
+        @Override
+        void writeNextElement(JsonGenerator jg, PeekingIterator<Trace.Entry> i)
+                throws IOException {
+            writeEntry(jg, i);
+        }
+    }
+
+    private static class QueriesJsonChunkWriter extends ArrayJsonChunkWriter<Aggregate.Query> {
+
+        private QueriesJsonChunkWriter(List<Aggregate.Query> queries,
+                @Nullable List<Trace.SharedQueryText> sharedQueryTexts) {
+            super("queries", queries, sharedQueryTexts);
+        }
+
+        @Override
+        void writeNextElement(JsonGenerator jg, PeekingIterator<Aggregate.Query> i)
+                throws IOException {
+            jg.writeStartObject();
+            writeJson(i.next(), jg);
+            jg.writeEndObject();
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface TraceExport {
         String fileName();
         String headerJson();
         @Nullable
-        String entriesJson();
+        ChunkSource entriesJson();
         @Nullable
-        String queriesJson();
+        ChunkSource queriesJson();
         @Nullable
-        String sharedQueryTextsJson();
+        ChunkSource sharedQueryTextsJson();
         @Nullable
-        String mainThreadProfileJson();
+        ChunkSource mainThreadProfileJson();
         @Nullable
-        String auxThreadProfileJson();
+        ChunkSource auxThreadProfileJson();
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -76,40 +76,20 @@ class TraceDetailHttpService implements HttpService {
     private @Nullable ChunkSource getDetailChunkSource(String traceComponent, String agentId,
             String traceId, boolean checkLiveTraces) throws Exception {
         if (traceComponent.equals("entries")) {
-            String entriesJson =
-                    traceCommonService.getEntriesJson(agentId, traceId, checkLiveTraces);
-            if (entriesJson == null) {
-                // this includes trace was found but the trace had no entries
-                // caller should check trace.entry_count
-                return null;
-            }
-            return ChunkSource.wrap(entriesJson);
+            // this returns null if trace was found but the trace had no entries
+            // caller should check trace.entry_count
+            return traceCommonService.getEntriesJson(agentId, traceId, checkLiveTraces);
         }
         if (traceComponent.equals("queries")) {
-            String queriesJson =
-                    traceCommonService.getQueriesJson(agentId, traceId, checkLiveTraces);
-            if (queriesJson == null) {
-                // this includes trace was found but the trace had no queries
-                // caller should check trace.query_count
-                return null;
-            }
-            return ChunkSource.wrap(queriesJson);
+            // this returns null if trace was found but the trace had no queries
+            // caller should check trace.query_count
+            return traceCommonService.getQueriesJson(agentId, traceId, checkLiveTraces);
         }
         if (traceComponent.equals("main-thread-profile")) {
-            String profileJson =
-                    traceCommonService.getMainThreadProfileJson(agentId, traceId, checkLiveTraces);
-            if (profileJson == null) {
-                return null;
-            }
-            return ChunkSource.wrap(profileJson);
+            return traceCommonService.getMainThreadProfileJson(agentId, traceId, checkLiveTraces);
         }
         if (traceComponent.equals("aux-thread-profile")) {
-            String profileJson =
-                    traceCommonService.getAuxThreadProfileJson(agentId, traceId, checkLiveTraces);
-            if (profileJson == null) {
-                return null;
-            }
-            return ChunkSource.wrap(profileJson);
+            return traceCommonService.getAuxThreadProfileJson(agentId, traceId, checkLiveTraces);
         }
         throw new IllegalStateException("Unexpected trace component: " + traceComponent);
     }
@@ -42,13 +42,13 @@ import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.ImmutableOverallSummary;
-import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.MutableServiceCall;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
 import org.glowroot.common.model.ProfileCollector;
+import org.glowroot.common.model.QuantileSketch;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.ServiceCallCollector;
@@ -609,7 +609,7 @@ class TransactionJsonService {
 
         long transactionCount = 0;
         double totalDurationNanos = 0;
-        LazyHistogram mergedHistogram = new LazyHistogram();
+        QuantileSketch mergedSketch = new QuantileSketch();
 
         PercentileAggregate priorPercentileAggregate = null;
         for (PercentileAggregate percentileAggregate : percentileAggregates) {
@@ -622,20 +622,20 @@ class TransactionJsonService {
                 dataSeriesHelper.addGapIfNeeded(priorPercentileAggregate.captureTime(), captureTime,
                         dataSeriesList, null);
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(percentileAggregate.durationNanosHistogram());
+            QuantileSketch durationNanosSketch =
+                    QuantileSketch.from(percentileAggregate.durationNanosHistogram());
             for (int i = 0; i < percentiles.size(); i++) {
                 DataSeries dataSeries = dataSeriesList.get(i);
                 double percentile = percentiles.get(i);
                 // convert to milliseconds
-                dataSeries.add(captureTime, durationNanosHistogram.getValueAtPercentile(percentile)
+                dataSeries.add(captureTime, durationNanosSketch.getValueAtPercentile(percentile)
                         / NANOSECONDS_PER_MILLISECOND);
             }
             // TODO more precise aggregate when from/to not on rollup grid
             if (captureTime > request.from() && captureTime <= request.to()) {
                 transactionCount += percentileAggregate.transactionCount();
                 totalDurationNanos += percentileAggregate.totalDurationNanos();
-                mergedHistogram.merge(durationNanosHistogram);
+                mergedSketch.merge(durationNanosSketch);
             }
             priorPercentileAggregate = percentileAggregate;
         }
@@ -648,7 +648,7 @@ class TransactionJsonService {
         for (double percentile : percentiles) {
             percentileValues.add(ImmutablePercentileValue.of(
                     Utils.getPercentileWithSuffix(percentile) + " percentile",
-                    mergedHistogram.getValueAtPercentile(percentile)));
+                    mergedSketch.getValueAtPercentile(percentile)));
         }
 
         return ImmutablePercentileData.builder()
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,10 +19,14 @@ import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.Writer;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 
 import org.glowroot.ui.ChunkSource.ChunkCopier;
+import org.glowroot.ui.ChunkSource.JsonChunkSource;
+import org.glowroot.ui.ChunkSource.JsonChunkWriter;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -95,6 +99,61 @@ public class ChunkSourceTest {
         assertThat(writer.toString()).isEqualTo("123456789");
     }
 
+    @Test
+    public void testLargeStringIsCopiedInMultipleChunks() throws IOException {
+        // given
+        String str = Strings.repeat("x", 20000);
+
+        // when
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = ChunkSource.wrap(str).getCopier(writer);
+        int chunkCount = 0;
+        while (copier.copyNext()) {
+            chunkCount++;
+        }
+
+        // then
+        assertThat(chunkCount).isEqualTo(3);
+        assertThat(writer.toString()).isEqualTo(str);
+    }
+
+    @Test
+    public void testJsonChunkSource() throws IOException {
+        // given
+        ChunkSource chunkSource = new JsonChunkSource() {
+            @Override
+            JsonChunkWriter createJsonChunkWriter() {
+                return new JsonChunkWriter() {
+                    private int count;
+                    @Override
+                    public boolean writeNext(JsonGenerator jg) throws IOException {
+                        if (count == 0) {
+                            jg.writeStartArray();
+                        }
+                        jg.writeNumber(count++);
+                        if (count < 3) {
+                            return true;
+                        }
+                        jg.writeEndArray();
+                        return false;
+                    }
+                };
+            }
+        };
+
+        // when
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = chunkSource.getCopier(writer);
+
+        // then
+        assertThat(copier.copyNext()).isTrue();
+        // each chunk is flushed to the writer as soon as it is written
+        assertThat(writer.toString()).isEqualTo("[0");
+        while (copier.copyNext()) {
+        }
+        assertThat(writer.toString()).isEqualTo("[0,1,2]");
+    }
+
     private static class EmptyChunkSource extends ChunkSource {
 
         private static final EmptyChunkSource INSTANCE = new EmptyChunkSource();
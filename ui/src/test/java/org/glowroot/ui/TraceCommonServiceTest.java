@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,13 @@
  */
 package org.glowroot.ui;
 
+import java.io.CharArrayWriter;
 import java.util.List;
 
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.ui.ChunkSource.ChunkCopier;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -33,9 +35,14 @@ public class TraceCommonServiceTest {
         entries.add(Trace.Entry.newBuilder().setDepth(0).build());
         entries.add(Trace.Entry.newBuilder().setDepth(1).build());
         // when
-        String json = TraceCommonService.entriesToJson(entries);
+        ChunkSource chunkSource = TraceCommonService.entriesToChunkSource(entries);
         // then
-        assertThat(json).isEqualTo("[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\","
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = chunkSource.getCopier(writer);
+        while (copier.copyNext()) {
+        }
+        assertThat(writer.toString()).isEqualTo(
+                "[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\","
                 + "\"childEntries\":[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\"}]"
                 + "}]");
     }